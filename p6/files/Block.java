@@ -0,0 +1,68 @@
+import java.util.*;
+
+/**
+ * Block
+ *
+ * A basic block of the IR: phis first, then the other instructions,
+ * ending in one terminator (BR, JMP or RET).  A phi has one operand per
+ * predecessor, in the order of preds.
+ */
+class Block {
+    int id;
+    List<IRInst> insts = new ArrayList<IRInst>();
+    List<Block> preds = new ArrayList<Block>();
+    List<Block> succs = new ArrayList<Block>();
+    String label;   // assigned by IRLower
+    boolean cold;   // rarely run, says the profile (see IRFunction.visitOrder)
+
+    public Block(int id) {
+        this.id = id;
+    }
+
+    public List<IRInst> phis() {
+        List<IRInst> phis = new ArrayList<IRInst>();
+        for (IRInst i : insts) {
+            if (i.op != IROp.PHI) {
+                break;
+            }
+            phis.add(i);
+        }
+        return phis;
+    }
+
+    public IRInst terminator() {
+        if (insts.isEmpty()) {
+            return null;
+        }
+        IRInst last = insts.get(insts.size() - 1);
+        return last.op.isTerminator() ? last : null;
+    }
+
+    public void add(IRInst i) {
+        i.block = this;
+        insts.add(i);
+    }
+
+    public void addPhi(IRInst phi) {
+        phi.block = this;
+        insts.add(phis().size(), phi);
+    }
+
+    public void insertBeforeTerminator(IRInst i) {
+        i.block = this;
+        insts.add(insts.size() - 1, i);
+    }
+
+    /**
+     * Remove an instruction that no longer has users.
+     */
+    public void remove(IRInst i) {
+        i.removeOperands();
+        insts.remove(i);
+        i.block = null;
+    }
+
+    public String toString() {
+        return "B" + id;
+    }
+}
@@ -0,0 +1,248 @@
+import java.io.*;
+import java.util.*;
+
+/**
+ * ClassFile
+ *
+ * Builds a JVM class file: its constant pool, its static fields and its
+ * methods (whose code is built by JvmCode), and writes it out.
+ *
+ * The class file has version 49.0, the last one whose methods need no
+ * StackMapTable attribute (the JVM infers the types of the values on the
+ * stack and in the locals instead), so the code can be written without
+ * computing them.
+ */
+class ClassFile {
+    private static final int MAGIC = 0xcafebabe;
+    private static final int MAJOR_VERSION = 49;
+
+    // access flags
+    public static final int ACC_PUBLIC = 0x0001;
+    public static final int ACC_STATIC = 0x0008;
+    public static final int ACC_SUPER = 0x0020;
+
+    // constant pool tags
+    private static final int CONSTANT_UTF8 = 1;
+    private static final int CONSTANT_INTEGER = 3;
+    private static final int CONSTANT_LONG = 5;
+    private static final int CONSTANT_CLASS = 7;
+    private static final int CONSTANT_STRING = 8;
+    private static final int CONSTANT_FIELDREF = 9;
+    private static final int CONSTANT_METHODREF = 10;
+    private static final int CONSTANT_NAME_AND_TYPE = 12;
+
+    private final String name;
+    private final String superName;
+    private final List<String> interfaces = new ArrayList<String>();
+
+    // the constant pool, and the index of each entry by a key made of its
+    // tag and contents
+    private ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+    private DataOutputStream pool = new DataOutputStream(poolBytes);
+    private int poolCount = 1;
+    private Map<String, Integer> poolIndex = new HashMap<String, Integer>();
+
+    private ByteArrayOutputStream fields = new ByteArrayOutputStream();
+    private int numFields = 0;
+    private ByteArrayOutputStream methods = new ByteArrayOutputStream();
+    private int numMethods = 0;
+
+    public ClassFile(String name, String superName) {
+        this.name = name;
+        this.superName = superName;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void addInterface(String iface) {
+        interfaces.add(iface);
+    }
+
+    // **********************************************************************
+    // constant pool
+    // **********************************************************************
+
+    public int utf8(String s) {
+        Integer k = poolIndex.get("U" + s);
+        if (k != null) {
+            return k;
+        }
+        try {
+            pool.writeByte(CONSTANT_UTF8);
+            pool.writeUTF(s);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        return add("U" + s, 1);
+    }
+
+    public int integer(int val) {
+        Integer k = poolIndex.get("I" + val);
+        if (k != null) {
+            return k;
+        }
+        write(CONSTANT_INTEGER);
+        writeInt(val);
+        return add("I" + val, 1);
+    }
+
+    // a long takes two entries
+    public int longConst(long val) {
+        Integer k = poolIndex.get("J" + val);
+        if (k != null) {
+            return k;
+        }
+        write(CONSTANT_LONG);
+        writeInt((int)(val >> 32));
+        writeInt((int)val);
+        return add("J" + val, 2);
+    }
+
+    public int classRef(String className) {
+        return ref(CONSTANT_CLASS, "C" + className, utf8(className));
+    }
+
+    public int string(String s) {
+        return ref(CONSTANT_STRING, "S" + s, utf8(s));
+    }
+
+    public int fieldRef(String owner, String name, String desc) {
+        return memberRef(CONSTANT_FIELDREF, owner, name, desc);
+    }
+
+    public int methodRef(String owner, String name, String desc) {
+        return memberRef(CONSTANT_METHODREF, owner, name, desc);
+    }
+
+    private int memberRef(int tag, String owner, String name, String desc) {
+        String key = tag + owner + "." + name + ":" + desc;
+        Integer k = poolIndex.get(key);
+        if (k != null) {
+            return k;
+        }
+        int cls = classRef(owner);
+        int nat = nameAndType(name, desc);
+        write(tag);
+        writeShort(cls);
+        writeShort(nat);
+        return add(key, 1);
+    }
+
+    private int nameAndType(String name, String desc) {
+        String key = "N" + name + ":" + desc;
+        Integer k = poolIndex.get(key);
+        if (k != null) {
+            return k;
+        }
+        int n = utf8(name);
+        int d = utf8(desc);
+        write(CONSTANT_NAME_AND_TYPE);
+        writeShort(n);
+        writeShort(d);
+        return add(key, 1);
+    }
+
+    // an entry made of a tag and one index
+    private int ref(int tag, String key, int index) {
+        Integer k = poolIndex.get(key);
+        if (k != null) {
+            return k;
+        }
+        write(tag);
+        writeShort(index);
+        return add(key, 1);
+    }
+
+    private int add(String key, int size) {
+        int k = poolCount;
+        poolCount += size;
+        poolIndex.put(key, k);
+        return k;
+    }
+
+    private void write(int b) {
+        poolBytes.write(b);
+    }
+
+    private void writeShort(int v) {
+        poolBytes.write(v >> 8);
+        poolBytes.write(v);
+    }
+
+    private void writeInt(int v) {
+        writeShort(v >>> 16);
+        writeShort(v & 0xffff);
+    }
+
+    // **********************************************************************
+    // members
+    // **********************************************************************
+
+    public void addField(int access, String name, String desc) {
+        DataOutputStream out = new DataOutputStream(fields);
+        try {
+            out.writeShort(access);
+            out.writeShort(utf8(name));
+            out.writeShort(utf8(desc));
+            out.writeShort(0);          // no attributes
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        numFields++;
+    }
+
+    public void addMethod(int access, String name, String desc, JvmCode code) {
+        if (code.tooLong()) {
+            throw new IllegalStateException("the code of " + name +
+                                            " is too long for the JVM");
+        }
+        DataOutputStream out = new DataOutputStream(methods);
+        try {
+            out.writeShort(access);
+            out.writeShort(utf8(name));
+            out.writeShort(utf8(desc));
+            out.writeShort(1);          // the Code attribute
+            out.writeShort(utf8("Code"));
+            byte[] attr = code.toAttribute();
+            out.writeInt(attr.length);
+            out.write(attr);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        numMethods++;
+    }
+
+    /**
+     * Write the class file.
+     */
+    public void write(OutputStream os) throws IOException {
+        int thisClass = classRef(name);
+        int superClass = classRef(superName);
+        int[] ifaces = new int[interfaces.size()];
+        for (int k = 0; k < ifaces.length; k++) {
+            ifaces[k] = classRef(interfaces.get(k));
+        }
+
+        DataOutputStream out = new DataOutputStream(os);
+        out.writeInt(MAGIC);
+        out.writeShort(0);
+        out.writeShort(MAJOR_VERSION);
+        out.writeShort(poolCount);
+        poolBytes.writeTo(out);
+        out.writeShort(ACC_PUBLIC | ACC_SUPER);
+        out.writeShort(thisClass);
+        out.writeShort(superClass);
+        out.writeShort(ifaces.length);
+        for (int k : ifaces) {
+            out.writeShort(k);
+        }
+        out.writeShort(numFields);
+        fields.writeTo(out);
+        out.writeShort(numMethods);
+        methods.writeTo(out);
+        out.writeShort(0);              // no attributes
+        out.flush();
+    }
+}
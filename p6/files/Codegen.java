@@ -1,23 +1,46 @@
 import java.io.*;
+import java.util.*;
 
 // **********************************************************************
 // The Codegen class provides constants and operations useful for code
 // generation.
 //
 // The constants are:
-//     Registers: FP, SP, RA, V0, V1, A0, T0, T1
+//     Registers: FP, SP, RA, V0, V1, A0, A1, T0, T1, ARG_REGS
 //     Values: TRUE, FALSE
 //
-// The operations include various "generate" methods to print nicely
-// formatted assembly code:
+// Instructions are Instr records made of an Opcode and typed Operands
+// (Reg, Imm, LabelRef, Mem); the factories imm, label and mem build the
+// operands that are not registers.
+//
+// The operations include various "generate" methods that add
+// instructions to an output buffer:
 //     generateWithComment
 //     generate
 //     generateIndexed
 //     generateLabeled
 //     genPush
 //     genPop
+//     genMulImm
+//     genDivImm
 //     genLabel
-// and a method nextLabel to create and return a new label.
+//     genDirective
+//     genData
+//     stringLabel
+// methods beginColdCode, endColdCode and genColdCode to place code out
+// of line, a method nextLabel to create and return a new label, and a method flush
+// that runs the peephole optimizer (see Peephole) over the buffer and
+// writes nicely formatted assembly code to the output file.
+//
+// Expression values are not pushed on the run-time stack; instead they
+// live on a compile-time stack of registers managed by:
+//     newTemp
+//     pushAlias
+//     popTemp
+//     peekTemp
+//     spillTemps
+//     protectReg
+// and passed as the arguments of a call by genArgs.
 //
 // **********************************************************************
 
@@ -25,29 +48,72 @@ public class Codegen {
     // file into which generated code is written
     public static PrintWriter p = null;
 
+    // compile functions through the SSA form and its optimizations (-O)
+    public static boolean optimize = false;
+
+    // if set, flush writes an object file here instead of assembler text
+    // to p (-elf, see MipsAssembler)
+    public static OutputStream object = null;
+
     // values of true and false
-    public static final String TRUE = "1";
-    public static final String FALSE = "0";
+    public static final Imm TRUE = new Imm(1);
+    public static final Imm FALSE = new Imm(0);
 
     // registers
-    public static final String FP = "$fp";
-    public static final String SP = "$sp";
-    public static final String RA = "$ra";
-    public static final String V0 = "$v0";
-    public static final String V1 = "$v1";
-    public static final String A0 = "$a0";
-    public static final String T0 = "$t0";
-    public static final String T1 = "$t1";
+    public static final Reg FP = Reg.FP;
+    public static final Reg SP = Reg.SP;
+    public static final Reg RA = Reg.RA;
+    public static final Reg V0 = Reg.V0;
+    public static final Reg V1 = Reg.V1;
+    public static final Reg A0 = Reg.A0;
+    public static final Reg A1 = Reg.A1;
+    public static final Reg T0 = Reg.T0;
+    public static final Reg T1 = Reg.T1;
+
+    // registers passing the first arguments of a call
+    public static final Reg[] ARG_REGS = { Reg.A0, Reg.A1, Reg.A2, Reg.A3 };
 
+    // registers holding expression temporaries ($t0 and $t1 are scratch)
+    private static final Reg[] TEMPS = {
+        Reg.T2, Reg.T3, Reg.T4, Reg.T5, Reg.T6, Reg.T7, Reg.T8, Reg.T9
+    };
 
-    // for pretty printing generated code
-    private static final int MAXLEN = 4;
+
+    // buffered output: the text section is kept as instructions so that it
+    // can be optimized before it is printed
+    private static List<Instr> text = new ArrayList<Instr>();
+    private static List<Instr> data = new ArrayList<Instr>();
+
+    // the current function's cold code (see beginColdCode), and the text
+    // to go back to while it is being generated
+    private static List<Instr> coldText = new ArrayList<Instr>();
+    private static List<Instr> hotText = null;
+
+    // the string literal pool: the label of each literal in the data section
+    private static Map<String, String> strings = new HashMap<String, String>();
 
 
     // for generating labels
     private static int currLabel = 0;
 
 
+    // compile-time stack of expression values, bottom first; the spilled
+    // entries are always the bottom numSpilled entries of the stack
+    private static List<Temp> temps = new ArrayList<Temp>();
+    private static int numSpilled = 0;
+
+    private static class Temp {
+        Reg reg;           // register holding the value
+        boolean isAlias;   // reg belongs to a local, not to the temp pool
+        boolean spilled;   // value was pushed on the run-time stack
+
+        Temp(Reg reg, boolean isAlias) {
+            this.reg = reg;
+            this.isAlias = isAlias;
+        }
+    }
+
+
     // **********************************************************************
     // **********************************************************************
     // GENERATE OPERATIONS
@@ -55,175 +121,231 @@ public class Codegen {
     // **********************************************************************
 
     // **********************************************************************
-    // generateWithComment
-    //    given:  op code, comment, and 0 to 3 string args
-    //    do:     write nicely formatted code (ending with new line)
-    // **********************************************************************
-    public static void generateWithComment(String opcode, String comment,
-                                        String arg1, String arg2, String arg3) {
-        int space = MAXLEN - opcode.length() + 2;
-
-        p.print("\t" + opcode);
-        if (arg1 != "") {
-            for (int k = 1; k <= space; k++)
-                p.print(" ");
-            p.print(arg1);
-            if (arg2 != "") {
-                p.print(", " + arg2);
-                if (arg3 != "")
-                    p.print(", " + arg3);
-            }
-        }
-        if (comment != "")
-            p.print("\t\t#" + comment);
-        p.println();
-    }
+    // operands
+    // **********************************************************************
 
-    public static void generateWithComment(String opcode, String comment,
-                                           String arg1, String arg2) {
-        generateWithComment(opcode, comment, arg1, arg2, "");
+    public static Imm imm(int value) {
+        return new Imm(value);
     }
 
-    public static void generateWithComment(String opcode, String comment,
-                                           String arg1) {
-        generateWithComment(opcode, comment, arg1, "", "");
+    public static LabelRef label(String name) {
+        return new LabelRef(name);
     }
 
-    public static void generateWithComment(String opcode, String comment) {
-        generateWithComment(opcode, comment, "", "", "");
+    public static Mem mem(int offset, Reg base) {
+        return new Mem(offset, base);
     }
 
     // **********************************************************************
-    // generate
-    //    given:  op code, and 0 to 3 string args
-    //    do:     write nicely formatted code (ending with new line)
-    // **********************************************************************
-    public static void generate(String opcode, String arg1, String arg2,
-                                String arg3) {
-        int space = MAXLEN - opcode.length() + 2;
-
-        p.print("\t" + opcode);
-        if (arg1 != "") {
-            for (int k = 1; k <= space; k++)
-                p.print(" ");
-            p.print(arg1);
-            if (arg2 != "") {
-                p.print(", " + arg2);
-                if (arg3 != "")
-                    p.print(", " + arg3);
-            }
-        }
-        p.println();
-    }
-
-    public static void generate(String opcode, String arg1, String arg2) {
-        generate(opcode, arg1, arg2, "");
-    }
-
-    public static void generate(String opcode, String arg1) {
-        generate(opcode, arg1, "", "");
+    // generateWithComment
+    //    given:  op code, comment, and operands
+    //    do:     add the instruction to the output buffer
+    // **********************************************************************
+    public static void generateWithComment(Opcode opcode, String comment,
+                                           Operand... args) {
+        text.add(Instr.op(opcode, comment, args));
     }
 
-    public static void generate(String opcode) {
-        generate(opcode, "", "", "");
+    // **********************************************************************
+    // generate
+    //    given:  op code and operands
+    //    do:     add the instruction to the output buffer
+    // **********************************************************************
+    public static void generate(Opcode opcode, Operand... args) {
+        generateWithComment(opcode, "", args);
     }
 
     // **********************************************************************
-    // generate (two string args, one int)
+    // generate (two registers, one int)
     //    given:  op code and args
-    //    do:     write nicely formatted code (ending with new line)
+    //    do:     add the instruction to the output buffer
     // **********************************************************************
-    public static void generate(String opcode, String arg1, String arg2,
-                                int arg3) {
-        int space = MAXLEN - opcode.length() + 2;
-
-        p.print("\t" + opcode);
-        for (int k = 1; k <= space; k++)
-            p.print(" ");
-        p.println(arg1 + ", " + arg2 + ", " + arg3);
+    public static void generate(Opcode opcode, Reg arg1, Reg arg2, int arg3) {
+        generate(opcode, arg1, arg2, imm(arg3));
     }
 
     // **********************************************************************
-    // generate (one string arg, one int)
+    // generate (one register, one int)
     //    given:  op code and args
-    //    do:     write nicely formatted code (ending with new line)
+    //    do:     add the instruction to the output buffer
     // **********************************************************************
-    public static void generate(String opcode, String arg1, int arg2) {
-        int space = MAXLEN - opcode.length() + 2;
-
-        p.print("\t" + opcode);
-        for (int k = 1; k <= space; k++)
-            p.print(" ");
-        p.println(arg1 + ", " + arg2);
+    public static void generate(Opcode opcode, Reg arg1, int arg2) {
+        generate(opcode, arg1, imm(arg2));
     }
 
     // **********************************************************************
     // generateIndexed
-    //    given:  op code, target register T1 (as string), indexed register T2
-    //            (as string), - offset xx (int), and optional comment
-    //    do:     write nicely formatted code (ending with new line):
+    //    given:  op code, target register T1, indexed register T2,
+    //            - offset xx (int), and optional comment
+    //    do:     add the instruction to the output buffer:
     //                 op T1, xx(T2) #comment
     // **********************************************************************
-    public static void generateIndexed(String opcode, String arg1, String arg2,
+    public static void generateIndexed(Opcode opcode, Reg arg1, Reg arg2,
                                        int arg3, String comment) {
-        int space = MAXLEN - opcode.length() + 2;
-
-        p.print("\t" + opcode);
-        for (int k = 1; k <= space; k++)
-            p.print(" ");
-        p.print(arg1 + ", " + arg3 + "(" + arg2 + ")");
-        if (comment != "")
-            p.print("\t#" + comment);
-        p.println();
+        generateWithComment(opcode, comment, arg1, mem(arg3, arg2));
     }
 
-    public static void generateIndexed(String opcode, String arg1, String arg2,
+    public static void generateIndexed(Opcode opcode, Reg arg1, Reg arg2,
                                        int arg3) {
         generateIndexed(opcode, arg1, arg2, arg3, "");
     }
 
     // **********************************************************************
-    // generateLabeled (string args -- perhaps empty)
-    //    given:  label, op code, comment, and arg
-    //    do:     write nicely formatted code (ending with new line)
+    // generateLabeled
+    //    given:  label, op code, comment, and operands
+    //    do:     add the label and instruction to the output buffer
     // **********************************************************************
-    public static void generateLabeled(String label, String opcode,
-                                       String comment, String arg1) {
-        int space = MAXLEN - opcode.length() + 2;
-
-        p.print(label + ":");
-        p.print("\t" + opcode);
-        if (arg1 != "") {
-            for (int k = 1; k <= space; k++)
-                p.print(" ");
-            p.print(arg1);
-        }
-        if (comment != "")
-            p.print("\t# " + comment);
-        p.println();
-    }
-
-    public static void generateLabeled(String label, String opcode,
-                                       String comment) {
-        generateLabeled(label, opcode, comment, "");
+    public static void generateLabeled(String label, Opcode opcode,
+                                       String comment, Operand... args) {
+        genLabel(label);
+        generateWithComment(opcode, comment, args);
     }
 
     // **********************************************************************
     // genPush
     //    generate code to push the given value onto the stack
     // **********************************************************************
-    public static void genPush(String s) {
-        generateIndexed("sw", s, SP, 0, "PUSH");
-        generate("subu", SP, SP, 4);
+    public static void genPush(Reg s) {
+        generateIndexed(Opcode.SW, s, SP, 0, "PUSH");
+        generate(Opcode.SUBU, SP, SP, 4);
     }
 
     // **********************************************************************
     // genPop
     //    generate code to pop into the given register
     // **********************************************************************
-    public static void genPop(String s) {
-        generateIndexed("lw", s, SP, 4, "POP");
-        generate("addu", SP, SP, 4);
+    public static void genPop(Reg s) {
+        generateIndexed(Opcode.LW, s, SP, 4, "POP");
+        generate(Opcode.ADDU, SP, SP, 4);
+    }
+
+    // **********************************************************************
+    // genMulImm
+    //    generate code for dest = src * k, with shifts and adds when k is
+    //    a sum or difference of two powers of two; $t1 is scratch (src
+    //    must not be $t1, but may be dest)
+    // **********************************************************************
+    public static void genMulImm(Reg dest, Reg src, int k) {
+        int abs = Math.abs(k);
+        if (k == 0) {
+            generate(Opcode.LI, dest, 0);
+            return;
+        }
+        if (k == Integer.MIN_VALUE) {
+            generate(Opcode.SLL, dest, src, 31);
+            return;
+        }
+        int low = Integer.numberOfTrailingZeros(abs);
+        int rest = abs - (1 << low);
+        if (rest == 0) {
+            // 2^low
+            if (low == 0) {
+                generate(Opcode.MOVE, dest, src);
+            } else {
+                generate(Opcode.SLL, dest, src, low);
+            }
+        } else if (Integer.bitCount(rest) == 1) {
+            // 2^high + 2^low
+            generate(Opcode.SLL, T1, src, Integer.numberOfTrailingZeros(rest));
+            generate(Opcode.ADDU, dest, genShifted(dest, src, low), T1);
+        } else if (Integer.bitCount(abs + (1 << low)) == 1 && abs + (1 << low) > 0) {
+            // 2^high - 2^low
+            generate(Opcode.SLL, T1, src, Integer.numberOfTrailingZeros(abs + (1 << low)));
+            generate(Opcode.SUBU, dest, T1, genShifted(dest, src, low));
+        } else {
+            generate(Opcode.LI, T1, abs);
+            generate(Opcode.MUL, dest, src, T1);
+        }
+        if (k < 0) {
+            // subu, not neg: like mul and div, this must not trap
+            generate(Opcode.SUBU, dest, Reg.ZERO, dest);
+        }
+    }
+
+    // return a register holding src << shift (dest, unless shift is 0)
+    private static Reg genShifted(Reg dest, Reg src, int shift) {
+        if (shift == 0) {
+            return src;
+        }
+        generate(Opcode.SLL, dest, src, shift);
+        return dest;
+    }
+
+    // **********************************************************************
+    // genDivImm
+    //    generate code for dest = src / k (rounding toward zero, like div):
+    //    shifts for powers of two, otherwise a multiplication by a "magic
+    //    number" keeping the high word (Hacker's Delight, section 10-4);
+    //    $t1 is scratch (src must not be $t1, but may be dest)
+    // **********************************************************************
+    public static void genDivImm(Reg dest, Reg src, int k) {
+        int abs = Math.abs(k);
+        if (k == 0 || k == Integer.MIN_VALUE) {
+            generate(Opcode.LI, T1, k);
+            generate(Opcode.DIV, dest, src, T1);
+            return;
+        }
+        if (abs == 1) {
+            generate(Opcode.MOVE, dest, src);
+        } else if (Integer.bitCount(abs) == 1) {
+            // round toward zero: add 2^n - 1 first if src is negative
+            int n = Integer.numberOfTrailingZeros(abs);
+            if (n > 1) {
+                generate(Opcode.SRA, T1, src, 31);
+                generate(Opcode.SRL, T1, T1, 32 - n);
+            } else {
+                generate(Opcode.SRL, T1, src, 31);
+            }
+            generate(Opcode.ADDU, T1, src, T1);
+            generate(Opcode.SRA, dest, T1, n);
+        } else {
+            int[] ms = magic(abs);
+            generate(Opcode.LI, T1, ms[0]);
+            generate(Opcode.MULT, src, T1);
+            generate(Opcode.MFHI, T1);
+            if (ms[0] < 0) {
+                generate(Opcode.ADDU, T1, T1, src);
+            }
+            if (ms[1] > 0) {
+                generate(Opcode.SRA, T1, T1, ms[1]);
+            }
+            // add 1 to a negative quotient
+            generate(Opcode.SRL, dest, T1, 31);
+            generate(Opcode.ADDU, dest, T1, dest);
+        }
+        if (k < 0) {
+            generate(Opcode.SUBU, dest, Reg.ZERO, dest);
+        }
+    }
+
+    // the magic multiplier and shift for signed division by d, 2 <= d < 2^31
+    private static int[] magic(int d) {
+        final long two31 = 0x80000000L;
+        final long mask = 0xffffffffL;
+        long anc = two31 - 1 - two31 % d;
+        long q1 = two31 / anc;
+        long r1 = two31 - q1 * anc;
+        long q2 = two31 / d;
+        long r2 = two31 - q2 * d;
+        long delta;
+        int p = 31;
+        do {
+            p++;
+            q1 = (2 * q1) & mask;
+            r1 = (2 * r1) & mask;
+            if (r1 >= anc) {
+                q1++;
+                r1 -= anc;
+            }
+            q2 = (2 * q2) & mask;
+            r2 = (2 * r2) & mask;
+            if (r2 >= d) {
+                q2++;
+                r2 -= d;
+            }
+            delta = d - r2;
+        } while (q1 < delta || (q1 == delta && r1 == 0));
+        return new int[] { (int)(q2 + 1), p - 32 };
     }
 
     // **********************************************************************
@@ -232,16 +354,280 @@ public class Codegen {
     //   generate: L:    # comment
     // **********************************************************************
     public static void genLabel(String label, String comment) {
-        p.print(label + ":");
-        if (comment != "")
-            p.print("\t\t" + "# " + comment);
-        p.println();
+        text.add(Instr.label(label, comment));
     }
 
     public static void genLabel(String label) {
         genLabel(label, "");
     }
 
+    // **********************************************************************
+    // genDirective
+    //   given:    an assembler directive for the text section
+    //   generate: the directive, e.g.  .globl main
+    // **********************************************************************
+    public static void genDirective(String directive) {
+        text.add(Instr.directive(directive));
+    }
+
+    // **********************************************************************
+    // genData
+    //   given:    label L and a data directive D
+    //   generate: L:  D    in the data section
+    // **********************************************************************
+    public static void genData(String label, String directive) {
+        data.add(Instr.directive(".align 4"));
+        data.add(Instr.label(label, ""));
+        data.add(Instr.directive(directive));
+    }
+
+    // **********************************************************************
+    // stringLabel
+    //   given:    a string literal (with its quotes)
+    //   return:   the label of the literal in the data section; each
+    //             distinct literal is put there once, the first time
+    // **********************************************************************
+    public static String stringLabel(String str) {
+        String label = strings.get(str);
+        if (label == null) {
+            label = nextLabel();
+            genData(label, ".asciiz " + str);
+            strings.put(str, label);
+        }
+        return label;
+    }
+
+    // **********************************************************************
+    // beginColdCode
+    //   send the instructions generated from now on (until endColdCode)
+    //   out of line, to be emitted after the current function by
+    //   genColdCode; the cold code must end in a jump, and cannot itself
+    //   contain cold code
+    // **********************************************************************
+    public static void beginColdCode() {
+        hotText = text;
+        text = coldText;
+    }
+
+    public static void endColdCode() {
+        text = hotText;
+        hotText = null;
+    }
+
+    public static boolean inColdCode() {
+        return hotText != null;
+    }
+
+    // **********************************************************************
+    // genColdCode
+    //   emit the cold code of the function just generated
+    // **********************************************************************
+    public static void genColdCode() {
+        text.addAll(coldText);
+        coldText = new ArrayList<Instr>();
+    }
+
+    // **********************************************************************
+    // flush
+    //   run the peephole optimizer over the buffered text section, then
+    //   write the text section and, after it, the data section to the
+    //   output file (or encode both into the object file)
+    // **********************************************************************
+    public static void flush() {
+        if (Profile.instrumenting()) {
+            Profile.genRuntime();
+        }
+        List<Instr> code = Peephole.optimize(text);
+
+        if (object != null) {
+            try {
+                MipsAssembler.assemble(code, data).write(object);
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        } else {
+            Instr.directive(".text").print(p);
+            for (Instr ins : code) {
+                ins.print(p);
+            }
+            if (!data.isEmpty()) {
+                Instr.directive(".data").print(p);
+                for (Instr ins : data) {
+                    ins.print(p);
+                }
+            }
+        }
+
+        text = new ArrayList<Instr>();
+        data = new ArrayList<Instr>();
+        strings = new HashMap<String, String>();
+    }
+
+    // **********************************************************************
+    // **********************************************************************
+    // EXPRESSION TEMPORARIES
+    // **********************************************************************
+    // **********************************************************************
+
+    // **********************************************************************
+    // newTemp
+    //    push a new value on the expression stack and return the register
+    //    it should be computed into; if all temps are in use, the oldest
+    //    values are spilled to the run-time stack to make room
+    // **********************************************************************
+    public static Reg newTemp() {
+        Reg reg = freeTemp();
+        while (reg == null) {
+            spillBottom();
+            reg = freeTemp();
+        }
+        temps.add(new Temp(reg, false));
+        return reg;
+    }
+
+    // **********************************************************************
+    // nextTemp
+    //    return the register the next call to newTemp will use, without
+    //    pushing anything (used to agree on a register at join points)
+    // **********************************************************************
+    public static Reg nextTemp() {
+        Reg reg = freeTemp();
+        return reg == null ? TEMPS[0] : reg;
+    }
+
+    // **********************************************************************
+    // pushAlias
+    //    push a value that already lives in the given (local's) register;
+    //    no code is generated
+    // **********************************************************************
+    public static void pushAlias(Reg reg) {
+        temps.add(new Temp(reg, true));
+    }
+
+    // **********************************************************************
+    // popTemp
+    //    pop the top value of the expression stack and return the register
+    //    holding it; a spilled value is popped into the scratch register
+    //    (the returned register must not be written unless it is scratch)
+    // **********************************************************************
+    public static Reg popTemp(Reg scratch) {
+        Temp t = temps.remove(temps.size() - 1);
+        if (t.spilled) {
+            genPop(scratch);
+            numSpilled--;
+            return scratch;
+        }
+        return t.reg;
+    }
+
+    // **********************************************************************
+    // peekTemp
+    //    like popTemp, but leave the value on the expression stack
+    // **********************************************************************
+    public static Reg peekTemp(Reg scratch) {
+        Temp t = temps.get(temps.size() - 1);
+        if (t.spilled) {
+            generateIndexed(Opcode.LW, scratch, SP, 4, "PEEK");
+            return scratch;
+        }
+        return t.reg;
+    }
+
+    // **********************************************************************
+    // spillTemps
+    //    push every value still held in a register on the run-time stack
+    //    (done before calls, which do not preserve the temps)
+    // **********************************************************************
+    public static void spillTemps() {
+        while (numSpilled < temps.size()) {
+            spillBottom();
+        }
+    }
+
+    // **********************************************************************
+    // protectReg
+    //    called before a local's register is overwritten; values on the
+    //    expression stack that alias the register are spilled first so
+    //    they keep the old value
+    // **********************************************************************
+    public static void protectReg(Reg reg) {
+        for (int k = temps.size() - 1; k >= numSpilled; k--) {
+            Temp t = temps.get(k);
+            if (t.isAlias && t.reg == reg) {
+                while (numSpilled <= k) {
+                    spillBottom();
+                }
+                return;
+            }
+        }
+    }
+
+    // **********************************************************************
+    // genArgs
+    //    pop the top n values of the expression stack and pass them as the
+    //    arguments of a call: the first ones in ARG_REGS, the others in
+    //    their words of the argument area, which has a word for every
+    //    argument (argument k is 4 * k below where $sp was) and leaves $sp
+    //    below it.  The stack must have been spilled (spillTemps) before
+    //    the arguments were computed, so that those spilled since are
+    //    already in their words.
+    // **********************************************************************
+    public static void genArgs(int n) {
+        int base = temps.size() - n;
+        int inPlace = Math.max(numSpilled - base, 0);
+        if (n > inPlace) {
+            generate(Opcode.SUBU, SP, SP, 4 * (n - inPlace));
+        }
+        // last first, so that the peephole optimizer can compute the last
+        // argument right where it goes
+        for (int k = n - 1; k >= 0; k--) {
+            Temp t = temps.get(base + k);
+            if (k < ARG_REGS.length) {
+                if (t.spilled) {
+                    generateIndexed(Opcode.LW, ARG_REGS[k], SP, 4 * (n - k), "load arg");
+                } else {
+                    generate(Opcode.MOVE, ARG_REGS[k], t.reg);
+                }
+            } else if (!t.spilled) {
+                generateIndexed(Opcode.SW, t.reg, SP, 4 * (n - k), "store arg");
+            }
+        }
+        temps.subList(base, temps.size()).clear();
+        numSpilled = Math.min(numSpilled, base);
+    }
+
+    // **********************************************************************
+    // resetTemps
+    //    forget the expression stack (at the start of each function)
+    // **********************************************************************
+    public static void resetTemps() {
+        temps.clear();
+        numSpilled = 0;
+    }
+
+    // spill the bottom-most value still held in a register
+    private static void spillBottom() {
+        Temp t = temps.get(numSpilled);
+        genPush(t.reg);
+        t.spilled = true;
+        numSpilled++;
+    }
+
+    // return the first temp register not holding a value, or null
+    private static Reg freeTemp() {
+        for (Reg reg : TEMPS) {
+            boolean used = false;
+            for (int k = numSpilled; k < temps.size() && !used; k++) {
+                Temp t = temps.get(k);
+                used = !t.isAlias && t.reg == reg;
+            }
+            if (!used) {
+                return reg;
+            }
+        }
+        return null;
+    }
+
     // **********************************************************************
     // Return a different label each time:
     //        L0 L1 L2, etc.
@@ -0,0 +1,258 @@
+import java.io.*;
+import java.util.*;
+
+/**
+ * ElfObject
+ *
+ * A 32-bit big-endian MIPS relocatable object file (ELF32, the format of
+ * "as -EB -32"): the contents of its .text and .data sections, its
+ * symbols and the relocations of .text.  write lays them out after the
+ * ELF header, with the symbol and string tables, and the section headers
+ * last.
+ *
+ * Relocations are REL ones, against the symbol of the section the target
+ * is in: the offset of the target in its section (the addend) is already
+ * in the relocated instruction.
+ */
+class ElfObject {
+    // section header indexes (0 is the null section)
+    public static final int TEXT = 1;
+    public static final int DATA = 2;
+    private static final int REL_TEXT = 3;
+    private static final int SYMTAB = 4;
+    private static final int STRTAB = 5;
+    private static final int SHSTRTAB = 6;
+    private static final String[] SECTION_NAMES = {
+        "", ".text", ".data", ".rel.text", ".symtab", ".strtab", ".shstrtab"
+    };
+
+    // relocation types
+    public static final int R_MIPS_26 = 4;
+    public static final int R_MIPS_HI16 = 5;
+    public static final int R_MIPS_LO16 = 6;
+
+    // symbol types
+    public static final int STT_NOTYPE = 0;
+    public static final int STT_OBJECT = 1;
+    public static final int STT_FUNC = 2;
+    private static final int STT_SECTION = 3;
+    private static final int STB_LOCAL = 0;
+    private static final int STB_GLOBAL = 1;
+
+    private static final int EM_MIPS = 8;
+    private static final int EF_MIPS_ABI_O32 = 0x00001000;
+    private static final int EF_MIPS_ARCH_32 = 0x50000000;
+
+    private static final int EHDR_SIZE = 52;
+    private static final int SHDR_SIZE = 40;
+    private static final int SYM_SIZE = 16;
+    private static final int REL_SIZE = 8;
+
+    private static class Symbol {
+        String name;
+        int value;
+        int section;
+        int bind;
+        int type;
+
+        Symbol(String name, int value, int section, int bind, int type) {
+            this.name = name;
+            this.value = value;
+            this.section = section;
+            this.bind = bind;
+            this.type = type;
+        }
+    }
+
+    private byte[] text = new byte[0];
+    private byte[] data = new byte[0];
+    private List<Symbol> symbols = new ArrayList<Symbol>();
+    private ByteArrayOutputStream rels = new ByteArrayOutputStream();
+    private DataOutputStream relOut = new DataOutputStream(rels);
+
+    public void setText(byte[] text) {
+        this.text = text;
+    }
+
+    public void setData(byte[] data) {
+        this.data = data;
+    }
+
+    public void addSymbol(String name, int section, int value, boolean global,
+                          int type) {
+        symbols.add(new Symbol(name, value, section, global ? STB_GLOBAL : STB_LOCAL,
+                               type));
+    }
+
+    /**
+     * Add a relocation of type at the given offset in .text, against the
+     * symbol of section (TEXT or DATA).
+     */
+    public void addRelocation(int offset, int section, int type) {
+        try {
+            relOut.writeInt(offset);
+            relOut.writeInt(section << 8 | type);     // symbol k is section k
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    // **********************************************************************
+    // writing
+    // **********************************************************************
+
+    /**
+     * Write the object file.
+     */
+    public void write(OutputStream os) throws IOException {
+        // the symbol table: the null symbol and the section symbols (so
+        // that symbol k is section k), then the locals, then the globals
+        List<Symbol> table = new ArrayList<Symbol>();
+        table.add(new Symbol("", 0, 0, STB_LOCAL, STT_NOTYPE));
+        table.add(new Symbol("", 0, TEXT, STB_LOCAL, STT_SECTION));
+        table.add(new Symbol("", 0, DATA, STB_LOCAL, STT_SECTION));
+        for (Symbol s : symbols) {
+            if (s.bind == STB_LOCAL) {
+                table.add(s);
+            }
+        }
+        int firstGlobal = table.size();
+        for (Symbol s : symbols) {
+            if (s.bind == STB_GLOBAL) {
+                table.add(s);
+            }
+        }
+
+        StringTable strtab = new StringTable();
+        ByteArrayOutputStream symBytes = new ByteArrayOutputStream();
+        DataOutputStream symOut = new DataOutputStream(symBytes);
+        for (Symbol s : table) {
+            symOut.writeInt(strtab.add(s.name));
+            symOut.writeInt(s.value);
+            symOut.writeInt(0);                      // size
+            symOut.writeByte(s.bind << 4 | s.type);
+            symOut.writeByte(0);                     // default visibility
+            symOut.writeShort(s.section);
+        }
+        StringTable shstrtab = new StringTable();
+        int[] names = new int[SECTION_NAMES.length];
+        for (int k = 0; k < names.length; k++) {
+            names[k] = shstrtab.add(SECTION_NAMES[k]);
+        }
+
+        byte[][] contents = {
+            null, text, data, rels.toByteArray(), symBytes.toByteArray(),
+            strtab.toByteArray(), shstrtab.toByteArray()
+        };
+        int[] aligns = { 0, 16, 16, 4, 4, 1, 1 };
+        int[] offsets = new int[contents.length];
+        int pos = EHDR_SIZE;
+        for (int k = 1; k < contents.length; k++) {
+            pos = align(pos, aligns[k]);
+            offsets[k] = pos;
+            pos += contents[k].length;
+        }
+        int shoff = align(pos, 4);
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os));
+        // ELF header
+        out.write(new byte[] { 0x7f, 'E', 'L', 'F', 1, 2, 1, 0, 0, 0, 0, 0, 0, 0, 0, 0 });
+        out.writeShort(1);                  // ET_REL
+        out.writeShort(EM_MIPS);
+        out.writeInt(1);                    // EV_CURRENT
+        out.writeInt(0);                    // no entry point
+        out.writeInt(0);                    // no program headers
+        out.writeInt(shoff);
+        out.writeInt(EF_MIPS_ARCH_32 | EF_MIPS_ABI_O32);
+        out.writeShort(EHDR_SIZE);
+        out.writeShort(0);
+        out.writeShort(0);
+        out.writeShort(SHDR_SIZE);
+        out.writeShort(contents.length);
+        out.writeShort(SHSTRTAB);
+
+        // contents
+        pos = EHDR_SIZE;
+        for (int k = 1; k < contents.length; k++) {
+            pos = pad(out, pos, offsets[k]);
+            out.write(contents[k]);
+            pos += contents[k].length;
+        }
+        pad(out, pos, shoff);
+
+        // section headers: name, type, flags, addr, offset, size, link,
+        // info, addralign, entsize
+        writeHeader(out, 0, 0, 0, 0, 0, 0, 0, 0, 0);
+        writeHeader(out, names[TEXT], 1, 0x6, offsets[TEXT], text.length,
+                    0, 0, aligns[TEXT], 0);
+        writeHeader(out, names[DATA], 1, 0x3, offsets[DATA], data.length,
+                    0, 0, aligns[DATA], 0);
+        writeHeader(out, names[REL_TEXT], 9, 0x40, offsets[REL_TEXT],
+                    contents[REL_TEXT].length, SYMTAB, TEXT, 4, REL_SIZE);
+        writeHeader(out, names[SYMTAB], 2, 0, offsets[SYMTAB],
+                    contents[SYMTAB].length, STRTAB, firstGlobal, 4, SYM_SIZE);
+        writeHeader(out, names[STRTAB], 3, 0, offsets[STRTAB],
+                    contents[STRTAB].length, 0, 0, 1, 0);
+        writeHeader(out, names[SHSTRTAB], 3, 0, offsets[SHSTRTAB],
+                    contents[SHSTRTAB].length, 0, 0, 1, 0);
+        out.flush();
+    }
+
+    private static void writeHeader(DataOutputStream out, int name, int type,
+                                    int flags, int offset, int size, int link,
+                                    int info, int align, int entsize)
+        throws IOException {
+        out.writeInt(name);
+        out.writeInt(type);
+        out.writeInt(flags);
+        out.writeInt(0);                    // addr
+        out.writeInt(offset);
+        out.writeInt(size);
+        out.writeInt(link);
+        out.writeInt(info);
+        out.writeInt(align);
+        out.writeInt(entsize);
+    }
+
+    private static int align(int pos, int align) {
+        return (pos + align - 1) / align * align;
+    }
+
+    // write zeros from pos to to; return to
+    private static int pad(DataOutputStream out, int pos, int to) throws IOException {
+        for (; pos < to; pos++) {
+            out.writeByte(0);
+        }
+        return to;
+    }
+
+    /**
+     * A string table: the strings one after the other, each ending with a
+     * 0 byte, after an empty string.
+     */
+    private static class StringTable {
+        private ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private Map<String, Integer> index = new HashMap<String, Integer>();
+
+        StringTable() {
+            bytes.write(0);
+            index.put("", 0);
+        }
+
+        int add(String s) {
+            Integer k = index.get(s);
+            if (k == null) {
+                k = bytes.size();
+                byte[] b = s.getBytes(java.nio.charset.StandardCharsets.ISO_8859_1);
+                bytes.write(b, 0, b.length);
+                bytes.write(0);
+                index.put(s, k);
+            }
+            return k;
+        }
+
+        byte[] toByteArray() {
+            return bytes.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,239 @@
+import java.io.*;
+import java.util.*;
+
+/**
+ * Engine
+ *
+ * Runs a C-- program inside the JVM instead of generating MIPS code for it
+ * (P6 -run).  After type checking and folding, the program is compiled
+ * into a tree of closures, one per AST node (see the compile methods of
+ * the nodes), and main is called.  Every name is resolved while compiling:
+ *
+ *   - a local or formal is a slot of the int array of its function's
+ *     frame: the one at its offset from $fp divided by 4 (formal k is in
+ *     slot k, the fields of a local struct are in the slots of its words)
+ *   - a global is a slot of the array of globals, given out when it is
+ *     first used (a global struct gets one slot per word)
+ *   - a called function is the Function object compiled for it
+ *
+ * Ints and bools are ints (false is 0 and true is 1), and a string is the
+ * index of its literal in the table of the program's strings.  cout and
+ * cin go through buffered standard output and input; cin reads an int
+ * from each line, like SPIM's read_int syscall.  Signed overflow in +, -,
+ * unary -, ++ and -- is a run-time error, as MIPS add and sub trap.
+ */
+class Engine {
+    // the Java stack of the thread running the program, which must hold
+    // a few Java frames per C-- call
+    private static final long STACK_SIZE = 1L << 30;
+
+    /**
+     * The code of an expression.
+     */
+    interface Exp {
+        int eval(Frame f);
+    }
+
+    /**
+     * The code of a statement; exec returns whether a return statement
+     * was executed.
+     */
+    interface Stmt {
+        boolean exec(Frame f);
+    }
+
+    /**
+     * An activation of a function.
+     */
+    static class Frame {
+        final int[] slots;
+        int result;       // the value returned
+
+        Frame(int size) {
+            slots = new int[size];
+        }
+    }
+
+    /**
+     * A compiled function.  Its Function object exists as soon as a call
+     * to it is compiled; the body is filled in when its declaration is.
+     */
+    static class Function {
+        Stmt body;
+        int frameSize;
+    }
+
+    private Map<FnSym, Function> functions = new HashMap<FnSym, Function>();
+    private Map<TSym, Integer> globalSlots = new HashMap<TSym, Integer>();
+    private int numGlobals = 0;
+    private int[] globals;
+
+    private List<String> strings = new ArrayList<String>();
+    private Map<String, Integer> stringIndex = new HashMap<String, Integer>();
+
+    private BufferedReader in;
+    private PrintStream out;
+
+    public Engine(InputStream in, OutputStream out) {
+        this.in = new BufferedReader(new InputStreamReader(in));
+        this.out = new PrintStream(new BufferedOutputStream(out), false);
+    }
+
+    /**
+     * Compile the program and run its main function.  Return false if the
+     * program failed at run time, or the Engine itself did (an internal
+     * error); either is reported on stderr.
+     */
+    public boolean run(ProgramNode program, FnSym main) {
+        program.compile(this);
+        globals = new int[numGlobals];
+        Function fn = function(main);
+        Throwable[] error = new Throwable[1];
+        Thread t = new Thread(null, () -> {
+            try {
+                fn.body.exec(new Frame(fn.frameSize));
+            } catch (Throwable ex) {
+                error[0] = ex;
+            }
+        }, "main", STACK_SIZE);
+        t.start();
+        try {
+            t.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        out.flush();
+        if (error[0] instanceof ArithmeticException ||
+            error[0] instanceof StackOverflowError ||
+            error[0] instanceof UncheckedIOException) {
+            System.err.println("Run-time error: " + describe(error[0]));
+            return false;
+        } else if (error[0] != null) {
+            // a bug in the Engine, not in the program
+            System.err.println("Internal error: " + error[0]);
+            error[0].printStackTrace();
+            return false;
+        }
+        return true;
+    }
+
+    private static String describe(Throwable ex) {
+        if (ex instanceof StackOverflowError) {
+            return "stack overflow";
+        }
+        return ex.getMessage();
+    }
+
+    // **********************************************************************
+    // names
+    // **********************************************************************
+
+    /**
+     * Return the Function of the function sym.
+     */
+    public Function function(FnSym sym) {
+        Function fn = functions.get(sym);
+        if (fn == null) {
+            fn = new Function();
+            functions.put(sym, fn);
+        }
+        return fn;
+    }
+
+    private int globalSlot(TSym var) {
+        Integer slot = globalSlots.get(var);
+        if (slot == null) {
+            slot = numGlobals;
+            numGlobals += var.getSize() / 4;
+            globalSlots.put(var, slot);
+        }
+        return slot;
+    }
+
+    private int localSlot(TSym var, int offset) {
+        return (var.getOffset() - offset) / 4;
+    }
+
+    /**
+     * Return the code loading the word at the given offset in variable var
+     * (0 for an int or bool variable, a field's offset in a struct).
+     */
+    public Exp load(TSym var, int offset) {
+        if (var.getIsGlobal()) {
+            int k = globalSlot(var) + offset / 4;
+            return f -> globals[k];
+        }
+        int k = localSlot(var, offset);
+        return f -> f.slots[k];
+    }
+
+    /**
+     * Return the code storing the value of val in the word at the given
+     * offset in variable var, whose value is the value stored.
+     */
+    public Exp store(TSym var, int offset, Exp val) {
+        if (var.getIsGlobal()) {
+            int k = globalSlot(var) + offset / 4;
+            return f -> globals[k] = val.eval(f);
+        }
+        int k = localSlot(var, offset);
+        return f -> f.slots[k] = val.eval(f);
+    }
+
+    /**
+     * Return the code calling fn with the given arguments.
+     */
+    public Exp call(Function fn, Exp[] args) {
+        return f -> {
+            Frame callee = new Frame(fn.frameSize);
+            for (int k = 0; k < args.length; k++) {
+                callee.slots[k] = args[k].eval(f);
+            }
+            fn.body.exec(callee);
+            return callee.result;
+        };
+    }
+
+    // **********************************************************************
+    // strings and I/O
+    // **********************************************************************
+
+    /**
+     * Return the index of the string in the table of strings.
+     */
+    public int intern(String str) {
+        Integer k = stringIndex.get(str);
+        if (k == null) {
+            k = strings.size();
+            strings.add(str);
+            stringIndex.put(str, k);
+        }
+        return k;
+    }
+
+    public void writeInt(int val) {
+        out.print(val);
+    }
+
+    public void writeString(int k) {
+        out.print(strings.get(k));
+    }
+
+    public int readInt() {
+        try {
+            out.flush();
+            String line = in.readLine();
+            while (line != null && line.trim().length() == 0) {
+                line = in.readLine();
+            }
+            if (line == null) {
+                return 0;
+            }
+            return Integer.parseInt(line.trim());
+        } catch (NumberFormatException ex) {
+            throw new UncheckedIOException(new IOException("bad integer input"));
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+}
@@ -0,0 +1,303 @@
+import java.util.*;
+
+/**
+ * IRBuilder
+ *
+ * Builds the SSA form of one function while its AST is walked (see the
+ * genIR methods in ast.java).  Local variables and formals never appear in
+ * the IR: each assignment just records the new value of the variable in
+ * the current block, and a use looks the value up, adding phis where
+ * control flow joins.  This is the algorithm of Braun et al., "Simple and
+ * Efficient Construction of Static Single Assignment Form" (CC 2013):
+ * a block is sealed once all its predecessors are known, and a loop
+ * header gets incomplete phis until its back edge has been added.
+ *
+ * Constructs the IR does not handle make genIR call unsupported(); the
+ * function is then compiled straight from the AST as before.
+ */
+class IRBuilder {
+    private IRFunction fn;
+    private Block current;
+    private boolean supported = true;
+
+    // are the blocks made now cold (see Block.cold)?
+    private boolean cold = false;
+
+    // the value of each variable at the end of each block
+    private Map<TSym, Map<Block, IRInst>> currentDef =
+        new HashMap<TSym, Map<Block, IRInst>>();
+
+    private Set<Block> sealed = new HashSet<Block>();
+    private Map<Block, Map<TSym, IRInst>> incompletePhis =
+        new HashMap<Block, Map<TSym, IRInst>>();
+
+    public IRBuilder(String name, FnSym sym) {
+        fn = new IRFunction(name, sym);
+        fn.entry = fn.newBlock();
+        sealed.add(fn.entry);
+        current = fn.entry;
+    }
+
+    /**
+     * Note that the function uses something the IR cannot express.
+     */
+    public void unsupported() {
+        supported = false;
+    }
+
+    // **********************************************************************
+    // blocks and control flow
+    // **********************************************************************
+
+    public Block newBlock() {
+        Block b = fn.newBlock();
+        b.cold = cold;
+        return b;
+    }
+
+    /**
+     * If cold is set, make b and the blocks made until endCold cold (they
+     * are anyway inside cold code).  Return the previous setting, for
+     * endCold.
+     */
+    public boolean beginCold(Block b, boolean cold) {
+        boolean was = this.cold;
+        this.cold = was || cold;
+        b.cold = b.cold || this.cold;
+        return was;
+    }
+
+    public void endCold(boolean was) {
+        cold = was;
+    }
+
+    public Block current() {
+        return current;
+    }
+
+    public void setCurrent(Block b) {
+        current = b;
+    }
+
+    /**
+     * Declare that all predecessors of b are known and complete its
+     * pending phis.
+     */
+    public void seal(Block b) {
+        Map<TSym, IRInst> phis = incompletePhis.remove(b);
+        sealed.add(b);
+        if (phis != null) {
+            for (Map.Entry<TSym, IRInst> e : phis.entrySet()) {
+                addPhiOperands(e.getKey(), e.getValue());
+            }
+        }
+    }
+
+    public void jump(Block target) {
+        current.add(fn.newInst(IROp.JMP));
+        IRFunction.addEdge(current, target);
+    }
+
+    /**
+     * End the current block with a branch to t if cond is true and to f
+     * otherwise.
+     */
+    public void branch(IRInst cond, Block t, Block f) {
+        IRInst br = fn.newInst(IROp.BR);
+        br.addOperand(cond);
+        current.add(br);
+        IRFunction.addEdge(current, t);
+        IRFunction.addEdge(current, f);
+    }
+
+    /**
+     * Return from the function (val may be null).  Code after the return
+     * goes into a new block that nothing reaches.
+     */
+    public void ret(IRInst val) {
+        IRInst r = fn.newInst(IROp.RET);
+        if (val != null) {
+            r.addOperand(val);
+        }
+        current.add(r);
+        current = newBlock();
+        sealed.add(current);
+    }
+
+    // **********************************************************************
+    // values
+    // **********************************************************************
+
+    public IRInst constant(int val) {
+        IRInst c = fn.newInst(IROp.CONST);
+        c.imm = val;
+        return c;
+    }
+
+    public IRInst string(String str) {
+        IRInst s = fn.newInst(IROp.STR);
+        s.name = str;
+        return s;
+    }
+
+    /**
+     * Append an instruction to the current block.
+     */
+    public IRInst emit(IROp op, IRInst... operands) {
+        IRInst i = fn.newInst(op);
+        for (IRInst o : operands) {
+            i.addOperand(o);
+        }
+        current.add(i);
+        return i;
+    }
+
+    /**
+     * Append an instruction naming a global or a function.
+     */
+    public IRInst emit(IROp op, String name, IRInst... operands) {
+        IRInst i = fn.newInst(op);
+        i.name = name;
+        for (IRInst o : operands) {
+            i.addOperand(o);
+        }
+        current.add(i);
+        return i;
+    }
+
+    /**
+     * Return a phi in block b (whose predecessors must all be known)
+     * choosing among vals, one per predecessor, or the single value if
+     * they are all the same.
+     */
+    public IRInst phi(Block b, IRInst... vals) {
+        IRInst phi = fn.newInst(IROp.PHI);
+        b.addPhi(phi);
+        for (IRInst v : vals) {
+            phi.addOperand(v);
+        }
+        return tryRemoveTrivialPhi(phi);
+    }
+
+    // **********************************************************************
+    // variables
+    // **********************************************************************
+
+    public void writeVariable(TSym sym, IRInst val) {
+        writeVariable(sym, current, val);
+    }
+
+    public IRInst readVariable(TSym sym) {
+        return readVariable(sym, current);
+    }
+
+    private void writeVariable(TSym sym, Block b, IRInst val) {
+        Map<Block, IRInst> defs = currentDef.get(sym);
+        if (defs == null) {
+            defs = new HashMap<Block, IRInst>();
+            currentDef.put(sym, defs);
+        }
+        defs.put(b, val);
+    }
+
+    private IRInst readVariable(TSym sym, Block b) {
+        Map<Block, IRInst> defs = currentDef.get(sym);
+        if (defs != null && defs.containsKey(b)) {
+            return defs.get(b).resolve();
+        }
+        return readVariableRecursive(sym, b);
+    }
+
+    private IRInst readVariableRecursive(TSym sym, Block b) {
+        IRInst val;
+        if (!sealed.contains(b)) {
+            val = fn.newInst(IROp.PHI);
+            b.addPhi(val);
+            Map<TSym, IRInst> phis = incompletePhis.get(b);
+            if (phis == null) {
+                phis = new HashMap<TSym, IRInst>();
+                incompletePhis.put(b, phis);
+            }
+            phis.put(sym, val);
+        } else if (b.preds.isEmpty()) {
+            // read before any assignment: locals start out as 0
+            val = constant(0);
+        } else if (b.preds.size() == 1) {
+            val = readVariable(sym, b.preds.get(0));
+        } else {
+            // the phi breaks cycles through loops
+            val = fn.newInst(IROp.PHI);
+            b.addPhi(val);
+            writeVariable(sym, b, val);
+            val = addPhiOperands(sym, val);
+        }
+        writeVariable(sym, b, val);
+        return val;
+    }
+
+    private IRInst addPhiOperands(TSym sym, IRInst phi) {
+        for (Block pred : phi.block.preds) {
+            phi.addOperand(readVariable(sym, pred));
+        }
+        return tryRemoveTrivialPhi(phi);
+    }
+
+    /**
+     * If phi only chooses between itself and one other value, replace it
+     * by that value, and try again on the phis that used it.
+     */
+    private IRInst tryRemoveTrivialPhi(IRInst phi) {
+        IRInst same = null;
+        for (IRInst op : phi.operands) {
+            if (op == phi || (same != null && IROpt.sameValue(op, same))) {
+                continue;
+            }
+            if (same != null) {
+                return phi;     // merges at least two values
+            }
+            same = op;
+        }
+        if (same == null) {
+            same = constant(0);     // unreachable or never assigned
+        }
+
+        List<IRInst> users = new ArrayList<IRInst>(phi.users);
+        users.remove(phi);
+        phi.replaceAllUsesWith(same);
+        phi.block.remove(phi);
+
+        for (IRInst u : users) {
+            if (u.op == IROp.PHI && u.block != null) {
+                tryRemoveTrivialPhi(u);
+            }
+        }
+        return same.resolve();
+    }
+
+    // **********************************************************************
+    // finishing
+    // **********************************************************************
+
+    /**
+     * Finish the function: return at the end of its body, drop what
+     * cannot be reached and check the result.  Return null if the
+     * function cannot be expressed in the IR.
+     */
+    public IRFunction finish() {
+        if (!supported) {
+            return null;
+        }
+        ret(null);
+        for (Block b : new ArrayList<Block>(fn.blocks)) {
+            if (!sealed.contains(b)) {
+                seal(b);
+            }
+        }
+        fn.removeUnreachableBlocks();
+
+        // a phi may only have merged a value from code that cannot run
+        IROpt.removeTrivialPhis(fn);
+        IRVerifier.verify(fn);
+        return fn;
+    }
+}
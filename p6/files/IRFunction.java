@@ -0,0 +1,192 @@
+import java.io.*;
+import java.util.*;
+
+/**
+ * IRFunction
+ *
+ * The three-address SSA intermediate representation of one function: its
+ * blocks and entry.  IRBuilder builds it from the AST, IRVerifier checks
+ * the rules it must obey, IROpt optimizes it and IRLower turns it into
+ * MIPS code.
+ */
+class IRFunction {
+    String name;      // assembler label
+    FnSym sym;
+    List<Block> blocks = new ArrayList<Block>();
+    Block entry;
+    int nextId = 0;
+
+    public IRFunction(String name, FnSym sym) {
+        this.name = name;
+        this.sym = sym;
+    }
+
+    public IRInst newInst(IROp op) {
+        return new IRInst(op, nextId++);
+    }
+
+    public Block newBlock() {
+        Block b = new Block(blocks.size() == 0 ? 0 : maxBlockId() + 1);
+        blocks.add(b);
+        return b;
+    }
+
+    private int maxBlockId() {
+        int max = 0;
+        for (Block b : blocks) {
+            max = Math.max(max, b.id);
+        }
+        return max;
+    }
+
+    /**
+     * Add a control-flow edge.
+     */
+    public static void addEdge(Block from, Block to) {
+        from.succs.add(to);
+        to.preds.add(from);
+    }
+
+    /**
+     * Remove the edge from -> to (one occurrence), dropping the matching
+     * phi operands in to.
+     */
+    public static void removeEdge(Block from, Block to) {
+        int k = to.preds.indexOf(from);
+        for (IRInst phi : to.phis()) {
+            phi.operands.get(k).users.remove(phi);
+            phi.operands.remove(k);
+        }
+        to.preds.remove(k);
+        from.succs.remove(to);
+    }
+
+    /**
+     * Return the blocks reachable from the entry in reverse postorder.
+     * Successors are visited last to first, so a block's first successor
+     * (the true side of a branch) comes right after it when it can; see
+     * visitOrder for branches with a cold side (see Block.cold).
+     */
+    public List<Block> reversePostorder() {
+        List<Block> order = new ArrayList<Block>();
+        Set<Block> visited = new HashSet<Block>();
+        postorder(entry, visited, order);
+        Collections.reverse(order);
+        return order;
+    }
+
+    private static void postorder(Block b, Set<Block> visited, List<Block> order) {
+        // iterative DFS so that long functions cannot overflow the stack
+        Deque<Block> stack = new ArrayDeque<Block>();
+        Deque<Integer> next = new ArrayDeque<Integer>();
+        visited.add(b);
+        stack.push(b);
+        next.push(0);
+        while (!stack.isEmpty()) {
+            Block top = stack.peek();
+            int k = next.pop();
+            if (k < top.succs.size()) {
+                next.push(k + 1);
+                Block s = visitOrder(top).get(k);
+                if (visited.add(s)) {
+                    stack.push(s);
+                    next.push(0);
+                }
+            } else {
+                stack.pop();
+                order.add(top);
+            }
+        }
+    }
+
+    /**
+     * Return the order in which to visit b's successors.  When b branches
+     * to a cold and a hot side, and only the hot side leads back to b (b
+     * tests a loop that the cold side leaves), the cold side is visited
+     * first so that the loop body comes right after the test.  Otherwise the hot
+     * side is visited first, so that it comes last, falling through to
+     * the code after the branch.
+     */
+    private static List<Block> visitOrder(Block b) {
+        List<Block> order = new ArrayList<Block>();
+        for (int k = b.succs.size() - 1; k >= 0; k--) {
+            order.add(b.succs.get(k));
+        }
+        if (order.size() == 2 && order.get(0).cold != order.get(1).cold) {
+            Block hot = order.get(0).cold ? order.get(1) : order.get(0);
+            Block cold = order.get(0).cold ? order.get(0) : order.get(1);
+            order.clear();
+            if (reaches(hot, b) && !reaches(cold, b)) {
+                order.add(cold);
+                order.add(hot);
+            } else {
+                order.add(hot);
+                order.add(cold);
+            }
+        }
+        return order;
+    }
+
+    // is there a path from from to to?
+    private static boolean reaches(Block from, Block to) {
+        Set<Block> seen = new HashSet<Block>();
+        Deque<Block> work = new ArrayDeque<Block>();
+        work.push(from);
+        while (!work.isEmpty()) {
+            Block b = work.pop();
+            if (b == to) {
+                return true;
+            }
+            if (seen.add(b)) {
+                work.addAll(b.succs);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Delete the blocks that cannot be reached from the entry.  Only the
+     * blocks that stay lose phi operands; an edge between two dead blocks
+     * (say into a dead loop header whose phis are already gone) is just
+     * unlinked.
+     */
+    public void removeUnreachableBlocks() {
+        Set<Block> reachable = new HashSet<Block>(reversePostorder());
+        for (Block b : new ArrayList<Block>(blocks)) {
+            if (reachable.contains(b)) {
+                continue;
+            }
+            for (Block s : new ArrayList<Block>(b.succs)) {
+                if (reachable.contains(s)) {
+                    removeEdge(b, s);
+                } else {
+                    s.preds.remove(b);
+                    b.succs.remove(s);
+                }
+            }
+            for (IRInst i : b.insts) {
+                i.removeOperands();
+                i.block = null;
+            }
+            blocks.remove(b);
+        }
+    }
+
+    public void dump(PrintWriter p) {
+        p.println("function " + name);
+        for (Block b : blocks) {
+            p.print(b + ":");
+            if (!b.preds.isEmpty()) {
+                p.print("\t\t; preds");
+                for (Block pred : b.preds) {
+                    p.print(" " + pred);
+                }
+            }
+            p.println();
+            for (IRInst i : b.insts) {
+                p.println("\t" + i);
+            }
+        }
+        p.flush();
+    }
+}
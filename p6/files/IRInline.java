@@ -0,0 +1,231 @@
+import java.util.*;
+
+/**
+ * IRInline
+ *
+ * Replaces calls to small functions by a copy of the callee's body.
+ * Functions are compiled in the order they are declared, and a function
+ * must be declared before it is called, so the (optimized) IR of every
+ * callee except the function itself is already known when a call is
+ * compiled; remember keeps a copy of each function for that purpose.
+ *
+ * A callee is inlined when it has at most INLINE_LIMIT instructions and
+ * does not call itself (the only cycle the call graph can have).  With a
+ * profile (see Profile), a callee that was never called is not inlined,
+ * and one that is hot may have up to HOT_INLINE_LIMIT instructions.  The
+ * copy gets fresh values, so the callee's formals and locals are renamed
+ * apart from the caller's: each formal is replaced by the argument passed
+ * for it, and each return becomes a jump to the code after the call,
+ * whose phi collects the returned value.
+ */
+class IRInline {
+    // largest callee inlined, in instructions
+    public static final int INLINE_LIMIT = 24;
+
+    // largest hot callee inlined
+    public static final int HOT_INLINE_LIMIT = 64;
+
+    // stop inlining into a function once it has grown by this much
+    public static final int GROWTH_LIMIT = 400;
+
+    // the IR of each function compiled so far, by assembler label
+    private static Map<String, IRFunction> bodies = new HashMap<String, IRFunction>();
+
+    /**
+     * Keep a copy of fn (which is about to be lowered) for its callers.
+     */
+    public static void remember(IRFunction fn) {
+        IRFunction copy = new IRFunction(fn.name, fn.sym);
+        Map<Block, Block> blocks = copyBlocks(fn, copy, new HashMap<IRInst, IRInst>());
+        copy.entry = blocks.get(fn.entry);
+        bodies.put(fn.name, copy);
+    }
+
+    /**
+     * Inline the calls in fn to the small functions compiled before it.
+     * Return whether anything was inlined.
+     */
+    public static boolean inlineCalls(IRFunction fn) {
+        int growth = 0;
+        Deque<Block> work = new ArrayDeque<Block>(fn.blocks);
+        while (!work.isEmpty()) {
+            Block b = work.pop();
+            for (int k = 0; k < b.insts.size(); k++) {
+                IRInst call = b.insts.get(k);
+                if (call.op != IROp.CALL) {
+                    continue;
+                }
+                IRFunction callee = bodies.get(call.name);
+                if (callee == null || isRecursive(callee)) {
+                    continue;
+                }
+                int calls = Profile.count(Profile.callKey(call.name));
+                int limit = calls >= Profile.HOT_CALLS ? HOT_INLINE_LIMIT : INLINE_LIMIT;
+                int size = size(callee);
+                if (calls == 0 || size > limit || growth + size > GROWTH_LIMIT) {
+                    continue;
+                }
+                growth += size;
+                // the rest of b is now in a new block
+                work.push(inline(fn, b, k, callee));
+                break;
+            }
+        }
+        if (growth == 0) {
+            return false;
+        }
+        fn.removeUnreachableBlocks();
+        IROpt.removeTrivialPhis(fn);
+        return true;
+    }
+
+    private static boolean isRecursive(IRFunction fn) {
+        for (Block b : fn.blocks) {
+            for (IRInst i : b.insts) {
+                if (i.op == IROp.CALL && i.name.equals(fn.name)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static int size(IRFunction fn) {
+        int size = 0;
+        for (Block b : fn.blocks) {
+            for (IRInst i : b.insts) {
+                if (i.op != IROp.PARAM) {
+                    size++;
+                }
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Replace the call at index k of b by a copy of callee.  Return the
+     * block holding the instructions that followed the call.
+     */
+    private static Block inline(IRFunction fn, Block b, int k, IRFunction callee) {
+        IRInst call = b.insts.get(k);
+
+        // split b after the call
+        Block cont = fn.newBlock();
+        cont.cold = b.cold;
+        List<IRInst> rest = b.insts.subList(k + 1, b.insts.size());
+        for (IRInst i : rest) {
+            cont.add(i);
+        }
+        rest.clear();
+        for (Block s : new LinkedHashSet<Block>(b.succs)) {
+            Collections.replaceAll(s.preds, b, cont);
+        }
+        cont.succs.addAll(b.succs);
+        b.succs.clear();
+
+        // copy the callee, passing the arguments for its formals
+        Map<IRInst, IRInst> values = new HashMap<IRInst, IRInst>();
+        for (IRInst i : callee.entry.insts) {
+            if (i.op == IROp.PARAM) {
+                values.put(i, call.operand(i.imm / 4));
+            }
+        }
+        Map<Block, Block> blocks = copyBlocks(callee, fn, values);
+        for (Block nb : blocks.values()) {
+            nb.cold = nb.cold || b.cold;
+        }
+
+        // each return jumps to the code after the call
+        List<IRInst> results = new ArrayList<IRInst>();
+        for (Block cb : callee.blocks) {
+            Block nb = blocks.get(cb);
+            IRInst ret = nb.terminator();
+            if (ret.op != IROp.RET) {
+                continue;
+            }
+            results.add(ret.operands.isEmpty() ? constant(fn, 0) : ret.operand(0));
+            nb.remove(ret);
+            nb.add(fn.newInst(IROp.JMP));
+            IRFunction.addEdge(nb, cont);
+        }
+        if (!call.users.isEmpty()) {
+            IRInst result;
+            if (results.isEmpty()) {
+                result = constant(fn, 0);   // the callee never returns
+            } else if (results.size() == 1) {
+                result = results.get(0);
+            } else {
+                result = fn.newInst(IROp.PHI);
+                cont.addPhi(result);
+                for (IRInst r : results) {
+                    result.addOperand(r);
+                }
+            }
+            call.replaceAllUsesWith(result);
+        }
+
+        b.remove(call);
+        b.add(fn.newInst(IROp.JMP));
+        IRFunction.addEdge(b, blocks.get(callee.entry));
+        return cont;
+    }
+
+    /**
+     * Copy the blocks of from into into, with new instructions for all
+     * those not already mapped in values.  Return the new block for each
+     * block of from.
+     */
+    private static Map<Block, Block> copyBlocks(IRFunction from, IRFunction into,
+                                                Map<IRInst, IRInst> values) {
+        Map<Block, Block> blocks = new LinkedHashMap<Block, Block>();
+        for (Block b : from.blocks) {
+            Block nb = into.newBlock();
+            nb.cold = b.cold;
+            blocks.put(b, nb);
+        }
+        List<IRInst> copied = new ArrayList<IRInst>();
+        for (Block b : from.blocks) {
+            for (IRInst i : b.insts) {
+                if (values.containsKey(i)) {
+                    continue;
+                }
+                IRInst c = into.newInst(i.op);
+                c.imm = i.imm;
+                c.name = i.name;
+                blocks.get(b).add(c);
+                values.put(i, c);
+                copied.add(i);
+            }
+        }
+        // operands may be defined later in the list (phis, loops)
+        for (IRInst i : copied) {
+            IRInst c = values.get(i);
+            for (IRInst o : i.operands) {
+                c.addOperand(o.isFloating() ? copyConstant(o, into) : values.get(o));
+            }
+        }
+        for (Block b : from.blocks) {
+            Block nb = blocks.get(b);
+            for (Block p : b.preds) {
+                nb.preds.add(blocks.get(p));
+            }
+            for (Block s : b.succs) {
+                nb.succs.add(blocks.get(s));
+            }
+        }
+        return blocks;
+    }
+
+    private static IRInst copyConstant(IRInst c, IRFunction into) {
+        IRInst copy = into.newInst(c.op);
+        copy.imm = c.imm;
+        copy.name = c.name;
+        return copy;
+    }
+
+    private static IRInst constant(IRFunction fn, int val) {
+        IRInst c = fn.newInst(IROp.CONST);
+        c.imm = val;
+        return c;
+    }
+}
@@ -0,0 +1,133 @@
+import java.util.*;
+
+/**
+ * IRInst
+ *
+ * One instruction of the IR.  An instruction that produces a value is
+ * that value: its operands are the instructions computing them, and it
+ * keeps the list of its users.  Constants (CONST, STR) are not placed in
+ * any block.
+ */
+class IRInst {
+    IROp op;
+    List<IRInst> operands = new ArrayList<IRInst>();
+    List<IRInst> users = new ArrayList<IRInst>();
+    int imm;
+    String name;
+    Block block;          // null for constants and removed instructions
+    int id;
+
+    // PCOPY only
+    List<IRInst> dests;
+
+    // set when the instruction is replaced (see replaceAllUsesWith)
+    IRInst replacement;
+
+    public IRInst(IROp op, int id) {
+        this.op = op;
+        this.id = id;
+    }
+
+    public void addOperand(IRInst v) {
+        operands.add(v);
+        v.users.add(this);
+    }
+
+    public IRInst operand(int k) {
+        return operands.get(k);
+    }
+
+    public void setOperand(int k, IRInst v) {
+        operands.get(k).users.remove(this);
+        operands.set(k, v);
+        v.users.add(this);
+    }
+
+    /**
+     * Drop all operands (before the instruction is deleted).
+     */
+    public void removeOperands() {
+        for (IRInst o : operands) {
+            o.users.remove(this);
+        }
+        operands.clear();
+    }
+
+    /**
+     * Make every user of this instruction use v instead.
+     */
+    public void replaceAllUsesWith(IRInst v) {
+        for (IRInst u : new ArrayList<IRInst>(users)) {
+            for (int k = 0; k < u.operands.size(); k++) {
+                if (u.operands.get(k) == this) {
+                    u.setOperand(k, v);
+                }
+            }
+        }
+        replacement = v;
+    }
+
+    /**
+     * Follow the replacements of removed instructions.
+     */
+    public IRInst resolve() {
+        IRInst v = this;
+        while (v.replacement != null) {
+            v = v.replacement;
+        }
+        return v;
+    }
+
+    public boolean isConst() {
+        return op == IROp.CONST;
+    }
+
+    public boolean isConst(int val) {
+        return op == IROp.CONST && imm == val;
+    }
+
+    /**
+     * Is this a constant, which is not placed in any block?
+     */
+    public boolean isFloating() {
+        return op == IROp.CONST || op == IROp.STR;
+    }
+
+    public String ref() {
+        if (op == IROp.CONST) {
+            return String.valueOf(imm);
+        }
+        if (op == IROp.STR) {
+            return name;
+        }
+        return "%" + id;
+    }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        if (op == IROp.PCOPY) {
+            for (int k = 0; k < dests.size(); k++) {
+                sb.append(k > 0 ? ", " : "").append(dests.get(k).ref());
+            }
+            sb.append(" := ");
+        } else if (op.hasValue()) {
+            sb.append(ref()).append(" = ");
+        }
+        sb.append(op);
+        if (name != null && op != IROp.STR) {
+            sb.append(" ").append(name);
+        }
+        if (op == IROp.PARAM) {
+            sb.append(" ").append(imm);
+        }
+        for (int k = 0; k < operands.size(); k++) {
+            sb.append(k > 0 ? ", " : " ").append(operands.get(k).ref());
+        }
+        if (block != null && op.isTerminator()) {
+            for (Block s : block.succs) {
+                sb.append(" B").append(s.id);
+            }
+        }
+        return sb.toString();
+    }
+}
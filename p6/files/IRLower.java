@@ -0,0 +1,780 @@
+import java.util.*;
+
+/**
+ * IRLower
+ *
+ * Turns the SSA form of a function into MIPS code (through Codegen, so the
+ * peephole optimizer still runs over it):
+ *
+ *   1. critical edges are split, and each phi is replaced by a parallel
+ *      copy at the end of every predecessor;
+ *   2. the values are given registers by linear scan over live intervals
+ *      (one [start, end] range per value, covering every block it is live
+ *      in).  Values live across a call get $s registers, which the function
+ *      saves; others prefer the $t registers.  Values that do not fit are
+ *      kept in stack slots below the formals;
+ *   3. the blocks are emitted in reverse postorder, a comparison used only
+ *      by the branch right after it becoming a compare-and-branch.
+ *
+ * $t0 and $t1 are scratch registers for constants and spilled values; the
+ * frame, and the way arguments are passed (see Codegen.genArgs), are the
+ * same as for code compiled straight from the AST.
+ */
+class IRLower {
+    // registers for values that are not live across a call...
+    private static final Reg[] TEMP_REGS = {
+        Reg.T2, Reg.T3, Reg.T4, Reg.T5, Reg.T6, Reg.T7, Reg.T8, Reg.T9
+    };
+
+    // ...and for any value (saved in the prologue)
+    private static final Reg[] SAVED_REGS = {
+        Reg.S0, Reg.S1, Reg.S2, Reg.S3, Reg.S4, Reg.S5, Reg.S6, Reg.S7
+    };
+
+    private IRFunction fn;
+    private FnSym f;
+    private List<Block> order;
+
+    // comparisons emitted as part of the branch that follows them
+    private Set<IRInst> fused = new HashSet<IRInst>();
+
+    private Map<IRInst, Integer> pos = new HashMap<IRInst, Integer>();
+    private Map<Block, Integer> blockStart = new HashMap<Block, Integer>();
+    private Map<Block, Integer> blockEnd = new HashMap<Block, Integer>();
+    private List<Integer> calls = new ArrayList<Integer>();
+
+    private Map<IRInst, Reg> regs = new HashMap<IRInst, Reg>();
+    private Map<IRInst, Integer> slots = new HashMap<IRInst, Integer>();
+    private int firstSlot;
+    private int numSlots = 0;
+
+    private IRLower(IRFunction fn) {
+        this.fn = fn;
+        this.f = fn.sym;
+    }
+
+    /**
+     * Generate the code for fn, from its entry sequence to its last
+     * return (the caller generates its label).
+     */
+    public static void lower(IRFunction fn) {
+        new IRLower(fn).run();
+    }
+
+    private void run() {
+        splitCriticalEdges();
+        eliminatePhis();
+        order = fn.reversePostorder();
+        findFusedCompares();
+        number();
+        allocate(intervals());
+        emit();
+    }
+
+    // **********************************************************************
+    // out of SSA
+    // **********************************************************************
+
+    /**
+     * Put an empty block on each edge from a block with several
+     * successors to a block with several predecessors, so that the copies
+     * for the phis have somewhere to go.
+     */
+    private void splitCriticalEdges() {
+        for (Block b : new ArrayList<Block>(fn.blocks)) {
+            if (b.succs.size() < 2) {
+                continue;
+            }
+            for (int k = 0; k < b.succs.size(); k++) {
+                Block s = b.succs.get(k);
+                if (s.preds.size() < 2) {
+                    continue;
+                }
+                Block mid = fn.newBlock();
+                mid.cold = b.cold || s.cold;
+                mid.add(fn.newInst(IROp.JMP));
+                b.succs.set(k, mid);
+                mid.preds.add(b);
+                mid.succs.add(s);
+                s.preds.set(s.preds.indexOf(b), mid);
+            }
+        }
+    }
+
+    /**
+     * Replace the phis of each block by one parallel copy at the end of
+     * each predecessor.  The phis stay on as the values the copies set.
+     */
+    private void eliminatePhis() {
+        for (Block b : fn.blocks) {
+            List<IRInst> phis = b.phis();
+            if (phis.isEmpty()) {
+                continue;
+            }
+            for (int k = 0; k < b.preds.size(); k++) {
+                IRInst copy = fn.newInst(IROp.PCOPY);
+                copy.dests = phis;
+                for (IRInst phi : phis) {
+                    copy.addOperand(phi.operand(k));
+                }
+                b.preds.get(k).insertBeforeTerminator(copy);
+            }
+            for (IRInst phi : phis) {
+                phi.removeOperands();
+                b.insts.remove(phi);
+            }
+        }
+    }
+
+    // **********************************************************************
+    // live intervals
+    // **********************************************************************
+
+    private void findFusedCompares() {
+        for (Block b : order) {
+            int n = b.insts.size();
+            IRInst br = b.insts.get(n - 1);
+            if (br.op != IROp.BR || n < 2) {
+                continue;
+            }
+            IRInst cond = br.operand(0);
+            if (cond.op.isCompare() && b.insts.get(n - 2) == cond &&
+                cond.users.size() == 1) {
+                fused.add(cond);
+            }
+        }
+    }
+
+    private void number() {
+        int p = 0;
+        for (Block b : order) {
+            blockStart.put(b, p);
+            for (IRInst i : b.insts) {
+                pos.put(i, p);
+                if (i.op == IROp.CALL) {
+                    calls.add(p);
+                }
+                p++;
+            }
+            blockEnd.put(b, p - 1);
+        }
+    }
+
+    private boolean isValue(IRInst v) {
+        return !v.isFloating() && !fused.contains(v);
+    }
+
+    /**
+     * The values set by i that need a location.
+     */
+    private List<IRInst> defs(IRInst i) {
+        if (i.op == IROp.PCOPY) {
+            return i.dests;
+        }
+        if (i.op.hasValue() && !fused.contains(i) && !i.users.isEmpty()) {
+            return Collections.singletonList(i);
+        }
+        return Collections.emptyList();
+    }
+
+    /**
+     * The values read by i (a fused comparison's operands are read by its
+     * branch).
+     */
+    private List<IRInst> uses(IRInst i) {
+        List<IRInst> uses = new ArrayList<IRInst>();
+        for (IRInst o : i.operands) {
+            if (fused.contains(o)) {
+                uses.addAll(uses(o));
+            } else if (isValue(o)) {
+                uses.add(o);
+            }
+        }
+        return uses;
+    }
+
+    private List<Interval> intervals() {
+        // live variables: the values live on entry to each block
+        Map<Block, Set<IRInst>> liveIn = new HashMap<Block, Set<IRInst>>();
+        Map<Block, Set<IRInst>> liveOut = new HashMap<Block, Set<IRInst>>();
+        for (Block b : order) {
+            liveIn.put(b, new HashSet<IRInst>());
+            liveOut.put(b, new HashSet<IRInst>());
+        }
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int k = order.size() - 1; k >= 0; k--) {
+                Block b = order.get(k);
+                Set<IRInst> live = new HashSet<IRInst>();
+                for (Block s : b.succs) {
+                    live.addAll(liveIn.get(s));
+                }
+                liveOut.put(b, new HashSet<IRInst>(live));
+                for (int n = b.insts.size() - 1; n >= 0; n--) {
+                    IRInst i = b.insts.get(n);
+                    if (fused.contains(i)) {
+                        continue;
+                    }
+                    live.removeAll(defs(i));
+                    live.addAll(uses(i));
+                }
+                if (!live.equals(liveIn.get(b))) {
+                    liveIn.put(b, live);
+                    changed = true;
+                }
+            }
+        }
+
+        Map<IRInst, Interval> intervals = new LinkedHashMap<IRInst, Interval>();
+        for (Block b : order) {
+            for (IRInst v : liveIn.get(b)) {
+                interval(intervals, v).cover(blockStart.get(b));
+            }
+            for (IRInst v : liveOut.get(b)) {
+                interval(intervals, v).cover(blockEnd.get(b));
+            }
+            for (IRInst i : b.insts) {
+                if (fused.contains(i)) {
+                    continue;
+                }
+                int p = pos.get(i);
+                for (IRInst v : defs(i)) {
+                    interval(intervals, v).cover(p);
+                }
+                for (IRInst v : uses(i)) {
+                    interval(intervals, v).cover(p);
+                }
+            }
+        }
+
+        List<Interval> list = new ArrayList<Interval>(intervals.values());
+        for (Interval iv : list) {
+            for (int c : calls) {
+                if (iv.start < c && c < iv.end) {
+                    iv.acrossCall = true;
+                }
+            }
+        }
+        Collections.sort(list, new Comparator<Interval>() {
+            public int compare(Interval a, Interval b) {
+                if (a.start != b.start) {
+                    return a.start - b.start;
+                }
+                return a.value.id - b.value.id;
+            }
+        });
+        return list;
+    }
+
+    private static Interval interval(Map<IRInst, Interval> intervals, IRInst v) {
+        Interval iv = intervals.get(v);
+        if (iv == null) {
+            iv = new Interval(v);
+            intervals.put(v, iv);
+        }
+        return iv;
+    }
+
+    // **********************************************************************
+    // register allocation
+    // **********************************************************************
+
+    private void allocate(List<Interval> intervals) {
+        Deque<Reg> freeTemps = new ArrayDeque<Reg>(Arrays.asList(TEMP_REGS));
+        Deque<Reg> freeSaved = new ArrayDeque<Reg>(Arrays.asList(SAVED_REGS));
+        EnumSet<Reg> usedSaved = EnumSet.noneOf(Reg.class);
+        List<Interval> active = new ArrayList<Interval>();
+
+        for (Interval cur : intervals) {
+            // free the registers of the intervals that have ended; one that
+            // ends where cur starts may share its register, unless both
+            // are set by the same parallel copy
+            for (Iterator<Interval> it = active.iterator(); it.hasNext(); ) {
+                Interval iv = it.next();
+                if (iv.end < cur.start ||
+                    (iv.end == cur.start && iv.start < cur.start)) {
+                    it.remove();
+                    (iv.reg.isSaved() ? freeSaved : freeTemps).addLast(iv.reg);
+                }
+            }
+
+            Reg r = null;
+            if (!cur.acrossCall && !freeTemps.isEmpty()) {
+                r = freeTemps.removeFirst();
+            } else if (!freeSaved.isEmpty()) {
+                r = freeSaved.removeFirst();
+            } else {
+                // take the register of the interval that lasts longest,
+                // if it lasts longer than this one
+                Interval victim = null;
+                for (Interval iv : active) {
+                    if ((iv.reg.isSaved() || !cur.acrossCall) &&
+                        (victim == null || iv.end > victim.end)) {
+                        victim = iv;
+                    }
+                }
+                if (victim != null && victim.end > cur.end) {
+                    r = victim.reg;
+                    active.remove(victim);
+                    regs.remove(victim.value);
+                    spill(victim);
+                } else {
+                    spill(cur);
+                    continue;
+                }
+            }
+            cur.reg = r;
+            regs.put(cur.value, r);
+            active.add(cur);
+            if (r.isSaved()) {
+                usedSaved.add(r);
+            }
+        }
+
+        List<Reg> saved = new ArrayList<Reg>(usedSaved);
+        firstSlot = 8 + f.getSizeParams();
+        f.setSavedRegs(saved, firstSlot + 4 * numSlots);
+        f.setSizeLocals(4 * (numSlots + saved.size()));
+
+        // a function without calls or a frame needs no entry sequence
+        boolean leaf = true;
+        for (Block b : order) {
+            for (IRInst i : b.insts) {
+                leaf = leaf && i.op != IROp.CALL;
+            }
+        }
+        f.setLeaf(leaf);
+        f.setFrameless(leaf && numSlots == 0 && saved.isEmpty());
+    }
+
+    private void spill(Interval iv) {
+        iv.reg = null;
+        slots.put(iv.value, numSlots++);
+    }
+
+    // **********************************************************************
+    // code generation
+    // **********************************************************************
+
+    private void emit() {
+        for (Block b : order) {
+            b.label = Codegen.nextLabel();
+        }
+        FnDeclNode.genEntry(f);
+        for (int k = 0; k < order.size(); k++) {
+            Block b = order.get(k);
+            Block next = k + 1 < order.size() ? order.get(k + 1) : null;
+            if (b != fn.entry) {
+                Codegen.genLabel(b.label);
+            }
+            IRInst tail = IROpt.tailCall(b);
+            for (IRInst i : b.insts) {
+                if (i == tail) {
+                    // the callee returns for this function
+                    genArgs(i);
+                    FnDeclNode.genTailCall(f, i.operands.size(), i.name);
+                    break;
+                }
+                if (!fused.contains(i)) {
+                    emit(i, next);
+                }
+            }
+        }
+        Codegen.genLabel(f.getExitLabel());
+        FnDeclNode.genExit(f);
+    }
+
+    private Mem slot(IRInst v) {
+        return Codegen.mem(-(firstSlot + 4 * slots.get(v)), Codegen.FP);
+    }
+
+    /**
+     * Return a register holding v, loading it into scratch if it is a
+     * constant or was spilled.
+     */
+    private Reg use(IRInst v, Reg scratch) {
+        if (v.isConst(0)) {
+            return Reg.ZERO;
+        }
+        if (v.op == IROp.CONST) {
+            Codegen.generate(Opcode.LI, scratch, v.imm);
+            return scratch;
+        }
+        if (v.op == IROp.STR) {
+            Codegen.generate(Opcode.LA, scratch, Codegen.label(Codegen.stringLabel(v.name)));
+            return scratch;
+        }
+        Reg r = regs.get(v);
+        if (r != null) {
+            return r;
+        }
+        Codegen.generateWithComment(Opcode.LW, "reload", scratch, slot(v));
+        return scratch;
+    }
+
+    /**
+     * Return v as the second operand of an instruction that takes an
+     * immediate there, loading it into scratch if need be.
+     */
+    private Operand useImm(IRInst v, Reg scratch) {
+        if (v.op == IROp.CONST && v.imm != 0 && new Imm(v.imm).fits16()) {
+            return Codegen.imm(v.imm);
+        }
+        return use(v, scratch);
+    }
+
+    /**
+     * Return the register an instruction computing v should write.
+     */
+    private Reg dest(IRInst v) {
+        Reg r = regs.get(v);
+        return r != null ? r : Codegen.T0;
+    }
+
+    /**
+     * Finish writing v (from register r, returned by dest).
+     */
+    private void store(IRInst v, Reg r) {
+        if (slots.containsKey(v)) {
+            Codegen.generateWithComment(Opcode.SW, "spill", r, slot(v));
+        }
+    }
+
+    private static Opcode opcode(IROp op) {
+        switch (op) {
+            case ADD: return Opcode.ADD;
+            case SUB: return Opcode.SUB;
+            case MUL: return Opcode.MUL;
+            case DIV: return Opcode.DIV;
+            case SEQ: return Opcode.SEQ;
+            case SNE: return Opcode.SNE;
+            case SLT: return Opcode.SLT;
+            case SGT: return Opcode.SGT;
+            case SLE: return Opcode.SLE;
+            case SGE: return Opcode.SGE;
+            default:  return null;
+        }
+    }
+
+    private static Opcode branch(IROp op) {
+        switch (op) {
+            case SEQ: return Opcode.BEQ;
+            case SNE: return Opcode.BNE;
+            case SLT: return Opcode.BLT;
+            case SGT: return Opcode.BGT;
+            case SLE: return Opcode.BLE;
+            case SGE: return Opcode.BGE;
+            default:  return null;
+        }
+    }
+
+    private void emit(IRInst i, Block next) {
+        Reg d, a;
+        switch (i.op) {
+            case PARAM:
+                if (i.users.isEmpty()) {
+                    break;
+                }
+                d = dest(i);
+                if (i.imm / 4 < Codegen.ARG_REGS.length) {
+                    Codegen.generateWithComment(Opcode.MOVE, "formal", d,
+                                                Codegen.ARG_REGS[i.imm / 4]);
+                } else if (f.isFrameless()) {
+                    // $sp is where the caller left it, just below the args
+                    Codegen.generateIndexed(Opcode.LW, d, Codegen.SP,
+                                            f.getSizeParams() - i.imm, "load formal");
+                } else {
+                    Codegen.generateIndexed(Opcode.LW, d, Codegen.FP, -i.imm, "load formal");
+                }
+                store(i, d);
+                break;
+
+            case ADD:
+            case SUB:
+                d = dest(i);
+                a = use(i.operand(0), Codegen.T0);
+                IRInst b = i.operand(1);
+                int k = i.op == IROp.SUB ? -b.imm : b.imm;
+                if (b.isConst() && b.imm != 0 && b.imm != Integer.MIN_VALUE &&
+                    new Imm(k).fits16()) {
+                    Codegen.generate(Opcode.ADDI, d, a, k);
+                } else {
+                    Codegen.generate(opcode(i.op), d, a, use(b, Codegen.T1));
+                }
+                store(i, d);
+                break;
+
+            case MUL:
+            case DIV:
+                d = dest(i);
+                IRInst x = i.operand(0);
+                IRInst y = i.operand(1);
+                if (i.op == IROp.MUL && x.isConst()) {
+                    x = y;
+                    y = i.operand(0);
+                }
+                a = use(x, Codegen.T0);
+                if (!y.isConst()) {
+                    Codegen.generate(opcode(i.op), d, a, use(y, Codegen.T1));
+                } else if (i.op == IROp.MUL) {
+                    Codegen.genMulImm(d, a, y.imm);
+                } else {
+                    Codegen.genDivImm(d, a, y.imm);
+                }
+                store(i, d);
+                break;
+
+            case SEQ: case SNE: case SLT: case SGT: case SLE: case SGE:
+                d = dest(i);
+                a = use(i.operand(0), Codegen.T0);
+                Codegen.generate(opcode(i.op), d, a, useImm(i.operand(1), Codegen.T1));
+                store(i, d);
+                break;
+
+            case NEG:
+                d = dest(i);
+                Codegen.generate(Opcode.NEG, d, use(i.operand(0), Codegen.T0));
+                store(i, d);
+                break;
+
+            case NOT:
+                d = dest(i);
+                Codegen.generate(Opcode.XORI, d, use(i.operand(0), Codegen.T0), 1);
+                store(i, d);
+                break;
+
+            case LOADG:
+                d = dest(i);
+                Codegen.generateWithComment(Opcode.LW, "load global", d,
+                                            Codegen.label("_" + i.name));
+                store(i, d);
+                break;
+
+            case STOREG:
+                Codegen.generateWithComment(Opcode.SW, "store global",
+                                            use(i.operand(0), Codegen.T0),
+                                            Codegen.label("_" + i.name));
+                break;
+
+            case CALL:
+                genArgs(i);
+                Codegen.generate(Opcode.JAL, Codegen.label(i.name));
+                if (!i.users.isEmpty()) {
+                    d = dest(i);
+                    Codegen.generate(Opcode.MOVE, d, Codegen.V0);
+                    store(i, d);
+                }
+                break;
+
+            case READ:
+                Codegen.generate(Opcode.LI, Codegen.V0, 5);
+                Codegen.generate(Opcode.SYSCALL);
+                d = dest(i);
+                Codegen.generate(Opcode.MOVE, d, Codegen.V0);
+                store(i, d);
+                break;
+
+            case WRITE_INT:
+            case WRITE_STR:
+                a = use(i.operand(0), Codegen.A0);
+                if (a != Codegen.A0) {
+                    Codegen.generate(Opcode.MOVE, Codegen.A0, a);
+                }
+                Codegen.generate(Opcode.LI, Codegen.V0, i.op == IROp.WRITE_INT ? 1 : 4);
+                Codegen.generate(Opcode.SYSCALL);
+                break;
+
+            case PCOPY:
+                genParallelCopy(i);
+                break;
+
+            case BR:
+                genBranch(i, next);
+                break;
+
+            case JMP:
+                if (i.block.succs.get(0) != next) {
+                    Codegen.generate(Opcode.J, Codegen.label(i.block.succs.get(0).label));
+                }
+                break;
+
+            case RET:
+                if (!i.operands.isEmpty()) {
+                    a = use(i.operand(0), Codegen.V0);
+                    if (a != Codegen.V0) {
+                        Codegen.generate(Opcode.MOVE, Codegen.V0, a);
+                    }
+                }
+                Codegen.generate(Opcode.J, Codegen.label(f.getExitLabel()));
+                break;
+
+            default:
+                System.err.println("Unexpected " + i + " in IRLower.emit");
+                System.exit(-1);
+        }
+    }
+
+    /**
+     * Pass the arguments of call: the first ones in Codegen.ARG_REGS, the
+     * others in their words of the argument area below $sp.  No value is
+     * kept in an argument register, so they can be set in any order.
+     */
+    private void genArgs(IRInst call) {
+        int n = call.operands.size();
+        if (n > 0) {
+            Codegen.generate(Opcode.SUBU, Codegen.SP, Codegen.SP, 4 * n);
+        }
+        for (int k = 0; k < n; k++) {
+            if (k < Codegen.ARG_REGS.length) {
+                Reg r = Codegen.ARG_REGS[k];
+                Reg a = use(call.operand(k), r);
+                if (a != r) {
+                    Codegen.generate(Opcode.MOVE, r, a);
+                }
+            } else {
+                Codegen.generateIndexed(Opcode.SW, use(call.operand(k), Codegen.T0),
+                                        Codegen.SP, 4 * (n - k), "store arg");
+            }
+        }
+    }
+
+    /**
+     * Branch to the true successor if the condition holds, falling
+     * through to whichever successor comes next.
+     */
+    private void genBranch(IRInst br, Block next) {
+        Block t = br.block.succs.get(0);
+        Block f = br.block.succs.get(1);
+        IRInst cond = br.operand(0);
+
+        Opcode op;
+        Operand[] args;
+        if (fused.contains(cond)) {
+            op = branch(cond.op);
+            Reg left = use(cond.operand(0), Codegen.T0);
+            args = new Operand[] { left, useImm(cond.operand(1), Codegen.T1), null };
+        } else {
+            op = Opcode.BNEZ;
+            args = new Operand[] { use(cond, Codegen.T0), null };
+        }
+
+        if (t == next) {
+            args[args.length - 1] = Codegen.label(f.label);
+            Codegen.generate(op.negate(), args);
+        } else {
+            args[args.length - 1] = Codegen.label(t.label);
+            Codegen.generate(op, args);
+            if (f != next) {
+                Codegen.generate(Opcode.J, Codegen.label(f.label));
+            }
+        }
+    }
+
+    // **********************************************************************
+    // parallel copies
+    // **********************************************************************
+
+    /**
+     * Where a value is: its register, its slot number (an Integer) or,
+     * for a constant, the constant itself.
+     */
+    private Object location(IRInst v) {
+        if (v.isFloating()) {
+            return v;
+        }
+        Reg r = regs.get(v);
+        if (r != null) {
+            return r;
+        }
+        return slots.get(v);
+    }
+
+    /**
+     * Perform the copies of a PCOPY as if they happened at once: a copy
+     * is made only when no other pending copy still reads its
+     * destination, and a cycle is broken by moving one value to $t1.
+     */
+    private void genParallelCopy(IRInst copy) {
+        List<Object> dsts = new ArrayList<Object>();
+        List<Object> srcs = new ArrayList<Object>();
+        for (int k = 0; k < copy.dests.size(); k++) {
+            Object d = location(copy.dests.get(k));
+            Object s = location(copy.operand(k));
+            if (!d.equals(s)) {
+                dsts.add(d);
+                srcs.add(s);
+            }
+        }
+
+        while (!dsts.isEmpty()) {
+            int ready = -1;
+            for (int k = 0; k < dsts.size() && ready < 0; k++) {
+                if (!srcs.contains(dsts.get(k))) {
+                    ready = k;
+                }
+            }
+            if (ready >= 0) {
+                move(dsts.remove(ready), srcs.remove(ready));
+            } else {
+                Object d = dsts.get(0);
+                move(Codegen.T1, d);
+                for (int k = 0; k < srcs.size(); k++) {
+                    if (srcs.get(k).equals(d)) {
+                        srcs.set(k, Codegen.T1);
+                    }
+                }
+            }
+        }
+    }
+
+    private Operand memOrReg(Object loc) {
+        if (loc instanceof Reg) {
+            return (Reg)loc;
+        }
+        return Codegen.mem(-(firstSlot + 4 * (Integer)loc), Codegen.FP);
+    }
+
+    private void move(Object dst, Object src) {
+        Reg r = dst instanceof Reg ? (Reg)dst : Codegen.T0;
+        if (src instanceof IRInst) {
+            IRInst c = (IRInst)src;
+            if (c.op == IROp.CONST) {
+                Codegen.generate(Opcode.LI, r, c.imm);
+            } else {
+                Codegen.generate(Opcode.LA, r, Codegen.label(Codegen.stringLabel(c.name)));
+            }
+        } else if (src instanceof Reg) {
+            if (dst instanceof Reg) {
+                Codegen.generate(Opcode.MOVE, r, (Reg)src);
+                return;
+            }
+            r = (Reg)src;
+        } else {
+            Codegen.generateWithComment(Opcode.LW, "reload", r, memOrReg(src));
+        }
+        if (!(dst instanceof Reg)) {
+            Codegen.generateWithComment(Opcode.SW, "spill", r, memOrReg(dst));
+        }
+    }
+
+    /**
+     * The range of positions where a value must be kept, and where it is.
+     */
+    private static class Interval {
+        IRInst value;
+        int start = Integer.MAX_VALUE;
+        int end = Integer.MIN_VALUE;
+        boolean acrossCall = false;
+        Reg reg;
+
+        Interval(IRInst value) {
+            this.value = value;
+        }
+
+        void cover(int p) {
+            start = Math.min(start, p);
+            end = Math.max(end, p);
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/**
+ * The operations of the SSA intermediate representation (see IRFunction).
+ */
+enum IROp {
+    // values without operands
+    CONST(true, false),       // imm
+    STR(true, false),         // name is the string literal (with quotes)
+    PARAM(true, false),       // imm is the formal's offset from $fp
+
+    // arithmetic and comparisons on ints and bools (see mayTrap)
+    ADD(true, false), SUB(true, false), MUL(true, false),
+    DIV(true, true),          // division by zero traps
+    NEG(true, false), NOT(true, false),
+    SEQ(true, false), SNE(true, false), SLT(true, false),
+    SGT(true, false), SLE(true, false), SGE(true, false),
+
+    // globals, named by name
+    LOADG(true, false),
+    STOREG(false, true),
+
+    CALL(true, true),         // name is the function's label
+    READ(true, true),
+    WRITE_INT(false, true),
+    WRITE_STR(false, true),
+
+    PHI(true, false),
+
+    // parallel copy dests := operands, made by IRLower out of phis
+    PCOPY(false, false),
+
+    // terminators: BR goes to succs[0] if its operand is non-zero and to
+    // succs[1] otherwise, JMP to succs[0], RET has an optional operand
+    BR(false, true), JMP(false, true), RET(false, true);
+
+    private final boolean hasValue;
+    private final boolean sideEffects;
+
+    IROp(boolean hasValue, boolean sideEffects) {
+        this.hasValue = hasValue;
+        this.sideEffects = sideEffects;
+    }
+
+    public boolean hasValue() {
+        return hasValue;
+    }
+
+    /**
+     * Must the instruction be kept even if its value is not used?
+     */
+    public boolean hasSideEffects() {
+        return sideEffects;
+    }
+
+    /**
+     * Can the instruction stop the program with a run-time error?  Add,
+     * subtract and negate trap on overflow (they become MIPS add, sub and
+     * neg), and divide traps on a zero divisor.  Such an instruction may
+     * be dropped if its value is not needed, as the AST's fold does, but
+     * must not run where the program would not have run it.
+     */
+    public boolean mayTrap() {
+        return this == ADD || this == SUB || this == NEG || this == DIV;
+    }
+
+    public boolean isTerminator() {
+        return this == BR || this == JMP || this == RET;
+    }
+
+    /**
+     * Is op(a, b) the same as op(b, a)?
+     */
+    public boolean isCommutative() {
+        return this == ADD || this == MUL || this == SEQ || this == SNE;
+    }
+
+    public boolean isCompare() {
+        return this == SEQ || this == SNE || this == SLT ||
+               this == SGT || this == SLE || this == SGE;
+    }
+
+    public String toString() {
+        return name().toLowerCase();
+    }
+}
@@ -0,0 +1,506 @@
+import java.util.*;
+
+/**
+ * IROpt
+ *
+ * The optimization passes run on each function's IR between IRBuilder and
+ * IRLower.  Each pass keeps the function valid SSA; optimize runs the
+ * verifier after every pass.
+ */
+class IROpt {
+    /**
+     * Run the passes on fn.
+     */
+    public static void optimize(IRFunction fn) {
+        if (IRInline.inlineCalls(fn)) {
+            IRVerifier.verify(fn);
+        }
+        if (tailRecursion(fn)) {
+            IRVerifier.verify(fn);
+        }
+        foldBranches(fn);
+        IRVerifier.verify(fn);
+        if (numberValues(fn)) {
+            IRVerifier.verify(fn);
+        }
+        deadCode(fn);
+        IRVerifier.verify(fn);
+        if (hoistInvariants(fn)) {
+            IRVerifier.verify(fn);
+        }
+    }
+
+    /**
+     * foldBranches
+     * Turn each branch on a constant into a jump, then remove the blocks
+     * that can no longer be reached and the phis left with one value.
+     */
+    public static void foldBranches(IRFunction fn) {
+        boolean changed = false;
+        for (Block b : fn.blocks) {
+            IRInst br = b.terminator();
+            if (br.op != IROp.BR || !br.operand(0).isConst()) {
+                continue;
+            }
+            Block notTaken = b.succs.get(br.operand(0).imm != 0 ? 1 : 0);
+            br.removeOperands();
+            br.op = IROp.JMP;
+            IRFunction.removeEdge(b, notTaken);
+            changed = true;
+        }
+        if (changed) {
+            fn.removeUnreachableBlocks();
+            removeTrivialPhis(fn);
+        }
+    }
+
+    /**
+     * tailRecursion
+     * Turn each call of fn to itself whose result is returned at once into
+     * a jump back to the start of the body, where a phi per formal merges
+     * the arguments with the values passed in.  Return whether there were
+     * any.
+     */
+    public static boolean tailRecursion(IRFunction fn) {
+        List<Block> tails = new ArrayList<Block>();
+        for (Block b : fn.blocks) {
+            IRInst call = tailCall(b);
+            if (call != null && call.name.equals(fn.name)) {
+                tails.add(b);
+            }
+        }
+        if (tails.isEmpty()) {
+            return false;
+        }
+
+        // move the body out of the entry block, leaving the formals
+        Block header = fn.newBlock();
+        for (IRInst i : new ArrayList<IRInst>(fn.entry.insts)) {
+            if (i.op != IROp.PARAM) {
+                fn.entry.insts.remove(i);
+                header.add(i);
+            }
+        }
+        for (Block s : fn.entry.succs) {
+            Collections.replaceAll(s.preds, fn.entry, header);
+        }
+        header.succs.addAll(fn.entry.succs);
+        fn.entry.succs.clear();
+        fn.entry.add(fn.newInst(IROp.JMP));
+        IRFunction.addEdge(fn.entry, header);
+
+        Map<IRInst, Integer> formals = new HashMap<IRInst, Integer>();
+        for (IRInst param : new ArrayList<IRInst>(fn.entry.insts)) {
+            if (param.op == IROp.PARAM) {
+                IRInst phi = fn.newInst(IROp.PHI);
+                header.addPhi(phi);
+                param.replaceAllUsesWith(phi);
+                phi.addOperand(param);
+                formals.put(phi, param.imm / 4);
+            }
+        }
+
+        for (Block b : tails) {
+            IRInst ret = b.terminator();
+            IRInst call = b.insts.get(b.insts.size() - 2);
+            b.remove(ret);
+            for (IRInst phi : header.phis()) {
+                phi.addOperand(call.operand(formals.get(phi)));
+            }
+            b.remove(call);
+            b.add(fn.newInst(IROp.JMP));
+            IRFunction.addEdge(b, header);
+        }
+        removeTrivialPhis(fn);
+        return true;
+    }
+
+    /**
+     * Return the call b ends with if the function returns what it returns
+     * (or returns nothing after it), or null.
+     */
+    static IRInst tailCall(Block b) {
+        IRInst ret = b.terminator();
+        if (ret.op != IROp.RET || b.insts.size() < 2) {
+            return null;
+        }
+        IRInst call = b.insts.get(b.insts.size() - 2);
+        if (call.op != IROp.CALL) {
+            return null;
+        }
+        if (ret.operands.isEmpty() ? call.users.isEmpty()
+                                   : ret.operand(0) == call && call.users.size() == 1) {
+            return call;
+        }
+        return null;
+    }
+
+    /**
+     * removeTrivialPhis
+     * Replace each phi whose operands are all the same value (or the phi
+     * itself) by that value, until there are none left.
+     */
+    public static void removeTrivialPhis(IRFunction fn) {
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (Block b : fn.blocks) {
+                for (IRInst phi : b.phis()) {
+                    IRInst same = null;
+                    boolean trivial = true;
+                    for (IRInst op : phi.operands) {
+                        if (op == phi || (same != null && sameValue(op, same))) {
+                            continue;
+                        }
+                        if (same != null) {
+                            trivial = false;
+                            break;
+                        }
+                        same = op;
+                    }
+                    if (trivial && same != null) {
+                        phi.replaceAllUsesWith(same);
+                        b.remove(phi);
+                        changed = true;
+                    }
+                }
+            }
+        }
+    }
+
+    static boolean sameValue(IRInst a, IRInst b) {
+        return a == b || (a.isConst() && b.isConst() && a.imm == b.imm);
+    }
+
+    /**
+     * numberValues
+     * Common subexpression elimination by dominator-based value numbering:
+     * the blocks are visited down the dominator tree, and an instruction
+     * computing the same operation on the same operands as one in a
+     * dominating block (or earlier in its block) is replaced by it.
+     * Within a block, a global load also reuses the last value loaded
+     * from or stored to that global, unless a call came in between.
+     * Return whether anything was replaced.
+     */
+    public static boolean numberValues(IRFunction fn) {
+        Map<Block, Block> idom = IRVerifier.dominators(fn);
+        Map<Block, List<Block>> children = new HashMap<Block, List<Block>>();
+        for (Block b : fn.reversePostorder()) {
+            Block parent = idom.get(b);
+            if (parent != null) {
+                if (!children.containsKey(parent)) {
+                    children.put(parent, new ArrayList<Block>());
+                }
+                children.get(parent).add(b);
+            }
+        }
+
+        boolean changed = false;
+        Map<String, IRInst> table = new HashMap<String, IRInst>();
+        Map<Block, List<String>> added = new HashMap<Block, List<String>>();
+        // each block is pushed twice: to number it, and to leave its scope
+        Deque<Block> work = new ArrayDeque<Block>();
+        work.push(fn.entry);
+        while (!work.isEmpty()) {
+            Block b = work.pop();
+            if (added.containsKey(b)) {
+                for (String key : added.remove(b)) {
+                    table.remove(key);
+                }
+                continue;
+            }
+            List<String> keys = new ArrayList<String>();
+            Map<String, IRInst> globals = new HashMap<String, IRInst>();
+            for (IRInst i : new ArrayList<IRInst>(b.insts)) {
+                IRInst same = null;
+                if (i.op == IROp.STOREG) {
+                    globals.put(i.name, i.operand(0));
+                } else if (i.op == IROp.CALL) {
+                    globals.clear();
+                } else if (i.op == IROp.LOADG) {
+                    same = globals.get(i.name);
+                    if (same == null) {
+                        globals.put(i.name, i);
+                    }
+                } else if (isNumbered(i)) {
+                    String key = valueKey(i);
+                    same = table.get(key);
+                    if (same == null) {
+                        table.put(key, i);
+                        keys.add(key);
+                    }
+                }
+                if (same != null) {
+                    i.replaceAllUsesWith(same);
+                    b.remove(i);
+                    changed = true;
+                }
+            }
+            added.put(b, keys);
+            work.push(b);
+            if (children.containsKey(b)) {
+                for (Block c : children.get(b)) {
+                    work.push(c);
+                }
+            }
+        }
+        return changed;
+    }
+
+    // division is numbered too: an equal division that dominates it would
+    // have trapped first (as would an equal add, subtract or negate)
+    private static boolean isNumbered(IRInst i) {
+        return i.op.hasValue() && (!i.op.hasSideEffects() || i.op == IROp.DIV) &&
+               i.op != IROp.PARAM && i.op != IROp.LOADG;
+    }
+
+    private static String valueKey(IRInst i) {
+        List<String> ops = new ArrayList<String>();
+        for (IRInst o : i.operands) {
+            ops.add(o.ref());
+        }
+        if (i.op.isCommutative()) {
+            Collections.sort(ops);
+        }
+        StringBuilder sb = new StringBuilder(i.op.toString());
+        if (i.op == IROp.PHI) {
+            sb.append(" ").append(i.block);
+        }
+        for (String o : ops) {
+            sb.append(" ").append(o);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * hoistInvariants
+     * Loop-invariant code motion.  The loops are the natural loops of the
+     * back edges (edges to a block that dominates their source).  From the
+     * innermost loop out, each instruction whose operands are all defined
+     * outside the loop (or are themselves invariant) and that can run
+     * early without changing anything is moved to the loop's preheader,
+     * a block that is run once before entering the loop.  A global is
+     * only loaded early if the loop neither stores to it nor calls a
+     * function.  An instruction that may trap (see IROp.mayTrap) is only
+     * moved from the header, which runs whenever the loop is entered, and
+     * only if nothing with a visible effect comes before it there, so
+     * that the trap cannot happen in a loop that would not have run it.
+     * Return whether anything moved.
+     */
+    public static boolean hoistInvariants(IRFunction fn) {
+        List<Block> rpo = fn.reversePostorder();
+        Map<Block, Block> idom = IRVerifier.dominators(fn);
+        final Map<Block, Set<Block>> loops = new LinkedHashMap<Block, Set<Block>>();
+        for (Block b : rpo) {
+            for (Block h : b.succs) {
+                if (dominates(idom, h, b)) {
+                    Set<Block> body = loops.get(h);
+                    if (body == null) {
+                        body = new HashSet<Block>();
+                        loops.put(h, body);
+                    }
+                    addNaturalLoop(h, b, body);
+                }
+            }
+        }
+        List<Block> headers = new ArrayList<Block>(loops.keySet());
+        Collections.sort(headers, new Comparator<Block>() {
+            public int compare(Block a, Block b) {
+                return loops.get(a).size() - loops.get(b).size();
+            }
+        });
+
+        boolean changed = false;
+        for (Block h : headers) {
+            Set<Block> body = loops.get(h);
+            List<IRInst> invariant = new ArrayList<IRInst>();
+            Set<IRInst> known = new HashSet<IRInst>();
+            Set<String> stored = new HashSet<String>();
+            boolean calls = false;
+            for (Block b : body) {
+                for (IRInst i : b.insts) {
+                    if (i.op == IROp.STOREG) {
+                        stored.add(i.name);
+                    }
+                    calls |= i.op == IROp.CALL;
+                }
+            }
+            for (Block b : rpo) {
+                if (!body.contains(b)) {
+                    continue;
+                }
+                boolean early = b == h;
+                for (IRInst i : b.insts) {
+                    if (canHoist(i, calls, stored, early) &&
+                        operandsInvariant(i, body, known)) {
+                        invariant.add(i);
+                        known.add(i);
+                    }
+                    early &= !i.op.hasSideEffects();
+                }
+            }
+            if (invariant.isEmpty()) {
+                continue;
+            }
+
+            Block pre = preheader(fn, h, body);
+            for (IRInst i : invariant) {
+                i.block.insts.remove(i);
+                pre.insertBeforeTerminator(i);
+            }
+            // a new preheader is part of the loops around this one
+            for (Set<Block> outer : loops.values()) {
+                if (outer != body && outer.contains(h)) {
+                    outer.add(pre);
+                }
+            }
+            changed = true;
+        }
+        if (changed) {
+            removeTrivialPhis(fn);
+        }
+        return changed;
+    }
+
+    private static boolean dominates(Map<Block, Block> idom, Block a, Block b) {
+        while (b != null) {
+            if (a == b) {
+                return true;
+            }
+            b = idom.get(b);
+        }
+        return false;
+    }
+
+    /**
+     * Add to body the blocks of the loop of the back edge tail -> h.
+     */
+    private static void addNaturalLoop(Block h, Block tail, Set<Block> body) {
+        Deque<Block> work = new ArrayDeque<Block>();
+        body.add(h);
+        if (body.add(tail)) {
+            work.push(tail);
+        }
+        while (!work.isEmpty()) {
+            for (Block p : work.pop().preds) {
+                if (body.add(p)) {
+                    work.push(p);
+                }
+            }
+        }
+    }
+
+    // early: nothing visible has happened yet in the loop's header, where
+    // i is (so even an instruction that may trap can run early)
+    private static boolean canHoist(IRInst i, boolean calls, Set<String> stored,
+                                    boolean early) {
+        if (i.op == IROp.LOADG) {
+            return !calls && !stored.contains(i.name);
+        }
+        if (i.op.mayTrap() && !early) {
+            return false;
+        }
+        return i.op.hasValue() && !i.op.hasSideEffects() &&
+               i.op != IROp.PHI && i.op != IROp.PARAM && i.op != IROp.CALL &&
+               i.op != IROp.READ;
+    }
+
+    private static boolean operandsInvariant(IRInst i, Set<Block> body, Set<IRInst> known) {
+        for (IRInst o : i.operands) {
+            if (!o.isFloating() && body.contains(o.block) && !known.contains(o)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Return the loop's preheader: its header's only predecessor from
+     * outside the loop if that block only goes to the header, or else a
+     * new block that all the edges entering the loop now go through.
+     */
+    private static Block preheader(IRFunction fn, Block h, Set<Block> body) {
+        List<Integer> outside = new ArrayList<Integer>();
+        List<Integer> inside = new ArrayList<Integer>();
+        for (int k = 0; k < h.preds.size(); k++) {
+            (body.contains(h.preds.get(k)) ? inside : outside).add(k);
+        }
+        if (outside.size() == 1 && h.preds.get(outside.get(0)).succs.size() == 1) {
+            return h.preds.get(outside.get(0));
+        }
+
+        Block pre = fn.newBlock();
+        pre.cold = h.cold;
+        for (IRInst phi : h.phis()) {
+            List<IRInst> ops = new ArrayList<IRInst>(phi.operands);
+            IRInst entering;
+            if (outside.size() == 1) {
+                entering = ops.get(outside.get(0));
+            } else {
+                entering = fn.newInst(IROp.PHI);
+                pre.addPhi(entering);
+                for (int k : outside) {
+                    entering.addOperand(ops.get(k));
+                }
+            }
+            phi.removeOperands();
+            for (int k : inside) {
+                phi.addOperand(ops.get(k));
+            }
+            phi.addOperand(entering);
+        }
+
+        List<Block> preds = new ArrayList<Block>(h.preds);
+        h.preds.clear();
+        for (int k : inside) {
+            h.preds.add(preds.get(k));
+        }
+        for (int k : outside) {
+            Block p = preds.get(k);
+            pre.preds.add(p);
+            Collections.replaceAll(p.succs, h, pre);
+        }
+        pre.add(fn.newInst(IROp.JMP));
+        IRFunction.addEdge(pre, h);
+        return pre;
+    }
+
+    /**
+     * deadCode
+     * Remove instructions whose values are never used and that have no
+     * other effect (including phis that only feed themselves).
+     */
+    public static void deadCode(IRFunction fn) {
+        Set<IRInst> live = new HashSet<IRInst>();
+        Deque<IRInst> work = new ArrayDeque<IRInst>();
+        for (Block b : fn.blocks) {
+            for (IRInst i : b.insts) {
+                if (i.op.hasSideEffects()) {
+                    live.add(i);
+                    work.push(i);
+                }
+            }
+        }
+        while (!work.isEmpty()) {
+            for (IRInst o : work.pop().operands) {
+                if (!o.isFloating() && live.add(o)) {
+                    work.push(o);
+                }
+            }
+        }
+        for (Block b : fn.blocks) {
+            for (IRInst i : new ArrayList<IRInst>(b.insts)) {
+                if (!live.contains(i)) {
+                    i.removeOperands();
+                }
+            }
+        }
+        for (Block b : fn.blocks) {
+            for (IRInst i : new ArrayList<IRInst>(b.insts)) {
+                if (!live.contains(i)) {
+                    b.remove(i);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,210 @@
+import java.util.*;
+
+/**
+ * IRVerifier
+ *
+ * Checks that an IRFunction is well formed SSA:
+ *   - every block ends in exactly one terminator, whose successors match
+ *     the block's succs, and the pred and succ lists agree;
+ *   - phis come first in their block and have one operand per predecessor;
+ *   - the user lists agree with the operand lists;
+ *   - every value is defined in a block of the function (or is a constant)
+ *     and its definition dominates each use (the end of the matching
+ *     predecessor, for a phi operand).
+ *
+ * A broken function is a bug in the compiler, so it is reported and the
+ * compiler stops.
+ */
+class IRVerifier {
+    private IRFunction fn;
+    private Map<Block, Block> idom;
+
+    private IRVerifier(IRFunction fn) {
+        this.fn = fn;
+    }
+
+    public static void verify(IRFunction fn) {
+        new IRVerifier(fn).check();
+    }
+
+    private void fail(String msg) {
+        System.err.println("Invalid IR in " + fn.name + ": " + msg);
+        System.exit(-1);
+    }
+
+    private void check() {
+        if (fn.entry == null || !fn.blocks.contains(fn.entry)) {
+            fail("no entry block");
+        }
+        if (!fn.entry.preds.isEmpty()) {
+            fail("entry block has predecessors");
+        }
+        Set<Block> blocks = new HashSet<Block>(fn.blocks);
+        for (Block b : fn.blocks) {
+            checkEdges(b, blocks);
+            checkInstructions(b);
+        }
+        idom = dominators(fn);
+        for (Block b : fn.blocks) {
+            if (b != fn.entry && !idom.containsKey(b)) {
+                fail(b + " cannot be reached");
+            }
+            for (int k = 0; k < b.insts.size(); k++) {
+                checkOperands(b, k, blocks);
+            }
+        }
+    }
+
+    private void checkEdges(Block b, Set<Block> blocks) {
+        IRInst term = b.terminator();
+        if (term == null) {
+            fail(b + " does not end in a terminator");
+        }
+        int succs = term.op == IROp.BR ? 2 : term.op == IROp.JMP ? 1 : 0;
+        if (b.succs.size() != succs) {
+            fail(b + " has " + b.succs.size() + " successors for " + term);
+        }
+        for (Block s : b.succs) {
+            if (!blocks.contains(s)) {
+                fail(b + " branches to " + s + ", which is not in the function");
+            }
+            if (Collections.frequency(s.preds, b) != Collections.frequency(b.succs, s)) {
+                fail(s + " does not list " + b + " as a predecessor");
+            }
+        }
+        for (Block p : b.preds) {
+            if (!blocks.contains(p) || !p.succs.contains(b)) {
+                fail(b + " lists " + p + " as a predecessor");
+            }
+        }
+    }
+
+    private void checkInstructions(Block b) {
+        boolean phis = true;
+        for (int k = 0; k < b.insts.size(); k++) {
+            IRInst i = b.insts.get(k);
+            if (i.block != b) {
+                fail(i + " is not marked as being in " + b);
+            }
+            if (i.op.isTerminator() && k != b.insts.size() - 1) {
+                fail(b + " has " + i + " before its end");
+            }
+            if (i.isFloating()) {
+                fail(b + " contains the constant " + i);
+            }
+            if (i.op == IROp.PHI) {
+                if (!phis) {
+                    fail(i + " is not at the start of " + b);
+                }
+                if (i.operands.size() != b.preds.size()) {
+                    fail(i + " has " + i.operands.size() + " operands but " +
+                         b + " has " + b.preds.size() + " predecessors");
+                }
+            } else {
+                phis = false;
+            }
+            for (IRInst o : i.operands) {
+                if (o == null) {
+                    fail(i + " has a missing operand");
+                }
+                if (Collections.frequency(o.users, i) !=
+                    Collections.frequency(i.operands, o)) {
+                    fail(o.ref() + " does not list " + i + " as a user");
+                }
+            }
+            for (IRInst u : i.users) {
+                if (!u.operands.contains(i)) {
+                    fail(i + " lists " + u + " as a user");
+                }
+            }
+        }
+    }
+
+    private void checkOperands(Block b, int k, Set<Block> blocks) {
+        IRInst i = b.insts.get(k);
+        for (int n = 0; n < i.operands.size(); n++) {
+            IRInst o = i.operands.get(n);
+            if (o.isFloating()) {
+                continue;
+            }
+            if (!o.op.hasValue()) {
+                fail(i + " uses " + o + ", which has no value");
+            }
+            if (o.block == null || !blocks.contains(o.block)) {
+                fail(i + " uses " + o.ref() + ", which is not in the function");
+            }
+            if (i.op == IROp.PHI) {
+                Block pred = b.preds.get(n);
+                if (!dominates(o.block, pred)) {
+                    fail(o.ref() + " does not reach " + i + " from " + pred);
+                }
+            } else if (o.block == b) {
+                if (b.insts.indexOf(o) >= k) {
+                    fail(i + " uses " + o.ref() + " before it is defined");
+                }
+            } else if (!dominates(o.block, b)) {
+                fail(o.ref() + " in " + o.block + " does not dominate " + i + " in " + b);
+            }
+        }
+    }
+
+    private boolean dominates(Block a, Block b) {
+        while (b != null) {
+            if (a == b) {
+                return true;
+            }
+            b = idom.get(b);
+        }
+        return false;
+    }
+
+    /**
+     * Return the immediate dominator of each reachable block except the
+     * entry (Cooper, Harvey and Kennedy, "A Simple, Fast Dominance
+     * Algorithm").
+     */
+    public static Map<Block, Block> dominators(IRFunction fn) {
+        List<Block> rpo = fn.reversePostorder();
+        Map<Block, Integer> order = new HashMap<Block, Integer>();
+        for (int k = 0; k < rpo.size(); k++) {
+            order.put(rpo.get(k), k);
+        }
+        Map<Block, Block> idom = new HashMap<Block, Block>();
+        idom.put(fn.entry, fn.entry);
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (Block b : rpo) {
+                if (b == fn.entry) {
+                    continue;
+                }
+                Block newIdom = null;
+                for (Block p : b.preds) {
+                    if (!idom.containsKey(p)) {
+                        continue;
+                    }
+                    newIdom = newIdom == null ? p : intersect(p, newIdom, idom, order);
+                }
+                if (newIdom != null && idom.get(b) != newIdom) {
+                    idom.put(b, newIdom);
+                    changed = true;
+                }
+            }
+        }
+        idom.remove(fn.entry);
+        return idom;
+    }
+
+    private static Block intersect(Block a, Block b, Map<Block, Block> idom,
+                                   Map<Block, Integer> order) {
+        while (a != b) {
+            while (order.get(a) > order.get(b)) {
+                a = idom.get(a);
+            }
+            while (order.get(b) > order.get(a)) {
+                b = idom.get(b);
+            }
+        }
+        return a;
+    }
+}
@@ -0,0 +1,285 @@
+import java.io.*;
+import java.util.*;
+
+/**
+ * Instr
+ *
+ * One line of generated code: a label, a directive, or an instruction
+ * (an Opcode and its Operands) with an optional comment.  Codegen collects
+ * these so that the peephole optimizer can rewrite them; print is the only
+ * place where they are turned into assembler text.
+ */
+class Instr {
+    public static final int LABEL = 0;
+    public static final int DIRECTIVE = 1;
+    public static final int INSTR = 2;
+
+    private static final Operand[] NO_OPERANDS = new Operand[0];
+
+    // opcodes are padded to this width when printed
+    private static final int OPCODE_WIDTH = 6;
+    private static final String SPACES = "      ";
+
+    // registers the caller may still need after a "jr $ra"
+    private static final EnumSet<Reg> EXIT_LIVE = EnumSet.of(
+        Reg.V0, Reg.V1, Reg.SP, Reg.FP, Reg.RA, Reg.GP,
+        Reg.S0, Reg.S1, Reg.S2, Reg.S3, Reg.S4, Reg.S5, Reg.S6, Reg.S7);
+
+    // registers a called function may read (arguments, stack and globals)
+    private static final EnumSet<Reg> CALL_USES = EnumSet.of(
+        Reg.A0, Reg.A1, Reg.A2, Reg.A3, Reg.SP, Reg.FP, Reg.GP);
+
+    // registers a called function may overwrite
+    private static final EnumSet<Reg> CALL_CLOBBERED = EnumSet.range(Reg.V0, Reg.T9);
+    static {
+        CALL_CLOBBERED.add(Reg.RA);
+    }
+
+    final int kind;
+    final Opcode op;        // null for labels and directives
+    final Operand[] args;
+    final String text;      // label name or directive text
+    final String comment;
+
+    private Instr(int kind, Opcode op, Operand[] args, String text,
+                  String comment) {
+        this.kind = kind;
+        this.op = op;
+        this.args = args;
+        this.text = text;
+        this.comment = comment;
+    }
+
+    public static Instr label(String label, String comment) {
+        return new Instr(LABEL, null, NO_OPERANDS, label, comment);
+    }
+
+    public static Instr directive(String text) {
+        return new Instr(DIRECTIVE, null, NO_OPERANDS, text, "");
+    }
+
+    public static Instr op(Opcode op, String comment, Operand... args) {
+        return new Instr(INSTR, op, args, null, comment);
+    }
+
+    /**
+     * Return the same instruction with other operands.
+     */
+    public Instr with(Operand... newArgs) {
+        return new Instr(kind, op, newArgs, text, comment);
+    }
+
+    public boolean isLabel() {
+        return kind == LABEL;
+    }
+
+    public boolean isInstr() {
+        return kind == INSTR;
+    }
+
+    public boolean is(Opcode o) {
+        return op == o;
+    }
+
+    public Opcode.Kind opKind() {
+        return op == null ? null : op.kind();
+    }
+
+    /**
+     * Is this an unconditional jump (j or b)?
+     */
+    public boolean isJump() {
+        return opKind() == Opcode.Kind.JUMP;
+    }
+
+    /**
+     * Is this a conditional branch?  The target is the last operand.
+     */
+    public boolean isBranch() {
+        return opKind() == Opcode.Kind.BRANCH;
+    }
+
+    public boolean isCall() {
+        return opKind() == Opcode.Kind.CALL;
+    }
+
+    public boolean isStore() {
+        return opKind() == Opcode.Kind.STORE;
+    }
+
+    public boolean isLoad() {
+        return opKind() == Opcode.Kind.LOAD;
+    }
+
+    /**
+     * Does this instruction read or write registers not named in it
+     * (calls, returns and system calls)?
+     */
+    public boolean hasImplicitOperands() {
+        return isCall() || is(Opcode.JR) || is(Opcode.SYSCALL);
+    }
+
+    /**
+     * Does control ever fall through to the next instruction?
+     */
+    public boolean fallsThrough() {
+        return !(isJump() || is(Opcode.JR));
+    }
+
+    /**
+     * Return the label this jump or branch goes to, or null.
+     */
+    public String target() {
+        if (isJump() || isBranch()) {
+            return ((LabelRef)args[args.length - 1]).name();
+        }
+        return null;
+    }
+
+    /**
+     * Return the same jump or branch going to another label.
+     */
+    public Instr retarget(String label) {
+        Operand[] newArgs = args.clone();
+        newArgs[newArgs.length - 1] = new LabelRef(label);
+        return with(newArgs);
+    }
+
+    // **********************************************************************
+    // operands
+    // **********************************************************************
+
+    public Reg reg(int k) {
+        return (Reg)args[k];
+    }
+
+    public boolean isReg(int k, Reg r) {
+        return k < args.length && args[k] == r;
+    }
+
+    public boolean isImm(int k) {
+        return k < args.length && args[k] instanceof Imm;
+    }
+
+    public int imm(int k) {
+        return ((Imm)args[k]).value();
+    }
+
+    /**
+     * The register this instruction writes (other than by a call), or
+     * null.
+     */
+    public Reg dest() {
+        if (op != null && op.writesFirst() && args.length > 0 &&
+            args[0] instanceof Reg) {
+            return (Reg)args[0];
+        }
+        return null;
+    }
+
+    /**
+     * Registers written by this instruction.
+     */
+    public EnumSet<Reg> defs() {
+        EnumSet<Reg> defs = EnumSet.noneOf(Reg.class);
+        if (isCall()) {
+            defs.addAll(CALL_CLOBBERED);
+        } else if (is(Opcode.SYSCALL)) {
+            defs.add(Reg.V0);
+        } else if (dest() != null) {
+            defs.add(dest());
+        }
+        defs.remove(Reg.ZERO);
+        return defs;
+    }
+
+    /**
+     * Registers read by this instruction.
+     */
+    public EnumSet<Reg> uses() {
+        EnumSet<Reg> uses = EnumSet.noneOf(Reg.class);
+        if (kind != INSTR) {
+            return uses;
+        }
+        if (isCall()) {
+            uses.addAll(CALL_USES);
+        } else if (is(Opcode.JR)) {
+            uses.addAll(EXIT_LIVE);
+        } else if (is(Opcode.SYSCALL)) {
+            uses.add(Reg.V0);
+            uses.add(Reg.A0);
+            uses.add(Reg.A1);
+        }
+
+        int first = op.writesFirst() ? 1 : 0;
+        for (int k = 0; k < args.length; k++) {
+            Operand a = args[k];
+            if (a instanceof Mem) {
+                uses.add(((Mem)a).base());
+            } else if (a instanceof Reg && k >= first) {
+                uses.add((Reg)a);
+            }
+        }
+        uses.remove(Reg.ZERO);
+        return uses;
+    }
+
+    /**
+     * Return a copy of this instruction that reads register to wherever
+     * it read register from.
+     */
+    public Instr replaceUses(Reg from, Reg to) {
+        Operand[] newArgs = args.clone();
+        int first = op.writesFirst() ? 1 : 0;
+        for (int k = 0; k < args.length; k++) {
+            Operand a = args[k];
+            if (a instanceof Mem && ((Mem)a).base() == from) {
+                newArgs[k] = new Mem(((Mem)a).offset(), to);
+            } else if (a == from && k >= first) {
+                newArgs[k] = to;
+            }
+        }
+        return with(newArgs);
+    }
+
+    // **********************************************************************
+    // printing
+    // **********************************************************************
+
+    public void print(PrintWriter p) {
+        if (kind == LABEL) {
+            p.print(text);
+            p.print(':');
+            if (!comment.equals("")) {
+                p.print("\t\t# ");
+                p.print(comment);
+            }
+            p.println();
+            return;
+        }
+        if (kind == DIRECTIVE) {
+            p.print('\t');
+            p.println(text);
+            return;
+        }
+
+        String mnemonic = op.toString();
+        p.print('\t');
+        p.print(mnemonic);
+        if (args.length > 0) {
+            int pad = Math.max(1, OPCODE_WIDTH - mnemonic.length());
+            p.write(SPACES, 0, Math.min(pad, SPACES.length()));
+            for (int k = 0; k < args.length; k++) {
+                if (k > 0) {
+                    p.print(", ");
+                }
+                p.print(args[k]);
+            }
+        }
+        if (!comment.equals("")) {
+            p.print("\t\t#");
+            p.print(comment);
+        }
+        p.println();
+    }
+}
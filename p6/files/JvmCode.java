@@ -0,0 +1,401 @@
+import java.io.*;
+import java.util.*;
+
+/**
+ * JvmCode
+ *
+ * The bytecode of one method of a ClassFile.  The emit methods append an
+ * instruction and keep track of the depth of the operand stack, which the
+ * Code attribute must bound.  Jumps go to Labels, whose offsets are filled
+ * in when the label is placed; the stack depth at a label is the depth at
+ * the jumps to it (the code generators only jump with the same values on
+ * the stack as fall through to the label).  When an offset does not fit
+ * in the 16 bits of a jump, every jump of the method is widened (see
+ * widened).
+ */
+class JvmCode {
+    // opcodes
+    public static final int ACONST_NULL = 0x01;
+    public static final int ICONST_0 = 0x03;
+    public static final int BIPUSH = 0x10;
+    public static final int SIPUSH = 0x11;
+    public static final int LDC_W = 0x13;
+    public static final int LDC2_W = 0x14;
+    public static final int ILOAD = 0x15;
+    public static final int ALOAD = 0x19;
+    public static final int ISTORE = 0x36;
+    public static final int ASTORE = 0x3a;
+    public static final int POP = 0x57;
+    public static final int DUP = 0x59;
+    public static final int IADD = 0x60;
+    public static final int ISUB = 0x64;
+    public static final int IMUL = 0x68;
+    public static final int IDIV = 0x6c;
+    public static final int INEG = 0x74;
+    public static final int IXOR = 0x82;
+    public static final int IINC = 0x84;
+    public static final int IFEQ = 0x99;
+    public static final int IFNE = 0x9a;
+    public static final int IFLT = 0x9b;
+    public static final int IFGE = 0x9c;
+    public static final int IFGT = 0x9d;
+    public static final int IFLE = 0x9e;
+    public static final int IF_ICMPEQ = 0x9f;
+    public static final int IF_ICMPNE = 0xa0;
+    public static final int IF_ICMPLT = 0xa1;
+    public static final int IF_ICMPGE = 0xa2;
+    public static final int IF_ICMPGT = 0xa3;
+    public static final int IF_ICMPLE = 0xa4;
+    public static final int GOTO = 0xa7;
+    public static final int IRETURN = 0xac;
+    public static final int ARETURN = 0xb0;
+    public static final int RETURN = 0xb1;
+    public static final int GETSTATIC = 0xb2;
+    public static final int PUTSTATIC = 0xb3;
+    public static final int INVOKEVIRTUAL = 0xb6;
+    public static final int INVOKESPECIAL = 0xb7;
+    public static final int INVOKESTATIC = 0xb8;
+    public static final int NEW = 0xbb;
+    public static final int ATHROW = 0xbf;
+    public static final int INSTANCEOF = 0xc1;
+    public static final int IFNULL = 0xc6;
+    public static final int IFNONNULL = 0xc7;
+    public static final int GOTO_W = 0xc8;
+    public static final int WIDE = 0xc4;
+
+    /**
+     * A place in the code that can be jumped to.
+     */
+    static class Label {
+        int pos = -1;
+        int depth = -1;
+        List<Integer> jumps = new ArrayList<Integer>();  // the jump opcodes
+    }
+
+    private final ClassFile cf;
+    private ByteArrayOutputStream code = new ByteArrayOutputStream();
+    private byte[] bytes = null;   // the code, once it is patched
+    private List<Label> labels = new ArrayList<Label>();
+    private List<Label[]> handlers = new ArrayList<Label[]>();
+    private int depth = 0;
+    private int maxStack = 0;
+    private int maxLocals;
+
+    public JvmCode(ClassFile cf, int numLocals) {
+        this.cf = cf;
+        this.maxLocals = numLocals;
+    }
+
+    public ClassFile classFile() {
+        return cf;
+    }
+
+    private void stack(int delta) {
+        depth += delta;
+        maxStack = Math.max(maxStack, depth);
+    }
+
+    private void u1(int b) {
+        code.write(b);
+    }
+
+    private void u2(int v) {
+        code.write(v >> 8);
+        code.write(v);
+    }
+
+    // **********************************************************************
+    // instructions
+    // **********************************************************************
+
+    /**
+     * An instruction without operands, which changes the stack depth by
+     * delta.
+     */
+    public void op(int opcode, int delta) {
+        u1(opcode);
+        stack(delta);
+    }
+
+    public void iconst(int val) {
+        if (val >= -1 && val <= 5) {
+            u1(ICONST_0 + val);
+        } else if (val == (byte)val) {
+            u1(BIPUSH);
+            u1(val);
+        } else if (val == (short)val) {
+            u1(SIPUSH);
+            u2(val);
+        } else {
+            u1(LDC_W);
+            u2(cf.integer(val));
+        }
+        stack(1);
+    }
+
+    public void ldcString(String s) {
+        u1(LDC_W);
+        u2(cf.string(s));
+        stack(1);
+    }
+
+    public void ldcLong(long val) {
+        u1(LDC2_W);
+        u2(cf.longConst(val));
+        stack(2);
+    }
+
+    /**
+     * ILOAD, ISTORE, ALOAD or ASTORE of local k.
+     */
+    public void local(int opcode, int k) {
+        useLocal(k);
+        if (k > 255) {
+            u1(WIDE);
+            u1(opcode);
+            u2(k);
+        } else {
+            u1(opcode);
+            u1(k);
+        }
+        stack(opcode == ILOAD || opcode == ALOAD ? 1 : -1);
+    }
+
+    public void iinc(int k, int delta) {
+        useLocal(k);
+        if (k > 255 || delta != (byte)delta) {
+            u1(WIDE);
+            u1(IINC);
+            u2(k);
+            u2(delta);
+        } else {
+            u1(IINC);
+            u1(k);
+            u1(delta);
+        }
+    }
+
+    private void useLocal(int k) {
+        maxLocals = Math.max(maxLocals, k + 1);
+    }
+
+    public void field(int opcode, String owner, String name, String desc) {
+        u1(opcode);
+        u2(cf.fieldRef(owner, name, desc));
+        int size = desc.equals("J") || desc.equals("D") ? 2 : 1;
+        stack(opcode == GETSTATIC ? size : -size);
+    }
+
+    public void invoke(int opcode, String owner, String name, String desc) {
+        u1(opcode);
+        u2(cf.methodRef(owner, name, desc));
+        int delta = returnSize(desc) - argsSize(desc);
+        stack(opcode == INVOKESTATIC ? delta : delta - 1);
+    }
+
+    public void newObject(String className) {
+        u1(NEW);
+        u2(cf.classRef(className));
+        stack(1);
+    }
+
+    public void instanceOf(String className) {
+        u1(INSTANCEOF);
+        u2(cf.classRef(className));
+    }
+
+    private static int argsSize(String desc) {
+        int size = 0;
+        for (int k = 1; desc.charAt(k) != ')'; k++) {
+            boolean array = false;
+            while (desc.charAt(k) == '[') {
+                array = true;
+                k++;
+            }
+            char c = desc.charAt(k);
+            if (c == 'L') {
+                k = desc.indexOf(';', k);
+            }
+            size += !array && (c == 'J' || c == 'D') ? 2 : 1;
+        }
+        return size;
+    }
+
+    private static int returnSize(String desc) {
+        char c = desc.charAt(desc.indexOf(')') + 1);
+        return c == 'V' ? 0 : c == 'J' || c == 'D' ? 2 : 1;
+    }
+
+    // **********************************************************************
+    // jumps
+    // **********************************************************************
+
+    public Label newLabel() {
+        Label l = new Label();
+        labels.add(l);
+        return l;
+    }
+
+    /**
+     * A conditional jump (popping its operands) or a GOTO to l.
+     */
+    public void jump(int opcode, Label l) {
+        int pos = code.size();
+        u1(opcode);
+        u2(0);
+        if (opcode >= IF_ICMPEQ && opcode <= IF_ICMPLE) {
+            stack(-2);
+        } else if (opcode != GOTO) {
+            stack(-1);
+        }
+        l.jumps.add(pos);
+        l.depth = depth;
+    }
+
+    /**
+     * Return the conditional jump taken exactly when the one of the given
+     * opcode is not.
+     */
+    public static int negate(int opcode) {
+        if (opcode == IFNULL || opcode == IFNONNULL) {
+            return opcode ^ 1;
+        }
+        int base = opcode >= IF_ICMPEQ ? IF_ICMPEQ : IFEQ;
+        return base + ((opcode - base) ^ 1);
+    }
+
+    public void place(Label l) {
+        l.pos = code.size();
+        if (l.depth >= 0) {
+            depth = l.depth;
+        }
+    }
+
+    /**
+     * The code from start to end is covered by a handler at the given
+     * label, catching every exception.
+     */
+    public void addHandler(Label start, Label end, Label handler) {
+        handlers.add(new Label[] { start, end, handler });
+        handler.depth = 1;      // the exception
+    }
+
+    /**
+     * Make the stack empty, as after a return or a throw.
+     */
+    public void unreachable() {
+        depth = 0;
+    }
+
+    public int size() {
+        return code.size();
+    }
+
+    // **********************************************************************
+    // the Code attribute
+    // **********************************************************************
+
+    private byte[] patched() {
+        if (bytes == null) {
+            bytes = code.toByteArray();
+            boolean far = false;
+            for (Label l : labels) {
+                for (int pos : l.jumps) {
+                    int offset = l.pos - pos;
+                    far |= offset != (short)offset;
+                    bytes[pos + 1] = (byte)(offset >> 8);
+                    bytes[pos + 2] = (byte)offset;
+                }
+            }
+            if (far) {
+                bytes = widened(bytes);
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Return the code with each goto replaced by a goto_w, and each
+     * conditional jump by the opposite jump over a goto_w, moving the
+     * labels (and so the handlers) to match.
+     */
+    private byte[] widened(byte[] old) {
+        // the jumps, by position, and the bytes each one grows by
+        TreeMap<Integer, Label> jumps = new TreeMap<Integer, Label>();
+        for (Label l : labels) {
+            for (int pos : l.jumps) {
+                jumps.put(pos, l);
+            }
+        }
+        int[] moved = new int[old.length + 1];
+        int grown = 0;
+        for (int pos = 0; pos <= old.length; pos++) {
+            moved[pos] = pos + grown;
+            if (jumps.containsKey(pos)) {
+                grown += (old[pos] & 0xff) == GOTO ? 2 : 5;
+            }
+        }
+
+        ByteArrayOutputStream wide = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(wide);
+        try {
+            int from = 0;
+            for (Map.Entry<Integer, Label> e : jumps.entrySet()) {
+                int pos = e.getKey();
+                out.write(old, from, pos - from);
+                int opcode = old[pos] & 0xff;
+                int at = moved[pos];
+                if (opcode != GOTO) {
+                    out.writeByte(negate(opcode));
+                    out.writeShort(8);          // over the goto_w
+                    at += 3;
+                }
+                out.writeByte(GOTO_W);
+                out.writeInt(moved[e.getValue().pos] - at);
+                from = pos + 3;
+            }
+            out.write(old, from, old.length - from);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        for (Label l : labels) {
+            if (l.pos >= 0) {
+                l.pos = moved[l.pos];
+            }
+        }
+        return wide.toByteArray();
+    }
+
+    /**
+     * Is the code too long for a method (even with its jumps widened)?
+     */
+    public boolean tooLong() {
+        return patched().length > 0xffff;
+    }
+
+    /**
+     * Return the contents of the Code attribute of the method.
+     */
+    public byte[] toAttribute() {
+        byte[] body = patched();
+        ByteArrayOutputStream attr = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(attr);
+        try {
+            out.writeShort(maxStack);
+            out.writeShort(maxLocals);
+            out.writeInt(body.length);
+            out.write(body);
+            out.writeShort(handlers.size());
+            for (Label[] h : handlers) {
+                out.writeShort(h[0].pos);
+                out.writeShort(h[1].pos);
+                out.writeShort(h[2].pos);
+                out.writeShort(0);      // any exception
+            }
+            out.writeShort(0);          // no attributes
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        return attr.toByteArray();
+    }
+}
@@ -0,0 +1,267 @@
+import java.io.*;
+
+/**
+ * JvmCodegen
+ *
+ * The JVM backend (P6 -jvm): instead of MIPS code, a C-- program is
+ * translated into a class file (see ClassFile) that runs on any JVM.  The
+ * genJvm methods of the AST nodes generate the code of the functions; this
+ * class generates the rest of the class:
+ *
+ *   - each function is a static method named "_" + its name, taking and
+ *     returning ints (bools are 0 and 1)
+ *   - each global is a static int field named "_" + its name, and each
+ *     word of a global struct is a field "_" + name + "$" + offset
+ *   - each formal and local is the JVM local at its offset from $fp
+ *     divided by 4, as in Engine
+ *   - cout writes to a PrintStream on buffered standard output, and cin
+ *     reads an int from each line of a BufferedReader on standard input
+ *     (the static method readInt)
+ *   - +, -, unary -, ++ and -- call Math.addExact, subtractExact and
+ *     negateExact, so that signed overflow is a run-time error, as MIPS
+ *     add and sub trap
+ *
+ * The class is Runnable: main runs the C-- main on a thread with a large
+ * stack, since C-- programs recurse deeply, and flushes the output when it
+ * returns.  A run-time error (division by zero, or a stack overflow) also
+ * flushes the output, and is then reported on standard error, as by
+ * Engine, and the program exits with 1.
+ */
+class JvmCodegen {
+    public static final String PRINT_STREAM = "java/io/PrintStream";
+    public static final String READER = "java/io/BufferedReader";
+    private static final String OBJECT = "java/lang/Object";
+    private static final String THREAD = "java/lang/Thread";
+
+    // the Java stack of the thread running main
+    private static final long STACK_SIZE = 1L << 30;
+
+    // the class being generated
+    private static String className;
+
+    public static String className() {
+        return className;
+    }
+
+    /**
+     * Write the class className for program to out.
+     */
+    public static void generate(ProgramNode program, String name,
+                                OutputStream out) throws IOException {
+        className = name;
+        ClassFile cf = new ClassFile(name, OBJECT);
+        cf.addInterface("java/lang/Runnable");
+        cf.addField(ClassFile.ACC_STATIC, "out", "L" + PRINT_STREAM + ";");
+        cf.addField(ClassFile.ACC_STATIC, "in", "L" + READER + ";");
+
+        program.genJvm(cf);
+
+        genStaticInit(cf);
+        genConstructor(cf);
+        genMain(cf);
+        genRun(cf, program.mainSym());
+        genReadInt(cf);
+        cf.write(out);
+    }
+
+    // **********************************************************************
+    // names
+    // **********************************************************************
+
+    public static String fnName(String name) {
+        return "_" + name;
+    }
+
+    public static String fnDescriptor(FnSym f) {
+        StringBuilder desc = new StringBuilder("(");
+        for (int k = 0; k < f.getNumParams(); k++) {
+            desc.append('I');
+        }
+        desc.append(f.getReturnType().isVoidType() ? ")V" : ")I");
+        return desc.toString();
+    }
+
+    /**
+     * Return the name of the field holding the word at the given offset in
+     * global var (0 for an int or bool).
+     */
+    public static String globalName(String var, int offset) {
+        return offset == 0 ? "_" + var : "_" + var + "$" + offset;
+    }
+
+    /**
+     * Return the JVM local holding the word at the given offset in local
+     * var.
+     */
+    public static int localSlot(TSym var, int offset) {
+        return (var.getOffset() - offset) / 4;
+    }
+
+    // **********************************************************************
+    // helpers for genJvm
+    // **********************************************************************
+
+    public static void genGetOut(JvmCode c) {
+        c.field(JvmCode.GETSTATIC, className, "out", "L" + PRINT_STREAM + ";");
+    }
+
+    private static void genGetErr(JvmCode c) {
+        c.field(JvmCode.GETSTATIC, "java/lang/System", "err", "L" + PRINT_STREAM + ";");
+    }
+
+    public static void genPrint(JvmCode c, String argDesc) {
+        c.invoke(JvmCode.INVOKEVIRTUAL, PRINT_STREAM, "print", "(" + argDesc + ")V");
+    }
+
+    public static void genReadCall(JvmCode c) {
+        c.invoke(JvmCode.INVOKESTATIC, className, "readInt", "()I");
+    }
+
+    // **********************************************************************
+    // the rest of the class
+    // **********************************************************************
+
+    // out = new PrintStream(new BufferedOutputStream(System.out), false);
+    // in = new BufferedReader(new InputStreamReader(System.in));
+    private static void genStaticInit(ClassFile cf) {
+        JvmCode c = new JvmCode(cf, 0);
+        c.newObject(PRINT_STREAM);
+        c.op(JvmCode.DUP, 1);
+        c.newObject("java/io/BufferedOutputStream");
+        c.op(JvmCode.DUP, 1);
+        c.field(JvmCode.GETSTATIC, "java/lang/System", "out", "Ljava/io/PrintStream;");
+        c.invoke(JvmCode.INVOKESPECIAL, "java/io/BufferedOutputStream", "<init>",
+                 "(Ljava/io/OutputStream;)V");
+        c.iconst(0);
+        c.invoke(JvmCode.INVOKESPECIAL, PRINT_STREAM, "<init>", "(Ljava/io/OutputStream;Z)V");
+        c.field(JvmCode.PUTSTATIC, className, "out", "L" + PRINT_STREAM + ";");
+
+        c.newObject(READER);
+        c.op(JvmCode.DUP, 1);
+        c.newObject("java/io/InputStreamReader");
+        c.op(JvmCode.DUP, 1);
+        c.field(JvmCode.GETSTATIC, "java/lang/System", "in", "Ljava/io/InputStream;");
+        c.invoke(JvmCode.INVOKESPECIAL, "java/io/InputStreamReader", "<init>",
+                 "(Ljava/io/InputStream;)V");
+        c.invoke(JvmCode.INVOKESPECIAL, READER, "<init>", "(Ljava/io/Reader;)V");
+        c.field(JvmCode.PUTSTATIC, className, "in", "L" + READER + ";");
+        c.op(JvmCode.RETURN, 0);
+        cf.addMethod(ClassFile.ACC_STATIC, "<clinit>", "()V", c);
+    }
+
+    private static void genConstructor(ClassFile cf) {
+        JvmCode c = new JvmCode(cf, 1);
+        c.local(JvmCode.ALOAD, 0);
+        c.invoke(JvmCode.INVOKESPECIAL, OBJECT, "<init>", "()V");
+        c.op(JvmCode.RETURN, 0);
+        cf.addMethod(ClassFile.ACC_PUBLIC, "<init>", "()V", c);
+    }
+
+    // new Thread(null, new <class>(), "main", STACK_SIZE).start();
+    private static void genMain(ClassFile cf) {
+        JvmCode c = new JvmCode(cf, 1);
+        c.newObject(THREAD);
+        c.op(JvmCode.DUP, 1);
+        c.op(JvmCode.ACONST_NULL, 1);
+        c.newObject(className);
+        c.op(JvmCode.DUP, 1);
+        c.invoke(JvmCode.INVOKESPECIAL, className, "<init>", "()V");
+        c.ldcString("main");
+        c.ldcLong(STACK_SIZE);
+        c.invoke(JvmCode.INVOKESPECIAL, THREAD, "<init>",
+                 "(Ljava/lang/ThreadGroup;Ljava/lang/Runnable;Ljava/lang/String;J)V");
+        c.invoke(JvmCode.INVOKEVIRTUAL, THREAD, "start", "()V");
+        c.op(JvmCode.RETURN, 0);
+        cf.addMethod(ClassFile.ACC_PUBLIC | ClassFile.ACC_STATIC, "main",
+                     "([Ljava/lang/String;)V", c);
+    }
+
+    // try {
+    //     _main();
+    //     out.flush();
+    // } catch (Throwable ex) {
+    //     out.flush();
+    //     System.err.print("Run-time error: ");
+    //     System.err.println(ex instanceof StackOverflowError
+    //                        ? "stack overflow" : ex.getMessage());
+    //     System.exit(1);
+    // }
+    private static void genRun(ClassFile cf, FnSym main) {
+        JvmCode c = new JvmCode(cf, 2);
+        JvmCode.Label start = c.newLabel();
+        JvmCode.Label end = c.newLabel();
+        JvmCode.Label handler = c.newLabel();
+        JvmCode.Label message = c.newLabel();
+        JvmCode.Label print = c.newLabel();
+        c.place(start);
+        c.invoke(JvmCode.INVOKESTATIC, className, fnName("main"), fnDescriptor(main));
+        if (!main.getReturnType().isVoidType()) {
+            c.op(JvmCode.POP, -1);
+        }
+        c.place(end);
+        genGetOut(c);
+        c.invoke(JvmCode.INVOKEVIRTUAL, PRINT_STREAM, "flush", "()V");
+        c.op(JvmCode.RETURN, 0);
+
+        c.addHandler(start, end, handler);
+        c.place(handler);
+        c.local(JvmCode.ASTORE, 1);
+        genGetOut(c);
+        c.invoke(JvmCode.INVOKEVIRTUAL, PRINT_STREAM, "flush", "()V");
+        genGetErr(c);
+        c.ldcString("Run-time error: ");
+        genPrint(c, "Ljava/lang/String;");
+        genGetErr(c);
+        c.local(JvmCode.ALOAD, 1);
+        c.instanceOf("java/lang/StackOverflowError");
+        c.jump(JvmCode.IFEQ, message);
+        c.ldcString("stack overflow");
+        c.jump(JvmCode.GOTO, print);
+        c.place(message);
+        c.local(JvmCode.ALOAD, 1);
+        c.invoke(JvmCode.INVOKEVIRTUAL, "java/lang/Throwable", "getMessage",
+                 "()Ljava/lang/String;");
+        c.place(print);
+        c.invoke(JvmCode.INVOKEVIRTUAL, PRINT_STREAM, "println", "(Ljava/lang/String;)V");
+        c.iconst(1);
+        c.invoke(JvmCode.INVOKESTATIC, "java/lang/System", "exit", "(I)V");
+        c.op(JvmCode.RETURN, 0);
+        cf.addMethod(ClassFile.ACC_PUBLIC, "run", "()V", c);
+    }
+
+    // static int readInt() {
+    //     out.flush();
+    //     String line;
+    //     do {
+    //         line = in.readLine();
+    //         if (line == null) return 0;
+    //         line = line.trim();
+    //     } while (line.isEmpty());
+    //     return Integer.parseInt(line);
+    // }
+    private static void genReadInt(ClassFile cf) {
+        JvmCode c = new JvmCode(cf, 1);
+        JvmCode.Label loop = c.newLabel();
+        JvmCode.Label got = c.newLabel();
+        genGetOut(c);
+        c.invoke(JvmCode.INVOKEVIRTUAL, PRINT_STREAM, "flush", "()V");
+        c.place(loop);
+        c.field(JvmCode.GETSTATIC, className, "in", "L" + READER + ";");
+        c.invoke(JvmCode.INVOKEVIRTUAL, READER, "readLine", "()Ljava/lang/String;");
+        c.op(JvmCode.DUP, 1);
+        c.jump(JvmCode.IFNONNULL, got);
+        c.op(JvmCode.POP, -1);
+        c.iconst(0);
+        c.op(JvmCode.IRETURN, -1);
+        c.place(got);
+        c.invoke(JvmCode.INVOKEVIRTUAL, "java/lang/String", "trim", "()Ljava/lang/String;");
+        c.local(JvmCode.ASTORE, 0);
+        c.local(JvmCode.ALOAD, 0);
+        c.invoke(JvmCode.INVOKEVIRTUAL, "java/lang/String", "isEmpty", "()Z");
+        c.jump(JvmCode.IFNE, loop);
+        c.local(JvmCode.ALOAD, 0);
+        c.invoke(JvmCode.INVOKESTATIC, "java/lang/Integer", "parseInt", "(Ljava/lang/String;)I");
+        c.op(JvmCode.IRETURN, -1);
+        cf.addMethod(ClassFile.ACC_STATIC, "readInt", "()I", c);
+    }
+}
@@ -0,0 +1,525 @@
+import java.io.*;
+import java.util.*;
+
+/**
+ * MipsAssembler
+ *
+ * Encodes the generated code directly into a relocatable object file
+ * (P6 -elf, see ElfObject) instead of printing it for an assembler to
+ * parse again.  The instructions are the ones Codegen.flush would print,
+ * and they are encoded the way "as" does by default:
+ *
+ *   - SPIM's pseudo-instructions (li, la, move, blt, seq, mul, div, ...)
+ *     become the same machine instructions "as" expands them to, using
+ *     $at for intermediate values
+ *   - a nop fills the delay slot of each jump and branch, so the code
+ *     behaves as it does on SPIM, which has no delay slots
+ *   - branches are resolved here; j, jal, la and global loads and stores
+ *     get R_MIPS_26 and R_MIPS_HI16/LO16 relocations
+ *   - .data holds the globals and strings; .align n aligns to 2^n bytes,
+ *     as in SPIM
+ *
+ * The system calls still use SPIM's service numbers, so the object is
+ * meant to be linked and run in a SPIM-compatible environment.
+ */
+class MipsAssembler {
+    private static final int AT = 1;
+
+    // opcodes (bits 31-26)
+    private static final int SPECIAL = 0x00, REGIMM = 0x01, J = 0x02,
+        JAL = 0x03, BEQ = 0x04, BNE = 0x05, BLEZ = 0x06, BGTZ = 0x07,
+        ADDI = 0x08, ADDIU = 0x09, SLTI = 0x0a, SLTIU = 0x0b, ANDI = 0x0c,
+        ORI = 0x0d, XORI = 0x0e, LUI = 0x0f, SPECIAL2 = 0x1c,
+        LB = 0x20, LH = 0x21, LW = 0x23, LBU = 0x24, LHU = 0x25,
+        SB = 0x28, SH = 0x29, SW = 0x2b;
+
+    // SPECIAL function codes (bits 5-0)
+    private static final int F_SLL = 0x00, F_SRL = 0x02, F_SRA = 0x03,
+        F_SLLV = 0x04, F_SRLV = 0x06, F_SRAV = 0x07, F_JR = 0x08,
+        F_JALR = 0x09, F_SYSCALL = 0x0c, F_MFHI = 0x10, F_MFLO = 0x12,
+        F_MULT = 0x18, F_DIV = 0x1a, F_ADD = 0x20, F_ADDU = 0x21,
+        F_SUB = 0x22, F_SUBU = 0x23, F_AND = 0x24, F_OR = 0x25,
+        F_XOR = 0x26, F_NOR = 0x27, F_SLT = 0x2a, F_SLTU = 0x2b,
+        F_TEQ = 0x34;
+    private static final int F2_MUL = 0x02;
+
+    // the code "as" gives the trap on division by zero
+    private static final int DIVIDE_BY_ZERO = 7;
+
+    /**
+     * A place in the code referring to a label: a branch to it, or an
+     * instruction relocated against it.
+     */
+    private static class Fixup {
+        final int pos;          // the word's offset in .text
+        final int type;         // a relocation type, or 0 for a branch
+        final String label;
+        final int offset;       // added to the label's address
+
+        Fixup(int pos, int type, String label, int offset) {
+            this.pos = pos;
+            this.type = type;
+            this.label = label;
+            this.offset = offset;
+        }
+    }
+
+    private List<Integer> text = new ArrayList<Integer>();
+    private ByteArrayOutputStream data = new ByteArrayOutputStream();
+    private List<Fixup> fixups = new ArrayList<Fixup>();
+    private Map<String, Integer> textLabels = new LinkedHashMap<String, Integer>();
+    private Map<String, Integer> dataLabels = new LinkedHashMap<String, Integer>();
+    private Set<String> globals = new HashSet<String>();
+
+    /**
+     * Return the object file of the given text and data sections.
+     */
+    public static ElfObject assemble(List<Instr> code, List<Instr> data) {
+        MipsAssembler a = new MipsAssembler();
+        for (Instr ins : data) {
+            a.data(ins);
+        }
+        for (Instr ins : code) {
+            a.text(ins);
+        }
+        return a.finish();
+    }
+
+    // **********************************************************************
+    // sections
+    // **********************************************************************
+
+    private void data(Instr ins) {
+        if (ins.kind == Instr.LABEL) {
+            dataLabels.put(ins.text, data.size());
+            return;
+        }
+        String[] parts = ins.text.split("\\s+", 2);
+        switch (parts[0]) {
+        case ".align":
+            int align = 1 << Integer.parseInt(parts[1].trim());
+            while (data.size() % align != 0) {
+                data.write(0);
+            }
+            break;
+        case ".space":
+            int size = Integer.parseInt(parts[1].trim());
+            data.write(new byte[size], 0, size);
+            break;
+        case ".asciiz":
+            for (char c : unescape(parts[1].trim()).toCharArray()) {
+                data.write(c);
+            }
+            data.write(0);
+            break;
+        default:
+            error("unexpected data directive " + ins.text);
+        }
+    }
+
+    // the characters of a string literal (in quotes), as in
+    // StringLitNode.value
+    private static String unescape(String lit) {
+        StringBuilder value = new StringBuilder();
+        for (int k = 1; k < lit.length() - 1; k++) {
+            char c = lit.charAt(k);
+            if (c == '\\') {
+                c = lit.charAt(++k);
+                if (c == 'n') {
+                    c = '\n';
+                } else if (c == 't') {
+                    c = '\t';
+                }
+            }
+            value.append(c);
+        }
+        return value.toString();
+    }
+
+    private void text(Instr ins) {
+        if (ins.kind == Instr.LABEL) {
+            textLabels.put(ins.text, 4 * text.size());
+        } else if (ins.kind == Instr.DIRECTIVE) {
+            if (ins.text.startsWith(".globl")) {
+                globals.add(ins.text.substring(".globl".length()).trim());
+            }
+        } else {
+            encode(ins);
+        }
+    }
+
+    private ElfObject finish() {
+        ElfObject obj = new ElfObject();
+        for (Fixup f : fixups) {
+            int word = text.get(f.pos / 4);
+            if (f.type == 0) {
+                Integer target = textLabels.get(f.label);
+                if (target == null) {
+                    error("branch to unknown label " + f.label);
+                }
+                int disp = (target - (f.pos + 4)) >> 2;
+                if (disp != (short)disp) {
+                    error("branch to " + f.label + " out of range");
+                }
+                text.set(f.pos / 4, word | (disp & 0xffff));
+                continue;
+            }
+
+            int section = ElfObject.TEXT;
+            Integer addr = textLabels.get(f.label);
+            if (addr == null) {
+                section = ElfObject.DATA;
+                addr = dataLabels.get(f.label);
+            }
+            if (addr == null) {
+                error("unknown label " + f.label);
+            }
+            int addend = addr + f.offset;
+            if (f.type == ElfObject.R_MIPS_26) {
+                word |= (addend >> 2) & 0x3ffffff;
+            } else if (f.type == ElfObject.R_MIPS_HI16) {
+                word |= ((addend + 0x8000) >> 16) & 0xffff;
+            } else {
+                word |= addend & 0xffff;
+            }
+            text.set(f.pos / 4, word);
+            obj.addRelocation(f.pos, section, f.type);
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            for (int word : text) {
+                out.writeInt(word);
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        obj.setText(bytes.toByteArray());
+        obj.setData(data.toByteArray());
+
+        for (Map.Entry<String, Integer> e : textLabels.entrySet()) {
+            if (!e.getKey().startsWith(".")) {
+                obj.addSymbol(e.getKey(), ElfObject.TEXT, e.getValue(),
+                              globals.contains(e.getKey()), ElfObject.STT_FUNC);
+            }
+        }
+        for (Map.Entry<String, Integer> e : dataLabels.entrySet()) {
+            if (!e.getKey().startsWith(".")) {
+                obj.addSymbol(e.getKey(), ElfObject.DATA, e.getValue(),
+                              globals.contains(e.getKey()), ElfObject.STT_OBJECT);
+            }
+        }
+        return obj;
+    }
+
+    private static void error(String msg) {
+        System.err.println("MipsAssembler: " + msg);
+        System.exit(-1);
+    }
+
+    // **********************************************************************
+    // instruction formats
+    // **********************************************************************
+
+    private void emit(int word) {
+        text.add(word);
+    }
+
+    private void rType(int rs, int rt, int rd, int shamt, int funct) {
+        emit(SPECIAL << 26 | rs << 21 | rt << 16 | rd << 11 | shamt << 6 | funct);
+    }
+
+    private void iType(int opcode, int rs, int rt, int imm) {
+        emit(opcode << 26 | rs << 21 | rt << 16 | (imm & 0xffff));
+    }
+
+    private void nop() {
+        emit(0);
+    }
+
+    // a branch to label, and its delay slot
+    private void branch(int opcode, int rs, int rt, Operand label) {
+        fixups.add(new Fixup(4 * text.size(), 0, ((LabelRef)label).name(), 0));
+        iType(opcode, rs, rt, 0);
+        nop();
+    }
+
+    // an instruction relocated against label (which may be label+offset)
+    private void relocated(int type, int word, Operand label) {
+        String name = ((LabelRef)label).name();
+        int offset = 0;
+        int plus = name.indexOf('+');
+        if (plus >= 0) {
+            offset = Integer.parseInt(name.substring(plus + 1));
+            name = name.substring(0, plus);
+        }
+        fixups.add(new Fixup(4 * text.size(), type, name, offset));
+        emit(word);
+    }
+
+    // **********************************************************************
+    // operands
+    // **********************************************************************
+
+    private static int num(Operand o) {
+        Reg r = (Reg)o;
+        switch (r) {
+        case ZERO: return 0;
+        case GP:   return 28;
+        case SP:   return 29;
+        case FP:   return 30;
+        case RA:   return 31;
+        default:
+            // $v0-$t7 are 2-15, $t8 and $t9 are 24 and 25, $s0-$s7 16-23
+            if (r.compareTo(Reg.T7) <= 0) {
+                return r.ordinal() - Reg.V0.ordinal() + 2;
+            }
+            if (r == Reg.T8 || r == Reg.T9) {
+                return r.ordinal() - Reg.T8.ordinal() + 24;
+            }
+            return r.ordinal() - Reg.S0.ordinal() + 16;
+        }
+    }
+
+    private static boolean fits16(int val) {
+        return val == (short)val;
+    }
+
+    private static boolean fitsU16(int val) {
+        return (val & 0xffff0000) == 0;
+    }
+
+    // load the constant val into register rd
+    private void li(int rd, int val) {
+        if (fits16(val)) {
+            iType(ADDIU, 0, rd, val);
+        } else if (fitsU16(val)) {
+            iType(ORI, 0, rd, val);
+        } else {
+            iType(LUI, 0, rd, val >>> 16);
+            if ((val & 0xffff) != 0) {
+                iType(ORI, rd, rd, val);
+            }
+        }
+    }
+
+    // the register holding the source operand o: o itself, $zero for 0,
+    // or $at loaded with the constant
+    private int reg(Operand o) {
+        if (o instanceof Reg) {
+            return num(o);
+        }
+        int val = ((Imm)o).value();
+        if (val == 0) {
+            return 0;
+        }
+        li(AT, val);
+        return AT;
+    }
+
+    // rd = rs op src, with the immediate form opcode if src is a constant
+    // accepted by fits (signed or unsigned 16 bits)
+    private void alu(int funct, int immOpcode, boolean signed, int rd, int rs,
+                     Operand src) {
+        if (src instanceof Imm && immOpcode >= 0) {
+            int val = ((Imm)src).value();
+            if (signed ? fits16(val) : fitsU16(val)) {
+                iType(immOpcode, rs, rd, val);
+                return;
+            }
+        }
+        rType(rs, reg(src), rd, 0, funct);
+    }
+
+    // rt = the word at the address operand a (a load or store)
+    private void memory(int opcode, int rt, Operand a) {
+        if (a instanceof LabelRef) {
+            relocated(ElfObject.R_MIPS_HI16, LUI << 26 | AT << 16, a);
+            relocated(ElfObject.R_MIPS_LO16, opcode << 26 | AT << 21 | rt << 16, a);
+            return;
+        }
+        Mem m = (Mem)a;
+        if (fits16(m.offset())) {
+            iType(opcode, num(m.base()), rt, m.offset());
+        } else {
+            int hi = (m.offset() + 0x8000) >> 16;
+            iType(LUI, 0, AT, hi);
+            rType(AT, num(m.base()), AT, 0, F_ADDU);
+            iType(opcode, AT, rt, m.offset() - (hi << 16));
+        }
+    }
+
+    // **********************************************************************
+    // instructions
+    // **********************************************************************
+
+    private void encode(Instr ins) {
+        Operand[] a = ins.args;
+        switch (ins.op) {
+        // ALU: dest, source, source
+        case ADD:   alu(F_ADD, ADDI, true, num(a[0]), num(a[1]), a[2]); break;
+        case ADDI:  alu(F_ADD, ADDI, true, num(a[0]), num(a[1]), a[2]); break;
+        case ADDU:  alu(F_ADDU, ADDIU, true, num(a[0]), num(a[1]), a[2]); break;
+        case ADDIU: alu(F_ADDU, ADDIU, true, num(a[0]), num(a[1]), a[2]); break;
+        case SUB:   sub(F_SUB, ADDI, a); break;
+        case SUBU:  sub(F_SUBU, ADDIU, a); break;
+        case AND:   alu(F_AND, ANDI, false, num(a[0]), num(a[1]), a[2]); break;
+        case ANDI:  alu(F_AND, ANDI, false, num(a[0]), num(a[1]), a[2]); break;
+        case OR:    alu(F_OR, ORI, false, num(a[0]), num(a[1]), a[2]); break;
+        case ORI:   alu(F_OR, ORI, false, num(a[0]), num(a[1]), a[2]); break;
+        case XOR:   alu(F_XOR, XORI, false, num(a[0]), num(a[1]), a[2]); break;
+        case XORI:  alu(F_XOR, XORI, false, num(a[0]), num(a[1]), a[2]); break;
+        case NOR:   alu(F_NOR, -1, false, num(a[0]), num(a[1]), a[2]); break;
+        case SLT:   alu(F_SLT, SLTI, true, num(a[0]), num(a[1]), a[2]); break;
+        case SLTI:  alu(F_SLT, SLTI, true, num(a[0]), num(a[1]), a[2]); break;
+        case SLTU:  alu(F_SLTU, SLTIU, true, num(a[0]), num(a[1]), a[2]); break;
+        case SLTIU: alu(F_SLTU, SLTIU, true, num(a[0]), num(a[1]), a[2]); break;
+        case SLL:   shift(F_SLL, F_SLLV, a); break;
+        case SRL:   shift(F_SRL, F_SRLV, a); break;
+        case SRA:   shift(F_SRA, F_SRAV, a); break;
+        case MUL:
+            {
+                int rt = reg(a[2]);
+                emit(SPECIAL2 << 26 | num(a[1]) << 21 | rt << 16 | num(a[0]) << 11 | F2_MUL);
+            }
+            break;
+        case DIV:
+            if (a.length == 2) {
+                rType(num(a[0]), num(a[1]), 0, 0, F_DIV);
+            } else {
+                divide(a, F_MFLO);
+            }
+            break;
+        case REM:   divide(a, F_MFHI); break;
+        case MULT:  rType(num(a[0]), num(a[1]), 0, 0, F_MULT); break;
+        case MFHI:  rType(0, 0, num(a[0]), 0, F_MFHI); break;
+        case MFLO:  rType(0, 0, num(a[0]), 0, F_MFLO); break;
+
+        // comparisons setting a register
+        case SEQ:
+            rType(num(a[1]), reg(a[2]), num(a[0]), 0, F_XOR);
+            iType(SLTIU, num(a[0]), num(a[0]), 1);
+            break;
+        case SNE:
+            rType(num(a[1]), reg(a[2]), num(a[0]), 0, F_XOR);
+            rType(0, num(a[0]), num(a[0]), 0, F_SLTU);
+            break;
+        case SGT:
+            rType(reg(a[2]), num(a[1]), num(a[0]), 0, F_SLT);
+            break;
+        case SGE:
+            alu(F_SLT, SLTI, true, num(a[0]), num(a[1]), a[2]);
+            iType(XORI, num(a[0]), num(a[0]), 1);
+            break;
+        case SLE:
+            rType(reg(a[2]), num(a[1]), num(a[0]), 0, F_SLT);
+            iType(XORI, num(a[0]), num(a[0]), 1);
+            break;
+
+        // dest, source
+        case MOVE:  rType(num(a[1]), 0, num(a[0]), 0, F_ADDU); break;
+        case NEG:   rType(0, num(a[1]), num(a[0]), 0, F_SUB); break;
+        case NOT:   rType(num(a[1]), 0, num(a[0]), 0, F_NOR); break;
+        case LI:    li(num(a[0]), ((Imm)a[1]).value()); break;
+        case LUI:   iType(LUI, 0, num(a[0]), ((Imm)a[1]).value()); break;
+        case LA:
+            if (a[1] instanceof LabelRef) {
+                relocated(ElfObject.R_MIPS_HI16, LUI << 26 | num(a[0]) << 16, a[1]);
+                relocated(ElfObject.R_MIPS_LO16,
+                          ADDIU << 26 | num(a[0]) << 21 | num(a[0]) << 16, a[1]);
+            } else {
+                Mem m = (Mem)a[1];
+                alu(F_ADDU, ADDIU, true, num(a[0]), num(m.base()), new Imm(m.offset()));
+            }
+            break;
+
+        // loads and stores
+        case LW:    memory(LW, num(a[0]), a[1]); break;
+        case LB:    memory(LB, num(a[0]), a[1]); break;
+        case LBU:   memory(LBU, num(a[0]), a[1]); break;
+        case LH:    memory(LH, num(a[0]), a[1]); break;
+        case LHU:   memory(LHU, num(a[0]), a[1]); break;
+        case SW:    memory(SW, num(a[0]), a[1]); break;
+        case SB:    memory(SB, num(a[0]), a[1]); break;
+        case SH:    memory(SH, num(a[0]), a[1]); break;
+
+        // branches
+        case BEQ:   branch(BEQ, num(a[0]), reg(a[1]), a[2]); break;
+        case BNE:   branch(BNE, num(a[0]), reg(a[1]), a[2]); break;
+        case BLT:
+            alu(F_SLT, SLTI, true, AT, num(a[0]), a[1]);
+            branch(BNE, AT, 0, a[2]);
+            break;
+        case BGE:
+            alu(F_SLT, SLTI, true, AT, num(a[0]), a[1]);
+            branch(BEQ, AT, 0, a[2]);
+            break;
+        case BGT:
+            rType(reg(a[1]), num(a[0]), AT, 0, F_SLT);
+            branch(BNE, AT, 0, a[2]);
+            break;
+        case BLE:
+            rType(reg(a[1]), num(a[0]), AT, 0, F_SLT);
+            branch(BEQ, AT, 0, a[2]);
+            break;
+        case BEQZ:  branch(BEQ, num(a[0]), 0, a[1]); break;
+        case BNEZ:  branch(BNE, num(a[0]), 0, a[1]); break;
+        case BLTZ:  branch(REGIMM, num(a[0]), 0, a[1]); break;
+        case BGEZ:  branch(REGIMM, num(a[0]), 1, a[1]); break;
+        case BGTZ:  branch(BGTZ, num(a[0]), 0, a[1]); break;
+        case BLEZ:  branch(BLEZ, num(a[0]), 0, a[1]); break;
+
+        // jumps
+        case B:     branch(BEQ, 0, 0, a[0]); break;
+        case J:
+            relocated(ElfObject.R_MIPS_26, J << 26, a[0]);
+            nop();
+            break;
+        case JAL:
+            relocated(ElfObject.R_MIPS_26, JAL << 26, a[0]);
+            nop();
+            break;
+        case JALR:
+            rType(num(a[0]), 0, 31, 0, F_JALR);
+            nop();
+            break;
+        case JR:
+            rType(num(a[0]), 0, 0, 0, F_JR);
+            nop();
+            break;
+        case SYSCALL: rType(0, 0, 0, 0, F_SYSCALL); break;
+        case NOP:   nop(); break;
+        default:
+            error("cannot encode " + ins.op);
+        }
+    }
+
+    // rd = rs - src: an add of -src for a constant
+    private void sub(int funct, int immOpcode, Operand[] a) {
+        if (a[2] instanceof Imm && ((Imm)a[2]).value() != Integer.MIN_VALUE &&
+            fits16(-((Imm)a[2]).value())) {
+            iType(immOpcode, num(a[1]), num(a[0]), -((Imm)a[2]).value());
+        } else {
+            rType(num(a[1]), reg(a[2]), num(a[0]), 0, funct);
+        }
+    }
+
+    // rd = rt shifted by a constant or by a register
+    private void shift(int funct, int varFunct, Operand[] a) {
+        if (a[2] instanceof Imm) {
+            rType(0, num(a[1]), num(a[0]), ((Imm)a[2]).value() & 31, funct);
+        } else {
+            rType(num(a[2]), num(a[1]), num(a[0]), 0, varFunct);
+        }
+    }
+
+    // rd = rs / src or rs % src (move is F_MFLO or F_MFHI), trapping on
+    // division by zero as SPIM does
+    private void divide(Operand[] a, int move) {
+        int rt = reg(a[2]);
+        rType(num(a[1]), rt, 0, 0, F_DIV);
+        rType(rt, 0, 0, DIVIDE_BY_ZERO, F_TEQ);
+        rType(0, 0, num(a[0]), 0, move);
+    }
+}
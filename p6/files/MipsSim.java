@@ -0,0 +1,986 @@
+import java.io.*;
+import java.util.*;
+
+/**
+ * MipsSim
+ *
+ * A small MIPS32 simulator for the assembly produced by P6.  It accepts
+ * the subset of SPIM assembler syntax that Codegen emits (including the
+ * common pseudo-instructions) plus syscalls 1, 4, 5, 10 and 11, and 13,
+ * 15 and 16 to write files (open takes the flags of open(2) on Linux, as
+ * SPIM passes them on, but only for writing), and it counts the dynamic
+ * number of instructions executed per opcode and per function label.
+ *
+ * Usage: java MipsSim [-stats] <file.s|file.o> [input file]
+ *
+ * An object file written by P6 -elf is disassembled (see disassemble)
+ * and run as if it were the assembly it holds, so that the output of
+ * MipsAssembler can be checked against that of Codegen.
+ *
+ * When no input file is given, cin reads from standard input.  With
+ * -stats, a profile of the run is written to standard error once the
+ * program exits.  It counts source instructions: a pseudo-instruction
+ * (blt, bgt with an immediate, li of a 32-bit constant, mul, div with
+ * three operands, ...) counts as one, however many instructions the
+ * assembler expands it into.
+ *
+ * As on MIPS, add, addi, sub, neg and mulo trap on overflow, and their
+ * unsigned forms wrap.
+ */
+public class MipsSim {
+    // memory layout (same as SPIM)
+    private static final int TEXT_BASE = 0x00400000;
+    private static final int DATA_BASE = 0x10010000;
+    private static final int STACK_TOP = 0x7ffffffc;
+    private static final int STACK_SIZE = 1 << 22;      // 4 MB of stack
+    private static final int DATA_SIZE = 1 << 20;       // 1 MB of data
+    private static final int EXIT_ADDR = 0x00000004;     // $ra given to main
+
+    // register numbers
+    private static final String[] REG_NAMES = {
+        "zero", "at", "v0", "v1", "a0", "a1", "a2", "a3",
+        "t0", "t1", "t2", "t3", "t4", "t5", "t6", "t7",
+        "s0", "s1", "s2", "s3", "s4", "s5", "s6", "s7",
+        "t8", "t9", "k0", "k1", "gp", "sp", "fp", "ra"
+    };
+    private static final int SP = 29, FP = 30, RA = 31, V0 = 2, A0 = 4, A1 = 5, A2 = 6;
+
+    // rough cycle cost of the multi-cycle operations (R3000 latencies)
+    private static final int MUL_CYCLES = 12;
+    private static final int DIV_CYCLES = 35;
+
+    // operand kinds
+    private static final int REG = 0, IMM = 1, LABEL = 2, INDEXED = 3;
+
+    /**
+     * A decoded source instruction.
+     */
+    private static class Instr {
+        String op;
+        int[] kind;
+        int[] val;       // register number, immediate or resolved address
+        int[] base;      // base register for INDEXED operands
+        String[] label;  // unresolved label names
+        String fn;       // enclosing function label
+        int line;
+        long count;      // times executed
+
+        public String toString() {
+            return op + " (line " + line + ")";
+        }
+    }
+
+    private List<Instr> text = new ArrayList<Instr>();
+    private Map<String, Integer> labels = new HashMap<String, Integer>();
+    private byte[] data = new byte[DATA_SIZE];
+    private int dataEnd = DATA_BASE;
+    private byte[] stack = new byte[STACK_SIZE];
+    private int[] regs = new int[32];
+    private int hi, lo;
+
+    private BufferedReader in;
+    private PrintStream out;
+
+    // the files opened by the program, by descriptor
+    private Map<Integer, OutputStream> files = new HashMap<Integer, OutputStream>();
+    private int nextFd = 3;
+    private static final int O_ACCMODE = 3, O_APPEND = 0x400;
+
+    private long instrCount = 0;
+    private long cycleCount = 0;
+    private int minSp = STACK_TOP;
+
+    public MipsSim(Reader source, BufferedReader in, PrintStream out)
+        throws IOException {
+        this.in = in;
+        this.out = out;
+        assemble(new BufferedReader(source));
+    }
+
+    // **********************************************************************
+    // assembler
+    // **********************************************************************
+
+    private void assemble(BufferedReader r) throws IOException {
+        boolean inData = false;
+        String fn = "";
+        String line;
+        int lineNum = 0;
+        List<Instr> pending = new ArrayList<Instr>();
+
+        while ((line = r.readLine()) != null) {
+            lineNum++;
+            line = stripComment(line).trim();
+
+            // peel off any number of leading labels
+            int colon;
+            while ((colon = labelEnd(line)) >= 0) {
+                String name = line.substring(0, colon).trim();
+                line = line.substring(colon + 1).trim();
+                if (inData) {
+                    labels.put(name, dataEnd);
+                } else {
+                    labels.put(name, TEXT_BASE + 4 * text.size());
+                    if (!name.startsWith(".")) {
+                        fn = name;
+                    }
+                }
+            }
+            if (line.length() == 0) {
+                continue;
+            }
+
+            String op = line.split("\\s+", 2)[0];
+            String rest = line.substring(op.length()).trim();
+
+            if (op.startsWith(".")) {
+                if (op.equals(".data")) {
+                    inData = true;
+                } else if (op.equals(".text")) {
+                    inData = false;
+                } else if (op.equals(".align")) {
+                    int a = 1 << Integer.parseInt(rest);
+                    dataEnd = (dataEnd + a - 1) / a * a;
+                } else if (op.equals(".space")) {
+                    dataEnd += Integer.parseInt(rest);
+                } else if (op.equals(".word")) {
+                    for (String w : rest.split(",")) {
+                        dataEnd = (dataEnd + 3) / 4 * 4;
+                        storeWord(dataEnd, Integer.parseInt(w.trim()));
+                        dataEnd += 4;
+                    }
+                } else if (op.equals(".asciiz") || op.equals(".ascii")) {
+                    String s = unescape(rest);
+                    for (int k = 0; k < s.length(); k++) {
+                        storeByte(dataEnd++, s.charAt(k));
+                    }
+                    if (op.equals(".asciiz")) {
+                        storeByte(dataEnd++, 0);
+                    }
+                }
+                // .globl and anything else is ignored
+                continue;
+            }
+
+            Instr ins = decode(op, rest, lineNum);
+            ins.fn = fn;
+            text.add(ins);
+        }
+
+        // resolve labels
+        for (Instr ins : text) {
+            for (int k = 0; k < ins.kind.length; k++) {
+                if (ins.label[k] != null) {
+                    Integer addr = labels.get(ins.label[k]);
+                    if (addr == null) {
+                        throw new IllegalArgumentException("line " + ins.line +
+                                       ": undefined label " + ins.label[k]);
+                    }
+                    ins.val[k] += addr;
+                }
+            }
+        }
+    }
+
+    // **********************************************************************
+    // object files
+    // **********************************************************************
+
+    // the relocation types of ElfObject
+    private static final int R_MIPS_26 = 4, R_MIPS_HI16 = 5, R_MIPS_LO16 = 6;
+
+    /**
+     * Return whether obj is an ELF file.
+     */
+    public static boolean isObject(byte[] obj) {
+        return obj.length > 4 && obj[0] == 0x7f && obj[1] == 'E' &&
+               obj[2] == 'L' && obj[3] == 'F';
+    }
+
+    /**
+     * Return the assembly text of a MIPS object file written by P6 -elf
+     * (see ElfObject): its .data as words and its .text disassembled,
+     * with the relocations applied for .text at TEXT_BASE and .data at
+     * DATA_BASE.  Only the instructions MipsAssembler emits are decoded.
+     */
+    public static String disassemble(byte[] obj) {
+        if (obj[4] != 1 || obj[5] != 2 || half(obj, 16) != 1 || half(obj, 18) != 8) {
+            throw new IllegalArgumentException("not a big-endian MIPS32 object file");
+        }
+        int shoff = word(obj, 32);
+        int shnum = half(obj, 48);
+        int shstrndx = half(obj, 50);
+        Map<String, Integer> secs = new HashMap<String, Integer>();
+        for (int k = 0; k < shnum; k++) {
+            secs.put(name(obj, shoff, shstrndx, word(obj, shoff + 40 * k)), k);
+        }
+        byte[] text = section(obj, shoff, secs.get(".text"));
+        byte[] data = section(obj, shoff, secs.get(".data"));
+        Map<Integer, Integer> base = new HashMap<Integer, Integer>();
+        base.put(secs.get(".text"), TEXT_BASE);
+        base.put(secs.get(".data"), DATA_BASE);
+
+        // the symbols: their addresses, and the names of those in .text
+        int symtab = shoff + 40 * secs.get(".symtab");
+        int strtab = word(obj, symtab + 24);
+        int numSyms = word(obj, symtab + 20) / 16;
+        int[] addrs = new int[numSyms];
+        Map<Integer, String> labels = new HashMap<Integer, String>();
+        for (int k = 0; k < numSyms; k++) {
+            int sym = word(obj, symtab + 16) + 16 * k;
+            Integer b = base.get(half(obj, sym + 14));
+            addrs[k] = (b == null ? 0 : b) + word(obj, sym + 4);
+            String name = name(obj, shoff, strtab, word(obj, sym));
+            if (name.length() > 0 && b != null && b == TEXT_BASE) {
+                labels.put(addrs[k], name);
+            }
+        }
+
+        // the relocations; a HI16 is followed by the LO16 it pairs with
+        if (secs.containsKey(".rel.text")) {
+            int rel = shoff + 40 * secs.get(".rel.text");
+            int numRels = word(obj, rel + 20) / 8;
+            for (int k = 0; k < numRels; k++) {
+                int r = word(obj, rel + 16) + 8 * k;
+                int pos = word(obj, r);
+                int info = word(obj, r + 4);
+                int sym = addrs[info >>> 8];
+                int w = word(text, pos);
+                if ((info & 0xff) == R_MIPS_26) {
+                    int target = sym + ((w & 0x3ffffff) << 2);
+                    setWord(text, pos, (w & ~0x3ffffff) | ((target >>> 2) & 0x3ffffff));
+                } else if ((info & 0xff) == R_MIPS_HI16) {
+                    int lo = word(obj, r + 8);
+                    int w2 = word(text, lo);
+                    int val = sym + ((w & 0xffff) << 16) + (short)w2;
+                    setWord(text, pos, (w & ~0xffff) | (((val + 0x8000) >>> 16) & 0xffff));
+                    setWord(text, lo, (w2 & ~0xffff) | (val & 0xffff));
+                    k++;
+                } else {
+                    throw new IllegalArgumentException("unsupported relocation " +
+                                                       (info & 0xff));
+                }
+            }
+        }
+
+        List<String> code = new ArrayList<String>();
+        for (int pos = 0; pos < text.length; pos += 4) {
+            code.add(disassemble(word(text, pos), TEXT_BASE + pos, labels));
+        }
+
+        StringBuilder sb = new StringBuilder("\t.data\n");
+        for (int pos = 0; pos < data.length; pos += 4) {
+            // the bytes in order, as a word of this (little-endian) machine
+            int w = 0;
+            for (int k = 3; k >= 0; k--) {
+                w = w << 8 | (pos + k < data.length ? data[pos + k] & 0xff : 0);
+            }
+            sb.append("\t.word\t" + w + "\n");
+        }
+        sb.append("\t.text\n");
+        for (int k = 0; k < code.size(); k++) {
+            String label = labels.get(TEXT_BASE + 4 * k);
+            if (label != null) {
+                sb.append(label + ":\n");
+            }
+            sb.append("\t" + code.get(k) + "\n");
+        }
+        return sb.toString();
+    }
+
+    // the instruction w at pc, naming the targets of jumps and branches
+    // after their labels (adding a label ".L" + address if there is none)
+    private static String disassemble(int w, int pc, Map<Integer, String> labels) {
+        int op = w >>> 26, rs = w >> 21 & 31, rt = w >> 16 & 31, rd = w >> 11 & 31;
+        int shamt = w >> 6 & 31, fn = w & 63;
+        String s = "$" + REG_NAMES[rs], t = "$" + REG_NAMES[rt], d = "$" + REG_NAMES[rd];
+        int imm = (short)w;
+        switch (op) {
+        case 0x00:
+            switch (fn) {
+            case 0x00: return w == 0 ? "nop" : "sll " + d + ", " + t + ", " + shamt;
+            case 0x02: return "srl " + d + ", " + t + ", " + shamt;
+            case 0x03: return "sra " + d + ", " + t + ", " + shamt;
+            case 0x04: return "sllv " + d + ", " + t + ", " + s;
+            case 0x06: return "srlv " + d + ", " + t + ", " + s;
+            case 0x07: return "srav " + d + ", " + t + ", " + s;
+            case 0x08: return "jr " + s;
+            case 0x09: return "jalr " + s;
+            case 0x0c: return "syscall";
+            case 0x10: return "mfhi " + d;
+            case 0x12: return "mflo " + d;
+            case 0x18: return "mult " + s + ", " + t;
+            case 0x1a: return "div " + s + ", " + t;
+            case 0x20: return "add " + d + ", " + s + ", " + t;
+            case 0x21: return "addu " + d + ", " + s + ", " + t;
+            case 0x22: return "sub " + d + ", " + s + ", " + t;
+            case 0x23: return "subu " + d + ", " + s + ", " + t;
+            case 0x24: return "and " + d + ", " + s + ", " + t;
+            case 0x25: return "or " + d + ", " + s + ", " + t;
+            case 0x26: return "xor " + d + ", " + s + ", " + t;
+            case 0x27: return "nor " + d + ", " + s + ", " + t;
+            case 0x2a: return "slt " + d + ", " + s + ", " + t;
+            case 0x2b: return "sltu " + d + ", " + s + ", " + t;
+            case 0x34: return "teq " + s + ", " + t;
+            }
+            break;
+        case 0x1c:
+            if (fn == 0x02) {
+                return "mul " + d + ", " + s + ", " + t;
+            }
+            break;
+        case 0x02: case 0x03:
+            return (op == 0x02 ? "j " : "jal ") +
+                   label((pc & 0xf0000000) | (w & 0x3ffffff) << 2, labels);
+        case 0x01: case 0x04: case 0x05: case 0x06: case 0x07:
+            {
+                String target = label(pc + 4 + 4 * imm, labels);
+                switch (op) {
+                case 0x04: return "beq " + s + ", " + t + ", " + target;
+                case 0x05: return "bne " + s + ", " + t + ", " + target;
+                case 0x06: return "blez " + s + ", " + target;
+                case 0x07: return "bgtz " + s + ", " + target;
+                default: return (rt == 0 ? "bltz " : "bgez ") + s + ", " + target;
+                }
+            }
+        case 0x08: return "addi " + t + ", " + s + ", " + imm;
+        case 0x09: return "addiu " + t + ", " + s + ", " + imm;
+        case 0x0a: return "slti " + t + ", " + s + ", " + imm;
+        case 0x0b: return "sltiu " + t + ", " + s + ", " + imm;
+        case 0x0c: return "andi " + t + ", " + s + ", " + (w & 0xffff);
+        case 0x0d: return "ori " + t + ", " + s + ", " + (w & 0xffff);
+        case 0x0e: return "xori " + t + ", " + s + ", " + (w & 0xffff);
+        case 0x0f: return "lui " + t + ", " + (w & 0xffff);
+        case 0x20: return "lb " + t + ", " + imm + "(" + s + ")";
+        case 0x21: return "lh " + t + ", " + imm + "(" + s + ")";
+        case 0x23: return "lw " + t + ", " + imm + "(" + s + ")";
+        case 0x24: return "lbu " + t + ", " + imm + "(" + s + ")";
+        case 0x25: return "lhu " + t + ", " + imm + "(" + s + ")";
+        case 0x28: return "sb " + t + ", " + imm + "(" + s + ")";
+        case 0x29: return "sh " + t + ", " + imm + "(" + s + ")";
+        case 0x2b: return "sw " + t + ", " + imm + "(" + s + ")";
+        }
+        throw new IllegalArgumentException(String.format(
+            "cannot decode 0x%08x at 0x%08x", w, pc));
+    }
+
+    private static String label(int addr, Map<Integer, String> labels) {
+        String label = labels.get(addr);
+        if (label == null) {
+            label = ".L" + Integer.toHexString(addr);
+            labels.put(addr, label);
+        }
+        return label;
+    }
+
+    // the contents of section k
+    private static byte[] section(byte[] obj, int shoff, int k) {
+        int offset = word(obj, shoff + 40 * k + 16);
+        return Arrays.copyOfRange(obj, offset, offset + word(obj, shoff + 40 * k + 20));
+    }
+
+    // the string at offset off of the string table in section k
+    private static String name(byte[] obj, int shoff, int k, int off) {
+        int start = word(obj, shoff + 40 * k + 16) + off;
+        int end = start;
+        while (obj[end] != 0) {
+            end++;
+        }
+        return new String(obj, start, end - start);
+    }
+
+    // big-endian halfwords and words
+    private static int half(byte[] b, int pos) {
+        return (b[pos] & 0xff) << 8 | b[pos + 1] & 0xff;
+    }
+
+    private static int word(byte[] b, int pos) {
+        return half(b, pos) << 16 | half(b, pos + 2);
+    }
+
+    private static void setWord(byte[] b, int pos, int w) {
+        b[pos] = (byte)(w >> 24);
+        b[pos + 1] = (byte)(w >> 16);
+        b[pos + 2] = (byte)(w >> 8);
+        b[pos + 3] = (byte)w;
+    }
+
+    // index of the colon ending a leading label, or -1
+    private static int labelEnd(String line) {
+        int k = 0;
+        while (k < line.length()) {
+            char c = line.charAt(k);
+            if (c == ':') {
+                return k > 0 ? k : -1;
+            }
+            if (!(Character.isLetterOrDigit(c) || c == '_' || c == '.'
+                  || c == '$')) {
+                return -1;
+            }
+            k++;
+        }
+        return -1;
+    }
+
+    private static String stripComment(String line) {
+        boolean inStr = false;
+        for (int k = 0; k < line.length(); k++) {
+            char c = line.charAt(k);
+            if (c == '"' && (k == 0 || line.charAt(k - 1) != '\\')) {
+                inStr = !inStr;
+            } else if (c == '#' && !inStr) {
+                return line.substring(0, k);
+            }
+        }
+        return line;
+    }
+
+    private static String unescape(String lit) {
+        int start = lit.indexOf('"');
+        int end = lit.lastIndexOf('"');
+        StringBuilder sb = new StringBuilder();
+        for (int k = start + 1; k < end; k++) {
+            char c = lit.charAt(k);
+            if (c == '\\' && k + 1 < end) {
+                char e = lit.charAt(++k);
+                switch (e) {
+                case 'n': sb.append('\n'); break;
+                case 't': sb.append('\t'); break;
+                case '0': sb.append('\0'); break;
+                default: sb.append(e); break;
+                }
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    private Instr decode(String op, String rest, int lineNum) {
+        List<String> args = new ArrayList<String>();
+        if (rest.length() > 0) {
+            for (String a : rest.split(",")) {
+                args.add(a.trim());
+            }
+        }
+        Instr ins = new Instr();
+        ins.op = op;
+        ins.line = lineNum;
+        int n = args.size();
+        ins.kind = new int[n];
+        ins.val = new int[n];
+        ins.base = new int[n];
+        ins.label = new String[n];
+        for (int k = 0; k < n; k++) {
+            String a = args.get(k);
+            int paren = a.indexOf('(');
+            if (a.startsWith("$")) {
+                ins.kind[k] = REG;
+                ins.val[k] = regNum(a, lineNum);
+            } else if (paren >= 0) {
+                ins.kind[k] = INDEXED;
+                String off = a.substring(0, paren).trim();
+                ins.val[k] = off.length() == 0 ? 0 : parseImm(off);
+                ins.base[k] = regNum(a.substring(paren + 1, a.indexOf(')')),
+                                     lineNum);
+            } else if (a.matches("-?(0x)?[0-9a-fA-F]+") &&
+                       Character.isDigit(a.charAt(a.startsWith("-") ? 1 : 0))) {
+                ins.kind[k] = IMM;
+                ins.val[k] = parseImm(a);
+            } else {
+                // label or label+offset
+                ins.kind[k] = LABEL;
+                int plus = a.indexOf('+');
+                if (plus > 0) {
+                    ins.val[k] = parseImm(a.substring(plus + 1).trim());
+                    a = a.substring(0, plus).trim();
+                }
+                ins.label[k] = a;
+            }
+        }
+        return ins;
+    }
+
+    private static int parseImm(String s) {
+        if (s.startsWith("0x")) {
+            return (int)Long.parseLong(s.substring(2), 16);
+        }
+        if (s.startsWith("-0x")) {
+            return -(int)Long.parseLong(s.substring(3), 16);
+        }
+        return (int)Long.parseLong(s);
+    }
+
+    private static int regNum(String r, int lineNum) {
+        String name = r.trim().substring(1);
+        for (int k = 0; k < REG_NAMES.length; k++) {
+            if (REG_NAMES[k].equals(name)) {
+                return k;
+            }
+        }
+        if (name.equals("s8")) {
+            return FP;
+        }
+        try {
+            return Integer.parseInt(name);
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("line " + lineNum +
+                                               ": bad register " + r);
+        }
+    }
+
+    // **********************************************************************
+    // memory
+    // **********************************************************************
+
+    private byte[] segment(int addr) {
+        if (addr >= DATA_BASE && addr < DATA_BASE + DATA_SIZE) {
+            return data;
+        }
+        if (addr <= STACK_TOP + 3 && addr > STACK_TOP + 3 - STACK_SIZE) {
+            return stack;
+        }
+        throw new IllegalStateException("bad address 0x" +
+                                        Integer.toHexString(addr));
+    }
+
+    private int index(int addr) {
+        if (addr >= DATA_BASE && addr < DATA_BASE + DATA_SIZE) {
+            return addr - DATA_BASE;
+        }
+        return addr - (STACK_TOP + 4 - STACK_SIZE);
+    }
+
+    private int loadByte(int addr) {
+        return segment(addr)[index(addr)];
+    }
+
+    private void storeByte(int addr, int b) {
+        segment(addr)[index(addr)] = (byte)b;
+    }
+
+    private int loadWord(int addr) {
+        if ((addr & 3) != 0) {
+            throw new IllegalStateException("unaligned word load at 0x" +
+                                            Integer.toHexString(addr));
+        }
+        byte[] m = segment(addr);
+        int i = index(addr);
+        return (m[i] & 0xff) | (m[i + 1] & 0xff) << 8 |
+               (m[i + 2] & 0xff) << 16 | (m[i + 3] & 0xff) << 24;
+    }
+
+    private void storeWord(int addr, int w) {
+        if ((addr & 3) != 0) {
+            throw new IllegalStateException("unaligned word store at 0x" +
+                                            Integer.toHexString(addr));
+        }
+        byte[] m = segment(addr);
+        int i = index(addr);
+        m[i] = (byte)w;
+        m[i + 1] = (byte)(w >> 8);
+        m[i + 2] = (byte)(w >> 16);
+        m[i + 3] = (byte)(w >> 24);
+    }
+
+    // **********************************************************************
+    // execution
+    // **********************************************************************
+
+    // value of operand k: register contents, immediate, or label address
+    private int value(Instr ins, int k) {
+        return ins.kind[k] == REG ? regs[ins.val[k]] : ins.val[k];
+    }
+
+    // effective address of a memory operand
+    private int address(Instr ins, int k) {
+        if (ins.kind[k] == INDEXED) {
+            return regs[ins.base[k]] + ins.val[k];
+        }
+        return value(ins, k);
+    }
+
+    private void set(int reg, int v) {
+        if (reg != 0) {
+            regs[reg] = v;
+        }
+    }
+
+    // the second source: operand 2 of a three-operand form, or operand 1
+    private int src2(Instr ins) {
+        return value(ins, ins.kind.length - 1);
+    }
+
+    private int src1(Instr ins) {
+        return ins.kind.length == 3 ? regs[ins.val[1]] : regs[ins.val[0]];
+    }
+
+    /**
+     * Run the program from main until it returns or exits; returns the
+     * exit code.
+     */
+    public int run() throws IOException {
+        Integer start = labels.get("main");
+        if (start == null) {
+            throw new IllegalArgumentException("no main label");
+        }
+        regs[SP] = STACK_TOP;
+        regs[FP] = STACK_TOP;
+        regs[RA] = EXIT_ADDR;
+        int pc = start;
+
+        while (pc != EXIT_ADDR) {
+            int idx = (pc - TEXT_BASE) >> 2;
+            if (idx < 0 || idx >= text.size()) {
+                throw new IllegalStateException("jump to bad address 0x" +
+                                                Integer.toHexString(pc));
+            }
+            Instr ins = text.get(idx);
+            int next = pc + 4;
+            int cycles = 1;
+            int d = ins.kind.length > 0 ? ins.val[0] : 0;
+
+            switch (ins.op) {
+            // loads and stores
+            case "lw": set(d, loadWord(address(ins, 1))); break;
+            case "lb": set(d, loadByte(address(ins, 1))); break;
+            case "lbu": set(d, loadByte(address(ins, 1)) & 0xff); break;
+            case "sw": storeWord(address(ins, 1), regs[d]); break;
+            case "sb": storeByte(address(ins, 1), regs[d]); break;
+            case "la": set(d, address(ins, 1)); break;
+            case "li": set(d, ins.val[1]); break;
+            case "lui": set(d, ins.val[1] << 16); break;
+            case "move": set(d, regs[ins.val[1]]); break;
+            case "mfhi": set(d, hi); break;
+            case "mflo": set(d, lo); break;
+
+            // arithmetic
+            case "add": case "addi":
+                set(d, checked((long)src1(ins) + src2(ins))); break;
+            case "addu": case "addiu":
+                set(d, src1(ins) + src2(ins)); break;
+            case "sub": case "subi":
+                set(d, checked((long)src1(ins) - src2(ins))); break;
+            case "subu": case "subiu":
+                set(d, src1(ins) - src2(ins)); break;
+            case "mulo":
+                set(d, checked((long)src1(ins) * src2(ins)));
+                cycles = MUL_CYCLES;
+                break;
+            case "mul": case "mulou":
+                set(d, src1(ins) * src2(ins)); cycles = MUL_CYCLES; break;
+            case "mult":
+                {
+                    long p = (long)regs[ins.val[0]] * (long)regs[ins.val[1]];
+                    lo = (int)p;
+                    hi = (int)(p >> 32);
+                    cycles = MUL_CYCLES;
+                }
+                break;
+            case "multu":
+                {
+                    long p = (regs[ins.val[0]] & 0xffffffffL) *
+                             (regs[ins.val[1]] & 0xffffffffL);
+                    lo = (int)p;
+                    hi = (int)(p >> 32);
+                    cycles = MUL_CYCLES;
+                }
+                break;
+            case "div":
+                cycles = DIV_CYCLES;
+                if (ins.kind.length == 2) {
+                    int b = regs[ins.val[1]];
+                    if (b != 0) {
+                        lo = regs[d] / b;
+                        hi = regs[d] % b;
+                    }
+                } else {
+                    int b = src2(ins);
+                    if (b == 0) {
+                        throw new IllegalStateException("division by zero");
+                    }
+                    set(d, src1(ins) / b);
+                }
+                break;
+            case "rem":
+                {
+                    int b = src2(ins);
+                    if (b == 0) {
+                        throw new IllegalStateException("division by zero");
+                    }
+                    set(d, src1(ins) % b);
+                    cycles = DIV_CYCLES;
+                }
+                break;
+            case "neg": set(d, checked(-(long)regs[ins.val[1]])); break;
+            case "negu": set(d, -regs[ins.val[1]]); break;
+            case "abs": set(d, Math.abs(regs[ins.val[1]])); break;
+            case "and": case "andi": set(d, src1(ins) & src2(ins)); break;
+            case "or": case "ori": set(d, src1(ins) | src2(ins)); break;
+            case "xor": case "xori": set(d, src1(ins) ^ src2(ins)); break;
+            case "nor": set(d, ~(src1(ins) | src2(ins))); break;
+            case "not": set(d, ~regs[ins.val[1]]); break;
+            case "sll": case "sllv": set(d, src1(ins) << src2(ins)); break;
+            case "srl": case "srlv": set(d, src1(ins) >>> src2(ins)); break;
+            case "sra": case "srav": set(d, src1(ins) >> src2(ins)); break;
+
+            // comparisons
+            case "slt": case "slti": set(d, src1(ins) < src2(ins) ? 1 : 0); break;
+            case "sltu": case "sltiu":
+                set(d, Integer.compareUnsigned(src1(ins), src2(ins)) < 0 ? 1 : 0);
+                break;
+            case "seq": set(d, src1(ins) == src2(ins) ? 1 : 0); break;
+            case "sne": set(d, src1(ins) != src2(ins) ? 1 : 0); break;
+            case "sgt": set(d, src1(ins) > src2(ins) ? 1 : 0); break;
+            case "sge": set(d, src1(ins) >= src2(ins) ? 1 : 0); break;
+            case "sle": set(d, src1(ins) <= src2(ins) ? 1 : 0); break;
+
+            // branches and jumps
+            case "b": case "j": next = ins.val[0]; break;
+            case "beq": if (regs[d] == value(ins, 1)) next = ins.val[2]; break;
+            case "bne": if (regs[d] != value(ins, 1)) next = ins.val[2]; break;
+            case "blt": if (regs[d] < value(ins, 1)) next = ins.val[2]; break;
+            case "bgt": if (regs[d] > value(ins, 1)) next = ins.val[2]; break;
+            case "ble": if (regs[d] <= value(ins, 1)) next = ins.val[2]; break;
+            case "bge": if (regs[d] >= value(ins, 1)) next = ins.val[2]; break;
+            case "beqz": if (regs[d] == 0) next = ins.val[1]; break;
+            case "bnez": if (regs[d] != 0) next = ins.val[1]; break;
+            case "bltz": if (regs[d] < 0) next = ins.val[1]; break;
+            case "bgtz": if (regs[d] > 0) next = ins.val[1]; break;
+            case "blez": if (regs[d] <= 0) next = ins.val[1]; break;
+            case "bgez": if (regs[d] >= 0) next = ins.val[1]; break;
+            case "jal": regs[RA] = pc + 4; next = ins.val[0]; break;
+            case "jalr": regs[RA] = pc + 4; next = regs[d]; break;
+            case "jr": next = regs[d]; break;
+            case "nop": break;
+            case "teq":
+                if (regs[d] == regs[ins.val[1]]) {
+                    throw new IllegalStateException("division by zero");
+                }
+                break;
+
+            case "syscall":
+                if (syscall()) {
+                    count(ins, cycles);
+                    return 0;
+                }
+                break;
+
+            default:
+                throw new IllegalStateException("unsupported instruction " +
+                                                ins);
+            }
+
+            count(ins, cycles);
+            if (regs[SP] < minSp) {
+                minSp = regs[SP];
+            }
+            pc = next;
+        }
+        return 0;
+    }
+
+    // the result of a signed operation that traps on overflow
+    private static int checked(long result) {
+        if (result != (int)result) {
+            throw new IllegalStateException("arithmetic overflow");
+        }
+        return (int)result;
+    }
+
+    // the counts are kept per instruction and added up by printStats
+    private void count(Instr ins, int cycles) {
+        instrCount++;
+        cycleCount += cycles;
+        ins.count++;
+    }
+
+    // perform the syscall in $v0; returns true if the program exits
+    private boolean syscall() throws IOException {
+        switch (regs[V0]) {
+        case 1:
+            out.print(regs[A0]);
+            break;
+        case 4:
+            for (int a = regs[A0]; loadByte(a) != 0; a++) {
+                out.print((char)loadByte(a));
+            }
+            break;
+        case 5:
+            regs[V0] = readInt();
+            break;
+        case 10:
+            return true;
+        case 11:
+            out.print((char)regs[A0]);
+            break;
+        case 13:
+            regs[V0] = open(regs[A0], regs[A1]);
+            break;
+        case 15:
+            regs[V0] = write(regs[A0], regs[A1], regs[A2]);
+            break;
+        case 16:
+            OutputStream f = files.remove(regs[A0]);
+            if (f != null) {
+                f.close();
+            }
+            break;
+        default:
+            throw new IllegalStateException("unsupported syscall " + regs[V0]);
+        }
+        return false;
+    }
+
+    // open the file named at addr for writing; return its descriptor, or
+    // -1 if it cannot be opened
+    private int open(int addr, int flags) {
+        StringBuilder path = new StringBuilder();
+        for (int a = addr; loadByte(a) != 0; a++) {
+            path.append((char)loadByte(a));
+        }
+        if ((flags & O_ACCMODE) == 0) {
+            return -1;
+        }
+        try {
+            files.put(nextFd, new FileOutputStream(path.toString(),
+                                                   (flags & O_APPEND) != 0));
+        } catch (IOException ex) {
+            return -1;
+        }
+        return nextFd++;
+    }
+
+    // write len bytes at addr to file fd; return len, or -1 on error
+    private int write(int fd, int addr, int len) {
+        OutputStream f = files.get(fd);
+        if (f == null || len < 0) {
+            return -1;
+        }
+        byte[] b = new byte[len];
+        for (int k = 0; k < len; k++) {
+            b[k] = (byte)loadByte(addr + k);
+        }
+        try {
+            f.write(b);
+        } catch (IOException ex) {
+            return -1;
+        }
+        return len;
+    }
+
+    private int readInt() throws IOException {
+        String line = in.readLine();
+        while (line != null && line.trim().length() == 0) {
+            line = in.readLine();
+        }
+        if (line == null) {
+            return 0;
+        }
+        try {
+            return Integer.parseInt(line.trim());
+        } catch (NumberFormatException ex) {
+            throw new IllegalStateException("bad integer input " + line.trim());
+        }
+    }
+
+    /**
+     * Print the dynamic instruction profile of the last run.
+     */
+    public void printStats(PrintStream p) {
+        Map<String, long[]> opCounts = new HashMap<String, long[]>();
+        Map<String, long[]> fnCounts = new HashMap<String, long[]>();
+        for (Instr ins : text) {
+            if (ins.count > 0) {
+                add(opCounts, ins.op, ins.count);
+                add(fnCounts, ins.fn, ins.count);
+            }
+        }
+
+        p.println("instructions: " + instrCount +
+                  " (source instructions; a pseudo-instruction counts once)");
+        p.println("cycles:       " + cycleCount);
+        p.println("stack depth:  " + (STACK_TOP - minSp));
+        p.println();
+        p.println("by opcode:");
+        for (Map.Entry<String, long[]> e : sorted(opCounts)) {
+            p.printf("    %-10s %12d%n", e.getKey(), e.getValue()[0]);
+        }
+        p.println();
+        p.println("by function:");
+        for (Map.Entry<String, long[]> e : sorted(fnCounts)) {
+            p.printf("    %-20s %12d%n", e.getKey(), e.getValue()[0]);
+        }
+    }
+
+    private static void add(Map<String, long[]> m, String key, long n) {
+        long[] c = m.get(key);
+        if (c == null) {
+            m.put(key, c = new long[1]);
+        }
+        c[0] += n;
+    }
+
+    private static List<Map.Entry<String, long[]>> sorted(Map<String, long[]> m) {
+        List<Map.Entry<String, long[]>> list =
+            new ArrayList<Map.Entry<String, long[]>>(m.entrySet());
+        Collections.sort(list, new Comparator<Map.Entry<String, long[]>>() {
+            public int compare(Map.Entry<String, long[]> a,
+                               Map.Entry<String, long[]> b) {
+                int c = Long.compare(b.getValue()[0], a.getValue()[0]);
+                return c != 0 ? c : a.getKey().compareTo(b.getKey());
+            }
+        });
+        return list;
+    }
+
+    public long getInstrCount() {
+        return instrCount;
+    }
+
+    public long getCycleCount() {
+        return cycleCount;
+    }
+
+    public static void main(String[] args) throws IOException {
+        boolean stats = false;
+        List<String> files = new ArrayList<String>();
+        for (String a : args) {
+            if (a.equals("-stats")) {
+                stats = true;
+            } else {
+                files.add(a);
+            }
+        }
+        if (files.isEmpty()) {
+            System.err.println("usage: java MipsSim [-stats] <file.s|file.o> [input]");
+            System.exit(-1);
+        }
+
+        BufferedReader in = new BufferedReader(files.size() > 1
+                                ? new FileReader(files.get(1))
+                                : new InputStreamReader(System.in));
+        PrintStream out = new PrintStream(new BufferedOutputStream(System.out),
+                                          false);
+        MipsSim sim = null;
+        int code = 0;
+        try {
+            byte[] file = java.nio.file.Files.readAllBytes(
+                              java.nio.file.Paths.get(files.get(0)));
+            Reader source = isObject(file)
+                ? new StringReader(disassemble(file))
+                : new InputStreamReader(new ByteArrayInputStream(file));
+            sim = new MipsSim(source, in, out);
+            code = sim.run();
+        } catch (IllegalStateException | IllegalArgumentException ex) {
+            out.flush();
+            System.err.println("MipsSim: " + ex.getMessage());
+            code = 1;
+        }
+        out.flush();
+        if (stats && sim != null) {
+            sim.printStats(System.err);
+        }
+        System.exit(code);
+    }
+}
@@ -0,0 +1,89 @@
+/**
+ * The MIPS instructions (and SPIM pseudo-instructions) the code generator
+ * emits.  The kind of an opcode tells which of its operands are read and
+ * written (see Instr.defs and Instr.uses) and how control leaves it.
+ */
+enum Opcode {
+    // dest, sources...
+    ADD(Kind.ALU), ADDU(Kind.ALU), ADDI(Kind.ALU), ADDIU(Kind.ALU),
+    SUB(Kind.ALU), SUBU(Kind.ALU),
+    MUL(Kind.ALU), DIV(Kind.ALU), REM(Kind.ALU), NEG(Kind.ALU),
+    AND(Kind.ALU), ANDI(Kind.ALU), OR(Kind.ALU), ORI(Kind.ALU),
+    XOR(Kind.ALU), XORI(Kind.ALU), NOR(Kind.ALU), NOT(Kind.ALU),
+    SLL(Kind.ALU), SRL(Kind.ALU), SRA(Kind.ALU),
+    SLT(Kind.ALU), SLTI(Kind.ALU), SLTU(Kind.ALU), SLTIU(Kind.ALU),
+    SEQ(Kind.ALU), SNE(Kind.ALU), SGT(Kind.ALU), SGE(Kind.ALU),
+    SLE(Kind.ALU),
+    MOVE(Kind.ALU), LI(Kind.ALU), LA(Kind.ALU), LUI(Kind.ALU),
+    MFHI(Kind.ALU), MFLO(Kind.ALU),
+
+    // sources (the results go to hi and lo)
+    MULT(Kind.HILO),
+
+    // dest, address
+    LW(Kind.LOAD), LB(Kind.LOAD), LBU(Kind.LOAD), LH(Kind.LOAD),
+    LHU(Kind.LOAD),
+
+    // source, address
+    SW(Kind.STORE), SB(Kind.STORE), SH(Kind.STORE),
+
+    // sources..., label
+    BEQ(Kind.BRANCH), BNE(Kind.BRANCH), BLT(Kind.BRANCH), BGT(Kind.BRANCH),
+    BLE(Kind.BRANCH), BGE(Kind.BRANCH),
+    BEQZ(Kind.BRANCH), BNEZ(Kind.BRANCH), BLTZ(Kind.BRANCH),
+    BGTZ(Kind.BRANCH), BLEZ(Kind.BRANCH), BGEZ(Kind.BRANCH),
+
+    // label
+    J(Kind.JUMP), B(Kind.JUMP),
+
+    JAL(Kind.CALL), JALR(Kind.CALL),
+    JR(Kind.RETURN),
+    SYSCALL(Kind.SYSCALL),
+    NOP(Kind.NOP);
+
+    enum Kind { ALU, HILO, LOAD, STORE, BRANCH, JUMP, CALL, RETURN, SYSCALL, NOP }
+
+    private final Kind kind;
+    private final String mnemonic;
+
+    Opcode(Kind kind) {
+        this.kind = kind;
+        this.mnemonic = name().toLowerCase();
+    }
+
+    public Kind kind() {
+        return kind;
+    }
+
+    /**
+     * Does this instruction write its first operand?
+     */
+    public boolean writesFirst() {
+        return kind == Kind.ALU || kind == Kind.LOAD;
+    }
+
+    /**
+     * The branch with the opposite condition (same operands), or null.
+     */
+    public Opcode negate() {
+        switch (this) {
+            case BEQ:  return BNE;
+            case BNE:  return BEQ;
+            case BLT:  return BGE;
+            case BGE:  return BLT;
+            case BGT:  return BLE;
+            case BLE:  return BGT;
+            case BEQZ: return BNEZ;
+            case BNEZ: return BEQZ;
+            case BLTZ: return BGEZ;
+            case BGEZ: return BLTZ;
+            case BGTZ: return BLEZ;
+            case BLEZ: return BGTZ;
+            default:   return null;
+        }
+    }
+
+    public String toString() {
+        return mnemonic;
+    }
+}
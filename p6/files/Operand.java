@@ -0,0 +1,106 @@
+/**
+ * Operand interface and its implementations:
+ * Reg (see Reg.java), Imm, LabelRef, Mem
+ *
+ * Operands of an Instr.  Each prints itself in MIPS assembler syntax via
+ * toString.
+ */
+interface Operand {
+}
+
+/**
+ * An immediate (constant) operand.
+ */
+final class Imm implements Operand {
+    private final int value;
+
+    public Imm(int value) {
+        this.value = value;
+    }
+
+    public int value() {
+        return value;
+    }
+
+    /**
+     * Does the value fit in the signed 16-bit field of an I-type
+     * instruction?
+     */
+    public boolean fits16() {
+        return value >= -32768 && value <= 32767;
+    }
+
+    public boolean equals(Object o) {
+        return o instanceof Imm && ((Imm)o).value == value;
+    }
+
+    public int hashCode() {
+        return value;
+    }
+
+    public String toString() {
+        return String.valueOf(value);
+    }
+}
+
+/**
+ * A reference to a label: the target of a jump or branch, or the address
+ * of a global or of static data.
+ */
+final class LabelRef implements Operand {
+    private final String name;
+
+    public LabelRef(String name) {
+        this.name = name;
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public boolean equals(Object o) {
+        return o instanceof LabelRef && ((LabelRef)o).name.equals(name);
+    }
+
+    public int hashCode() {
+        return name.hashCode();
+    }
+
+    public String toString() {
+        return name;
+    }
+}
+
+/**
+ * A memory operand: offset(base).
+ */
+final class Mem implements Operand {
+    private final int offset;
+    private final Reg base;
+
+    public Mem(int offset, Reg base) {
+        this.offset = offset;
+        this.base = base;
+    }
+
+    public int offset() {
+        return offset;
+    }
+
+    public Reg base() {
+        return base;
+    }
+
+    public boolean equals(Object o) {
+        return o instanceof Mem && ((Mem)o).offset == offset &&
+               ((Mem)o).base == base;
+    }
+
+    public int hashCode() {
+        return 31 * offset + base.hashCode();
+    }
+
+    public String toString() {
+        return offset + "(" + base + ")";
+    }
+}
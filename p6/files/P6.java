@@ -8,6 +8,14 @@ import java_cup.runtime.*;
  * There should be 2 command-line arguments:
  *    1. the file to be parsed
  *    2. the output MIPS file
+ * or, to run the program in the JVM instead (see Engine), the file to be
+ * parsed and -run.  With -jvm, the output file is a class file instead of
+ * MIPS code (see JvmCodegen), named after the class: Name.class; with
+ * -x86, it is x86-64 assembler source for Linux (see X86Codegen); with
+ * -elf, it is a MIPS object file (see MipsAssembler).  The MIPS code can
+ * be instrumented to write a profile (-profile-generate <file>), which
+ * guides the optimization of a later build (-profile-use <file>, see
+ * Profile).
  *
  * The program opens the two files, creates a scanner and a parser, and
  * calls the parser.  If the parse is successful, then it will call name
@@ -19,10 +27,24 @@ public class P6 {
 	private PrintWriter outFile;
 	private static PrintStream outStream = System.err;
 
+	// run the program with the Engine instead of generating code (-run)
+	private boolean runProgram = false;
+
+	// generate a class file instead of MIPS code (-jvm): its name and path
+	private String jvmClass = null;
+	private String jvmFile = null;
+
+	// generate x86-64 code instead of MIPS code (-x86)
+	private boolean x86 = false;
+
+	// write a MIPS object file instead of assembler text (-elf)
+	private boolean elf = false;
+
 	public static final int RESULT_CORRECT = 0;
 	public static final int RESULT_SYNTAX_ERROR = 1;
 	public static final int RESULT_TYPE_ERROR = 2;
 	public static final int RESULT_NAME_ANALYSIS_ERROR = 3;
+	public static final int RESULT_RUNTIME_ERROR = 4;
 	public static final int RESULT_OTHER_ERROR = -1;
 
 	/**
@@ -37,20 +59,70 @@ public class P6 {
 	 * is the command line to use. It shouldn't be invoked from
 	 * outside the class (hence the private constructor) because
 	 * it
-	 * @param args command line args array for [<infile> <outfile>]
+	 * @param args command line args array for [<infile> <outfile> [-O]]
+	 *        (-O: compile through the SSA form, see IRBuilder;
+	 *        -jvm: generate <outfile>, which is Name.class;
+	 *        -x86: generate x86-64 code;
+	 *        -elf: generate a MIPS object file;
+	 *        -profile-generate <file>: instrument the code to write a
+	 *        profile to file;
+	 *        -profile-use <file>: optimize with the profile in file)
+	 *        or [<infile> -run]
 	 */
 	private P6(String[] args) {
 		//Parse arguments
-		if (args.length < 2) {
+		if (args.length == 2 && args[1].equals("-run")) {
+			runProgram = true;
+		} else if (args.length < 2) {
 			String msg = "please supply name of the input file "
 				+ "and name of file for assembly output.";
 			pukeAndDie(msg);
 		}
 
+		for (int k = 2; k < args.length; k++) {
+			if (args[k].equals("-O")) {
+				Codegen.optimize = true;
+			} else if (args[k].equals("-jvm")) {
+				jvmFile = args[1];
+			} else if (args[k].equals("-x86")) {
+				x86 = true;
+			} else if (args[k].equals("-elf")) {
+				elf = true;
+			} else if (args[k].equals("-profile-generate") && k + 1 < args.length) {
+				Profile.instrument(args[++k]);
+			} else if (args[k].equals("-profile-use") && k + 1 < args.length) {
+				String profile = args[++k];
+				try {
+					Profile.load(profile);
+				} catch (IOException e) {
+					pukeAndDie("Could not read profile " + profile + ": " + e.getMessage());
+				}
+			} else {
+				pukeAndDie("unknown option " + args[k]);
+			}
+		}
+
+		if (Profile.instrumenting() && (jvmFile != null || x86)) {
+			pukeAndDie("-profile-generate only instruments MIPS code");
+		}
+		if (Profile.instrumenting() && Codegen.optimize) {
+			pukeAndDie("-profile-generate only instruments code built without -O");
+		}
+
 		try {
 			setInfile(args[0]);
-			setOutfile(args[1]);
-			Codegen.p = new PrintWriter(args[1]);
+			if (jvmFile != null) {
+				jvmClass = className(jvmFile);
+			} else if (elf) {
+				Codegen.object = new BufferedOutputStream(new FileOutputStream(args[1]));
+			} else if (!runProgram) {
+				setOutfile(args[1]);
+				if (x86) {
+					X86Codegen.p = new PrintWriter(args[1]);
+				} else {
+					Codegen.p = new PrintWriter(args[1]);
+				}
+			}
 		} catch(BadInfileException e) {
 			pukeAndDie(e.getMessage());
 		} catch(BadOutfileException e) {
@@ -58,6 +130,27 @@ public class P6 {
 		} catch(FileNotFoundException e) {}
 	}
 
+	/**
+	 * Return the name of the class in the class file at path, which must
+	 * be Name.class for a Java identifier Name.
+	 */
+	private String className(String path) {
+		String name = new File(path).getName();
+		if (!name.endsWith(".class")) {
+			pukeAndDie(path + " is not a .class file");
+		}
+		name = name.substring(0, name.length() - ".class".length());
+		boolean ok = name.length() > 0
+			&& Character.isJavaIdentifierStart(name.charAt(0));
+		for (int k = 1; k < name.length(); k++) {
+			ok = ok && Character.isJavaIdentifierPart(name.charAt(k));
+		}
+		if (!ok) {
+			pukeAndDie(name + " is not a valid class name");
+		}
+		return name;
+	}
+
 	/**
 	 * Source code file path
 	 * @param filename path to source file
@@ -156,7 +249,46 @@ public class P6 {
 			return P6.RESULT_TYPE_ERROR;
 		}
 
+		astRoot.fold();	 // constant folding and simplification
+
+		if (runProgram) {
+			Engine engine = new Engine(System.in, System.out);
+			if (!engine.run(astRoot, astRoot.mainSym())) {
+				return P6.RESULT_RUNTIME_ERROR;
+			}
+			return P6.RESULT_CORRECT;
+		}
+
+		if (jvmClass != null) {
+			try (OutputStream out = new FileOutputStream(jvmFile)) {
+				JvmCodegen.generate(astRoot, jvmClass, out);
+			} catch (IOException ex) {
+				outStream.println("Could not write " + jvmFile);
+				return P6.RESULT_OTHER_ERROR;
+			} catch (IllegalStateException ex) {
+				// a method too long for the JVM
+				new File(jvmFile).delete();
+				pukeAndDie(ex.getMessage());
+			}
+			return P6.RESULT_CORRECT;
+		}
+
+		if (x86) {
+			astRoot.genX86();
+			X86Codegen.p.close();
+			return P6.RESULT_CORRECT;
+		}
+
 		astRoot.codeGen();
+		if (elf) {
+			try {
+				Codegen.object.close();
+			} catch (IOException ex) {
+				outStream.println("Could not write the object file");
+				return P6.RESULT_OTHER_ERROR;
+			}
+			return P6.RESULT_CORRECT;
+		}
 		Codegen.p.close();
 
 		return P6.RESULT_CORRECT;
@@ -176,6 +308,8 @@ public class P6 {
 			pukeAndDie("Type checking error", resultCode);
 		case RESULT_NAME_ANALYSIS_ERROR:
 			pukeAndDie("Name analysis error", resultCode);
+		case RESULT_RUNTIME_ERROR:
+			pukeAndDie("Run-time error", resultCode);
 		default:
 			pukeAndDie("Type checking error", RESULT_OTHER_ERROR);
 		}
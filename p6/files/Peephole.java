@@ -0,0 +1,541 @@
+import java.util.*;
+
+/**
+ * Peephole
+ *
+ * A peephole optimizer over the buffered text section (see Codegen.flush).
+ * The following rewrites are applied until none of them changes the code:
+ *
+ *   - a push immediately followed by a pop becomes a move (or nothing)
+ *   - a load from the address just stored to becomes a move (or nothing)
+ *   - "li $tX, k" feeding an add or subtract becomes an immediate operand
+ *     when $tX is dead afterwards and k fits in 16 bits
+ *   - a temporary computed only to be moved somewhere else is computed
+ *     there directly, and a temporary copied from another register only
+ *     to be read once reads that register instead
+ *   - jumps to jumps are threaded, a jump to a return of at most
+ *     MAX_COPIED_RETURN instructions is replaced by a copy of it, jumps
+ *     and branches to the very next
+ *     instruction are removed, and so are unreachable instructions after
+ *     an unconditional jump and local labels nothing refers to
+ *   - moves of a register to itself are removed
+ *
+ * Finally the $sp adjustments of pushes and pops are sunk and merged: within
+ * a basic block, "addu/subu $sp, $sp, k" is delayed and the offsets of the
+ * $sp-relative loads and stores in between are corrected instead, so that a
+ * block performs at most one adjustment before it leaves the block.
+ */
+class Peephole {
+    // longest return sequence (including the jr) copied in place of a jump
+    private static final int MAX_COPIED_RETURN = 2;
+
+    public static List<Instr> optimize(List<Instr> text) {
+        List<Instr> code = new ArrayList<Instr>(text);
+        localRewrites(code);
+        sinkStackAdjustments(code);
+        localRewrites(code);
+        return code;
+    }
+
+    private static void localRewrites(List<Instr> code) {
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            changed |= pushPop(code);
+            changed |= storeLoad(code);
+            changed |= foldImmediates(code);
+            changed |= coalesceMoves(code);
+            changed |= threadJumps(code);
+            changed |= copyShortReturns(code);
+            changed |= removeJumpsToNext(code);
+            changed |= removeUnreachable(code);
+            changed |= removeUnusedLabels(code);
+            changed |= removeSelfMoves(code);
+        }
+    }
+
+    // **********************************************************************
+    // push/pop and store/load pairs
+    // **********************************************************************
+
+    /**
+     * sw R, 0($sp); subu $sp, $sp, 4; lw R2, 4($sp); addu $sp, $sp, 4
+     * becomes  move R2, R
+     */
+    private static boolean pushPop(List<Instr> code) {
+        boolean changed = false;
+        for (int k = 0; k + 3 < code.size(); k++) {
+            Instr push = code.get(k);
+            Instr dec = code.get(k + 1);
+            Instr pop = code.get(k + 2);
+            Instr inc = code.get(k + 3);
+            if (push.is(Opcode.SW) && push.args[1].equals(new Mem(0, Reg.SP)) &&
+                isSpAdjust(dec, Opcode.SUBU) && dec.imm(2) == 4 &&
+                pop.is(Opcode.LW) && pop.args[1].equals(new Mem(4, Reg.SP)) &&
+                isSpAdjust(inc, Opcode.ADDU) && inc.imm(2) == 4) {
+                for (int n = 0; n < 4; n++) {
+                    code.remove(k);
+                }
+                if (push.args[0] != pop.args[0]) {
+                    code.add(k, Instr.op(Opcode.MOVE, pop.comment,
+                                         pop.args[0], push.args[0]));
+                }
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * sw R, A; lw R2, A   becomes   sw R, A; move R2, R
+     */
+    private static boolean storeLoad(List<Instr> code) {
+        boolean changed = false;
+        for (int k = 0; k + 1 < code.size(); k++) {
+            Instr st = code.get(k);
+            Instr ld = code.get(k + 1);
+            if (st.is(Opcode.SW) && ld.is(Opcode.LW) &&
+                st.args[1].equals(ld.args[1])) {
+                code.remove(k + 1);
+                if (st.args[0] != ld.args[0]) {
+                    code.add(k + 1, Instr.op(Opcode.MOVE, ld.comment,
+                                             ld.args[0], st.args[0]));
+                }
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Is this "op $sp, $sp, k"?
+     */
+    private static boolean isSpAdjust(Instr ins, Opcode op) {
+        return ins.is(op) && ins.args.length == 3 &&
+               ins.isReg(0, Reg.SP) && ins.isReg(1, Reg.SP) && ins.isImm(2);
+    }
+
+    // **********************************************************************
+    // immediate operands
+    // **********************************************************************
+
+    /**
+     * li $tX, k; addu R, S, $tX   becomes   addiu R, S, k
+     * (and likewise for add, and for sub/subu with -k), when $tX is not
+     * used afterwards
+     */
+    private static boolean foldImmediates(List<Instr> code) {
+        boolean changed = false;
+        List<EnumSet<Reg>> liveOut = null;
+        for (int k = 0; k + 1 < code.size(); k++) {
+            Instr li = code.get(k);
+            Instr op = code.get(k + 1);
+            if (!li.is(Opcode.LI) || !li.reg(0).isTemp() ||
+                op.args.length != 3 ||
+                !(op.is(Opcode.ADD) || op.is(Opcode.ADDU) ||
+                  op.is(Opcode.SUB) || op.is(Opcode.SUBU))) {
+                continue;
+            }
+            Reg tmp = li.reg(0);
+            long val = li.imm(1);
+            boolean sub = op.is(Opcode.SUB) || op.is(Opcode.SUBU);
+            if (sub) {
+                val = -val;
+            }
+            if (val != (int)val || !new Imm((int)val).fits16()) {
+                continue;
+            }
+
+            // the constant may be either operand of an add
+            Operand other;
+            if (op.args[2] == tmp && op.args[1] != tmp) {
+                other = op.args[1];
+            } else if (!sub && op.args[1] == tmp && op.args[2] != tmp) {
+                other = op.args[2];
+            } else {
+                continue;
+            }
+
+            if (liveOut == null) {
+                liveOut = liveness(code);
+            }
+            if (op.args[0] != tmp && liveOut.get(k + 1).contains(tmp)) {
+                continue;
+            }
+
+            Opcode opcode = op.is(Opcode.ADD) || op.is(Opcode.SUB) ?
+                            Opcode.ADDI : Opcode.ADDIU;
+            code.set(k, Instr.op(opcode, op.comment, op.args[0], other,
+                                 new Imm((int)val)));
+            code.remove(k + 1);
+            liveOut = null;
+            changed = true;
+        }
+        return changed;
+    }
+
+    // **********************************************************************
+    // moves
+    // **********************************************************************
+
+    /**
+     * OP $tX, ...; move R, $tX   becomes   OP R, ...
+     * move $tX, S; OP ..., $tX   becomes   OP ..., S
+     * when $tX is not used afterwards
+     */
+    private static boolean coalesceMoves(List<Instr> code) {
+        boolean changed = false;
+        List<EnumSet<Reg>> liveOut = null;
+        for (int k = 0; k + 1 < code.size(); k++) {
+            Instr first = code.get(k);
+            Instr second = code.get(k + 1);
+            if (!first.isInstr() || !second.isInstr() ||
+                first.hasImplicitOperands() || second.hasImplicitOperands()) {
+                continue;
+            }
+
+            if (second.is(Opcode.MOVE) && second.reg(1).isTemp() &&
+                first.dest() == second.reg(1)) {
+                Reg tmp = second.reg(1);
+                if (liveOut == null) {
+                    liveOut = liveness(code);
+                }
+                if (liveOut.get(k + 1).contains(tmp)) {
+                    continue;
+                }
+                Operand[] args = first.args.clone();
+                args[0] = second.args[0];
+                String comment = first.comment.equals("") ? second.comment
+                                                          : first.comment;
+                code.set(k, Instr.op(first.op, comment, args));
+                code.remove(k + 1);
+                liveOut = null;
+                changed = true;
+            } else if (first.is(Opcode.MOVE) && first.reg(0).isTemp() &&
+                       second.uses().contains(first.reg(0)) &&
+                       first.reg(1) != Reg.SP) {
+                Reg tmp = first.reg(0);
+                if (liveOut == null) {
+                    liveOut = liveness(code);
+                }
+                if (second.dest() != tmp && liveOut.get(k + 1).contains(tmp)) {
+                    continue;
+                }
+                code.set(k + 1, second.replaceUses(tmp, first.reg(1)));
+                code.remove(k);
+                liveOut = null;
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Compute the registers live after each instruction.
+     */
+    private static List<EnumSet<Reg>> liveness(List<Instr> code) {
+        int n = code.size();
+        Map<String, Integer> labels = labelIndex(code);
+        List<EnumSet<Reg>> liveIn = new ArrayList<EnumSet<Reg>>();
+        List<EnumSet<Reg>> liveOut = new ArrayList<EnumSet<Reg>>();
+        for (int k = 0; k < n; k++) {
+            liveIn.add(EnumSet.noneOf(Reg.class));
+            liveOut.add(EnumSet.noneOf(Reg.class));
+        }
+
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int k = n - 1; k >= 0; k--) {
+                Instr ins = code.get(k);
+                EnumSet<Reg> out = liveOut.get(k);
+                if (ins.fallsThrough() && k + 1 < n) {
+                    changed |= out.addAll(liveIn.get(k + 1));
+                }
+                String target = ins.target();
+                if (target != null && labels.containsKey(target)) {
+                    changed |= out.addAll(liveIn.get(labels.get(target)));
+                }
+
+                EnumSet<Reg> in = EnumSet.copyOf(out);
+                in.removeAll(ins.defs());
+                in.addAll(ins.uses());
+                changed |= liveIn.get(k).addAll(in);
+            }
+        }
+        return liveOut;
+    }
+
+    // **********************************************************************
+    // control flow
+    // **********************************************************************
+
+    /**
+     * A jump or branch to a label that is followed by "j L" or "b L" goes
+     * to L directly.
+     */
+    private static boolean threadJumps(List<Instr> code) {
+        boolean changed = false;
+        Map<String, Integer> labels = labelIndex(code);
+        for (int k = 0; k < code.size(); k++) {
+            Instr ins = code.get(k);
+            String target = ins.target();
+            if (target == null) {
+                continue;
+            }
+            String next = finalTarget(code, labels, target);
+            if (!next.equals(target)) {
+                code.set(k, ins.retarget(next));
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * j L, where L is a short return sequence (e.g. a frameless function's
+     * shared epilogue), becomes a copy of that sequence.
+     */
+    private static boolean copyShortReturns(List<Instr> code) {
+        boolean changed = false;
+        Map<String, Integer> labels = labelIndex(code);
+        for (int k = 0; k < code.size(); k++) {
+            Instr ins = code.get(k);
+            if (!ins.isJump() || !labels.containsKey(ins.target())) {
+                continue;
+            }
+            int j = labels.get(ins.target());
+            while (j < code.size() && code.get(j).isLabel()) {
+                j++;
+            }
+            int end = j;
+            while (end < code.size() && end - j < MAX_COPIED_RETURN - 1 &&
+                   code.get(end).isInstr() && code.get(end).fallsThrough() &&
+                   code.get(end).target() == null) {
+                end++;
+            }
+            if (end == code.size() || !code.get(end).is(Opcode.JR)) {
+                continue;
+            }
+            List<Instr> copy = new ArrayList<Instr>(code.subList(j, end + 1));
+            code.remove(k);
+            code.addAll(k, copy);
+            labels = labelIndex(code);
+            changed = true;
+        }
+        return changed;
+    }
+
+    /**
+     * Follow a chain of labels that start with an unconditional jump; a
+     * chain that loops back on itself is left alone.
+     */
+    private static String finalTarget(List<Instr> code,
+                                      Map<String, Integer> labels,
+                                      String target) {
+        Set<String> seen = new HashSet<String>();
+        String cur = target;
+        while (seen.add(cur) && labels.containsKey(cur)) {
+            int j = labels.get(cur);
+            while (j < code.size() && code.get(j).isLabel()) {
+                j++;
+            }
+            if (j == code.size() || !code.get(j).isJump()) {
+                return cur;
+            }
+            cur = code.get(j).target();
+        }
+        return labels.containsKey(cur) && !seen.contains(cur) ? cur : target;
+    }
+
+    /**
+     * A jump or branch to one of the labels that immediately follow it
+     * does nothing.
+     */
+    private static boolean removeJumpsToNext(List<Instr> code) {
+        boolean changed = false;
+        for (int k = 0; k < code.size(); k++) {
+            String target = code.get(k).target();
+            if (target == null) {
+                continue;
+            }
+            for (int j = k + 1; j < code.size() && code.get(j).isLabel(); j++) {
+                if (code.get(j).text.equals(target)) {
+                    code.remove(k);
+                    k--;
+                    changed = true;
+                    break;
+                }
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Instructions after an unconditional jump or return and before the
+     * next label can never run.
+     */
+    private static boolean removeUnreachable(List<Instr> code) {
+        boolean changed = false;
+        for (int k = 0; k < code.size(); k++) {
+            if (!code.get(k).isInstr() || code.get(k).fallsThrough()) {
+                continue;
+            }
+            while (k + 1 < code.size() && code.get(k + 1).isInstr()) {
+                code.remove(k + 1);
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Local labels (.Ln) that no instruction refers to are removed, which
+     * joins the blocks on either side of them.
+     */
+    private static boolean removeUnusedLabels(List<Instr> code) {
+        Set<String> used = new HashSet<String>();
+        for (Instr ins : code) {
+            for (Operand a : ins.args) {
+                if (a instanceof LabelRef) {
+                    used.add(((LabelRef)a).name());
+                }
+            }
+        }
+        boolean changed = false;
+        Iterator<Instr> it = code.iterator();
+        while (it.hasNext()) {
+            Instr ins = it.next();
+            if (ins.isLabel() && ins.text.startsWith(".L") &&
+                !used.contains(ins.text)) {
+                it.remove();
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    private static boolean removeSelfMoves(List<Instr> code) {
+        boolean changed = false;
+        Iterator<Instr> it = code.iterator();
+        while (it.hasNext()) {
+            Instr ins = it.next();
+            if (ins.is(Opcode.MOVE) && ins.args[0] == ins.args[1]) {
+                it.remove();
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    private static Map<String, Integer> labelIndex(List<Instr> code) {
+        Map<String, Integer> labels = new HashMap<String, Integer>();
+        for (int k = 0; k < code.size(); k++) {
+            if (code.get(k).isLabel()) {
+                labels.put(code.get(k).text, k);
+            }
+        }
+        return labels;
+    }
+
+    // **********************************************************************
+    // stack adjustments
+    // **********************************************************************
+
+    /**
+     * Delay "addu/subu $sp, $sp, k" to the end of its basic block (or to the
+     * next instruction that needs $sp itself), fixing up $sp-relative
+     * operands on the way, and merge the delayed adjustments.
+     */
+    private static void sinkStackAdjustments(List<Instr> code) {
+        List<Instr> out = new ArrayList<Instr>();
+        int pending = 0;    // amount still to be added to $sp
+        for (Instr ins : code) {
+            if (isSpAdjust(ins, Opcode.ADDU) || isSpAdjust(ins, Opcode.SUBU)) {
+                pending += ins.is(Opcode.ADDU) ? ins.imm(2) : -ins.imm(2);
+                continue;
+            }
+
+            if (pending != 0 && ins.isInstr() && canMoveAcross(ins)) {
+                out.add(adjustSp(ins, pending));
+                continue;
+            }
+
+            if (pending != 0 && !overwritesSp(ins)) {
+                out.add(spAdjustment(pending));
+            }
+            pending = 0;
+            out.add(ins);
+        }
+        if (pending != 0) {
+            out.add(spAdjustment(pending));
+        }
+        code.clear();
+        code.addAll(out);
+    }
+
+    /**
+     * Is this "addu/subu R, $sp, k"?
+     */
+    private static boolean isSpOffset(Instr ins) {
+        return (ins.is(Opcode.ADDU) || ins.is(Opcode.SUBU)) &&
+               ins.args.length == 3 && ins.isReg(1, Reg.SP) && ins.isImm(2);
+    }
+
+    /**
+     * Can a pending $sp adjustment be moved below this instruction?  Only
+     * if the instruction stays in the block and uses $sp at most as the
+     * base of a memory operand or as the source of "addu/subu R, $sp, k".
+     */
+    private static boolean canMoveAcross(Instr ins) {
+        if (ins.isJump() || ins.isBranch() || ins.hasImplicitOperands()) {
+            return false;
+        }
+        if (ins.defs().contains(Reg.SP)) {
+            return false;
+        }
+        if (isSpOffset(ins)) {
+            return true;
+        }
+        for (Operand a : ins.args) {
+            if (a == Reg.SP) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Rewrite an instruction so that it gives the same result although $sp
+     * is still off by -pending.
+     */
+    private static Instr adjustSp(Instr ins, int pending) {
+        Operand[] args = ins.args.clone();
+        if (isSpOffset(ins)) {
+            int k = ins.imm(2);
+            args[2] = new Imm(ins.is(Opcode.ADDU) ? k + pending : k - pending);
+        } else {
+            for (int k = 0; k < args.length; k++) {
+                if (args[k] instanceof Mem && ((Mem)args[k]).base() == Reg.SP) {
+                    args[k] = new Mem(((Mem)args[k]).offset() + pending, Reg.SP);
+                }
+            }
+        }
+        return ins.with(args);
+    }
+
+    /**
+     * Does the instruction set $sp without reading it (so that a pending
+     * adjustment is dead)?
+     */
+    private static boolean overwritesSp(Instr ins) {
+        return ins.dest() == Reg.SP && !ins.uses().contains(Reg.SP);
+    }
+
+    private static Instr spAdjustment(int pending) {
+        if (pending < 0) {
+            return Instr.op(Opcode.SUBU, "", Reg.SP, Reg.SP, new Imm(-pending));
+        }
+        return Instr.op(Opcode.ADDU, "", Reg.SP, Reg.SP, new Imm(pending));
+    }
+}
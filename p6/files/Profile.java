@@ -0,0 +1,307 @@
+import java.io.*;
+import java.util.*;
+
+/**
+ * Profile
+ *
+ * Profile-guided optimization in two builds.  The instrumented build
+ * (P6 -profile-generate <file>) counts, in words of the data section:
+ *
+ *   "call <label>"    the calls of each function (at its entry)
+ *   "enter <site>"    the executions of each if, if-else, while and
+ *                     repeat statement
+ *   "taken <site>"    how often the body of an if or while (the then
+ *                     branch of an if-else) was entered, and the total
+ *                     iteration count of a repeat loop
+ *
+ * where a site is the line:column of the statement's condition (or
+ * count).  When main returns, it calls the run-time routine rt.profile,
+ * which writes one "<count> <key>" line per counter to the file, with
+ * SPIM's file syscalls.  A counter stops at 2^31 - 1 rather than
+ * wrapping.  The instrumented build goes straight from the AST (P6
+ * rejects -O with -profile-generate) and makes no tail calls, so every
+ * call returns through its function's exit and main always reaches the
+ * dump.
+ *
+ * The next build reads the file back (P6 -profile-use <file>) and uses
+ * the counts for
+ *
+ *   - block layout: the arm of a branch taken less often than not is
+ *     cold.  Straight from the AST, cold code is placed out of line,
+ *     after the function's exit (see Codegen.beginColdCode); in the SSA
+ *     form, the order of the blocks keeps the likely path falling through
+ *     (see Block.cold);
+ *   - inlining: a function that was never called is not inlined, and one
+ *     called at least HOT_CALLS times may be larger (see IRInline);
+ *   - loop unrolling: a repeat loop is not unrolled more times than it
+ *     iterates on average, and a hot one may have a longer body (see
+ *     RepeatStmtNode).
+ *
+ * Sites are found by position, so the profile must come from the same
+ * source.  Keys missing from the profile leave the static heuristics in
+ * charge.
+ */
+class Profile {
+    // calls for a function to be hot
+    public static final int HOT_CALLS = 1000;
+
+    // average iterations for a loop to be hot
+    public static final int HOT_TRIPS = 16;
+
+    // instrumentation: the profile file to write, and the index of each
+    // counter, in order
+    private static String outFile = null;
+    private static Map<String, Integer> counters = new LinkedHashMap<String, Integer>();
+
+    // the profile being used
+    private static Map<String, Integer> counts = null;
+
+    // the run-time routine writing the profile, and its data
+    private static final String DUMP = "rt.profile";
+    private static final String COUNTS = "rt.counts";
+    private static final String KEYS = "rt.keys";
+    private static final String LINE = "rt.line";
+    private static final String FILE = "rt.file";
+
+    // open(2) flags O_WRONLY | O_CREAT | O_TRUNC (SPIM passes them on)
+    // and mode 0644
+    private static final int OPEN_FLAGS = 0x241;
+    private static final int OPEN_MODE = 0644;
+
+    /**
+     * Instrument the code generated from now on, writing the profile to
+     * path.
+     */
+    public static void instrument(String path) {
+        outFile = path;
+    }
+
+    public static boolean instrumenting() {
+        return outFile != null;
+    }
+
+    /**
+     * Read the profile at path.
+     */
+    public static void load(String path) throws IOException {
+        counts = new HashMap<String, Integer>();
+        try (BufferedReader in = new BufferedReader(new FileReader(path))) {
+            String line;
+            for (int n = 1; (line = in.readLine()) != null; n++) {
+                int space = line.indexOf(' ');
+                try {
+                    counts.put(line.substring(space + 1),
+                               Integer.parseInt(line.substring(0, space)));
+                } catch (RuntimeException ex) {
+                    throw new IOException("bad profile line " + n + ": " + line);
+                }
+            }
+        }
+    }
+
+    // **********************************************************************
+    // keys
+    // **********************************************************************
+
+    public static String site(ExpNode exp) {
+        return exp.lineNum() + ":" + exp.charNum();
+    }
+
+    public static String callKey(String label) {
+        return "call " + label;
+    }
+
+    public static String enterKey(String site) {
+        return "enter " + site;
+    }
+
+    public static String takenKey(String site) {
+        return "taken " + site;
+    }
+
+    // **********************************************************************
+    // using the profile
+    // **********************************************************************
+
+    /**
+     * Return the count of key in the profile, or -1 if it is not there.
+     */
+    public static int count(String key) {
+        Integer n = counts == null ? null : counts.get(key);
+        return n == null ? -1 : n;
+    }
+
+    /**
+     * Was the branch at site taken less often than not?  For a loop, the
+     * branch is the test, which falls through once per entry.
+     */
+    public static boolean unlikely(String site, boolean loop) {
+        return bias(site, loop) < 0;
+    }
+
+    /**
+     * Was the branch at site taken more often than not?
+     */
+    public static boolean likely(String site, boolean loop) {
+        return bias(site, loop) > 0;
+    }
+
+    // the sign of (times taken - times not taken), 0 if not known
+    private static int bias(String site, boolean loop) {
+        int enter = count(enterKey(site));
+        int taken = count(takenKey(site));
+        if (enter < 0 || taken < 0) {
+            return 0;
+        }
+        return Integer.compare(taken, loop ? enter : enter - taken);
+    }
+
+    /**
+     * Return the average number of iterations of the loop at site, or -1
+     * if it is not known (0 if the loop never ran).
+     */
+    public static int averageTrips(String site) {
+        int enter = count(enterKey(site));
+        int taken = count(takenKey(site));
+        if (enter < 0 || taken < 0) {
+            return -1;
+        }
+        return enter == 0 ? 0 : taken / enter;
+    }
+
+    // **********************************************************************
+    // instrumentation
+    // **********************************************************************
+
+    private static int counter(String key) {
+        Integer k = counters.get(key);
+        if (k == null) {
+            k = counters.size();
+            counters.put(key, k);
+        }
+        return k;
+    }
+
+    /**
+     * Generate code adding 1 to the counter key (with $t1 as scratch).
+     */
+    public static void genCount(String key) {
+        LabelRef word = Codegen.label(COUNTS + "+" + 4 * counter(key));
+        Codegen.generateWithComment(Opcode.LW, key, Codegen.T1, word);
+        Codegen.generate(Opcode.ADDIU, Codegen.T1, Codegen.T1, 1);
+        genSaturatedStore(word);
+    }
+
+    /**
+     * Generate code adding reg (positive, not $t1) to the counter key.
+     */
+    public static void genAdd(String key, Reg reg) {
+        LabelRef word = Codegen.label(COUNTS + "+" + 4 * counter(key));
+        Codegen.generateWithComment(Opcode.LW, key, Codegen.T1, word);
+        Codegen.generate(Opcode.ADDU, Codegen.T1, Codegen.T1, reg);
+        genSaturatedStore(word);
+    }
+
+    // store the new count in $t1 unless it wrapped, which leaves the
+    // counter at most 2^31 - 1: the instrumentation must not trap where
+    // the program does not, and the profile holds no negative counts
+    private static void genSaturatedStore(LabelRef word) {
+        String full = Codegen.nextLabel();
+        Codegen.generate(Opcode.BLTZ, Codegen.T1, Codegen.label(full));
+        Codegen.generate(Opcode.SW, Codegen.T1, word);
+        Codegen.genLabel(full);
+    }
+
+    /**
+     * Generate the call writing the profile, at main's exit.
+     */
+    public static void genDump() {
+        Codegen.generateWithComment(Opcode.JAL, "write the profile", Codegen.label(DUMP));
+    }
+
+    // **********************************************************************
+    // genRuntime
+    //   generate the counters, their keys (one per line, in counter
+    //   order) and rt.profile, which opens the profile file and writes
+    //   each line as the count in decimal, a space and the key; it
+    //   changes $v0, $a0-$a2 and $t0-$t9
+    // **********************************************************************
+    public static void genRuntime() {
+        StringBuilder keys = new StringBuilder();
+        int longest = 0;
+        for (String key : counters.keySet()) {
+            keys.append(key).append("\\n");
+            longest = Math.max(longest, key.length());
+        }
+        Codegen.genData(COUNTS, ".space " + 4 * counters.size());
+        Codegen.genData(KEYS, ".asciiz \"" + keys + "\"");
+        Codegen.genData(LINE, ".space " + (12 + longest + 2));
+        Codegen.genData(FILE, ".asciiz \"" + escape(outFile) + "\"");
+
+        Reg fd = Reg.T2, key = Reg.T3, count = Reg.T4, left = Reg.T5;
+        Reg start = Reg.T6, val = Reg.T7, ten = Reg.T8, c = Reg.T9;
+        Reg end = Codegen.T1;
+        String line = Codegen.nextLabel();
+        String digit = Codegen.nextLabel();
+        String copy = Codegen.nextLabel();
+        String done = Codegen.nextLabel();
+
+        Codegen.genLabel(DUMP, "write the profile");
+        Codegen.generate(Opcode.LA, Codegen.A0, Codegen.label(FILE));
+        Codegen.generate(Opcode.LI, Codegen.A1, OPEN_FLAGS);
+        Codegen.generate(Opcode.LI, Reg.A2, OPEN_MODE);
+        Codegen.generate(Opcode.LI, Codegen.V0, 13);
+        Codegen.generate(Opcode.SYSCALL);
+        Codegen.generate(Opcode.BLTZ, Codegen.V0, Codegen.label(done));
+        Codegen.generate(Opcode.MOVE, fd, Codegen.V0);
+        Codegen.generate(Opcode.LA, key, Codegen.label(KEYS));
+        Codegen.generate(Opcode.LA, count, Codegen.label(COUNTS));
+        Codegen.generate(Opcode.LI, left, counters.size());
+        Codegen.generate(Opcode.LI, ten, 10);
+
+        // the digits go right to left, ending 12 bytes into the line
+        Codegen.genLabel(line);
+        Codegen.generateIndexed(Opcode.LW, val, count, 0);
+        Codegen.generate(Opcode.LA, end, Codegen.label(LINE));
+        Codegen.generate(Opcode.ADDIU, end, end, 12);
+        Codegen.generate(Opcode.MOVE, start, end);
+        Codegen.genLabel(digit);
+        Codegen.generate(Opcode.ADDIU, start, start, -1);
+        Codegen.generate(Opcode.REM, c, val, ten);
+        Codegen.generate(Opcode.ADDIU, c, c, '0');
+        Codegen.generateIndexed(Opcode.SB, c, start, 0);
+        Codegen.generate(Opcode.DIV, val, val, ten);
+        Codegen.generate(Opcode.BNEZ, val, Codegen.label(digit));
+        Codegen.generate(Opcode.LI, c, ' ');
+        Codegen.generateIndexed(Opcode.SB, c, end, 0);
+        // then the key, up to and including its newline
+        Codegen.genLabel(copy);
+        Codegen.generate(Opcode.ADDIU, end, end, 1);
+        Codegen.generateIndexed(Opcode.LBU, c, key, 0);
+        Codegen.generate(Opcode.ADDIU, key, key, 1);
+        Codegen.generateIndexed(Opcode.SB, c, end, 0);
+        Codegen.generate(Opcode.LI, Codegen.T0, '\n');
+        Codegen.generate(Opcode.BNE, c, Codegen.T0, Codegen.label(copy));
+        Codegen.generate(Opcode.ADDIU, end, end, 1);
+
+        Codegen.generate(Opcode.MOVE, Codegen.A0, fd);
+        Codegen.generate(Opcode.MOVE, Codegen.A1, start);
+        Codegen.generate(Opcode.SUBU, Reg.A2, end, start);
+        Codegen.generate(Opcode.LI, Codegen.V0, 15);
+        Codegen.generate(Opcode.SYSCALL);
+        Codegen.generate(Opcode.ADDIU, count, count, 4);
+        Codegen.generate(Opcode.ADDIU, left, left, -1);
+        Codegen.generate(Opcode.BNEZ, left, Codegen.label(line));
+
+        Codegen.generate(Opcode.MOVE, Codegen.A0, fd);
+        Codegen.generate(Opcode.LI, Codegen.V0, 16);
+        Codegen.generate(Opcode.SYSCALL);
+        Codegen.genLabel(done);
+        Codegen.generate(Opcode.JR, Codegen.RA);
+    }
+
+    // the file name as the body of an .asciiz string
+    private static String escape(String s) {
+        return s.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+}
@@ -0,0 +1,37 @@
+/**
+ * The MIPS registers the code generator uses, as instruction operands.
+ */
+enum Reg implements Operand {
+    ZERO("$zero"),
+    V0("$v0"), V1("$v1"),
+    A0("$a0"), A1("$a1"), A2("$a2"), A3("$a3"),
+    T0("$t0"), T1("$t1"), T2("$t2"), T3("$t3"), T4("$t4"),
+    T5("$t5"), T6("$t6"), T7("$t7"), T8("$t8"), T9("$t9"),
+    S0("$s0"), S1("$s1"), S2("$s2"), S3("$s3"),
+    S4("$s4"), S5("$s5"), S6("$s6"), S7("$s7"),
+    GP("$gp"), SP("$sp"), FP("$fp"), RA("$ra");
+
+    private final String name;
+
+    Reg(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Is this one of the temporaries $t0-$t9 (not preserved by calls)?
+     */
+    public boolean isTemp() {
+        return compareTo(T0) >= 0 && compareTo(T9) <= 0;
+    }
+
+    /**
+     * Is this one of the callee-saved registers $s0-$s7?
+     */
+    public boolean isSaved() {
+        return compareTo(S0) >= 0 && compareTo(S7) <= 0;
+    }
+
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,192 @@
+import java.util.*;
+
+/**
+ * RegAlloc
+ *
+ * Assigns the callee-saved registers $s0-$s7 to the int and bool formals
+ * and locals of one function.
+ *
+ * The AST of the function body is walked once (see the liveRanges methods
+ * in ast.java).  Every statement advances a position counter; a variable's
+ * live interval runs from its declaration to the end of the scope that
+ * declares it, and every use adds to its weight (uses inside loops count
+ * ten times as much per nesting level).  Because C-- has no address-of,
+ * lexical lifetimes are safe intervals, and variables of sibling scopes get
+ * disjoint intervals that can share a register.
+ *
+ * allocate() then runs linear scan over the intervals.  When no register is
+ * free, the interval with the smallest weight among the active ones and the
+ * new one stays in its stack slot.
+ */
+class RegAlloc {
+    private static final Reg[] REGS = {
+        Reg.S0, Reg.S1, Reg.S2, Reg.S3, Reg.S4, Reg.S5, Reg.S6, Reg.S7
+    };
+
+    private static final int MAX_LOOP_DEPTH = 4;
+
+    private static class Interval {
+        TSym sym;
+        int start;
+        int end;
+        double weight;
+        Reg reg;
+
+        Interval(TSym sym, int start) {
+            this.sym = sym;
+            this.start = start;
+        }
+    }
+
+    private List<Interval> intervals = new ArrayList<Interval>();
+    private Map<TSym, Interval> symMap = new HashMap<TSym, Interval>();
+    private LinkedList<List<Interval>> scopes = new LinkedList<List<Interval>>();
+    private int pos = 0;
+    private int loopDepth = 0;
+    private boolean calls = false;
+
+    public RegAlloc() {
+        scopes.addFirst(new ArrayList<Interval>());
+    }
+
+    /**
+     * Declare a formal or local in the current scope.  Only int and bool
+     * variables are candidates for a register.
+     */
+    public void declare(TSym sym) {
+        if (sym == null || sym.getIsGlobal() ||
+            !(sym.getType().isIntType() || sym.getType().isBoolType())) {
+            return;
+        }
+        Interval i = new Interval(sym, pos);
+        intervals.add(i);
+        symMap.put(sym, i);
+        scopes.getFirst().add(i);
+    }
+
+    /**
+     * Record a use (read or write) of a variable.
+     */
+    public void use(TSym sym) {
+        Interval i = symMap.get(sym);
+        if (i != null) {
+            i.weight += Math.pow(10, Math.min(loopDepth, MAX_LOOP_DEPTH));
+        }
+    }
+
+    /**
+     * Advance to the next statement.
+     */
+    public void step() {
+        pos++;
+    }
+
+    public void enterScope() {
+        pos++;
+        scopes.addFirst(new ArrayList<Interval>());
+    }
+
+    public void exitScope() {
+        for (Interval i : scopes.removeFirst()) {
+            i.end = pos;
+        }
+        pos++;
+    }
+
+    /**
+     * Record that the function makes a call.
+     */
+    public void call() {
+        calls = true;
+    }
+
+    public boolean makesCalls() {
+        return calls;
+    }
+
+    public void enterLoop() {
+        loopDepth++;
+    }
+
+    public void exitLoop() {
+        loopDepth--;
+    }
+
+    /**
+     * Run linear scan over the recorded intervals, link the chosen
+     * register to each allocated TSym, and return the registers used
+     * (which the function must save and restore).
+     */
+    public List<Reg> allocate() {
+        // the outermost scope (formals and top-level locals) ends here
+        while (!scopes.isEmpty()) {
+            exitScope();
+        }
+
+        List<Interval> sorted = new ArrayList<Interval>();
+        for (Interval i : intervals) {
+            if (i.weight > 0) {
+                sorted.add(i);
+            }
+        }
+        Collections.sort(sorted, new Comparator<Interval>() {
+            public int compare(Interval a, Interval b) {
+                return a.start - b.start;
+            }
+        });
+
+        List<Interval> active = new ArrayList<Interval>();
+        for (Interval cur : sorted) {
+            // expire intervals that ended before this one starts
+            Iterator<Interval> it = active.iterator();
+            while (it.hasNext()) {
+                if (it.next().end < cur.start) {
+                    it.remove();
+                }
+            }
+
+            Reg reg = freeReg(active);
+            if (reg != null) {
+                cur.reg = reg;
+                active.add(cur);
+                continue;
+            }
+
+            // no register: the lightest interval stays in memory
+            Interval victim = cur;
+            for (Interval i : active) {
+                if (i.weight < victim.weight) {
+                    victim = i;
+                }
+            }
+            if (victim != cur) {
+                cur.reg = victim.reg;
+                victim.reg = null;
+                active.remove(victim);
+                active.add(cur);
+            }
+        }
+
+        Set<Reg> used = EnumSet.noneOf(Reg.class);
+        for (Interval i : sorted) {
+            i.sym.setReg(i.reg);
+            if (i.reg != null) {
+                used.add(i.reg);
+            }
+        }
+        return new ArrayList<Reg>(used);
+    }
+
+    private static Reg freeReg(List<Interval> active) {
+        for (Reg reg : REGS) {
+            boolean taken = false;
+            for (Interval i : active) {
+                taken = taken || reg == i.reg;
+            }
+            if (!taken) {
+                return reg;
+            }
+        }
+        return null;
+    }
+}
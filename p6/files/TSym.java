@@ -8,6 +8,7 @@ public class TSym {
     private Type type;
     private int offset;
     private boolean isGlobal = true;
+    private Reg reg = null;      // register holding a local, if any
 
     public void setIsGlobal(boolean isGlobal) {
         this.isGlobal = isGlobal;
@@ -36,6 +37,21 @@ public class TSym {
     public void setOffset(int offset) {
         this.offset = offset;
     }
+
+    public Reg getReg() {
+        return reg;
+    }
+
+    public void setReg(Reg reg) {
+        this.reg = reg;
+    }
+
+    /**
+     * Return the number of bytes a variable of this symbol occupies.
+     */
+    public int getSize() {
+        return 4;
+    }
 }
 
 /**
@@ -49,11 +65,29 @@ class FnSym extends TSym {
     private int numParams;
     private List<Type> paramTypes;
 
+    // the offset of the next local's frame slot; a nested scope frees
+    // its locals' slots when it ends (see freeSlots), so the locals of
+    // disjoint scopes share slots, and frameEnd is where the slots of the
+    // deepest nesting end
     public int nextOffset = 0;
+    private int frameEnd = 0;
 
     private int sizeParams;
     private int sizeLocals;
 
+    // callee-saved registers used by the function, and the offset of the
+    // frame slot where the first one is saved
+    private List<Reg> savedRegs = new ArrayList<Reg>();
+    private int savedRegsOffset;
+
+    // a leaf function makes no calls, so it does not save $ra; a frameless
+    // one has nothing in its frame and does not set up $fp either
+    private boolean leaf;
+    private boolean frameless;
+
+    // the label of the function's exit sequence, where all returns go
+    private String exitLabel;
+
     public FnSym(Type type, int numparams) {
         super(new FnType());
         returnType = type;
@@ -76,6 +110,69 @@ class FnSym extends TSym {
         this.sizeLocals = sizeLocals;
     }
 
+    /**
+     * Return the offset of size bytes of new frame slots.
+     */
+    int allocSlots(int size) {
+        int offset = nextOffset;
+        nextOffset += size;
+        frameEnd = Math.max(frameEnd, nextOffset);
+        return offset;
+    }
+
+    /**
+     * Free the slots allocated since nextOffset was mark, at the end of
+     * their scope.
+     */
+    void freeSlots(int mark) {
+        nextOffset = mark;
+    }
+
+    /**
+     * Return the offset just past the formals and locals, the size of
+     * the frame without the saved registers.
+     */
+    int getFrameEnd() {
+        return Math.max(frameEnd, nextOffset);
+    }
+
+    List<Reg> getSavedRegs() {
+        return this.savedRegs;
+    }
+
+    void setSavedRegs(List<Reg> savedRegs, int offset) {
+        this.savedRegs = savedRegs;
+        this.savedRegsOffset = offset;
+    }
+
+    int getSavedRegsOffset() {
+        return this.savedRegsOffset;
+    }
+
+    boolean isLeaf() {
+        return this.leaf;
+    }
+
+    void setLeaf(boolean leaf) {
+        this.leaf = leaf;
+    }
+
+    boolean isFrameless() {
+        return this.frameless;
+    }
+
+    void setFrameless(boolean frameless) {
+        this.frameless = frameless;
+    }
+
+    String getExitLabel() {
+        return this.exitLabel;
+    }
+
+    void setExitLabel(String exitLabel) {
+        this.exitLabel = exitLabel;
+    }
+
     public void addFormals(List<Type> L) {
         paramTypes = L;
     }
@@ -124,9 +221,31 @@ class StructSym extends TSym {
         structType = id;
     }
 
+    // a variable for each scalar field of a local struct, by offset, in
+    // the SSA form (see DotAccessExpNode.genIR)
+    private Map<Integer, TSym> fieldVars = new HashMap<Integer, TSym>();
+
     public IdNode getStructType() {
         return structType;
     }
+
+    public int getSize() {
+        TSym def = structType.sym();
+        if (def instanceof StructDefSym) {
+            return ((StructDefSym)def).getSize();
+        }
+        return 4;
+    }
+
+    public TSym getFieldVar(int offset) {
+        TSym var = fieldVars.get(offset);
+        if (var == null) {
+            var = new TSym(new IntType());
+            var.setIsGlobal(false);
+            fieldVars.put(offset, var);
+        }
+        return var;
+    }
 }
 
 /**
@@ -138,13 +257,27 @@ class StructSym extends TSym {
 class StructDefSym extends TSym {
     // new fields
     private SymTable symTab;
+    private int size;
 
-    public StructDefSym(SymTable table) {
+    /**
+     * The fields are laid out in the order they are declared, each at
+     * the offset of the word after the previous one (a struct field
+     * taking as many words as its own struct).
+     */
+    public StructDefSym(SymTable table, List<TSym> fields) {
         super(new StructDefType());
         symTab = table;
+        for (TSym field : fields) {
+            field.setOffset(size);
+            size += field.getSize();
+        }
     }
 
     public SymTable getSymTable() {
         return symTab;
     }
+
+    public int getSize() {
+        return size;
+    }
 }
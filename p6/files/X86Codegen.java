@@ -0,0 +1,427 @@
+import java.io.*;
+import java.util.*;
+
+/**
+ * X86Codegen
+ *
+ * The x86-64 backend (P6 -x86): instead of MIPS code for SPIM, a C--
+ * program is translated into GNU assembler source for Linux, which is
+ * assembled and linked with
+ *
+ *     as -o prog.o prog.s && ld -o prog prog.o
+ *
+ * The genX86 methods of the AST nodes write the code of the functions
+ * with the helpers of this class; flush adds the string literals and the
+ * run-time support, so the program needs no C library:
+ *
+ *   - an expression leaves its value in %eax (a string its address in
+ *     %rax), saving the left operand of a binary operator on the stack
+ *     while the right one is computed, unless the right one is a literal
+ *     or a variable, which is used directly (see x86Operand)
+ *   - a function is the label "_" + its name; it gets its first six
+ *     arguments in %edi, %esi, %edx, %ecx, %r8d and %r9d and the rest on
+ *     the stack, and returns its value in %eax, as in the System V ABI
+ *   - the word at offset o from $fp in the MIPS frame is at -(o + 4) from
+ *     %rbp (the prologue stores the formals there); a global is a common
+ *     symbol "_" + its name
+ *   - _start calls main and exits; cout and cin call the routines of the
+ *     run-time support, which buffer standard output and input and use
+ *     the read and write system calls
+ *   - a run-time error (division by zero, signed overflow in +, -, unary
+ *     -, ++ or --, which jo catches, as MIPS add and sub trap, or a stack
+ *     overflow, which shows as a SIGSEGV caught on a stack of its own)
+ *     flushes the output, writes a message to standard error and exits
+ *     with 1
+ *
+ * The run-time routines use only the registers a call may change, and
+ * nothing calls into C, so the stack is not kept 16-byte aligned.
+ */
+class X86Codegen {
+    // file into which generated code is written
+    public static PrintWriter p = null;
+
+    // the registers of the first arguments, as ints and as addresses
+    private static final String[] ARG_REGS = {
+        "%edi", "%esi", "%edx", "%ecx", "%r8d", "%r9d"
+    };
+    private static final String[] ARG_REGS64 = {
+        "%rdi", "%rsi", "%rdx", "%rcx", "%r8", "%r9"
+    };
+
+    // for generating labels
+    private static int currLabel = 0;
+
+    // the string literal pool: the label of each literal
+    private static Map<String, String> strings = new LinkedHashMap<String, String>();
+
+    // the label of the epilogue of the function being generated
+    private static String exitLabel;
+
+    // **********************************************************************
+    // output
+    // **********************************************************************
+
+    public static void generate(String opcode, String... operands) {
+        p.print("\t" + opcode);
+        if (operands.length > 0) {
+            p.print("\t" + String.join(", ", operands));
+        }
+        p.println();
+    }
+
+    public static void genLabel(String label) {
+        p.println(label + ":");
+    }
+
+    public static String nextLabel() {
+        return ".L" + currLabel++;
+    }
+
+    // **********************************************************************
+    // names
+    // **********************************************************************
+
+    public static String fnLabel(String name) {
+        return "_" + name;
+    }
+
+    /**
+     * Return the operand of the word at the given offset in variable var
+     * (0 for an int or bool, a field's offset in a struct).
+     */
+    public static String location(TSym var, String name, int offset) {
+        if (var.getIsGlobal()) {
+            return "_" + name + (offset == 0 ? "" : "+" + offset) + "(%rip)";
+        }
+        return "-" + (var.getOffset() - offset + 4) + "(%rbp)";
+    }
+
+    /**
+     * Return the label of a string literal (given by its value) in the
+     * read-only data.
+     */
+    public static String stringLabel(String value) {
+        String label = strings.get(value);
+        if (label == null) {
+            label = ".LS" + strings.size();
+            strings.put(value, label);
+        }
+        return label;
+    }
+
+    // **********************************************************************
+    // functions and calls
+    // **********************************************************************
+
+    /**
+     * Start function f: set up its frame, of the size of the MIPS one
+     * rounded up to 16 bytes, store its formals in their words and zero
+     * its locals (which start out as 0 with the other backends too).
+     */
+    public static void genPrologue(String name, FnSym f) {
+        exitLabel = nextLabel();
+        genLabel(fnLabel(name));
+        generate("pushq", "%rbp");
+        generate("movq", "%rsp", "%rbp");
+        int frameSize = (f.getFrameEnd() + 15) & ~15;
+        if (frameSize > 0) {
+            generate("subq", "$" + frameSize, "%rsp");
+        }
+        for (int k = 0; k < f.getNumParams(); k++) {
+            String formal = "-" + (4 * k + 4) + "(%rbp)";
+            if (k < ARG_REGS.length) {
+                generate("movl", ARG_REGS[k], formal);
+            } else {
+                generate("movl", (16 + 8 * (k - ARG_REGS.length)) + "(%rbp)", "%eax");
+                generate("movl", "%eax", formal);
+            }
+        }
+        for (int offset = 4 * f.getNumParams(); offset < f.getFrameEnd(); offset += 4) {
+            generate("movl", "$0", "-" + (offset + 4) + "(%rbp)");
+        }
+    }
+
+    public static void genEpilogue() {
+        genLabel(exitLabel);
+        generate("leave");
+        generate("ret");
+    }
+
+    /**
+     * Jump to the epilogue of the function being generated.
+     */
+    public static void genReturn() {
+        generate("jmp", exitLabel);
+    }
+
+    /**
+     * Call function name with the arguments in args, which are computed
+     * in order; the ones passed on the stack are stored right away below
+     * the saved register arguments, which are then popped into their
+     * registers.
+     */
+    public static void genCall(String name, List<ExpNode> args) {
+        int numRegs = Math.min(args.size(), ARG_REGS.length);
+        int stackBytes = 8 * (args.size() - numRegs);
+        if (stackBytes > 0) {
+            generate("subq", "$" + stackBytes, "%rsp");
+        }
+        for (int k = 0; k < args.size(); k++) {
+            args.get(k).genX86();
+            if (k < numRegs) {
+                generate("pushq", "%rax");
+            } else {
+                generate("movl", "%eax", (8 * k) + "(%rsp)");
+            }
+        }
+        for (int k = numRegs - 1; k >= 0; k--) {
+            generate("popq", ARG_REGS64[k]);
+        }
+        generate("call", fnLabel(name));
+        if (stackBytes > 0) {
+            generate("addq", "$" + stackBytes, "%rsp");
+        }
+    }
+
+    // **********************************************************************
+    // the end of the program
+    // **********************************************************************
+
+    /**
+     * Write the string literals and the run-time support, and reset the
+     * pool for the next program.
+     */
+    public static void flush() {
+        p.println("\t.section\t.rodata");
+        for (Map.Entry<String, String> e : strings.entrySet()) {
+            p.println(e.getValue() + ":\t.asciz\t\"" + escape(e.getKey()) + "\"");
+        }
+        p.print(RUNTIME);
+        strings.clear();
+        currLabel = 0;
+    }
+
+    // anything but printable ASCII, quotes and backslashes as octal escapes
+    private static String escape(String s) {
+        StringBuilder b = new StringBuilder();
+        for (char c : s.toCharArray()) {
+            if (c >= ' ' && c <= '~' && c != '"' && c != '\\') {
+                b.append(c);
+            } else {
+                b.append(String.format("\\%03o", (int)c & 0xff));
+            }
+        }
+        return b.toString();
+    }
+
+    private static final String RUNTIME = String.join("\n",
+        "",
+        "# run-time support",
+        "\t.text",
+        "\t.globl\t_start",
+        "# catch SIGSEGV, which is how a stack overflow shows, on a stack of",
+        "# its own, then run main",
+        "_start:",
+        "\tleaq\trt_altstack(%rip), %rax",
+        "\tmovq\t%rax, rt_sigstack(%rip)\t# ss_sp",
+        "\tmovq\t$16384, rt_sigstack+16(%rip)\t# ss_size",
+        "\tmovl\t$131, %eax\t\t# sigaltstack(&ss, 0)",
+        "\tleaq\trt_sigstack(%rip), %rdi",
+        "\txorl\t%esi, %esi",
+        "\tsyscall",
+        "\tleaq\trt_segv(%rip), %rax",
+        "\tmovq\t%rax, rt_sigact(%rip)\t# sa_handler",
+        "\tmovq\t%rax, rt_sigact+16(%rip)\t# sa_restorer (never used)",
+        "\tmovq\t$0x0c000000, rt_sigact+8(%rip)\t# SA_ONSTACK | SA_RESTORER",
+        "\tmovl\t$13, %eax\t\t# rt_sigaction(SIGSEGV, &act, 0, 8)",
+        "\tmovl\t$11, %edi",
+        "\tleaq\trt_sigact(%rip), %rsi",
+        "\txorl\t%edx, %edx",
+        "\tmovl\t$8, %r10d",
+        "\tsyscall",
+        "\tcall\t_main",
+        "\tcall\trt_flush",
+        "\tmovl\t$60, %eax\t\t# exit(0)",
+        "\txorl\t%edi, %edi",
+        "\tsyscall",
+        "",
+        "# write the int in %edi",
+        "rt_write_int:",
+        "\tmovslq\t%edi, %rax",
+        "\tmovq\t%rax, %r8",
+        "\tleaq\trt_digits+24(%rip), %rsi",
+        "\ttestq\t%rax, %rax",
+        "\tjns\t1f",
+        "\tnegq\t%rax",
+        "1:\tmovl\t$10, %ecx",
+        "2:\txorl\t%edx, %edx",
+        "\tdivq\t%rcx",
+        "\taddb\t$48, %dl\t\t# '0'",
+        "\tdecq\t%rsi",
+        "\tmovb\t%dl, (%rsi)",
+        "\ttestq\t%rax, %rax",
+        "\tjnz\t2b",
+        "\ttestq\t%r8, %r8",
+        "\tjns\t3f",
+        "\tdecq\t%rsi",
+        "\tmovb\t$45, (%rsi)\t\t# '-'",
+        "3:\tleaq\trt_digits+24(%rip), %rdx",
+        "\tsubq\t%rsi, %rdx",
+        "\tjmp\trt_write",
+        "",
+        "# write the string %rdi points to",
+        "rt_write_str:",
+        "\tmovq\t%rdi, %rsi",
+        "\tmovq\t%rdi, %rdx",
+        "1:\tcmpb\t$0, (%rdx)",
+        "\tje\t2f",
+        "\tincq\t%rdx",
+        "\tjmp\t1b",
+        "2:\tsubq\t%rsi, %rdx",
+        "",
+        "# copy the %rdx bytes at %rsi to the output buffer",
+        "rt_write:",
+        "\ttestq\t%rdx, %rdx",
+        "\tjz\t3f",
+        "1:\tmovq\trt_outlen(%rip), %rax",
+        "\tcmpq\t$4096, %rax",
+        "\tjb\t2f",
+        "\tpushq\t%rsi",
+        "\tpushq\t%rdx",
+        "\tcall\trt_flush",
+        "\tpopq\t%rdx",
+        "\tpopq\t%rsi",
+        "\txorl\t%eax, %eax",
+        "2:\tmovb\t(%rsi), %cl",
+        "\tleaq\trt_outbuf(%rip), %r8",
+        "\tmovb\t%cl, (%r8,%rax)",
+        "\tincq\t%rax",
+        "\tmovq\t%rax, rt_outlen(%rip)",
+        "\tincq\t%rsi",
+        "\tdecq\t%rdx",
+        "\tjnz\t1b",
+        "3:\tret",
+        "",
+        "# write out the output buffer",
+        "rt_flush:",
+        "\tleaq\trt_outbuf(%rip), %rsi",
+        "\tmovq\trt_outlen(%rip), %rdx",
+        "1:\ttestq\t%rdx, %rdx",
+        "\tjle\t2f",
+        "\tmovl\t$1, %eax\t\t# write(1, ...)",
+        "\tmovl\t$1, %edi",
+        "\tsyscall",
+        "\ttestq\t%rax, %rax",
+        "\tjle\t2f",
+        "\taddq\t%rax, %rsi",
+        "\tsubq\t%rax, %rdx",
+        "\tjmp\t1b",
+        "2:\tmovq\t$0, rt_outlen(%rip)",
+        "\tret",
+        "",
+        "# return the next byte of input in %eax, or -1 at the end",
+        "rt_getc:",
+        "\tmovq\trt_inpos(%rip), %rax",
+        "\tcmpq\trt_inlen(%rip), %rax",
+        "\tjb\t1f",
+        "\txorl\t%eax, %eax\t\t# read(0, ...)",
+        "\txorl\t%edi, %edi",
+        "\tleaq\trt_inbuf(%rip), %rsi",
+        "\tmovl\t$4096, %edx",
+        "\tsyscall",
+        "\ttestq\t%rax, %rax",
+        "\tjle\t2f",
+        "\tmovq\t%rax, rt_inlen(%rip)",
+        "\txorl\t%eax, %eax",
+        "1:\tleaq\trt_inbuf(%rip), %rdx",
+        "\tmovzbl\t(%rdx,%rax), %edx",
+        "\tincq\t%rax",
+        "\tmovq\t%rax, rt_inpos(%rip)",
+        "\tmovl\t%edx, %eax",
+        "\tret",
+        "2:\tmovl\t$-1, %eax",
+        "\tret",
+        "",
+        "# read an int into %eax (0 at the end of the input), flushing the",
+        "# output first",
+        "rt_read_int:",
+        "\tpushq\t%rbx",
+        "\tpushq\t%r12",
+        "\tcall\trt_flush",
+        "1:\tcall\trt_getc",
+        "\tcmpl\t$-1, %eax",
+        "\tje\t5f",
+        "\tcmpl\t$32, %eax\t\t# skip white space",
+        "\tjbe\t1b",
+        "\txorl\t%r12d, %r12d",
+        "\tcmpl\t$43, %eax\t\t# '+'",
+        "\tje\t7f",
+        "\tcmpl\t$45, %eax\t\t# '-'",
+        "\tjne\t2f",
+        "\tmovl\t$1, %r12d",
+        "7:\tcall\trt_getc",
+        "2:\txorl\t%ebx, %ebx",
+        "3:\tsubl\t$48, %eax",
+        "\tcmpl\t$9, %eax",
+        "\tja\t4f",
+        "\timull\t$10, %ebx",
+        "\taddl\t%eax, %ebx",
+        "\tcall\trt_getc",
+        "\tjmp\t3b",
+        "4:\tmovl\t%ebx, %eax",
+        "\ttestl\t%r12d, %r12d",
+        "\tjz\t6f",
+        "\tnegl\t%eax",
+        "\tjmp\t6f",
+        "5:\txorl\t%eax, %eax",
+        "6:\tpopq\t%r12",
+        "\tpopq\t%rbx",
+        "\tret",
+        "",
+        "# the run-time errors: flush the output, write the message to",
+        "# standard error and exit(1)",
+        "rt_div_zero:",
+        "\tleaq\trt_div_msg(%rip), %rsi",
+        "\tmovl\t$rt_div_len, %edx",
+        "\tjmp\trt_error",
+        "rt_overflow:",
+        "\tleaq\trt_overflow_msg(%rip), %rsi",
+        "\tmovl\t$rt_overflow_len, %edx",
+        "\tjmp\trt_error",
+        "rt_segv:",
+        "\tleaq\trt_segv_msg(%rip), %rsi",
+        "\tmovl\t$rt_segv_len, %edx",
+        "rt_error:",
+        "\tpushq\t%rsi",
+        "\tpushq\t%rdx",
+        "\tcall\trt_flush",
+        "\tpopq\t%rdx",
+        "\tpopq\t%rsi",
+        "\tmovl\t$1, %eax\t\t# write(2, ...)",
+        "\tmovl\t$2, %edi",
+        "\tsyscall",
+        "\tmovl\t$60, %eax\t\t# exit(1)",
+        "\tmovl\t$1, %edi",
+        "\tsyscall",
+        "",
+        "\t.section\t.rodata",
+        "rt_div_msg:\t.ascii\t\"Run-time error: division by zero\\n\"",
+        "\t.set\trt_div_len, . - rt_div_msg",
+        "rt_overflow_msg:\t.ascii\t\"Run-time error: integer overflow\\n\"",
+        "\t.set\trt_overflow_len, . - rt_overflow_msg",
+        "rt_segv_msg:\t.ascii\t\"Run-time error: stack overflow\\n\"",
+        "\t.set\trt_segv_len, . - rt_segv_msg",
+        "",
+        "\t.bss",
+        "\t.align\t8",
+        "rt_outlen:\t.zero\t8",
+        "rt_inpos:\t.zero\t8",
+        "rt_inlen:\t.zero\t8",
+        "rt_digits:\t.zero\t24",
+        "rt_outbuf:\t.zero\t4096",
+        "rt_inbuf:\t.zero\t4096",
+        "rt_sigstack:\t.zero\t24\t\t# stack_t: ss_sp, ss_flags, ss_size",
+        "rt_sigact:\t.zero\t32\t\t# struct sigaction",
+        "rt_altstack:\t.zero\t16384",
+        "");
+}
@@ -51,6 +51,7 @@ import java.util.*;
 //       RepeatStmtNode      ExpNode, DeclListNode, StmtListNode
 //       CallStmtNode        CallExpNode
 //       ReturnStmtNode      ExpNode
+//       BlockStmtNode       DeclListNode, StmtListNode  (made by fold)
 //
 //     ExpNode:
 //       IntLitNode          -- none --
@@ -98,7 +99,8 @@ import java.util.*;
 //        UnaryExpNode,    BinaryExpNode,   UnaryMinusNode, NotNode,
 //        PlusNode,        MinusNode,       TimesNode,      DivideNode,
 //        AndNode,         OrNode,          EqualsNode,     NotEqualsNode,
-//        LessNode,        GreaterNode,     LessEqNode,     GreaterEqNode
+//        LessNode,        GreaterNode,     LessEqNode,     GreaterEqNode,
+//        BlockStmtNode
 //
 // **********************************************************************
 
@@ -128,6 +130,15 @@ class ProgramNode extends ASTnode {
 
     public void codeGen() {
         myDeclList.codeGen();
+        Codegen.flush();
+    }
+
+    /**
+     * compile
+     * Compile the functions of the program for the engine.
+     */
+    public void compile(Engine e) {
+        myDeclList.compile(e);
     }
 
     /**
@@ -147,6 +158,17 @@ class ProgramNode extends ASTnode {
         this.symTable = symTab;
     }
 
+    /**
+     * Return the symbol of the main function.
+     */
+    public FnSym mainSym() {
+        try {
+            return (FnSym)symTable.lookupGlobal("main");
+        } catch (EmptySymTableException e) {
+            return null;
+        }
+    }
+
     /**
      * typeCheck
      */
@@ -154,6 +176,34 @@ class ProgramNode extends ASTnode {
         myDeclList.typeCheck();
     }
 
+    /**
+     * fold
+     * Replace constant subexpressions by literals and simplify algebraic
+     * identities (run after typeCheck, before codeGen).
+     */
+    public void fold() {
+        myDeclList.fold();
+    }
+
+    /**
+     * genJvm
+     * Add the fields and methods of the program to the class (see
+     * JvmCodegen).
+     */
+    public void genJvm(ClassFile cf) {
+        myDeclList.genJvm(cf);
+    }
+
+    /**
+     * genX86
+     * Write the program as x86-64 assembler source (see X86Codegen).
+     */
+    public void genX86() {
+        X86Codegen.generate(".text");
+        myDeclList.genX86();
+        X86Codegen.flush();
+    }
+
     public void unparse(PrintWriter p, int indent) {
         myDeclList.unparse(p, indent);
     }
@@ -190,26 +240,44 @@ class DeclListNode extends ASTnode {
      * nameAnalysis
      * Given a symbol table symTab and a global symbol table globalTab
      * (for processing struct names in variable decls), process all of the
-     * decls in the list.
+     * decls in the list.  Return the symbols of the variables declared,
+     * in order.
      */
-    public void nameAnalysis(SymTable symTab, SymTable globalTab) {
+    public List<TSym> nameAnalysis(SymTable symTab, SymTable globalTab) {
+        List<TSym> vars = new ArrayList<TSym>();
         for (DeclNode node : myDecls) {
             if (node instanceof VarDeclNode) {
-                TSym sym = ((VarDeclNode)node).nameAnalysis(symTab, globalTab);
-
+                VarDeclNode decl = (VarDeclNode)node;
+                decl.nameAnalysis(symTab, globalTab);
+                if (decl.getId().sym() != null) {
+                    vars.add(decl.getId().sym());
+                }
             } else {
                 node.nameAnalysis(symTab);
             }
         }
+        return vars;
+    }
+
+    /**
+     * liveRanges
+     * Declare the local variables in the list to the register allocator.
+     */
+    public void liveRanges(RegAlloc ra) {
+        for (DeclNode node : myDecls) {
+            if (node instanceof VarDeclNode) {
+                ra.declare(((VarDeclNode)node).getId().sym());
+            }
+        }
     }
 
     public void nameAnalysisFn(SymTable symTab, FnSym sym) {
         for (DeclNode node : myDecls) {
             if (node instanceof VarDeclNode) {
                 TSym tsym = ((VarDeclNode)node).nameAnalysis(symTab, symTab);
-                tsym.setOffset(sym.nextOffset);
+                // a struct's fields go up from the lowest of its words
+                tsym.setOffset(sym.allocSlots(tsym.getSize()) + tsym.getSize() - 4);
                 tsym.setIsGlobal(false);
-                sym.nextOffset += 4;
             } else {
                 node.nameAnalysis(symTab);
             }
@@ -225,6 +293,42 @@ class DeclListNode extends ASTnode {
         }
     }
 
+    /**
+     * fold
+     */
+    public void fold() {
+        for (DeclNode node : myDecls) {
+            node.fold();
+        }
+    }
+
+    /**
+     * compile
+     */
+    public void compile(Engine e) {
+        for (DeclNode node : myDecls) {
+            node.compile(e);
+        }
+    }
+
+    /**
+     * genJvm
+     */
+    public void genJvm(ClassFile cf) {
+        for (DeclNode node : myDecls) {
+            node.genJvm(cf);
+        }
+    }
+
+    /**
+     * genX86
+     */
+    public void genX86() {
+        for (DeclNode node : myDecls) {
+            node.genX86();
+        }
+    }
+
     public void unparse(PrintWriter p, int indent) {
         Iterator it = myDecls.iterator();
         try {
@@ -275,6 +379,58 @@ class FormalsListNode extends ASTnode {
         return myFormals.size();
     }
 
+    /**
+     * liveRanges
+     * Declare the formals to the register allocator.
+     */
+    public void liveRanges(RegAlloc ra) {
+        for (FormalDeclNode node : myFormals) {
+            ra.declare(node.getId().sym());
+        }
+    }
+
+    /**
+     * codeGen
+     * Move the formals passed in registers (see Codegen.genArgs) to the
+     * registers they were given, or to their stack slots, and load the
+     * other formals that were given a register out of their stack slots.
+     */
+    public void codeGen() {
+        for (FormalDeclNode node : myFormals) {
+            TSym sym = node.getId().sym();
+            int k = sym.getOffset() / 4;
+            if (k < Codegen.ARG_REGS.length) {
+                if (sym.getReg() != null) {
+                    Codegen.generateWithComment(Opcode.MOVE, "formal", sym.getReg(),
+                                                Codegen.ARG_REGS[k]);
+                } else {
+                    Codegen.generateIndexed(Opcode.SW, Codegen.ARG_REGS[k], Codegen.FP,
+                                            -sym.getOffset(), "store formal");
+                }
+            } else if (sym.getReg() != null) {
+                Codegen.generateIndexed(Opcode.LW, sym.getReg(), Codegen.FP,
+                                        -sym.getOffset(), "load formal");
+            }
+        }
+    }
+
+    /**
+     * genIR
+     * Make each formal's value the one passed for it.
+     */
+    public void genIR(IRBuilder b) {
+        for (FormalDeclNode node : myFormals) {
+            TSym sym = node.getId().sym();
+            if (!sym.getType().isIntType() && !sym.getType().isBoolType()) {
+                b.unsupported();
+                continue;
+            }
+            IRInst param = b.emit(IROp.PARAM);
+            param.imm = sym.getOffset();
+            b.writeVariable(sym, param);
+        }
+    }
+
     public void unparse(PrintWriter p, int indent) {
         Iterator<FormalDeclNode> it = myFormals.iterator();
         if (it.hasNext()) { // if there is at least one element
@@ -297,7 +453,15 @@ class FnBodyNode extends ASTnode {
     }
 
     public void codeGen(FnSym sym) {
-        myStmtList.codeGen(sym);
+        myStmtList.codeGen(sym, true);
+    }
+
+    /**
+     * liveRanges
+     */
+    public void liveRanges(RegAlloc ra) {
+        myDeclList.liveRanges(ra);
+        myStmtList.liveRanges(ra);
     }
 
     /**
@@ -307,7 +471,6 @@ class FnBodyNode extends ASTnode {
      * - process the statement list
      */
     public void nameAnalysis(SymTable symTab, FnSym sym) {
-        // sym.setSizeLocals(myDeclList.length()*4);
         sym.setSizeParams(sym.getNumParams()*4);
         myDeclList.nameAnalysisFn(symTab, sym);
         myStmtList.nameAnalysisFn(symTab, sym);
@@ -320,6 +483,41 @@ class FnBodyNode extends ASTnode {
         myStmtList.typeCheck(retType);
     }
 
+    /**
+     * fold
+     */
+    public void fold() {
+        myStmtList.fold();
+    }
+
+    /**
+     * genIR
+     */
+    public void genIR(IRBuilder b) {
+        myStmtList.genIR(b);
+    }
+
+    /**
+     * compile
+     */
+    public Engine.Stmt compile(Engine e) {
+        return myStmtList.compile(e);
+    }
+
+    /**
+     * genJvm
+     */
+    public void genJvm(JvmCode c) {
+        myStmtList.genJvm(c);
+    }
+
+    /**
+     * genX86
+     */
+    public void genX86() {
+        myStmtList.genX86();
+    }
+
     public void unparse(PrintWriter p, int indent) {
         myDeclList.unparse(p, indent);
         myStmtList.unparse(p, indent);
@@ -336,7 +534,32 @@ class StmtListNode extends ASTnode {
     }
 
     public void codeGen(FnSym sym) {
-        for (StmtNode node : myStmts) {
+        codeGen(sym, false);
+    }
+
+    /**
+     * codeGen
+     * atEnd is true for a function body, which returns after its last
+     * statement.  A call statement right before returning is a tail call
+     * (except in an instrumented build, see Profile).
+     */
+    public void codeGen(FnSym sym, boolean atEnd) {
+        ListIterator<StmtNode> it = myStmts.listIterator();
+        while (it.hasNext()) {
+            StmtNode node = it.next();
+            if (node instanceof CallStmtNode) {
+                StmtNode next = null;
+                if (it.hasNext()) {
+                    next = it.next();
+                    it.previous();
+                }
+                if (!Profile.instrumenting() &&
+                    (next == null ? atEnd : next instanceof ReturnStmtNode &&
+                                            !((ReturnStmtNode)next).hasValue())) {
+                    ((CallStmtNode)node).genTailCall(sym);
+                    return;
+                }
+            }
             if (node instanceof ReturnStmtNode) {
                 ReturnStmtNode n = (ReturnStmtNode)node;
                 n.codeGen(sym);
@@ -349,12 +572,28 @@ class StmtListNode extends ASTnode {
             } else if (node instanceof WhileStmtNode) {
                 WhileStmtNode n = (WhileStmtNode)node;
                 n.codeGen(sym);
+            } else if (node instanceof RepeatStmtNode) {
+                RepeatStmtNode n = (RepeatStmtNode)node;
+                n.codeGen(sym);
+            } else if (node instanceof BlockStmtNode) {
+                BlockStmtNode n = (BlockStmtNode)node;
+                n.codeGen(sym);
             } else {
                 node.codeGen();
             }
         }
     }
 
+    /**
+     * liveRanges
+     */
+    public void liveRanges(RegAlloc ra) {
+        for (StmtNode node : myStmts) {
+            ra.step();
+            node.liveRanges(ra);
+        }
+    }
+
     /**
      * nameAnalysis
      * Given a symbol table symTab, process each statement in the list.
@@ -376,6 +615,9 @@ class StmtListNode extends ASTnode {
             } else if (node instanceof WhileStmtNode) {
                 WhileStmtNode n = (WhileStmtNode)node;
                 n.nameAnalysisFn(symTab, sym);
+            } else if (node instanceof RepeatStmtNode) {
+                RepeatStmtNode n = (RepeatStmtNode)node;
+                n.nameAnalysisFn(symTab, sym);
             } else {
                 node.nameAnalysis(symTab);
             }    
@@ -391,6 +633,106 @@ class StmtListNode extends ASTnode {
         }
     }
 
+    /**
+     * fold
+     * Fold each statement, dropping those that do nothing and those after
+     * a statement that always returns.
+     */
+    public void fold() {
+        List<StmtNode> folded = new LinkedList<StmtNode>();
+        for (StmtNode node : myStmts) {
+            StmtNode stmt = node.fold();
+            if (stmt != null) {
+                folded.add(stmt);
+                if (stmt.alwaysReturns()) {
+                    break;
+                }
+            }
+        }
+        myStmts = folded;
+    }
+
+    /**
+     * Does every path through this list end in a return statement?
+     */
+    public boolean alwaysReturns() {
+        for (StmtNode node : myStmts) {
+            if (node.alwaysReturns()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public boolean isEmpty() {
+        return myStmts.isEmpty();
+    }
+
+    /**
+     * Is this list at most maxStmts assignments, increments and
+     * decrements (cheap to copy)?
+     */
+    public boolean isStraightLine(int maxStmts) {
+        if (myStmts.size() > maxStmts) {
+            return false;
+        }
+        for (StmtNode node : myStmts) {
+            if (!(node instanceof AssignStmtNode || node instanceof PostIncStmtNode ||
+                  node instanceof PostDecStmtNode)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * genIR
+     */
+    public void genIR(IRBuilder b) {
+        for (StmtNode node : myStmts) {
+            node.genIR(b);
+        }
+    }
+
+    /**
+     * compile
+     */
+    public Engine.Stmt compile(Engine e) {
+        Engine.Stmt[] stmts = new Engine.Stmt[myStmts.size()];
+        for (int k = 0; k < stmts.length; k++) {
+            stmts[k] = myStmts.get(k).compile(e);
+        }
+        if (stmts.length == 1) {
+            return stmts[0];
+        }
+        return f -> {
+            for (Engine.Stmt stmt : stmts) {
+                if (stmt.exec(f)) {
+                    return true;
+                }
+            }
+            return false;
+        };
+    }
+
+    /**
+     * genJvm
+     */
+    public void genJvm(JvmCode c) {
+        for (StmtNode node : myStmts) {
+            node.genJvm(c);
+        }
+    }
+
+    /**
+     * genX86
+     */
+    public void genX86() {
+        for (StmtNode node : myStmts) {
+            node.genX86();
+        }
+    }
+
     public void unparse(PrintWriter p, int indent) {
         Iterator<StmtNode> it = myStmts.iterator();
         while (it.hasNext()) {
@@ -407,16 +749,31 @@ class ExpListNode extends ASTnode {
         myExps = S;
     }
 
+    /**
+     * codeGen
+     * Pass the values of the expressions as the arguments of a call (see
+     * Codegen.genArgs).
+     */
     public void codeGen() {
         for (ExpNode node : myExps) {
             node.codeGen();
         }
+        Codegen.genArgs(myExps.size());
     }
 
     public int size() {
         return myExps.size();
     }
 
+    /**
+     * liveRanges
+     */
+    public void liveRanges(RegAlloc ra) {
+        for (ExpNode node : myExps) {
+            node.liveRanges(ra);
+        }
+    }
+
     /**
      * nameAnalysis
      * Given a symbol table symTab, process each exp in the list.
@@ -427,6 +784,17 @@ class ExpListNode extends ASTnode {
         }
     }
 
+    /**
+     * fold
+     * Replace each expression in the list by its folded version.
+     */
+    public void fold() {
+        ListIterator<ExpNode> it = myExps.listIterator();
+        while (it.hasNext()) {
+            it.set(it.next().fold());
+        }
+    }
+
     /**
      * typeCheck
      */
@@ -451,6 +819,48 @@ class ExpListNode extends ASTnode {
         }
     }
 
+    /**
+     * genIR
+     * Return the values of the expressions, in order.
+     */
+    public IRInst[] genIR(IRBuilder b) {
+        IRInst[] vals = new IRInst[myExps.size()];
+        int k = 0;
+        for (ExpNode node : myExps) {
+            vals[k++] = node.genIR(b);
+        }
+        return vals;
+    }
+
+    /**
+     * compile
+     */
+    public Engine.Exp[] compile(Engine e) {
+        Engine.Exp[] exps = new Engine.Exp[myExps.size()];
+        for (int k = 0; k < exps.length; k++) {
+            exps[k] = myExps.get(k).compile(e);
+        }
+        return exps;
+    }
+
+    /**
+     * genJvm
+     * Push the values of the expressions, in order.
+     */
+    public void genJvm(JvmCode c) {
+        for (ExpNode node : myExps) {
+            node.genJvm(c);
+        }
+    }
+
+    /**
+     * genX86Call
+     * Call function name with these expressions as the arguments.
+     */
+    public void genX86Call(String name) {
+        X86Codegen.genCall(name, myExps);
+    }
+
     public void unparse(PrintWriter p, int indent) {
         Iterator<ExpNode> it = myExps.iterator();
         if (it.hasNext()) { // if there is at least one element
@@ -479,7 +889,19 @@ abstract class DeclNode extends ASTnode {
     // default version of typeCheck for non-function decls
     public void typeCheck() { }
 
+    // default version of fold for non-function decls
+    public void fold() { }
+
     public void codeGen(){}
+
+    // default version of compile for decls with no code
+    public void compile(Engine e) { }
+
+    // default version of genJvm for decls with no code or data
+    public void genJvm(ClassFile cf) { }
+
+    // default version of genX86 for decls with no code or data
+    public void genX86() { }
 }
 
 class VarDeclNode extends DeclNode {
@@ -491,9 +913,32 @@ class VarDeclNode extends DeclNode {
 
     public void codeGen() {
         if (myId.sym().getIsGlobal()) {
-            Codegen.p.println("\t.data");
-            Codegen.p.println("\t.align 4");
-            Codegen.p.println("_" + myId.name() + ": .space 4");
+            Codegen.genData("_" + myId.name(), ".space " + myId.sym().getSize());
+        }
+    }
+
+    /**
+     * genJvm
+     * A global is a static field per word (see JvmCodegen.globalName).
+     */
+    public void genJvm(ClassFile cf) {
+        TSym sym = myId.sym();
+        if (sym.getIsGlobal()) {
+            for (int offset = 0; offset < sym.getSize(); offset += 4) {
+                cf.addField(ClassFile.ACC_STATIC,
+                            JvmCodegen.globalName(myId.name(), offset), "I");
+            }
+        }
+    }
+
+    /**
+     * genX86
+     * A global is a common symbol, zeroed by the loader.
+     */
+    public void genX86() {
+        if (myId.sym().getIsGlobal()) {
+            X86Codegen.generate(".comm", "_" + myId.name(),
+                                Integer.toString(myId.sym().getSize()), "4");
         }
     }
 
@@ -627,60 +1072,185 @@ class FnDeclNode extends DeclNode {
     public void codeGen() {
         TSym t = myId.sym();
         FnSym f = (FnSym)t;
+
         // preamble
-        Codegen.p.println("\t.text");
         if (myId.name().equals("main")) {
-            Codegen.p.println("\t.globl main");
-            Codegen.p.println("main:");
+            Codegen.genDirective(".globl main");
+            Codegen.genLabel("main");
         } else {
-            Codegen.p.println("\t_" + myId.name() + ":");
+            Codegen.genLabel("_" + myId.name());
         }
         // end preamble
 
+        f.setExitLabel(Codegen.nextLabel());
+
+        // with -O, go through the SSA form when the function fits in it
+        if (Codegen.optimize) {
+            IRFunction fn = genIR(f);
+            if (fn != null) {
+                IROpt.optimize(fn);
+                IRInline.remember(fn);
+                IRLower.lower(fn);
+                return;
+            }
+        }
+
+        // put the most used scalar formals and locals in registers; the
+        // registers are saved in the frame, just below the locals
+        RegAlloc ra = new RegAlloc();
+        myFormalsList.liveRanges(ra);
+        myBody.liveRanges(ra);
+        boolean dumpsProfile = Profile.instrumenting() && myId.name().equals("main");
+        if (dumpsProfile) {
+            ra.call();
+        }
+        List<Reg> regs = ra.allocate();
+        f.setLeaf(!ra.makesCalls());
+        f.setSavedRegs(regs, f.getFrameEnd());
+        f.setSizeLocals(f.getFrameEnd() - (8 + f.getSizeParams()) + 4 * regs.size());
+        Codegen.resetTemps();
+
         // entry
-        Codegen.genPush(Codegen.RA);
-        Codegen.genPush(Codegen.FP);
-        Codegen.generate("addu", Codegen.FP, Codegen.SP, 8 + f.getSizeParams());
-        Codegen.generate("subu", Codegen.SP, Codegen.SP, 8 + f.getSizeLocals());
+        genEntry(f);
+        myFormalsList.codeGen();
+        if (Profile.instrumenting()) {
+            Profile.genCount(Profile.callKey(myId.fnLabel()));
+        }
         // end entry
 
         // body
         myBody.codeGen(f);
         // end body
 
-        // exit
-        Codegen.generateIndexed("lw", Codegen.RA, Codegen.FP, -f.getSizeParams(), "load return address");
-        Codegen.generateWithComment("move", "save control link", Codegen.T0, Codegen.FP);
-        Codegen.generateIndexed("lw", Codegen.FP, Codegen.FP, -(f.getSizeParams() + 4), "restore FP");
-        Codegen.generateWithComment("move", "restore SP", Codegen.SP, Codegen.T0);
-        Codegen.generateWithComment("jr", "return", Codegen.RA);
-        // end exit
+        Codegen.genLabel(f.getExitLabel());
+        if (dumpsProfile) {
+            Profile.genDump();
+        }
+        genExit(f);
+        Codegen.genColdCode();
     }
 
-    public IdNode getId() {
-        return myId;
+    /**
+     * genIR
+     * Build the SSA form of this function, or return null if it uses
+     * something the IR cannot express.
+     */
+    private IRFunction genIR(FnSym f) {
+        IRBuilder b = new IRBuilder(myId.fnLabel(), f);
+        myFormalsList.genIR(b);
+        myBody.genIR(b);
+        return b.finish();
     }
 
     /**
-     * nameAnalysis
-     * Given a symbol table symTab, do:
-     * if this name has already been declared in this scope, then error
-     * else add name to local symbol table
-     * in any case, do the following:
-     *     enter new scope
-     *     process the formals
-     *     if this function is not multiply declared,
-     *         update symbol table entry with types of formals
-     *     process the body of the function
-     *     exit scope
+     * genEntry
+     * Generate the function entry sequence: push the return address and
+     * the control link, set up FP, make room for the locals and save the
+     * registers the function uses (f's frame size and saved registers
+     * must already be set).
      */
-    public TSym nameAnalysis(SymTable symTab) {
-        String name = myId.name();
-        FnSym sym = null;
-        TSym symCheckMul = null;
-
-        try {
-            symCheckMul = symTab.lookupLocal(name);
+    public static void genEntry(FnSym f) {
+        if (f.isFrameless()) {
+            return;
+        }
+        List<Reg> regs = f.getSavedRegs();
+        if (f.isLeaf()) {
+            // the return address stays in $ra, but keep its slot
+            Codegen.generate(Opcode.SUBU, Codegen.SP, Codegen.SP, 4);
+        } else {
+            Codegen.genPush(Codegen.RA);
+        }
+        Codegen.genPush(Codegen.FP);
+        Codegen.generate(Opcode.ADDU, Codegen.FP, Codegen.SP, 8 + f.getSizeParams());
+        if (f.getSizeLocals() > 0) {
+            Codegen.generate(Opcode.SUBU, Codegen.SP, Codegen.SP, f.getSizeLocals());
+        }
+        for (int k = 0; k < regs.size(); k++) {
+            Codegen.generateIndexed(Opcode.SW, regs.get(k), Codegen.FP,
+                                    -(f.getSavedRegsOffset() + 4 * k), "save register");
+        }
+    }
+
+    /**
+     * genExit
+     * Generate the function exit sequence (which follows the function's
+     * exit label; returns jump there).
+     */
+    public static void genExit(FnSym f) {
+        if (f.isFrameless()) {
+            if (f.getSizeParams() > 0) {
+                Codegen.generateWithComment(Opcode.ADDU, "pop args", Codegen.SP, Codegen.SP,
+                                            Codegen.imm(f.getSizeParams()));
+            }
+            Codegen.generateWithComment(Opcode.JR, "return", Codegen.RA);
+            return;
+        }
+        List<Reg> regs = f.getSavedRegs();
+        for (int k = 0; k < regs.size(); k++) {
+            Codegen.generateIndexed(Opcode.LW, regs.get(k), Codegen.FP,
+                                    -(f.getSavedRegsOffset() + 4 * k), "restore register");
+        }
+        if (!f.isLeaf()) {
+            Codegen.generateIndexed(Opcode.LW, Codegen.RA, Codegen.FP, -f.getSizeParams(), "load return address");
+        }
+        Codegen.generateWithComment(Opcode.MOVE, "save control link", Codegen.T0, Codegen.FP);
+        Codegen.generateIndexed(Opcode.LW, Codegen.FP, Codegen.FP, -(f.getSizeParams() + 4), "restore FP");
+        Codegen.generateWithComment(Opcode.MOVE, "restore SP", Codegen.SP, Codegen.T0);
+        Codegen.generateWithComment(Opcode.JR, "return", Codegen.RA);
+    }
+
+    /**
+     * genTailCall
+     * Generate a call, as f's last action, to the function at label whose
+     * numArgs arguments have just been passed (see Codegen.genArgs).  The
+     * callee reuses f's frame: the arguments in the argument area are
+     * moved to where f's own arguments are, which is where the callee
+     * expects them and pops them from, and f's registers, return address
+     * and FP are restored before jumping to it.
+     */
+    public static void genTailCall(FnSym f, int numArgs, String label) {
+        List<Reg> regs = f.getSavedRegs();
+        for (int k = 0; k < regs.size(); k++) {
+            Codegen.generateIndexed(Opcode.LW, regs.get(k), Codegen.FP,
+                                    -(f.getSavedRegsOffset() + 4 * k), "restore register");
+        }
+        Codegen.generateIndexed(Opcode.LW, Codegen.RA, Codegen.FP, -f.getSizeParams(), "load return address");
+        Codegen.generateIndexed(Opcode.LW, Codegen.T1, Codegen.FP, -(f.getSizeParams() + 4), "load control link");
+
+        // the arguments only move up, so copy them from the top down
+        for (int k = Codegen.ARG_REGS.length; k < numArgs; k++) {
+            Codegen.generateIndexed(Opcode.LW, Codegen.T0, Codegen.SP, 4 * (numArgs - k), "move arg");
+            Codegen.generateIndexed(Opcode.SW, Codegen.T0, Codegen.FP, -4 * k);
+        }
+        Codegen.generateWithComment(Opcode.SUBU, "callee's SP", Codegen.SP, Codegen.FP, Codegen.imm(4 * numArgs));
+        Codegen.generateWithComment(Opcode.MOVE, "restore FP", Codegen.FP, Codegen.T1);
+        Codegen.generateWithComment(Opcode.J, "tail call", Codegen.label(label));
+    }
+
+    public IdNode getId() {
+        return myId;
+    }
+
+    /**
+     * nameAnalysis
+     * Given a symbol table symTab, do:
+     * if this name has already been declared in this scope, then error
+     * else add name to local symbol table
+     * in any case, do the following:
+     *     enter new scope
+     *     process the formals
+     *     if this function is not multiply declared,
+     *         update symbol table entry with types of formals
+     *     process the body of the function
+     *     exit scope
+     */
+    public TSym nameAnalysis(SymTable symTab) {
+        String name = myId.name();
+        FnSym sym = null;
+        TSym symCheckMul = null;
+
+        try {
+            symCheckMul = symTab.lookupLocal(name);
         } catch (EmptySymTableException ex) {
                             System.err.println("Unexpected EmptySymTableException " +
                                    " in FnDeclNode.nameAnalysis");
@@ -740,6 +1310,59 @@ class FnDeclNode extends DeclNode {
         myBody.typeCheck(myType.type());
     }
 
+    /**
+     * fold
+     */
+    public void fold() {
+        myBody.fold();
+    }
+
+    /**
+     * compile
+     * Each formal and local is in the frame slot at its offset / 4.
+     */
+    public void compile(Engine e) {
+        FnSym f = (FnSym)myId.sym();
+        Engine.Function fn = e.function(f);
+        fn.frameSize = f.getFrameEnd() / 4;
+        fn.body = myBody.compile(e);
+    }
+
+    /**
+     * genJvm
+     * Add the static method of the function.  Its locals are the JVM
+     * locals after its formals; they start out as 0, as the JVM does not
+     * allow reading a local before it is set.  A function that can reach
+     * the end of its body returns 0 there.
+     */
+    public void genJvm(ClassFile cf) {
+        FnSym f = (FnSym)myId.sym();
+        int numLocals = f.getFrameEnd() / 4;
+        JvmCode c = new JvmCode(cf, numLocals);
+        for (int k = f.getNumParams(); k < numLocals; k++) {
+            c.iconst(0);
+            c.local(JvmCode.ISTORE, k);
+        }
+        myBody.genJvm(c);
+        if (f.getReturnType().isVoidType()) {
+            c.op(JvmCode.RETURN, 0);
+        } else {
+            c.iconst(0);
+            c.op(JvmCode.IRETURN, -1);
+        }
+        cf.addMethod(ClassFile.ACC_STATIC, JvmCodegen.fnName(myId.name()),
+                     JvmCodegen.fnDescriptor(f), c);
+    }
+
+    /**
+     * genX86
+     */
+    public void genX86() {
+        X86Codegen.genPrologue(myId.name(), (FnSym)myId.sym());
+        myBody.genX86();
+        X86Codegen.genEpilogue();
+    }
+
     public void unparse(PrintWriter p, int indent) {
         addIndentation(p, indent);
         myType.unparse(p, 0);
@@ -822,6 +1445,10 @@ class FormalDeclNode extends DeclNode {
         return sym;
     }
 
+    public IdNode getId() {
+        return myId;
+    }
+
     public void unparse(PrintWriter p, int indent) {
         myType.unparse(p, 0);
         p.print(" ");
@@ -872,8 +1499,8 @@ class StructDeclNode extends DeclNode {
         if (!badDecl) {
             try {   // add entry to symbol table
                 SymTable structSymTab = new SymTable();
-                myDeclList.nameAnalysis(structSymTab, symTab);
-                StructDefSym sym = new StructDefSym(structSymTab);
+                List<TSym> fields = myDeclList.nameAnalysis(structSymTab, symTab);
+                StructDefSym sym = new StructDefSym(structSymTab, fields);
                 symTab.addDecl(name, sym);
                 myId.link(sym);
             } catch (DuplicateSymException ex) {
@@ -1000,6 +1627,47 @@ abstract class StmtNode extends ASTnode {
     abstract public void nameAnalysis(SymTable symTab);
     abstract public void typeCheck(Type retType);
     public void codeGen(){}
+
+    // default version of liveRanges for statements that use no variables
+    public void liveRanges(RegAlloc ra) {}
+
+    /**
+     * fold
+     * Fold the expressions in this statement and return the statement to
+     * use in its place, or null if it does nothing (default: this one).
+     */
+    public StmtNode fold() {
+        return this;
+    }
+
+    // default version of alwaysReturns: control reaches the next statement
+    public boolean alwaysReturns() {
+        return false;
+    }
+
+    // default version of genIR for statements the IR cannot express
+    public void genIR(IRBuilder b) {
+        b.unsupported();
+    }
+
+    /**
+     * compile
+     * Return the engine's code for this statement.
+     */
+    abstract public Engine.Stmt compile(Engine e);
+
+    /**
+     * genJvm
+     * Add the bytecode of this statement, which leaves the operand stack
+     * as it found it.
+     */
+    abstract public void genJvm(JvmCode c);
+
+    /**
+     * genX86
+     * Write the x86-64 code of this statement.
+     */
+    abstract public void genX86();
 }
 
 class AssignStmtNode extends StmtNode {
@@ -1009,8 +1677,12 @@ class AssignStmtNode extends StmtNode {
 
     public void codeGen() {
         myAssign.codeGen();
-        // ignore value still stored on stack
-        Codegen.generate("addu", Codegen.SP, Codegen.SP, 4);
+        // ignore value still on the expression stack
+        Codegen.popTemp(Codegen.T0);
+    }
+
+    public void liveRanges(RegAlloc ra) {
+        myAssign.liveRanges(ra);
     }
 
     /**
@@ -1028,6 +1700,47 @@ class AssignStmtNode extends StmtNode {
         myAssign.typeCheck();
     }
 
+    /**
+     * fold
+     */
+    public StmtNode fold() {
+        myAssign.fold();
+        return this;
+    }
+
+    /**
+     * genIR
+     */
+    public void genIR(IRBuilder b) {
+        myAssign.genIR(b);
+    }
+
+    /**
+     * compile
+     */
+    public Engine.Stmt compile(Engine e) {
+        Engine.Exp assign = myAssign.compile(e);
+        return f -> {
+            assign.eval(f);
+            return false;
+        };
+    }
+
+    /**
+     * genJvm
+     */
+    public void genJvm(JvmCode c) {
+        myAssign.genJvm(c);
+        c.op(JvmCode.POP, -1);
+    }
+
+    /**
+     * genX86
+     */
+    public void genX86() {
+        myAssign.genX86();
+    }
+
     public void unparse(PrintWriter p, int indent) {
         addIndentation(p, indent);
         myAssign.unparse(p, -1); // no parentheses
@@ -1044,11 +1757,13 @@ class PostIncStmtNode extends StmtNode {
     }
 
     public void codeGen() {
-        int offset = ((IdNode)myExp).sym().getOffset();
-        myExp.codeGen();
-        Codegen.genPop(Codegen.T0);
-        Codegen.generate("addu", Codegen.T0, Codegen.T0, 1);
-        Codegen.generateIndexed("sw", Codegen.T0, Codegen.FP, -offset);
+        Reg reg = myExp.genLoad(Codegen.T0);
+        Codegen.generate(Opcode.ADD, Codegen.T0, reg, 1);
+        myExp.genStore(Codegen.T0);
+    }
+
+    public void liveRanges(RegAlloc ra) {
+        myExp.liveRanges(ra);
     }
 
     /**
@@ -1071,6 +1786,43 @@ class PostIncStmtNode extends StmtNode {
         }
     }
 
+    /**
+     * genIR
+     */
+    public void genIR(IRBuilder b) {
+        myExp.genIRStore(b, b.emit(IROp.ADD, myExp.genIR(b), b.constant(1)));
+    }
+
+    /**
+     * compile
+     */
+    public Engine.Stmt compile(Engine e) {
+        Engine.Exp val = myExp.compile(e);
+        Engine.Exp store = myExp.compileStore(e, f -> Math.addExact(val.eval(f), 1));
+        return f -> {
+            store.eval(f);
+            return false;
+        };
+    }
+
+    /**
+     * genJvm
+     */
+    public void genJvm(JvmCode c) {
+        myExp.genJvm(c);
+        c.iconst(1);
+        c.invoke(JvmCode.INVOKESTATIC, "java/lang/Math", "addExact", "(II)I");
+        myExp.genJvmStore(c);
+    }
+
+    /**
+     * genX86
+     */
+    public void genX86() {
+        X86Codegen.generate("incl", myExp.x86Operand());
+        X86Codegen.generate("jo", "rt_overflow");
+    }
+
     public void unparse(PrintWriter p, int indent) {
         addIndentation(p, indent);
         myExp.unparse(p, 0);
@@ -1087,11 +1839,13 @@ class PostDecStmtNode extends StmtNode {
     }
 
     public void codeGen() {
-        int offset = ((IdNode)myExp).sym().getOffset();
-        myExp.codeGen();
-        Codegen.genPop(Codegen.T0);
-        Codegen.generate("subu", Codegen.T0, Codegen.T0, 1);
-        Codegen.generateIndexed("sw", Codegen.T0, Codegen.FP, -offset);
+        Reg reg = myExp.genLoad(Codegen.T0);
+        Codegen.generate(Opcode.SUB, Codegen.T0, reg, 1);
+        myExp.genStore(Codegen.T0);
+    }
+
+    public void liveRanges(RegAlloc ra) {
+        myExp.liveRanges(ra);
     }
 
     /**
@@ -1114,6 +1868,43 @@ class PostDecStmtNode extends StmtNode {
         }
     }
 
+    /**
+     * genIR
+     */
+    public void genIR(IRBuilder b) {
+        myExp.genIRStore(b, b.emit(IROp.SUB, myExp.genIR(b), b.constant(1)));
+    }
+
+    /**
+     * compile
+     */
+    public Engine.Stmt compile(Engine e) {
+        Engine.Exp val = myExp.compile(e);
+        Engine.Exp store = myExp.compileStore(e, f -> Math.subtractExact(val.eval(f), 1));
+        return f -> {
+            store.eval(f);
+            return false;
+        };
+    }
+
+    /**
+     * genJvm
+     */
+    public void genJvm(JvmCode c) {
+        myExp.genJvm(c);
+        c.iconst(1);
+        c.invoke(JvmCode.INVOKESTATIC, "java/lang/Math", "subtractExact", "(II)I");
+        myExp.genJvmStore(c);
+    }
+
+    /**
+     * genX86
+     */
+    public void genX86() {
+        X86Codegen.generate("decl", myExp.x86Operand());
+        X86Codegen.generate("jo", "rt_overflow");
+    }
+
     public void unparse(PrintWriter p, int indent) {
         addIndentation(p, indent);
         myExp.unparse(p, 0);
@@ -1130,12 +1921,13 @@ class ReadStmtNode extends StmtNode {
     }
 
     public void codeGen() {
-        Codegen.generate("li", Codegen.V0, 5);
-        Codegen.p.println("syscall");
-        IdNode i = (IdNode)myExp;
-        i.genAddr();
-        Codegen.genPop(Codegen.T0);
-        Codegen.generateIndexed("sw", Codegen.V0, Codegen.T0, 0);
+        Codegen.generate(Opcode.LI, Codegen.V0, 5);
+        Codegen.generate(Opcode.SYSCALL);
+        myExp.genStore(Codegen.V0);
+    }
+
+    public void liveRanges(RegAlloc ra) {
+        myExp.liveRanges(ra);
     }
 
     /**
@@ -1168,6 +1960,40 @@ class ReadStmtNode extends StmtNode {
         }
     }
 
+    /**
+     * genIR
+     */
+    public void genIR(IRBuilder b) {
+        myExp.genIRStore(b, b.emit(IROp.READ));
+    }
+
+    /**
+     * compile
+     */
+    public Engine.Stmt compile(Engine e) {
+        Engine.Exp store = myExp.compileStore(e, f -> e.readInt());
+        return f -> {
+            store.eval(f);
+            return false;
+        };
+    }
+
+    /**
+     * genJvm
+     */
+    public void genJvm(JvmCode c) {
+        JvmCodegen.genReadCall(c);
+        myExp.genJvmStore(c);
+    }
+
+    /**
+     * genX86
+     */
+    public void genX86() {
+        X86Codegen.generate("call", "rt_read_int");
+        X86Codegen.generate("movl", "%eax", myExp.x86Operand());
+    }
+
     public void unparse(PrintWriter p, int indent) {
         addIndentation(p, indent);
         p.print("cin >> ");
@@ -1186,16 +2012,22 @@ class WriteStmtNode extends StmtNode {
 
     public void codeGen() {
         myExp.codeGen();
+        Reg reg = Codegen.popTemp(Codegen.A0);
+        if (reg != Codegen.A0) {
+            Codegen.generate(Opcode.MOVE, Codegen.A0, reg);
+        }
         if (getPrintType().equals("int") || getPrintType().equals("bool")) {
-            Codegen.genPop(Codegen.A0);
-            Codegen.generate("li", Codegen.V0, 1);
-            Codegen.p.println("\tsyscall");
+            Codegen.generate(Opcode.LI, Codegen.V0, 1);
+            Codegen.generate(Opcode.SYSCALL);
         } else if (getPrintType().equals("string")) {
-            Codegen.genPop(Codegen.A0);
-            Codegen.generate("li", Codegen.V0, 4);
-            Codegen.p.println("\tsyscall");
+            Codegen.generate(Opcode.LI, Codegen.V0, 4);
+            Codegen.generate(Opcode.SYSCALL);
         }
     }
+
+    public void liveRanges(RegAlloc ra) {
+        myExp.liveRanges(ra);
+    }
     /**
      * nameAnalysis
      * Given a symbol table symTab, perform name analysis on this node's child
@@ -1243,6 +2075,66 @@ class WriteStmtNode extends StmtNode {
         }
     }
 
+    /**
+     * fold
+     */
+    public StmtNode fold() {
+        myExp = myExp.fold();
+        return this;
+    }
+
+    /**
+     * genIR
+     */
+    public void genIR(IRBuilder b) {
+        IRInst val = myExp.genIR(b);
+        if (getPrintType().equals("string")) {
+            b.emit(IROp.WRITE_STR, val);
+        } else {
+            b.emit(IROp.WRITE_INT, val);
+        }
+    }
+
+    /**
+     * compile
+     */
+    public Engine.Stmt compile(Engine e) {
+        Engine.Exp val = myExp.compile(e);
+        if (getPrintType().equals("string")) {
+            return f -> {
+                e.writeString(val.eval(f));
+                return false;
+            };
+        }
+        return f -> {
+            e.writeInt(val.eval(f));
+            return false;
+        };
+    }
+
+    /**
+     * genJvm
+     */
+    public void genJvm(JvmCode c) {
+        JvmCodegen.genGetOut(c);
+        myExp.genJvm(c);
+        JvmCodegen.genPrint(c, getPrintType().equals("string") ? "Ljava/lang/String;" : "I");
+    }
+
+    /**
+     * genX86
+     */
+    public void genX86() {
+        myExp.genX86();
+        if (getPrintType().equals("string")) {
+            X86Codegen.generate("movq", "%rax", "%rdi");
+            X86Codegen.generate("call", "rt_write_str");
+        } else {
+            X86Codegen.generate("movl", "%eax", "%edi");
+            X86Codegen.generate("call", "rt_write_int");
+        }
+    }
+
     public void unparse(PrintWriter p, int indent) {
         addIndentation(p, indent);
         p.print("cout << ");
@@ -1266,17 +2158,48 @@ class IfStmtNode extends StmtNode {
         myStmtList = slist;
     }
 
+    /**
+     * codeGen
+     * A body the profile says is usually skipped goes out of line.
+     */
     public void codeGen(FnSym sym) {
-        String falseLabel = Codegen.nextLabel();
-        myExp.codeGen();
-        Codegen.genPop(Codegen.T0);
+        String site = Profile.site(myExp);
+        if (Profile.instrumenting()) {
+            Profile.genCount(Profile.enterKey(site));
+        }
+        if (!Codegen.inColdCode() && Profile.unlikely(site, false)) {
+            String bodyLabel = Codegen.nextLabel();
+            String endLabel = Codegen.nextLabel();
+            myExp.genJump(bodyLabel, null);
+            Codegen.beginColdCode();
+            Codegen.genLabel(bodyLabel);
+            genBody(sym, site);
+            Codegen.generate(Opcode.J, Codegen.label(endLabel));
+            Codegen.endColdCode();
+            Codegen.genLabel(endLabel);
+            return;
+        }
 
-        Codegen.generate("beq", Codegen.T0, "0", falseLabel);
+        String falseLabel = Codegen.nextLabel();
+        myExp.genJump(null, falseLabel);
+        genBody(sym, site);
+        Codegen.genLabel(falseLabel);
+    }
 
+    private void genBody(FnSym sym, String site) {
+        if (Profile.instrumenting()) {
+            Profile.genCount(Profile.takenKey(site));
+        }
         myDeclList.codeGen();
         myStmtList.codeGen(sym);
+    }
 
-        Codegen.p.print(falseLabel + ":");
+    public void liveRanges(RegAlloc ra) {
+        myExp.liveRanges(ra);
+        ra.enterScope();
+        myDeclList.liveRanges(ra);
+        myStmtList.liveRanges(ra);
+        ra.exitScope();
     }
 
     /**
@@ -1303,6 +2226,7 @@ class IfStmtNode extends StmtNode {
 
     public void nameAnalysisFn(SymTable symTab, FnSym sym) {
         myExp.nameAnalysis(symTab);
+        int mark = sym.nextOffset;
         symTab.addScope();
         myDeclList.nameAnalysisFn(symTab, sym);
         myStmtList.nameAnalysisFn(symTab, sym);
@@ -1313,6 +2237,7 @@ class IfStmtNode extends StmtNode {
                                " in IfStmtNode.nameAnalysis");
             System.exit(-1);
         }
+        sym.freeSlots(mark);
     }
 
      /**
@@ -1329,6 +2254,77 @@ class IfStmtNode extends StmtNode {
         myStmtList.typeCheck(retType);
     }
 
+    /**
+     * fold
+     * if (true) is its body; if (false), or an empty body after a
+     * condition with no effects, is nothing.
+     */
+    public StmtNode fold() {
+        myExp = myExp.fold();
+        myStmtList.fold();
+        if (ExpNode.isBoolLit(myExp)) {
+            if (ExpNode.boolVal(myExp)) {
+                return new BlockStmtNode(myDeclList, myStmtList);
+            }
+            return null;
+        }
+        if (myStmtList.isEmpty() && myExp.isPure()) {
+            return null;
+        }
+        return this;
+    }
+
+    /**
+     * genIR
+     * The values of the variables after the statement are phis of their
+     * values after the body and before it.  The body is cold if the
+     * profile says it is usually skipped.
+     */
+    public void genIR(IRBuilder b) {
+        Block body = b.newBlock();
+        Block join = b.newBlock();
+        myExp.genIRJump(b, body, join);
+        b.seal(body);
+
+        b.setCurrent(body);
+        boolean cold = b.beginCold(body, Profile.unlikely(Profile.site(myExp), false));
+        myStmtList.genIR(b);
+        b.jump(join);
+        b.endCold(cold);
+
+        b.seal(join);
+        b.setCurrent(join);
+    }
+
+    /**
+     * compile
+     */
+    public Engine.Stmt compile(Engine e) {
+        Engine.Exp cond = myExp.compile(e);
+        Engine.Stmt body = myStmtList.compile(e);
+        return f -> cond.eval(f) != 0 && body.exec(f);
+    }
+
+    /**
+     * genJvm
+     */
+    public void genJvm(JvmCode c) {
+        JvmCode.Label end = c.newLabel();
+        myExp.genJvmJump(c, null, end);
+        myStmtList.genJvm(c);
+        c.place(end);
+    }
+
+    /**
+     * genX86
+     */
+    public void genX86() {
+        String endLabel = X86Codegen.nextLabel();
+        myExp.genX86Jump(null, endLabel);
+        myStmtList.genX86();
+        X86Codegen.genLabel(endLabel);
+    }
+
     public void unparse(PrintWriter p, int indent) {
         addIndentation(p, indent);
         p.print("if (");
@@ -1357,24 +2353,73 @@ class IfElseStmtNode extends StmtNode {
         myElseStmtList = slist2;
     }
 
+    /**
+     * codeGen
+     * The then branch falls through from the test and jumps over the else
+     * branch, unless the profile says one of them is the less likely: that
+     * one goes out of line, and the other falls through to the end.
+     */
     public void codeGen(FnSym sym) {
+        String site = Profile.site(myExp);
+        String thenLabel = Codegen.nextLabel();
         String elseLabel = Codegen.nextLabel();
         String endLabel = Codegen.nextLabel();
+        boolean hot = !Codegen.inColdCode();
+        boolean coldThen = hot && Profile.unlikely(site, false);
+        boolean coldElse = hot && Profile.likely(site, false);
 
-        myExp.codeGen();
-        Codegen.genPop(Codegen.T0);
-
-        Codegen.generate("beq", Codegen.T0, "0", elseLabel);
+        if (Profile.instrumenting()) {
+            Profile.genCount(Profile.enterKey(site));
+        }
+        if (coldThen) {
+            myExp.genJump(thenLabel, null);
+            genElse(sym);
+            Codegen.beginColdCode();
+            Codegen.genLabel(thenLabel);
+            genThen(sym, site);
+            Codegen.generate(Opcode.J, Codegen.label(endLabel));
+            Codegen.endColdCode();
+        } else {
+            myExp.genJump(null, elseLabel);
+            genThen(sym, site);
+            if (coldElse) {
+                Codegen.beginColdCode();
+            } else {
+                Codegen.generate(Opcode.J, Codegen.label(endLabel));
+            }
+            Codegen.genLabel(elseLabel);
+            genElse(sym);
+            if (coldElse) {
+                Codegen.generate(Opcode.J, Codegen.label(endLabel));
+                Codegen.endColdCode();
+            }
+        }
+        Codegen.genLabel(endLabel);
+    }
 
+    private void genThen(FnSym sym, String site) {
+        if (Profile.instrumenting()) {
+            Profile.genCount(Profile.takenKey(site));
+        }
         myThenDeclList.codeGen();
         myThenStmtList.codeGen(sym);
-        Codegen.generate("j", endLabel);
+    }
 
-        Codegen.p.print(elseLabel + ":");
+    private void genElse(FnSym sym) {
         myElseDeclList.codeGen();
         myElseStmtList.codeGen(sym);
+    }
 
-        Codegen.p.print(endLabel + ":");
+    public void liveRanges(RegAlloc ra) {
+        myExp.liveRanges(ra);
+        ra.enterScope();
+        myThenDeclList.liveRanges(ra);
+        myThenStmtList.liveRanges(ra);
+        ra.exitScope();
+        ra.enterScope();
+        myElseDeclList.liveRanges(ra);
+        myElseStmtList.liveRanges(ra);
+        ra.exitScope();
     }
 
     /**
@@ -1414,6 +2459,8 @@ class IfElseStmtNode extends StmtNode {
 
     public void nameAnalysisFn(SymTable symTab, FnSym sym) {
         myExp.nameAnalysis(symTab);
+        // the else branch reuses the then branch's slots
+        int mark = sym.nextOffset;
         symTab.addScope();
         myThenDeclList.nameAnalysisFn(symTab, sym);
         myThenStmtList.nameAnalysisFn(symTab, sym);
@@ -1424,6 +2471,7 @@ class IfElseStmtNode extends StmtNode {
                                " in IfElseStmtNode.nameAnalysis");
             System.exit(-1);
         }
+        sym.freeSlots(mark);
         symTab.addScope();
         myElseDeclList.nameAnalysisFn(symTab, sym);
         myElseStmtList.nameAnalysisFn(symTab, sym);
@@ -1434,6 +2482,7 @@ class IfElseStmtNode extends StmtNode {
                                " in IfElseStmtNode.nameAnalysis");
             System.exit(-1);
         }
+        sym.freeSlots(mark);
     }
 
     /**
@@ -1451,19 +2500,108 @@ class IfElseStmtNode extends StmtNode {
         myElseStmtList.typeCheck(retType);
     }
 
-    public void unparse(PrintWriter p, int indent) {
-        addIndentation(p, indent);
-        p.print("if (");
-        myExp.unparse(p, 0);
-        p.println(") {");
-        myThenDeclList.unparse(p, indent+4);
-        myThenStmtList.unparse(p, indent+4);
-        addIndentation(p, indent);
-        p.println("}");
-        addIndentation(p, indent);
-        p.println("else {");
-        myElseDeclList.unparse(p, indent+4);
-        myElseStmtList.unparse(p, indent+4);
+    /**
+     * fold
+     */
+    public StmtNode fold() {
+        myExp = myExp.fold();
+        myThenStmtList.fold();
+        myElseStmtList.fold();
+        if (ExpNode.isBoolLit(myExp)) {
+            if (ExpNode.boolVal(myExp)) {
+                return new BlockStmtNode(myThenDeclList, myThenStmtList);
+            }
+            return new BlockStmtNode(myElseDeclList, myElseStmtList);
+        }
+        return this;
+    }
+
+    public boolean alwaysReturns() {
+        return myThenStmtList.alwaysReturns() && myElseStmtList.alwaysReturns();
+    }
+
+    /**
+     * genIR
+     * The values of the variables after the statement are phis of their
+     * values after the two branches.  The branch the profile says is the
+     * less likely is cold.
+     */
+    public void genIR(IRBuilder b) {
+        String site = Profile.site(myExp);
+        Block thenBlock = b.newBlock();
+        Block elseBlock = b.newBlock();
+        Block join = b.newBlock();
+        myExp.genIRJump(b, thenBlock, elseBlock);
+        b.seal(thenBlock);
+        b.seal(elseBlock);
+
+        b.setCurrent(thenBlock);
+        boolean cold = b.beginCold(thenBlock, Profile.unlikely(site, false));
+        myThenStmtList.genIR(b);
+        b.jump(join);
+        b.endCold(cold);
+
+        b.setCurrent(elseBlock);
+        cold = b.beginCold(elseBlock, Profile.likely(site, false));
+        myElseStmtList.genIR(b);
+        b.jump(join);
+        b.endCold(cold);
+
+        b.seal(join);
+        b.setCurrent(join);
+    }
+
+    /**
+     * compile
+     */
+    public Engine.Stmt compile(Engine e) {
+        Engine.Exp cond = myExp.compile(e);
+        Engine.Stmt thenBody = myThenStmtList.compile(e);
+        Engine.Stmt elseBody = myElseStmtList.compile(e);
+        return f -> cond.eval(f) != 0 ? thenBody.exec(f) : elseBody.exec(f);
+    }
+
+    /**
+     * genJvm
+     */
+    public void genJvm(JvmCode c) {
+        JvmCode.Label elseLabel = c.newLabel();
+        JvmCode.Label end = c.newLabel();
+        myExp.genJvmJump(c, null, elseLabel);
+        myThenStmtList.genJvm(c);
+        c.jump(JvmCode.GOTO, end);
+        c.place(elseLabel);
+        myElseStmtList.genJvm(c);
+        c.place(end);
+    }
+
+    /**
+     * genX86
+     */
+    public void genX86() {
+        String elseLabel = X86Codegen.nextLabel();
+        String endLabel = X86Codegen.nextLabel();
+        myExp.genX86Jump(null, elseLabel);
+        myThenStmtList.genX86();
+        X86Codegen.generate("jmp", endLabel);
+        X86Codegen.genLabel(elseLabel);
+        myElseStmtList.genX86();
+        X86Codegen.genLabel(endLabel);
+    }
+
+    public void unparse(PrintWriter p, int indent) {
+        addIndentation(p, indent);
+        p.print("if (");
+        myExp.unparse(p, 0);
+        p.println(") {");
+        myThenDeclList.unparse(p, indent+4);
+        myThenStmtList.unparse(p, indent+4);
+        addIndentation(p, indent);
+        p.println("}");
+        addIndentation(p, indent);
+        p.println("else {");
+        myElseDeclList.unparse(p, indent+4);
+        myElseStmtList.unparse(p, indent+4);
         addIndentation(p, indent);
         p.println("}");
     }
@@ -1483,22 +2621,59 @@ class WhileStmtNode extends StmtNode {
         myStmtList = slist;
     }
 
+    /**
+     * codeGen
+     * The condition is tested at the bottom of the loop, so that each
+     * iteration takes a single branch.  If the profile says the loop is
+     * usually not entered, it is tested once more in line instead of
+     * being jumped to, and the loop goes out of line.
+     */
     public void codeGen(FnSym sym) {
+        String site = Profile.site(myExp);
         String loopLabel = Codegen.nextLabel();
-        String falseLabel = Codegen.nextLabel();
+        String testLabel = Codegen.nextLabel();
 
-        Codegen.p.print(loopLabel + ":");
-        myExp.codeGen();
+        if (Profile.instrumenting()) {
+            Profile.genCount(Profile.enterKey(site));
+        }
+        if (!Codegen.inColdCode() && Profile.unlikely(site, true)) {
+            String endLabel = Codegen.nextLabel();
+            myExp.genJump(loopLabel, null);
+            Codegen.beginColdCode();
+            Codegen.genLabel(loopLabel);
+            genBody(sym, site);
+            myExp.genJump(loopLabel, null);
+            Codegen.generate(Opcode.J, Codegen.label(endLabel));
+            Codegen.endColdCode();
+            Codegen.genLabel(endLabel);
+            return;
+        }
+
+        Codegen.generate(Opcode.J, Codegen.label(testLabel));
 
-        Codegen.genPop(Codegen.T0);
-        Codegen.generate("beq", Codegen.T0, "0", falseLabel);
+        Codegen.genLabel(loopLabel);
+        genBody(sym, site);
 
+        Codegen.genLabel(testLabel);
+        myExp.genJump(loopLabel, null);
+    }
+
+    private void genBody(FnSym sym, String site) {
+        if (Profile.instrumenting()) {
+            Profile.genCount(Profile.takenKey(site));
+        }
         myDeclList.codeGen();
         myStmtList.codeGen(sym);
+    }
 
-        Codegen.generate("j", loopLabel);
-
-        Codegen.p.print(falseLabel + ":");
+    public void liveRanges(RegAlloc ra) {
+        ra.enterLoop();
+        myExp.liveRanges(ra);
+        ra.enterScope();
+        myDeclList.liveRanges(ra);
+        myStmtList.liveRanges(ra);
+        ra.exitScope();
+        ra.exitLoop();
     }
 
     /**
@@ -1525,6 +2700,7 @@ class WhileStmtNode extends StmtNode {
 
     public void nameAnalysisFn(SymTable symTab, FnSym sym) {
         myExp.nameAnalysis(symTab);
+        int mark = sym.nextOffset;
         symTab.addScope();
         myDeclList.nameAnalysisFn(symTab, sym);
         myStmtList.nameAnalysisFn(symTab, sym);
@@ -1535,6 +2711,7 @@ class WhileStmtNode extends StmtNode {
                                " in WhileStmtNode.nameAnalysis");
             System.exit(-1);
         }
+        sym.freeSlots(mark);
     }
 
     /**
@@ -1551,6 +2728,91 @@ class WhileStmtNode extends StmtNode {
         myStmtList.typeCheck(retType);
     }
 
+    /**
+     * fold
+     * while (false) is nothing.
+     */
+    public StmtNode fold() {
+        myExp = myExp.fold();
+        myStmtList.fold();
+        if (ExpNode.isBoolLit(myExp, false)) {
+            return null;
+        }
+        return this;
+    }
+
+    /**
+     * genIR
+     * The condition is tested in a header block whose phis merge the
+     * values from before the loop and from the end of the body; it is
+     * sealed once the body has been generated.  The body is cold if the
+     * profile says the loop is usually not entered.
+     */
+    public void genIR(IRBuilder b) {
+        Block header = b.newBlock();
+        Block body = b.newBlock();
+        Block exit = b.newBlock();
+        b.jump(header);
+
+        b.setCurrent(header);
+        myExp.genIRJump(b, body, exit);
+        b.seal(body);
+
+        b.setCurrent(body);
+        boolean cold = b.beginCold(body, Profile.unlikely(Profile.site(myExp), true));
+        myStmtList.genIR(b);
+        b.jump(header);
+        b.endCold(cold);
+        b.seal(header);
+
+        b.seal(exit);
+        b.setCurrent(exit);
+    }
+
+    /**
+     * compile
+     */
+    public Engine.Stmt compile(Engine e) {
+        Engine.Exp cond = myExp.compile(e);
+        Engine.Stmt body = myStmtList.compile(e);
+        return f -> {
+            while (cond.eval(f) != 0) {
+                if (body.exec(f)) {
+                    return true;
+                }
+            }
+            return false;
+        };
+    }
+
+    /**
+     * genJvm
+     * The test is at the bottom of the loop, as in codeGen.
+     */
+    public void genJvm(JvmCode c) {
+        JvmCode.Label loop = c.newLabel();
+        JvmCode.Label test = c.newLabel();
+        c.jump(JvmCode.GOTO, test);
+        c.place(loop);
+        myStmtList.genJvm(c);
+        c.place(test);
+        myExp.genJvmJump(c, loop, null);
+    }
+
+    /**
+     * genX86
+     * The test is at the bottom of the loop, as in codeGen.
+     */
+    public void genX86() {
+        String loopLabel = X86Codegen.nextLabel();
+        String testLabel = X86Codegen.nextLabel();
+        X86Codegen.generate("jmp", testLabel);
+        X86Codegen.genLabel(loopLabel);
+        myStmtList.genX86();
+        X86Codegen.genLabel(testLabel);
+        myExp.genX86Jump(loopLabel, null);
+    }
+
     public void unparse(PrintWriter p, int indent) {
         addIndentation(p, indent);
         p.print("while (");
@@ -1569,12 +2831,103 @@ class WhileStmtNode extends StmtNode {
 }
 
 class RepeatStmtNode extends StmtNode {
+    // bodies of at most this many simple statements are unrolled four
+    // times, and twice as long ones twice (see StmtListNode.isStraightLine);
+    // twice as many in loops the profile says are hot
+    private static final int UNROLL_STMTS = 2;
+
     public RepeatStmtNode(ExpNode exp, DeclListNode dlist, StmtListNode slist) {
         myExp = exp;
         myDeclList = dlist;
         myStmtList = slist;
     }
 
+    /**
+     * codeGen
+     * A counted loop: the count is evaluated once into a hidden counter
+     * (in a register when it gets one), and each iteration ends with a
+     * decrement and a bnez.  A small body is unrolled: single iterations
+     * run until the counter is a multiple of the unrolling factor, then
+     * the unrolled loop runs the rest.  A loop is not unrolled more times
+     * than the profile says it runs on average.
+     */
+    public void codeGen(FnSym sym) {
+        String site = Profile.site(myExp);
+        String endLabel = Codegen.nextLabel();
+        boolean lit = ExpNode.isIntLit(myExp);   // then at least 1 (see fold)
+        int count = lit ? ExpNode.intVal(myExp) : 0;
+
+        myExp.codeGen();
+        Reg reg = Codegen.popTemp(Codegen.T0);
+        Reg ctr = myCounter.getReg();
+        if (ctr == null) {
+            Codegen.generateIndexed(Opcode.SW, reg, Codegen.FP, -myCounter.getOffset(),
+                                    "repeat count");
+        } else if (ctr != reg) {
+            Codegen.generateWithComment(Opcode.MOVE, "repeat count", ctr, reg);
+        }
+        if (Profile.instrumenting()) {
+            Profile.genCount(Profile.enterKey(site));
+        }
+        if (!lit) {
+            Codegen.generate(Opcode.BLEZ, reg, Codegen.label(endLabel));
+        }
+        if (Profile.instrumenting()) {
+            Profile.genAdd(Profile.takenKey(site), reg);
+        }
+
+        int trips = Profile.averageTrips(site);
+        int stmts = trips >= Profile.HOT_TRIPS ? 2 * UNROLL_STMTS : UNROLL_STMTS;
+        int unroll = 1;
+        if (ctr != null && myStmtList.isStraightLine(stmts)) {
+            unroll = 4;
+        } else if (ctr != null && myStmtList.isStraightLine(2 * stmts)) {
+            unroll = 2;
+        }
+        if (lit && count < unroll) {
+            unroll = 1;
+        }
+        while (unroll > 1 && trips >= 0 && trips < unroll) {
+            unroll /= 2;
+        }
+
+        String loopLabel = Codegen.nextLabel();
+        if (unroll > 1 && !(lit && count % unroll == 0)) {
+            // run single iterations until the count divides evenly
+            String oneLabel = Codegen.nextLabel();
+            if (!lit) {
+                Codegen.generate(Opcode.ANDI, Codegen.T0, ctr, unroll - 1);
+                Codegen.generate(Opcode.BEQZ, Codegen.T0, Codegen.label(loopLabel));
+            }
+            Codegen.genLabel(oneLabel);
+            myDeclList.codeGen();
+            myStmtList.codeGen(sym);
+            Codegen.generate(Opcode.ADDI, ctr, ctr, -1);
+            Codegen.generate(Opcode.ANDI, Codegen.T0, ctr, unroll - 1);
+            Codegen.generate(Opcode.BNEZ, Codegen.T0, Codegen.label(oneLabel));
+            if (!lit) {
+                Codegen.generate(Opcode.BEQZ, ctr, Codegen.label(endLabel));
+            }
+        }
+
+        Codegen.genLabel(loopLabel);
+        for (int k = 0; k < unroll; k++) {
+            myDeclList.codeGen();
+            myStmtList.codeGen(sym);
+        }
+        if (ctr == null) {
+            Codegen.generateIndexed(Opcode.LW, Codegen.T0, Codegen.FP, -myCounter.getOffset(),
+                                    "repeat count");
+            Codegen.generate(Opcode.ADDI, Codegen.T0, Codegen.T0, -1);
+            Codegen.generateIndexed(Opcode.SW, Codegen.T0, Codegen.FP, -myCounter.getOffset());
+            ctr = Codegen.T0;
+        } else {
+            Codegen.generate(Opcode.ADDI, ctr, ctr, -unroll);
+        }
+        Codegen.generate(Opcode.BNEZ, ctr, Codegen.label(loopLabel));
+        Codegen.genLabel(endLabel);
+    }
+
     /**
      * nameAnalysis
      * Given a symbol table symTab, do:
@@ -1597,6 +2950,45 @@ class RepeatStmtNode extends StmtNode {
         }
     }
 
+    /**
+     * nameAnalysisFn
+     * Like nameAnalysis, but the locals of the body (and the loop's
+     * counter) get slots in the frame of function sym, free again after
+     * the loop.
+     */
+    public void nameAnalysisFn(SymTable symTab, FnSym sym) {
+        myExp.nameAnalysis(symTab);
+        int mark = sym.nextOffset;
+        myCounter = new TSym(new IntType());
+        myCounter.setOffset(sym.allocSlots(4));
+        myCounter.setIsGlobal(false);
+        symTab.addScope();
+        myDeclList.nameAnalysisFn(symTab, sym);
+        myStmtList.nameAnalysisFn(symTab, sym);
+        try {
+            symTab.removeScope();
+        } catch (EmptySymTableException ex) {
+            System.err.println("Unexpected EmptySymTableException " +
+                               " in RepeatStmtNode.nameAnalysis");
+            System.exit(-1);
+        }
+        sym.freeSlots(mark);
+    }
+
+    public void liveRanges(RegAlloc ra) {
+        myExp.liveRanges(ra);
+        ra.enterScope();
+        ra.declare(myCounter);
+        ra.enterLoop();
+        ra.use(myCounter);
+        ra.enterScope();
+        myDeclList.liveRanges(ra);
+        myStmtList.liveRanges(ra);
+        ra.exitScope();
+        ra.exitLoop();
+        ra.exitScope();
+    }
+
     /**
      * typeCheck
      */
@@ -1611,6 +3003,102 @@ class RepeatStmtNode extends StmtNode {
         myStmtList.typeCheck(retType);
     }
 
+    /**
+     * fold
+     * Repeating a body no times (or repeating nothing a number of times
+     * that has no effects to compute) is nothing.
+     */
+    public StmtNode fold() {
+        myExp = myExp.fold();
+        myStmtList.fold();
+        if (ExpNode.isIntLit(myExp) && ExpNode.intVal(myExp) <= 0) {
+            return null;
+        }
+        if (myStmtList.isEmpty() && myExp.isPure()) {
+            return null;
+        }
+        return this;
+    }
+
+    /**
+     * genIR
+     * The counter is a variable of the SSA form: the body runs if the
+     * count is positive, and repeats while the decremented counter is not
+     * zero.
+     */
+    public void genIR(IRBuilder b) {
+        Block body = b.newBlock();
+        Block exit = b.newBlock();
+        IRInst count = myExp.genIR(b);
+        b.writeVariable(myCounter, count);
+        b.branch(b.emit(IROp.SGT, count, b.constant(0)), body, exit);
+
+        b.setCurrent(body);
+        myStmtList.genIR(b);
+        IRInst next = b.emit(IROp.SUB, b.readVariable(myCounter), b.constant(1));
+        b.writeVariable(myCounter, next);
+        b.branch(b.emit(IROp.SNE, next, b.constant(0)), body, exit);
+        b.seal(body);
+
+        b.seal(exit);
+        b.setCurrent(exit);
+    }
+
+    /**
+     * compile
+     * The count is evaluated once, as in codeGen.
+     */
+    public Engine.Stmt compile(Engine e) {
+        Engine.Exp count = myExp.compile(e);
+        Engine.Stmt body = myStmtList.compile(e);
+        return f -> {
+            for (int k = count.eval(f); k > 0; k--) {
+                if (body.exec(f)) {
+                    return true;
+                }
+            }
+            return false;
+        };
+    }
+
+    /**
+     * genJvm
+     * The counter is the JVM local of its frame slot.
+     */
+    public void genJvm(JvmCode c) {
+        int ctr = JvmCodegen.localSlot(myCounter, 0);
+        JvmCode.Label loop = c.newLabel();
+        JvmCode.Label test = c.newLabel();
+        myExp.genJvm(c);
+        c.local(JvmCode.ISTORE, ctr);
+        c.jump(JvmCode.GOTO, test);
+        c.place(loop);
+        myStmtList.genJvm(c);
+        c.iinc(ctr, -1);
+        c.place(test);
+        c.local(JvmCode.ILOAD, ctr);
+        c.jump(JvmCode.IFGT, loop);
+    }
+
+    /**
+     * genX86
+     * The counter is in the word of its frame slot.
+     */
+    public void genX86() {
+        String ctr = X86Codegen.location(myCounter, null, 0);
+        String loopLabel = X86Codegen.nextLabel();
+        String testLabel = X86Codegen.nextLabel();
+        myExp.genX86();
+        X86Codegen.generate("movl", "%eax", ctr);
+        X86Codegen.generate("jmp", testLabel);
+        X86Codegen.genLabel(loopLabel);
+        myStmtList.genX86();
+        X86Codegen.generate("decl", ctr);
+        X86Codegen.genLabel(testLabel);
+        X86Codegen.generate("cmpl", "$0", ctr);
+        X86Codegen.generate("jg", loopLabel);
+    }
+
     public void unparse(PrintWriter p, int indent) {
         addIndentation(p, indent);
         p.print("repeat (");
@@ -1626,6 +3114,8 @@ class RepeatStmtNode extends StmtNode {
     private ExpNode myExp;
     private DeclListNode myDeclList;
     private StmtListNode myStmtList;
+
+    private TSym myCounter;     // counts the iterations left
 }
 
 
@@ -1636,7 +3126,15 @@ class CallStmtNode extends StmtNode {
 
     public void codeGen() {
         myCall.codeGen();
-        Codegen.genPop(Codegen.T0);
+        Codegen.popTemp(Codegen.T0);
+    }
+
+    public void genTailCall(FnSym sym) {
+        myCall.genTailCall(sym);
+    }
+
+    public void liveRanges(RegAlloc ra) {
+        myCall.liveRanges(ra);
     }
 
     /**
@@ -1654,6 +3152,49 @@ class CallStmtNode extends StmtNode {
         myCall.typeCheck();
     }
 
+    /**
+     * fold
+     */
+    public StmtNode fold() {
+        myCall.fold();
+        return this;
+    }
+
+    /**
+     * genIR
+     */
+    public void genIR(IRBuilder b) {
+        myCall.genIR(b);
+    }
+
+    /**
+     * compile
+     */
+    public Engine.Stmt compile(Engine e) {
+        Engine.Exp call = myCall.compile(e);
+        return f -> {
+            call.eval(f);
+            return false;
+        };
+    }
+
+    /**
+     * genJvm
+     */
+    public void genJvm(JvmCode c) {
+        myCall.genJvm(c);
+        if (!myCall.isVoid()) {
+            c.op(JvmCode.POP, -1);
+        }
+    }
+
+    /**
+     * genX86
+     */
+    public void genX86() {
+        myCall.genX86();
+    }
+
     public void unparse(PrintWriter p, int indent) {
         addIndentation(p, indent);
         myCall.unparse(p, indent);
@@ -1669,19 +3210,30 @@ class ReturnStmtNode extends StmtNode {
         myExp = exp;
     }
 
+    public boolean hasValue() {
+        return myExp != null;
+    }
+
     public void codeGen(FnSym sym) {
+        if (myExp instanceof CallExpNode && !Profile.instrumenting()) {
+            ((CallExpNode)myExp).genTailCall(sym);
+            return;
+        }
         if (myExp != null) {
             myExp.codeGen();
-            Codegen.genPop(Codegen.V0);
+            Reg reg = Codegen.popTemp(Codegen.V0);
+            if (reg != Codegen.V0) {
+                Codegen.generate(Opcode.MOVE, Codegen.V0, reg);
+            }
         }
 
-        // exit
-        Codegen.generateIndexed("lw", Codegen.RA, Codegen.FP, -sym.getSizeParams(), "load return address");
-        Codegen.generateWithComment("move", "save control link", Codegen.T0, Codegen.FP);
-        Codegen.generateIndexed("lw", Codegen.FP, Codegen.FP, -(sym.getSizeParams() + 4), "restore FP");
-        Codegen.generateWithComment("move", "restore SP", Codegen.SP, Codegen.T0);
-        Codegen.generateWithComment("jr", "return", Codegen.RA);
-        // end exit
+        Codegen.generate(Opcode.J, Codegen.label(sym.getExitLabel()));
+    }
+
+    public void liveRanges(RegAlloc ra) {
+        if (myExp != null) {
+            myExp.liveRanges(ra);
+        }
     }
 
     /**
@@ -1721,6 +3273,63 @@ class ReturnStmtNode extends StmtNode {
 
     }
 
+    /**
+     * fold
+     */
+    public StmtNode fold() {
+        if (myExp != null) {
+            myExp = myExp.fold();
+        }
+        return this;
+    }
+
+    public boolean alwaysReturns() {
+        return true;
+    }
+
+    /**
+     * genIR
+     */
+    public void genIR(IRBuilder b) {
+        b.ret(myExp == null ? null : myExp.genIR(b));
+    }
+
+    /**
+     * compile
+     */
+    public Engine.Stmt compile(Engine e) {
+        if (myExp == null) {
+            return f -> true;
+        }
+        Engine.Exp val = myExp.compile(e);
+        return f -> {
+            f.result = val.eval(f);
+            return true;
+        };
+    }
+
+    /**
+     * genJvm
+     */
+    public void genJvm(JvmCode c) {
+        if (myExp == null) {
+            c.op(JvmCode.RETURN, 0);
+        } else {
+            myExp.genJvm(c);
+            c.op(JvmCode.IRETURN, -1);
+        }
+    }
+
+    /**
+     * genX86
+     */
+    public void genX86() {
+        if (myExp != null) {
+            myExp.genX86();
+        }
+        X86Codegen.genReturn();
+    }
+
     public void unparse(PrintWriter p, int indent) {
         addIndentation(p, indent);
         p.print("return");
@@ -1735,65 +3344,480 @@ class ReturnStmtNode extends StmtNode {
     private ExpNode myExp; // possibly null
 }
 
-// **********************************************************************
-// ExpNode and its subclasses
-// **********************************************************************
+/**
+ * The branch of an if or if-else statement whose condition fold found to
+ * be constant: its statements, in their own scope.
+ */
+class BlockStmtNode extends StmtNode {
+    public BlockStmtNode(DeclListNode dlist, StmtListNode slist) {
+        myDeclList = dlist;
+        myStmtList = slist;
+    }
 
-abstract class ExpNode extends ASTnode {
-    /**
-     * Default version for nodes with no names
-     */
-    public void nameAnalysis(SymTable symTab) { }
+    public void codeGen(FnSym sym) {
+        myDeclList.codeGen();
+        myStmtList.codeGen(sym);
+    }
 
-    abstract public Type typeCheck();
-    abstract public int lineNum();
-    abstract public int charNum();
+    public void liveRanges(RegAlloc ra) {
+        ra.enterScope();
+        myDeclList.liveRanges(ra);
+        myStmtList.liveRanges(ra);
+        ra.exitScope();
+    }
 
-    public void codeGen() {}
-}
+    // blocks are only made by fold, after name analysis and type checking
+    public void nameAnalysis(SymTable symTab) { }
+    public void typeCheck(Type retType) { }
 
-class IntLitNode extends ExpNode {
-    public IntLitNode(int lineNum, int charNum, int intVal) {
-        myLineNum = lineNum;
-        myCharNum = charNum;
-        myIntVal = intVal;
+    /**
+     * fold
+     */
+    public StmtNode fold() {
+        myStmtList.fold();
+        return this;
     }
 
-    public void codeGen() {
-        Codegen.generate("li", Codegen.T0, myIntVal);
-        Codegen.genPush(Codegen.T0);
+    public boolean alwaysReturns() {
+        return myStmtList.alwaysReturns();
     }
 
     /**
-     * Return the line number for this literal.
+     * genIR
      */
-    public int lineNum() {
-        return myLineNum;
+    public void genIR(IRBuilder b) {
+        myStmtList.genIR(b);
     }
 
     /**
-     * Return the char number for this literal.
+     * compile
      */
-    public int charNum() {
-        return myCharNum;
+    public Engine.Stmt compile(Engine e) {
+        return myStmtList.compile(e);
     }
 
     /**
-     * typeCheck
+     * genJvm
      */
-    public Type typeCheck() {
-        return new IntType();
+    public void genJvm(JvmCode c) {
+        myStmtList.genJvm(c);
     }
 
-    public void unparse(PrintWriter p, int indent) {
-        p.print(myIntVal);
+    /**
+     * genX86
+     */
+    public void genX86() {
+        myStmtList.genX86();
     }
 
-    private int myLineNum;
-    private int myCharNum;
-    private int myIntVal;
-}
-
+    public void unparse(PrintWriter p, int indent) {
+        addIndentation(p, indent);
+        p.println("{");
+        myDeclList.unparse(p, indent+4);
+        myStmtList.unparse(p, indent+4);
+        addIndentation(p, indent);
+        p.println("}");
+    }
+
+    // 2 kids
+    private DeclListNode myDeclList;
+    private StmtListNode myStmtList;
+}
+
+// **********************************************************************
+// ExpNode and its subclasses
+// **********************************************************************
+
+abstract class ExpNode extends ASTnode {
+    /**
+     * Default version for nodes with no names
+     */
+    public void nameAnalysis(SymTable symTab) { }
+
+    abstract public Type typeCheck();
+    abstract public int lineNum();
+    abstract public int charNum();
+
+    /**
+     * codeGen
+     * Generate code that leaves the value of the expression on top of the
+     * expression stack (see Codegen.newTemp).
+     */
+    public void codeGen() {}
+
+    // default version of liveRanges for nodes with no names
+    public void liveRanges(RegAlloc ra) {}
+
+    /**
+     * fold
+     * Return an equivalent, simpler expression to use in place of this
+     * one (default: this node, unchanged).
+     */
+    public ExpNode fold() {
+        return this;
+    }
+
+    /**
+     * isPure
+     * Can evaluating this expression be skipped without changing what the
+     * program does?  (No calls, assignments or divisions.)
+     */
+    public boolean isPure() {
+        return false;
+    }
+
+    /**
+     * genJump
+     * Generate code for a condition: jump to trueLabel if it is true and
+     * to falseLabel if it is false.  One of the labels may be null,
+     * meaning that case falls through to the code that follows (default:
+     * compute the value and test it).
+     */
+    public void genJump(String trueLabel, String falseLabel) {
+        codeGen();
+        Reg reg = Codegen.popTemp(Codegen.T0);
+        genBranch(Opcode.BNE, reg, Codegen.FALSE, trueLabel, falseLabel);
+    }
+
+    /**
+     * genBranch
+     * Branch to trueLabel if "branch left, right" is taken and to
+     * falseLabel if not, either label being null for fall through.
+     */
+    protected static void genBranch(Opcode branch, Reg left, Operand right,
+                                    String trueLabel, String falseLabel) {
+        if (trueLabel == null) {
+            Codegen.generate(branch.negate(), left, right, Codegen.label(falseLabel));
+        } else {
+            Codegen.generate(branch, left, right, Codegen.label(trueLabel));
+            if (falseLabel != null) {
+                Codegen.generate(Opcode.J, Codegen.label(falseLabel));
+            }
+        }
+    }
+
+    /**
+     * genIR
+     * Add the instructions computing this expression to the function
+     * being built, and return its value (default: the IR cannot express
+     * this expression).
+     */
+    public IRInst genIR(IRBuilder b) {
+        b.unsupported();
+        return b.constant(0);
+    }
+
+    /**
+     * genIRJump
+     * End the current block with a branch to t if this condition is true
+     * and to f if it is false (default: branch on its value).
+     */
+    public void genIRJump(IRBuilder b, Block t, Block f) {
+        b.branch(genIR(b), t, f);
+    }
+
+    /**
+     * compile
+     * Return the engine's code for this expression.
+     */
+    abstract public Engine.Exp compile(Engine e);
+
+    /**
+     * genJvm
+     * Add the bytecode pushing the value of this expression (an int, or
+     * a String for a string literal).
+     */
+    abstract public void genJvm(JvmCode c);
+
+    /**
+     * genX86
+     * Write the x86-64 code leaving the value of this expression in %eax
+     * (the address of a string in %rax).
+     */
+    abstract public void genX86();
+
+    /**
+     * x86Operand
+     * Return the x86-64 operand of this expression if it is a literal or a
+     * variable, else null.
+     */
+    public String x86Operand() {
+        return null;
+    }
+
+    /**
+     * genX86Jump
+     * Write the code jumping to trueLabel if this condition is true and to
+     * falseLabel if it is false, either label being null for fall through
+     * (default: test its value).
+     */
+    public void genX86Jump(String trueLabel, String falseLabel) {
+        genX86();
+        X86Codegen.generate("testl", "%eax", "%eax");
+        genX86Branch("jne", trueLabel, falseLabel);
+    }
+
+    /**
+     * genX86Branch
+     * Jump to trueLabel if the conditional jump is taken and to falseLabel
+     * if not, either label being null for fall through.
+     */
+    protected static void genX86Branch(String jump, String trueLabel, String falseLabel) {
+        if (trueLabel == null) {
+            X86Codegen.generate(negateX86(jump), falseLabel);
+        } else {
+            X86Codegen.generate(jump, trueLabel);
+            if (falseLabel != null) {
+                X86Codegen.generate("jmp", falseLabel);
+            }
+        }
+    }
+
+    private static String negateX86(String jump) {
+        switch (jump) {
+        case "je":  return "jne";
+        case "jne": return "je";
+        case "jl":  return "jge";
+        case "jge": return "jl";
+        case "jg":  return "jle";
+        default:    return "jg";        // jle
+        }
+    }
+
+    /**
+     * genX86Bool
+     * Leave the value of this condition in %eax, computed with
+     * genX86Jump.
+     */
+    protected void genX86Bool() {
+        String falseLabel = X86Codegen.nextLabel();
+        String endLabel = X86Codegen.nextLabel();
+        genX86Jump(null, falseLabel);
+        X86Codegen.generate("movl", "$1", "%eax");
+        X86Codegen.generate("jmp", endLabel);
+        X86Codegen.genLabel(falseLabel);
+        X86Codegen.generate("xorl", "%eax", "%eax");
+        X86Codegen.genLabel(endLabel);
+    }
+
+    /**
+     * genJvmJump
+     * Add the bytecode jumping to t if this condition is true and to f if
+     * it is false, either label being null for fall through (default:
+     * test its value).
+     */
+    public void genJvmJump(JvmCode c, JvmCode.Label t, JvmCode.Label f) {
+        genJvm(c);
+        genJvmBranch(c, JvmCode.IFNE, t, f);
+    }
+
+    /**
+     * genJvmBranch
+     * Jump to t if the conditional jump opcode is taken and to f if not,
+     * either label being null for fall through.
+     */
+    protected static void genJvmBranch(JvmCode c, int opcode,
+                                       JvmCode.Label t, JvmCode.Label f) {
+        if (t == null) {
+            c.jump(JvmCode.negate(opcode), f);
+        } else {
+            c.jump(opcode, t);
+            if (f != null) {
+                c.jump(JvmCode.GOTO, f);
+            }
+        }
+    }
+
+    /**
+     * genJvmBool
+     * Push the value of this condition, computed with genJvmJump.
+     */
+    protected void genJvmBool(JvmCode c) {
+        JvmCode.Label falseLabel = c.newLabel();
+        JvmCode.Label end = c.newLabel();
+        genJvmJump(c, null, falseLabel);
+        c.iconst(1);
+        c.jump(JvmCode.GOTO, end);
+        c.place(falseLabel);
+        c.iconst(0);
+        c.place(end);
+    }
+
+    // locations (IdNode, DotAccessExpNode) can also be assigned to
+
+    /**
+     * genLoad
+     * Return a register holding the value of this expression, computing
+     * it into the given scratch register if need be.
+     */
+    public Reg genLoad(Reg scratch) {
+        codeGen();
+        return Codegen.popTemp(scratch);
+    }
+
+    /**
+     * genStore
+     * Store the value in the given register into this location.
+     */
+    public void genStore(Reg reg) {
+        System.err.println("Unexpected node type in store");
+        System.exit(-1);
+    }
+
+    /**
+     * genIRStore
+     * Make val the new value of this location.
+     */
+    public void genIRStore(IRBuilder b, IRInst val) {
+        b.unsupported();
+    }
+
+    /**
+     * compileStore
+     * Return the engine's code storing the value of val into this
+     * location, whose value is the value stored.
+     */
+    public Engine.Exp compileStore(Engine e, Engine.Exp val) {
+        System.err.println("Unexpected node type in store");
+        System.exit(-1);
+        return null;
+    }
+
+    /**
+     * genJvmStore
+     * Add the bytecode storing the value on top of the stack into this
+     * location.
+     */
+    public void genJvmStore(JvmCode c) {
+        System.err.println("Unexpected node type in store");
+        System.exit(-1);
+    }
+
+    // helpers for fold
+
+    protected static boolean isIntLit(ExpNode exp) {
+        return exp instanceof IntLitNode;
+    }
+
+    protected static boolean isIntLit(ExpNode exp, int val) {
+        return isIntLit(exp) && intVal(exp) == val;
+    }
+
+    protected static int intVal(ExpNode exp) {
+        return ((IntLitNode)exp).getIntVal();
+    }
+
+    protected static boolean isBoolLit(ExpNode exp) {
+        return exp instanceof TrueNode || exp instanceof FalseNode;
+    }
+
+    protected static boolean isBoolLit(ExpNode exp, boolean val) {
+        return isBoolLit(exp) && boolVal(exp) == val;
+    }
+
+    protected static boolean boolVal(ExpNode exp) {
+        return exp instanceof TrueNode;
+    }
+
+    /**
+     * Are the two expressions the same variable?
+     */
+    protected static boolean sameId(ExpNode exp1, ExpNode exp2) {
+        return exp1 instanceof IdNode && exp2 instanceof IdNode &&
+               ((IdNode)exp1).sym() == ((IdNode)exp2).sym();
+    }
+
+    protected ExpNode intLit(int val) {
+        return new IntLitNode(lineNum(), charNum(), val);
+    }
+
+    protected ExpNode boolLit(boolean val) {
+        if (val) {
+            return new TrueNode(lineNum(), charNum());
+        }
+        return new FalseNode(lineNum(), charNum());
+    }
+}
+
+class IntLitNode extends ExpNode {
+    public IntLitNode(int lineNum, int charNum, int intVal) {
+        myLineNum = lineNum;
+        myCharNum = charNum;
+        myIntVal = intVal;
+    }
+
+    public void codeGen() {
+        Codegen.generate(Opcode.LI, Codegen.newTemp(), myIntVal);
+    }
+
+    public int getIntVal() {
+        return myIntVal;
+    }
+
+    public boolean isPure() {
+        return true;
+    }
+
+    /**
+     * Return the line number for this literal.
+     */
+    public int lineNum() {
+        return myLineNum;
+    }
+
+    /**
+     * Return the char number for this literal.
+     */
+    public int charNum() {
+        return myCharNum;
+    }
+
+    /**
+     * typeCheck
+     */
+    public Type typeCheck() {
+        return new IntType();
+    }
+
+    public IRInst genIR(IRBuilder b) {
+        return b.constant(myIntVal);
+    }
+
+    /**
+     * compile
+     */
+    public Engine.Exp compile(Engine e) {
+        int val = myIntVal;
+        return f -> val;
+    }
+
+    /**
+     * genJvm
+     */
+    public void genJvm(JvmCode c) {
+        c.iconst(myIntVal);
+    }
+
+    /**
+     * genX86
+     */
+    public void genX86() {
+        X86Codegen.generate("movl", "$" + myIntVal, "%eax");
+    }
+
+    public String x86Operand() {
+        return "$" + myIntVal;
+    }
+
+    public void unparse(PrintWriter p, int indent) {
+        p.print(myIntVal);
+    }
+
+    private int myLineNum;
+    private int myCharNum;
+    private int myIntVal;
+}
+
 class StringLitNode extends ExpNode {
     public StringLitNode(int lineNum, int charNum, String strVal) {
         myLineNum = lineNum;
@@ -1805,19 +3829,38 @@ class StringLitNode extends ExpNode {
         return myStrVal;
     }
 
+    /**
+     * Return the characters of the string, without the quotes and with the
+     * escapes replaced by the characters they stand for.
+     */
+    public String value() {
+        StringBuilder value = new StringBuilder();
+        for (int k = 1; k < myStrVal.length() - 1; k++) {
+            char c = myStrVal.charAt(k);
+            if (c == '\\') {
+                c = myStrVal.charAt(++k);
+                if (c == 'n') {
+                    c = '\n';
+                } else if (c == 't') {
+                    c = '\t';
+                }
+            }
+            value.append(c);
+        }
+        return value.toString();
+    }
+
     public void codeGen() {
-        // store static data
-        String label = Codegen.nextLabel();
-        Codegen.p.println("\t.data");
-        Codegen.p.println("\t.align 4");
-        Codegen.p.println(label + ":\t.asciiz " + myStrVal);
-        Codegen.p.println("\t.text");
-        // end store static data
+        // the literal is in the string pool
+        String label = Codegen.stringLabel(myStrVal);
+
+        // push address
+        Codegen.generateWithComment(Opcode.LA, "load address", Codegen.newTemp(), Codegen.label(label));
+        // end push address
+    }
 
-        // push address to stack
-        Codegen.generateWithComment("la", "load address", Codegen.T0, label);
-        Codegen.genPush(Codegen.T0);
-        // end push address to stack
+    public boolean isPure() {
+        return true;
     }
 
     /**
@@ -1841,6 +3884,33 @@ class StringLitNode extends ExpNode {
         return new StringType();
     }
 
+    public IRInst genIR(IRBuilder b) {
+        return b.string(myStrVal);
+    }
+
+    /**
+     * compile
+     * A string is its index in the engine's table of strings.
+     */
+    public Engine.Exp compile(Engine e) {
+        int k = e.intern(value());
+        return f -> k;
+    }
+
+    /**
+     * genJvm
+     */
+    public void genJvm(JvmCode c) {
+        c.ldcString(value());
+    }
+
+    /**
+     * genX86
+     */
+    public void genX86() {
+        X86Codegen.generate("leaq", X86Codegen.stringLabel(value()) + "(%rip)", "%rax");
+    }
+
     public void unparse(PrintWriter p, int indent) {
         p.print(myStrVal);
     }
@@ -1857,8 +3927,17 @@ class TrueNode extends ExpNode {
     }
 
     public void codeGen() {
-        Codegen.generate("li", Codegen.T0, 1);
-        Codegen.genPush(Codegen.T0);
+        Codegen.generate(Opcode.LI, Codegen.newTemp(), 1);
+    }
+
+    public void genJump(String trueLabel, String falseLabel) {
+        if (trueLabel != null) {
+            Codegen.generate(Opcode.J, Codegen.label(trueLabel));
+        }
+    }
+
+    public boolean isPure() {
+        return true;
     }
 
     /**
@@ -1882,6 +3961,35 @@ class TrueNode extends ExpNode {
         return new BoolType();
     }
 
+    public IRInst genIR(IRBuilder b) {
+        return b.constant(1);
+    }
+
+    /**
+     * compile
+     */
+    public Engine.Exp compile(Engine e) {
+        return f -> 1;
+    }
+
+    /**
+     * genJvm
+     */
+    public void genJvm(JvmCode c) {
+        c.iconst(1);
+    }
+
+    /**
+     * genX86
+     */
+    public void genX86() {
+        X86Codegen.generate("movl", "$" + 1, "%eax");
+    }
+
+    public String x86Operand() {
+        return "$" + 1;
+    }
+
     public void unparse(PrintWriter p, int indent) {
         p.print("true");
     }
@@ -1897,8 +4005,17 @@ class FalseNode extends ExpNode {
     }
 
     public void codeGen() {
-        Codegen.generate("li", Codegen.T0, 0);
-        Codegen.genPush(Codegen.T0);
+        Codegen.generate(Opcode.LI, Codegen.newTemp(), 0);
+    }
+
+    public void genJump(String trueLabel, String falseLabel) {
+        if (falseLabel != null) {
+            Codegen.generate(Opcode.J, Codegen.label(falseLabel));
+        }
+    }
+
+    public boolean isPure() {
+        return true;
     }
 
     /**
@@ -1922,6 +4039,35 @@ class FalseNode extends ExpNode {
         return new BoolType();
     }
 
+    public IRInst genIR(IRBuilder b) {
+        return b.constant(0);
+    }
+
+    /**
+     * compile
+     */
+    public Engine.Exp compile(Engine e) {
+        return f -> 0;
+    }
+
+    /**
+     * genJvm
+     */
+    public void genJvm(JvmCode c) {
+        c.iconst(0);
+    }
+
+    /**
+     * genX86
+     */
+    public void genX86() {
+        X86Codegen.generate("movl", "$" + 0, "%eax");
+    }
+
+    public String x86Operand() {
+        return "$" + 0;
+    }
+
     public void unparse(PrintWriter p, int indent) {
         p.print("false");
     }
@@ -1938,41 +4084,76 @@ class IdNode extends ExpNode {
     }
 
     public void genJumpAndLink() {
-        String name = this.name();
-        String label = "";
-        if (name == "main") {
-            label = "main";
-        } else {
-            label = "_" + name;
-        }
+        Codegen.generate(Opcode.JAL, Codegen.label(fnLabel()));
+    }
 
-        Codegen.generate("jal", label);
+    /**
+     * Return the label of the function this name refers to.
+     */
+    public String fnLabel() {
+        if (name().equals("main")) {
+            return "main";
+        }
+        return "_" + name();
     }
 
     public void codeGen() {
         TSym t = this.sym();
         if (t.getType().isIntType() || t.getType().isBoolType()) {
-            if (t.getIsGlobal()) {
-                Codegen.generateWithComment("lw", "load global", Codegen.T0, "_" + this.name());
+            if (t.getReg() != null) {
+                Codegen.pushAlias(t.getReg());
             } else {
-                Codegen.generateIndexed("lw", Codegen.T0, Codegen.FP, -t.getOffset(), "load local");
+                genLoadInto(Codegen.newTemp());
             }
-            Codegen.genPush(Codegen.T0);
         }
     }
 
-    public void genAddr() {
-        TSym t = this.sym();
-        if (t.getType().isIntType() || t.getType().isBoolType()) {
-            if (t.getIsGlobal()) {
-                Codegen.generateWithComment("la", "load global address", Codegen.T0, "_" + this.name());
-            } else {
-                Codegen.generateIndexed("la", Codegen.T0, Codegen.FP, -t.getOffset(), "load local address");
+    /**
+     * genLoad
+     * Return a register holding the value of this variable, loading it
+     * into the given scratch register if it is not kept in a register.
+     */
+    public Reg genLoad(Reg scratch) {
+        if (mySym.getReg() != null) {
+            return mySym.getReg();
+        }
+        genLoadInto(scratch);
+        return scratch;
+    }
+
+    private void genLoadInto(Reg reg) {
+        if (mySym.getIsGlobal()) {
+            Codegen.generateWithComment(Opcode.LW, "load global", reg, Codegen.label("_" + this.name()));
+        } else {
+            Codegen.generateIndexed(Opcode.LW, reg, Codegen.FP, -mySym.getOffset(), "load local");
+        }
+    }
+
+    /**
+     * genStore
+     * Store the value in the given register into this variable.
+     */
+    public void genStore(Reg reg) {
+        if (mySym.getReg() != null) {
+            Codegen.protectReg(mySym.getReg());
+            if (reg != mySym.getReg()) {
+                Codegen.generate(Opcode.MOVE, mySym.getReg(), reg);
             }
-            Codegen.genPush(Codegen.T0);
+        } else if (mySym.getIsGlobal()) {
+            Codegen.generateWithComment(Opcode.SW, "store global", reg, Codegen.label("_" + this.name()));
+        } else {
+            Codegen.generateIndexed(Opcode.SW, reg, Codegen.FP, -mySym.getOffset(), "store local");
         }
     }
 
+    public void liveRanges(RegAlloc ra) {
+        ra.use(mySym);
+    }
+
+    public boolean isPure() {
+        return true;
+    }
+
     /**
      * Link the given symbol to this ID.
      */
@@ -2046,6 +4227,76 @@ class IdNode extends ExpNode {
         return null;
     }
 
+    /**
+     * genIR
+     * Locals and formals are SSA values; globals are loaded.
+     */
+    public IRInst genIR(IRBuilder b) {
+        if (!mySym.getType().isIntType() && !mySym.getType().isBoolType()) {
+            b.unsupported();
+            return b.constant(0);
+        }
+        if (mySym.getIsGlobal()) {
+            return b.emit(IROp.LOADG, myStrVal);
+        }
+        return b.readVariable(mySym);
+    }
+
+    /**
+     * genIRStore
+     * Make val the new value of this variable.
+     */
+    public void genIRStore(IRBuilder b, IRInst val) {
+        if (mySym.getIsGlobal()) {
+            b.emit(IROp.STOREG, myStrVal, val);
+        } else {
+            b.writeVariable(mySym, val);
+        }
+    }
+
+    /**
+     * compile
+     */
+    public Engine.Exp compile(Engine e) {
+        return e.load(mySym, 0);
+    }
+
+    public Engine.Exp compileStore(Engine e, Engine.Exp val) {
+        return e.store(mySym, 0, val);
+    }
+
+    /**
+     * genJvm
+     */
+    public void genJvm(JvmCode c) {
+        if (mySym.getIsGlobal()) {
+            c.field(JvmCode.GETSTATIC, JvmCodegen.className(),
+                    JvmCodegen.globalName(myStrVal, 0), "I");
+        } else {
+            c.local(JvmCode.ILOAD, JvmCodegen.localSlot(mySym, 0));
+        }
+    }
+
+    public void genJvmStore(JvmCode c) {
+        if (mySym.getIsGlobal()) {
+            c.field(JvmCode.PUTSTATIC, JvmCodegen.className(),
+                    JvmCodegen.globalName(myStrVal, 0), "I");
+        } else {
+            c.local(JvmCode.ISTORE, JvmCodegen.localSlot(mySym, 0));
+        }
+    }
+
+    /**
+     * genX86
+     */
+    public void genX86() {
+        X86Codegen.generate("movl", x86Operand(), "%eax");
+    }
+
+    public String x86Operand() {
+        return X86Codegen.location(mySym, myStrVal, 0);
+    }
+
     public void unparse(PrintWriter p, int indent) {
         p.print(myStrVal);
         if (mySym != null) {
@@ -2197,6 +4448,141 @@ class DotAccessExpNode extends ExpNode {
         return myId.typeCheck();
     }
 
+    /**
+     * root
+     * Return the struct variable this chain of dot-accesses starts from.
+     */
+    private IdNode root() {
+        if (myLoc instanceof DotAccessExpNode) {
+            return ((DotAccessExpNode)myLoc).root();
+        }
+        return (IdNode)myLoc;
+    }
+
+    /**
+     * fieldOffset
+     * Return the offset of the accessed field from the start of the root
+     * variable, so that a.b.c is a single access.
+     */
+    private int fieldOffset() {
+        int offset = myId.sym().getOffset();
+        if (myLoc instanceof DotAccessExpNode) {
+            offset += ((DotAccessExpNode)myLoc).fieldOffset();
+        }
+        return offset;
+    }
+
+    /**
+     * address
+     * Return the memory operand of the accessed field: a global struct's
+     * label plus the offset, or an offset from $fp.
+     */
+    private Operand address() {
+        TSym var = root().sym();
+        if (var.getIsGlobal()) {
+            return Codegen.label("_" + globalName());
+        }
+        return Codegen.mem(fieldOffset() - var.getOffset(), Codegen.FP);
+    }
+
+    public void codeGen() {
+        genLoadInto(Codegen.newTemp());
+    }
+
+    public Reg genLoad(Reg scratch) {
+        genLoadInto(scratch);
+        return scratch;
+    }
+
+    private void genLoadInto(Reg reg) {
+        Codegen.generateWithComment(Opcode.LW, "load field", reg, address());
+    }
+
+    public void genStore(Reg reg) {
+        Codegen.generateWithComment(Opcode.SW, "store field", reg, address());
+    }
+
+    public boolean isPure() {
+        return true;
+    }
+
+    /**
+     * genIR
+     * The fields of a global struct are loaded like globals; each field of
+     * a local struct is a variable of its own.
+     */
+    public IRInst genIR(IRBuilder b) {
+        TSym var = root().sym();
+        if (var.getIsGlobal()) {
+            return b.emit(IROp.LOADG, globalName());
+        }
+        return b.readVariable(((StructSym)var).getFieldVar(fieldOffset()));
+    }
+
+    public void genIRStore(IRBuilder b, IRInst val) {
+        TSym var = root().sym();
+        if (var.getIsGlobal()) {
+            b.emit(IROp.STOREG, globalName(), val);
+        } else {
+            b.writeVariable(((StructSym)var).getFieldVar(fieldOffset()), val);
+        }
+    }
+
+    // the name of the global that is the accessed field (see address)
+    private String globalName() {
+        int offset = fieldOffset();
+        return offset == 0 ? root().name() : root().name() + "+" + offset;
+    }
+
+    /**
+     * compile
+     * The field is the word at its offset in the root variable.
+     */
+    public Engine.Exp compile(Engine e) {
+        return e.load(root().sym(), fieldOffset());
+    }
+
+    public Engine.Exp compileStore(Engine e, Engine.Exp val) {
+        return e.store(root().sym(), fieldOffset(), val);
+    }
+
+    /**
+     * genJvm
+     * The field is the word at its offset in the root variable.
+     */
+    public void genJvm(JvmCode c) {
+        IdNode root = root();
+        if (root.sym().getIsGlobal()) {
+            c.field(JvmCode.GETSTATIC, JvmCodegen.className(),
+                    JvmCodegen.globalName(root.name(), fieldOffset()), "I");
+        } else {
+            c.local(JvmCode.ILOAD, JvmCodegen.localSlot(root.sym(), fieldOffset()));
+        }
+    }
+
+    public void genJvmStore(JvmCode c) {
+        IdNode root = root();
+        if (root.sym().getIsGlobal()) {
+            c.field(JvmCode.PUTSTATIC, JvmCodegen.className(),
+                    JvmCodegen.globalName(root.name(), fieldOffset()), "I");
+        } else {
+            c.local(JvmCode.ISTORE, JvmCodegen.localSlot(root.sym(), fieldOffset()));
+        }
+    }
+
+    /**
+     * genX86
+     * The field is the word at its offset in the root variable.
+     */
+    public void genX86() {
+        X86Codegen.generate("movl", x86Operand(), "%eax");
+    }
+
+    public String x86Operand() {
+        IdNode root = root();
+        return X86Codegen.location(root.sym(), root.name(), fieldOffset());
+    }
+
     public void unparse(PrintWriter p, int indent) {
         myLoc.unparse(p, 0);
         p.print(".");
@@ -2218,10 +4604,19 @@ class AssignNode extends ExpNode {
 
     public void codeGen() {
         myExp.codeGen();
-        ((IdNode)myLhs).genAddr();
-        Codegen.genPop(Codegen.T0);
-        Codegen.generateIndexed("lw", Codegen.T1, Codegen.SP, 4, "load value");
-        Codegen.generateIndexed("sw", Codegen.T1, Codegen.T0, 0, "store value");
+        // the value stays on the expression stack as the result
+        Reg reg = Codegen.peekTemp(Codegen.T0);
+        myLhs.genStore(reg);
+    }
+
+    public void liveRanges(RegAlloc ra) {
+        myLhs.liveRanges(ra);
+        myExp.liveRanges(ra);
+    }
+
+    public ExpNode fold() {
+        myExp = myExp.fold();
+        return this;
     }
 
     /**
@@ -2285,6 +4680,39 @@ class AssignNode extends ExpNode {
         return retType;
     }
 
+    /**
+     * genIR
+     */
+    public IRInst genIR(IRBuilder b) {
+        IRInst val = myExp.genIR(b);
+        myLhs.genIRStore(b, val);
+        return val;
+    }
+
+    /**
+     * compile
+     */
+    public Engine.Exp compile(Engine e) {
+        return myLhs.compileStore(e, myExp.compile(e));
+    }
+
+    /**
+     * genJvm
+     */
+    public void genJvm(JvmCode c) {
+        myExp.genJvm(c);
+        c.op(JvmCode.DUP, 1);
+        myLhs.genJvmStore(c);
+    }
+
+    /**
+     * genX86
+     */
+    public void genX86() {
+        myExp.genX86();
+        X86Codegen.generate("movl", "%eax", myLhs.x86Operand());
+    }
+
     public void unparse(PrintWriter p, int indent) {
         if (indent != -1)  p.print("(");
         myLhs.unparse(p, 0);
@@ -2310,9 +4738,32 @@ class CallExpNode extends ExpNode {
     }
 
     public void codeGen() {
+        // the callee does not preserve the temps
+        Codegen.spillTemps();
         myExpList.codeGen();
         myId.genJumpAndLink();
-        Codegen.genPush(Codegen.V0);
+        Codegen.generate(Opcode.MOVE, Codegen.newTemp(), Codegen.V0);
+    }
+
+    /**
+     * genTailCall
+     * Generate "return <this call>" in function f: the callee returns
+     * straight to f's caller.
+     */
+    public void genTailCall(FnSym f) {
+        Codegen.spillTemps();
+        myExpList.codeGen();
+        FnDeclNode.genTailCall(f, myExpList.size(), myId.fnLabel());
+    }
+
+    public void liveRanges(RegAlloc ra) {
+        ra.call();
+        myExpList.liveRanges(ra);
+    }
+
+    public ExpNode fold() {
+        myExpList.fold();
+        return this;
     }
 
     /**
@@ -2369,6 +4820,45 @@ class CallExpNode extends ExpNode {
     }
 
     // ** unparse **
+    /**
+     * genIR
+     */
+    public IRInst genIR(IRBuilder b) {
+        return b.emit(IROp.CALL, myId.fnLabel(), myExpList.genIR(b));
+    }
+
+    /**
+     * compile
+     */
+    public Engine.Exp compile(Engine e) {
+        return e.call(e.function((FnSym)myId.sym()), myExpList.compile(e));
+    }
+
+    /**
+     * isVoid
+     * Does the called function return nothing?
+     */
+    public boolean isVoid() {
+        return ((FnSym)myId.sym()).getReturnType().isVoidType();
+    }
+
+    /**
+     * genJvm
+     */
+    public void genJvm(JvmCode c) {
+        FnSym f = (FnSym)myId.sym();
+        myExpList.genJvm(c);
+        c.invoke(JvmCode.INVOKESTATIC, JvmCodegen.className(),
+                 JvmCodegen.fnName(myId.name()), JvmCodegen.fnDescriptor(f));
+    }
+
+    /**
+     * genX86
+     */
+    public void genX86() {
+        myExpList.genX86Call(myId.name());
+    }
+
     public void unparse(PrintWriter p, int indent) {
         myId.unparse(p, 0);
         p.print("(");
@@ -2412,6 +4902,28 @@ abstract class UnaryExpNode extends ExpNode {
         myExp.nameAnalysis(symTab);
     }
 
+    public void liveRanges(RegAlloc ra) {
+        myExp.liveRanges(ra);
+    }
+
+    /**
+     * fold
+     * Fold the operand, then simplify this node.
+     */
+    public ExpNode fold() {
+        myExp = myExp.fold();
+        return simplify();
+    }
+
+    // default version of simplify: nothing to simplify
+    protected ExpNode simplify() {
+        return this;
+    }
+
+    public boolean isPure() {
+        return myExp.isPure();
+    }
+
     // one child
     protected ExpNode myExp;
 }
@@ -2422,6 +4934,25 @@ abstract class BinaryExpNode extends ExpNode {
         myExp2 = exp2;
     }
 
+    /**
+     * genX86Operands
+     * Leave the value of the left operand in %eax and return the operand
+     * holding the right one: the right operand itself if it is a literal
+     * or a variable, else %ecx.
+     */
+    protected String genX86Operands() {
+        String right = myExp2.x86Operand();
+        myExp1.genX86();
+        if (right != null) {
+            return right;
+        }
+        X86Codegen.generate("pushq", "%rax");
+        myExp2.genX86();
+        X86Codegen.generate("movl", "%eax", "%ecx");
+        X86Codegen.generate("popq", "%rax");
+        return "%ecx";
+    }
+
     /**
      * Return the line number for this binary expression node.
      * The line number is the one corresponding to the left operand.
@@ -2448,6 +4979,75 @@ abstract class BinaryExpNode extends ExpNode {
         myExp2.nameAnalysis(symTab);
     }
 
+    public void liveRanges(RegAlloc ra) {
+        myExp1.liveRanges(ra);
+        myExp2.liveRanges(ra);
+    }
+
+    /**
+     * fold
+     * Fold both operands, then simplify this node.
+     */
+    public ExpNode fold() {
+        myExp1 = myExp1.fold();
+        myExp2 = myExp2.fold();
+        return simplify();
+    }
+
+    // default version of simplify: nothing to simplify
+    protected ExpNode simplify() {
+        return this;
+    }
+
+    public boolean isPure() {
+        return myExp1.isPure() && myExp2.isPure();
+    }
+
+    /**
+     * genBinary
+     * Evaluate both operands and combine them with the given instruction
+     * into a new value on the expression stack.
+     */
+    protected void genBinary(Opcode opcode, String comment) {
+        myExp1.codeGen();
+        myExp2.codeGen();
+
+        Reg right = Codegen.popTemp(Codegen.T1);
+        Reg left = Codegen.popTemp(Codegen.T0);
+
+        Codegen.generateWithComment(opcode, comment, Codegen.newTemp(), left, right);
+    }
+
+    /**
+     * genCompareJump
+     * Evaluate both operands and branch on them with the given
+     * instruction (see genJump); a small literal right operand is used as
+     * an immediate.
+     */
+    protected void genCompareJump(Opcode branch, String trueLabel,
+                                  String falseLabel) {
+        myExp1.codeGen();
+        Operand right;
+        if (isIntLit(myExp2) && Codegen.imm(intVal(myExp2)).fits16()) {
+            right = Codegen.imm(intVal(myExp2));
+        } else {
+            myExp2.codeGen();
+            right = Codegen.popTemp(Codegen.T1);
+        }
+        Reg left = Codegen.popTemp(Codegen.T0);
+        genBranch(branch, left, right, trueLabel, falseLabel);
+    }
+
+    /**
+     * genIRBinary
+     * Evaluate both operands and combine them with the given operation.
+     */
+    protected IRInst genIRBinary(IRBuilder b, IROp op) {
+        IRInst left = myExp1.genIR(b);
+        IRInst right = myExp2.genIR(b);
+        return b.emit(op, left, right);
+    }
+
     // two kids
     protected ExpNode myExp1;
     protected ExpNode myExp2;
@@ -2465,10 +5065,23 @@ class UnaryMinusNode extends UnaryExpNode {
     public void codeGen() {
         myExp.codeGen();
 
-        Codegen.genPop(Codegen.T0);
+        Reg reg = Codegen.popTemp(Codegen.T0);
+
+        Codegen.generateWithComment(Opcode.NEG, "perform negate", Codegen.newTemp(), reg);
+    }
 
-        Codegen.generateWithComment("neg", "perform negate", Codegen.T0, Codegen.T0);
-        Codegen.genPush(Codegen.T0);
+    /**
+     * simplify
+     * -k is a literal, -(-x) is x
+     */
+    protected ExpNode simplify() {
+        if (isIntLit(myExp) && intVal(myExp) != Integer.MIN_VALUE) {
+            return intLit(-intVal(myExp));
+        }
+        if (myExp instanceof UnaryMinusNode) {
+            return ((UnaryMinusNode)myExp).myExp;
+        }
+        return this;
     }
 
     /**
@@ -2491,6 +5104,35 @@ class UnaryMinusNode extends UnaryExpNode {
         return retType;
     }
 
+    public IRInst genIR(IRBuilder b) {
+        return b.emit(IROp.NEG, myExp.genIR(b));
+    }
+
+    /**
+     * compile
+     */
+    public Engine.Exp compile(Engine e) {
+        Engine.Exp val = myExp.compile(e);
+        return f -> Math.negateExact(val.eval(f));
+    }
+
+    /**
+     * genJvm
+     */
+    public void genJvm(JvmCode c) {
+        myExp.genJvm(c);
+        c.invoke(JvmCode.INVOKESTATIC, "java/lang/Math", "negateExact", "(I)I");
+    }
+
+    /**
+     * genX86
+     */
+    public void genX86() {
+        myExp.genX86();
+        X86Codegen.generate("negl", "%eax");
+        X86Codegen.generate("jo", "rt_overflow");
+    }
+
     public void unparse(PrintWriter p, int indent) {
         p.print("(-");
         myExp.unparse(p, 0);
@@ -2506,11 +5148,42 @@ class NotNode extends UnaryExpNode {
     public void codeGen() {
         myExp.codeGen();
 
-        Codegen.genPop(Codegen.T0);
-        Codegen.generate("li", Codegen.T1, 0);
+        Reg reg = Codegen.popTemp(Codegen.T0);
+
+        Codegen.generateWithComment(Opcode.XORI, "perform not", Codegen.newTemp(), reg, Codegen.TRUE);
+    }
+
+    /**
+     * genJump
+     * !e jumps where e would have jumped the other way.
+     */
+    public void genJump(String trueLabel, String falseLabel) {
+        myExp.genJump(falseLabel, trueLabel);
+    }
+
+    public void genIRJump(IRBuilder b, Block t, Block f) {
+        myExp.genIRJump(b, f, t);
+    }
 
-        Codegen.generateWithComment("seq", "perform not", Codegen.T0, Codegen.T0, Codegen.T1);
-        Codegen.genPush(Codegen.T0);
+    /**
+     * simplify
+     * !true and !false are literals, !!x is x, and the negation of a
+     * comparison is the opposite comparison
+     */
+    protected ExpNode simplify() {
+        if (isBoolLit(myExp)) {
+            return boolLit(!boolVal(myExp));
+        }
+        if (myExp instanceof NotNode) {
+            return ((NotNode)myExp).myExp;
+        }
+        if (myExp instanceof RelationalExpNode) {
+            return ((RelationalExpNode)myExp).negate();
+        }
+        if (myExp instanceof EqualityExpNode) {
+            return ((EqualityExpNode)myExp).negate();
+        }
+        return this;
     }
 
     /**
@@ -2533,6 +5206,49 @@ class NotNode extends UnaryExpNode {
         return retType;
     }
 
+    public IRInst genIR(IRBuilder b) {
+        return b.emit(IROp.NOT, myExp.genIR(b));
+    }
+
+    /**
+     * compile
+     */
+    public Engine.Exp compile(Engine e) {
+        Engine.Exp val = myExp.compile(e);
+        return f -> val.eval(f) ^ 1;
+    }
+
+    /**
+     * genJvm
+     */
+    public void genJvm(JvmCode c) {
+        myExp.genJvm(c);
+        c.iconst(1);
+        c.op(JvmCode.IXOR, -1);
+    }
+
+    /**
+     * genJvmJump
+     */
+    public void genJvmJump(JvmCode c, JvmCode.Label t, JvmCode.Label f) {
+        myExp.genJvmJump(c, f, t);
+    }
+
+    /**
+     * genX86
+     */
+    public void genX86() {
+        myExp.genX86();
+        X86Codegen.generate("xorl", "$1", "%eax");
+    }
+
+    /**
+     * genX86Jump
+     */
+    public void genX86Jump(String trueLabel, String falseLabel) {
+        myExp.genX86Jump(falseLabel, trueLabel);
+    }
+
     public void unparse(PrintWriter p, int indent) {
         p.print("(!");
         myExp.unparse(p, 0);
@@ -2615,6 +5331,67 @@ abstract class EqualityExpNode extends BinaryExpNode {
         super(exp1, exp2);
     }
 
+    /**
+     * genJump
+     * Branch on the comparison.
+     */
+    public void genJump(String trueLabel, String falseLabel) {
+        genCompareJump(branchOpcode(), trueLabel, falseLabel);
+    }
+
+    /**
+     * The branch taken when the comparison holds.
+     */
+    abstract protected Opcode branchOpcode();
+
+    /**
+     * genJvm
+     */
+    public void genJvm(JvmCode c) {
+        genJvmBool(c);
+    }
+
+    /**
+     * genJvmJump
+     * Compare the operands with a jump.
+     */
+    public void genJvmJump(JvmCode c, JvmCode.Label t, JvmCode.Label f) {
+        myExp1.genJvm(c);
+        myExp2.genJvm(c);
+        genJvmBranch(c, jvmCompare(), t, f);
+    }
+
+    /**
+     * The jump (IF_ICMPEQ or IF_ICMPNE) taken when the comparison holds.
+     */
+    abstract protected int jvmCompare();
+
+    /**
+     * genX86
+     */
+    public void genX86() {
+        genX86Bool();
+    }
+
+    /**
+     * genX86Jump
+     * Compare the operands.
+     */
+    public void genX86Jump(String trueLabel, String falseLabel) {
+        X86Codegen.generate("cmpl", genX86Operands(), "%eax");
+        genX86Branch(x86Jump(), trueLabel, falseLabel);
+    }
+
+    /**
+     * The jump (je or jne) taken when the comparison holds.
+     */
+    abstract protected String x86Jump();
+
+    /**
+     * Return the opposite comparison of the same operands.
+     */
+    abstract public EqualityExpNode negate();
+
     /**
      * typeCheck
      */
@@ -2659,6 +5436,41 @@ abstract class EqualityExpNode extends BinaryExpNode {
 
         return retType;
     }
+
+    /**
+     * Return whether the operands are equal if that is known at compile
+     * time, or null.  Strings are only ever literals, so every comparison
+     * of strings is known here, and the code generators never see one.
+     */
+    protected Boolean constEqual() {
+        if (isIntLit(myExp1) && isIntLit(myExp2)) {
+            return intVal(myExp1) == intVal(myExp2);
+        }
+        if (isBoolLit(myExp1) && isBoolLit(myExp2)) {
+            return boolVal(myExp1) == boolVal(myExp2);
+        }
+        if (myExp1 instanceof StringLitNode && myExp2 instanceof StringLitNode) {
+            return ((StringLitNode)myExp1).value().equals(((StringLitNode)myExp2).value());
+        }
+        if (sameId(myExp1, myExp2)) {
+            return true;
+        }
+        return null;
+    }
+
+    /**
+     * Return the operand compared with the given bool literal, or null if
+     * neither operand is a bool literal.
+     */
+    protected ExpNode comparedWith(boolean val) {
+        if (isBoolLit(myExp2, val)) {
+            return myExp1;
+        }
+        if (isBoolLit(myExp1, val)) {
+            return myExp2;
+        }
+        return null;
+    }
 }
 
 abstract class RelationalExpNode extends BinaryExpNode {
@@ -2692,6 +5504,85 @@ abstract class RelationalExpNode extends BinaryExpNode {
 
         return retType;
     }
+
+    /**
+     * simplify
+     * A comparison of two literals, or of a variable with itself, is a
+     * literal.
+     */
+    protected ExpNode simplify() {
+        if (isIntLit(myExp1) && isIntLit(myExp2)) {
+            return boolLit(compare(intVal(myExp1), intVal(myExp2)));
+        }
+        if (sameId(myExp1, myExp2)) {
+            return boolLit(compare(0, 0));
+        }
+        return this;
+    }
+
+    /**
+     * Apply the comparison to two values.
+     */
+    abstract protected boolean compare(int val1, int val2);
+
+    /**
+     * Return the opposite comparison of the same operands.
+     */
+    abstract public RelationalExpNode negate();
+
+    /**
+     * genJump
+     * Branch on the comparison instead of computing its value.
+     */
+    public void genJump(String trueLabel, String falseLabel) {
+        genCompareJump(branchOpcode(), trueLabel, falseLabel);
+    }
+
+    /**
+     * The branch taken when the comparison holds.
+     */
+    abstract protected Opcode branchOpcode();
+
+    /**
+     * genJvm
+     */
+    public void genJvm(JvmCode c) {
+        genJvmBool(c);
+    }
+
+    /**
+     * genJvmJump
+     */
+    public void genJvmJump(JvmCode c, JvmCode.Label t, JvmCode.Label f) {
+        myExp1.genJvm(c);
+        myExp2.genJvm(c);
+        genJvmBranch(c, jvmCompare(), t, f);
+    }
+
+    /**
+     * The jump taken when the comparison holds.
+     */
+    abstract protected int jvmCompare();
+
+    /**
+     * genX86
+     */
+    public void genX86() {
+        genX86Bool();
+    }
+
+    /**
+     * genX86Jump
+     */
+    public void genX86Jump(String trueLabel, String falseLabel) {
+        X86Codegen.generate("cmpl", genX86Operands(), "%eax");
+        genX86Branch(x86Jump(), trueLabel, falseLabel);
+    }
+
+    /**
+     * The jump taken when the comparison holds.
+     */
+    abstract protected String x86Jump();
 }
 
 class PlusNode extends ArithmeticExpNode {
@@ -2700,14 +5591,58 @@ class PlusNode extends ArithmeticExpNode {
     }
 
     public void codeGen() {
-        myExp1.codeGen();
-        myExp2.codeGen();
+        genBinary(Opcode.ADD, "perform add");
+    }
+
+    /**
+     * simplify
+     * k1 + k2 is a literal (unless it overflows), x + 0 and 0 + x are x
+     */
+    protected ExpNode simplify() {
+        if (isIntLit(myExp1) && isIntLit(myExp2)) {
+            try {
+                return intLit(Math.addExact(intVal(myExp1), intVal(myExp2)));
+            } catch (ArithmeticException ex) {
+                return this;    // leave the overflow trap to run time
+            }
+        }
+        if (isIntLit(myExp2, 0)) {
+            return myExp1;
+        }
+        if (isIntLit(myExp1, 0)) {
+            return myExp2;
+        }
+        return this;
+    }
+
+    public IRInst genIR(IRBuilder b) {
+        return genIRBinary(b, IROp.ADD);
+    }
 
-        Codegen.genPop(Codegen.T1); // right side
-        Codegen.genPop(Codegen.T0); // left side
+    /**
+     * compile
+     */
+    public Engine.Exp compile(Engine e) {
+        Engine.Exp l = myExp1.compile(e);
+        Engine.Exp r = myExp2.compile(e);
+        return f -> Math.addExact(l.eval(f), r.eval(f));
+    }
+
+    /**
+     * genJvm
+     */
+    public void genJvm(JvmCode c) {
+        myExp1.genJvm(c);
+        myExp2.genJvm(c);
+        c.invoke(JvmCode.INVOKESTATIC, "java/lang/Math", "addExact", "(II)I");
+    }
 
-        Codegen.generateWithComment("add", "perform add", Codegen.T0, Codegen.T0, Codegen.T1);
-        Codegen.genPush(Codegen.T0);
+    /**
+     * genX86
+     */
+    public void genX86() {
+        X86Codegen.generate("addl", genX86Operands(), "%eax");
+        X86Codegen.generate("jo", "rt_overflow");
     }
 
     public void unparse(PrintWriter p, int indent) {
@@ -2725,42 +5660,150 @@ class MinusNode extends ArithmeticExpNode {
     }
 
     public void codeGen() {
-        myExp1.codeGen();
-        myExp2.codeGen();
+        genBinary(Opcode.SUB, "perform subtract");
+    }
+
+    /**
+     * simplify
+     * k1 - k2 is a literal (unless it overflows), x - 0 is x, 0 - x is -x
+     * and x - x is 0
+     */
+    protected ExpNode simplify() {
+        if (isIntLit(myExp1) && isIntLit(myExp2)) {
+            try {
+                return intLit(Math.subtractExact(intVal(myExp1), intVal(myExp2)));
+            } catch (ArithmeticException ex) {
+                return this;    // leave the overflow trap to run time
+            }
+        }
+        if (isIntLit(myExp2, 0)) {
+            return myExp1;
+        }
+        if (isIntLit(myExp1, 0)) {
+            return new UnaryMinusNode(myExp2).simplify();
+        }
+        if (sameId(myExp1, myExp2)) {
+            return intLit(0);
+        }
+        return this;
+    }
+
+    public IRInst genIR(IRBuilder b) {
+        return genIRBinary(b, IROp.SUB);
+    }
+
+    /**
+     * compile
+     */
+    public Engine.Exp compile(Engine e) {
+        Engine.Exp l = myExp1.compile(e);
+        Engine.Exp r = myExp2.compile(e);
+        return f -> Math.subtractExact(l.eval(f), r.eval(f));
+    }
+
+    /**
+     * genJvm
+     */
+    public void genJvm(JvmCode c) {
+        myExp1.genJvm(c);
+        myExp2.genJvm(c);
+        c.invoke(JvmCode.INVOKESTATIC, "java/lang/Math", "subtractExact", "(II)I");
+    }
+
+    /**
+     * genX86
+     */
+    public void genX86() {
+        X86Codegen.generate("subl", genX86Operands(), "%eax");
+        X86Codegen.generate("jo", "rt_overflow");
+    }
+
+    public void unparse(PrintWriter p, int indent) {
+        p.print("(");
+        myExp1.unparse(p, 0);
+        p.print(" - ");
+        myExp2.unparse(p, 0);
+        p.print(")");
+    }
+}
+
+class TimesNode extends ArithmeticExpNode {
+    public TimesNode(ExpNode exp1, ExpNode exp2) {
+        super(exp1, exp2);
+    }
+
+    /**
+     * codeGen
+     * Multiplication by a literal uses shifts and adds when it can (see
+     * Codegen.genMulImm).
+     */
+    public void codeGen() {
+        if (isIntLit(myExp1) || isIntLit(myExp2)) {
+            boolean litRight = isIntLit(myExp2);
+            (litRight ? myExp1 : myExp2).codeGen();
+            Reg src = Codegen.popTemp(Codegen.T0);
+            Codegen.genMulImm(Codegen.newTemp(), src, intVal(litRight ? myExp2 : myExp1));
+            return;
+        }
+        genBinary(Opcode.MUL, "perform multiplication");
+    }
+
+    /**
+     * simplify
+     * k1 * k2 is a literal (unless it overflows), x * 1 and 1 * x are x,
+     * x * 0 and 0 * x are 0 when x need not be evaluated
+     */
+    protected ExpNode simplify() {
+        if (isIntLit(myExp1) && isIntLit(myExp2)) {
+            try {
+                return intLit(Math.multiplyExact(intVal(myExp1), intVal(myExp2)));
+            } catch (ArithmeticException ex) {
+                return this;
+            }
+        }
+        if (isIntLit(myExp2, 1)) {
+            return myExp1;
+        }
+        if (isIntLit(myExp1, 1)) {
+            return myExp2;
+        }
+        if ((isIntLit(myExp2, 0) && myExp1.isPure()) ||
+            (isIntLit(myExp1, 0) && myExp2.isPure())) {
+            return intLit(0);
+        }
+        return this;
+    }
 
-        Codegen.genPop(Codegen.T1); // right side
-        Codegen.genPop(Codegen.T0); // left side
 
-        Codegen.generateWithComment("sub", "perform subtract", Codegen.T0, Codegen.T0, Codegen.T1);
-        Codegen.genPush(Codegen.T0);
+    public IRInst genIR(IRBuilder b) {
+        return genIRBinary(b, IROp.MUL);
     }
 
-    public void unparse(PrintWriter p, int indent) {
-        p.print("(");
-        myExp1.unparse(p, 0);
-        p.print(" - ");
-        myExp2.unparse(p, 0);
-        p.print(")");
+    /**
+     * compile
+     */
+    public Engine.Exp compile(Engine e) {
+        Engine.Exp l = myExp1.compile(e);
+        Engine.Exp r = myExp2.compile(e);
+        return f -> l.eval(f) * r.eval(f);
     }
-}
 
-class TimesNode extends ArithmeticExpNode {
-    public TimesNode(ExpNode exp1, ExpNode exp2) {
-        super(exp1, exp2);
+    /**
+     * genJvm
+     */
+    public void genJvm(JvmCode c) {
+        myExp1.genJvm(c);
+        myExp2.genJvm(c);
+        c.op(JvmCode.IMUL, -1);
     }
 
-    public void codeGen() {
-        myExp1.codeGen();
-        myExp2.codeGen();
-
-        Codegen.genPop(Codegen.T1); // right side
-        Codegen.genPop(Codegen.T0); // left side
-
-        Codegen.generateWithComment("mul", "perform multiplication", Codegen.T0, Codegen.T0, Codegen.T1);
-        Codegen.genPush(Codegen.T0);
+    /**
+     * genX86
+     */
+    public void genX86() {
+        X86Codegen.generate("imull", genX86Operands(), "%eax");
     }
 
-
     public void unparse(PrintWriter p, int indent) {
         p.print("(");
         myExp1.unparse(p, 0);
@@ -2775,15 +5818,97 @@ class DivideNode extends ArithmeticExpNode {
         super(exp1, exp2);
     }
 
+    /**
+     * codeGen
+     * Division by a literal uses shifts, or a multiplication (see
+     * Codegen.genDivImm).
+     */
     public void codeGen() {
-        myExp1.codeGen();
-        myExp2.codeGen();
+        if (isIntLit(myExp2)) {
+            myExp1.codeGen();
+            Reg src = Codegen.popTemp(Codegen.T0);
+            Codegen.genDivImm(Codegen.newTemp(), src, intVal(myExp2));
+            return;
+        }
+        genBinary(Opcode.DIV, "perform division");
+    }
+
+    /**
+     * simplify
+     * k1 / k2 is a literal (unless k2 is 0 or it overflows), x / 1 is x
+     */
+    protected ExpNode simplify() {
+        if (isIntLit(myExp1) && isIntLit(myExp2) && intVal(myExp2) != 0 &&
+            !(intVal(myExp1) == Integer.MIN_VALUE && intVal(myExp2) == -1)) {
+            return intLit(intVal(myExp1) / intVal(myExp2));
+        }
+        if (isIntLit(myExp2, 1)) {
+            return myExp1;
+        }
+        return this;
+    }
+
+    // division by zero traps
+    public boolean isPure() {
+        return false;
+    }
+
+    public IRInst genIR(IRBuilder b) {
+        return genIRBinary(b, IROp.DIV);
+    }
 
-        Codegen.genPop(Codegen.T1); // right side
-        Codegen.genPop(Codegen.T0); // left side
+    /**
+     * compile
+     */
+    public Engine.Exp compile(Engine e) {
+        Engine.Exp l = myExp1.compile(e);
+        Engine.Exp r = myExp2.compile(e);
+        return f -> l.eval(f) / r.eval(f);
+    }
+
+    /**
+     * genJvm
+     */
+    public void genJvm(JvmCode c) {
+        myExp1.genJvm(c);
+        myExp2.genJvm(c);
+        c.op(JvmCode.IDIV, -1);
+    }
 
-        Codegen.generateWithComment("div", "perform division", Codegen.T0, Codegen.T0, Codegen.T1);
-        Codegen.genPush(Codegen.T0);
+    /**
+     * genX86
+     * idivl divides %edx:%eax, and cannot take an immediate divisor.  It
+     * faults on a zero divisor and on INT_MIN / -1, so a zero divisor
+     * calls rt_div_zero, which reports the run-time error, and dividing
+     * by -1 negates (INT_MIN / -1 is INT_MIN, as with the other backends).
+     */
+    public void genX86() {
+        String divisor = genX86Operands();
+        if (divisor.startsWith("$")) {
+            int k = Integer.parseInt(divisor.substring(1));
+            if (k == 0) {
+                X86Codegen.generate("call", "rt_div_zero");
+            } else if (k == -1) {
+                X86Codegen.generate("negl", "%eax");
+            } else {
+                X86Codegen.generate("movl", divisor, "%ecx");
+                X86Codegen.generate("cltd");
+                X86Codegen.generate("idivl", "%ecx");
+            }
+            return;
+        }
+        String negate = X86Codegen.nextLabel();
+        String done = X86Codegen.nextLabel();
+        X86Codegen.generate("cmpl", "$0", divisor);
+        X86Codegen.generate("je", "rt_div_zero");
+        X86Codegen.generate("cmpl", "$-1", divisor);
+        X86Codegen.generate("je", negate);
+        X86Codegen.generate("cltd");
+        X86Codegen.generate("idivl", divisor);
+        X86Codegen.generate("jmp", done);
+        X86Codegen.genLabel(negate);
+        X86Codegen.generate("negl", "%eax");
+        X86Codegen.genLabel(done);
     }
 
     public void unparse(PrintWriter p, int indent) {
@@ -2802,16 +5927,143 @@ class AndNode extends LogicalExpNode {
 
     public void codeGen() {
         String falseLabel = Codegen.nextLabel();
+
+        // both paths must leave the expression stack in the same state, so
+        // nothing below the result may be spilled on just one of them
+        Codegen.spillTemps();
+        Reg result = Codegen.nextTemp();
+
         myExp1.codeGen();
-        Codegen.genPop(Codegen.T0);
+        Reg reg = Codegen.popTemp(Codegen.T0);
+        if (reg != result) {
+            Codegen.generate(Opcode.MOVE, result, reg);
+        }
 
-        Codegen.generate("beq", Codegen.T0, "0", falseLabel);
+        Codegen.generate(Opcode.BEQ, result, Codegen.FALSE, Codegen.label(falseLabel));
 
         myExp2.codeGen();
-        Codegen.genPop(Codegen.T0);
+        reg = Codegen.popTemp(Codegen.T0);
+        if (reg != result) {
+            Codegen.generate(Opcode.MOVE, result, reg);
+        }
+
+        Codegen.genLabel(falseLabel);
+        Codegen.newTemp();
+    }
+
+    /**
+     * simplify
+     * true && x and x && true are x, false && x is false, and so is
+     * x && false when x need not be evaluated
+     */
+    protected ExpNode simplify() {
+        if (isBoolLit(myExp1)) {
+            return boolVal(myExp1) ? myExp2 : myExp1;
+        }
+        if (isBoolLit(myExp2, true)) {
+            return myExp1;
+        }
+        if (isBoolLit(myExp2, false) && myExp1.isPure()) {
+            return myExp2;
+        }
+        return this;
+    }
+
+    /**
+     * genJump
+     * If the left operand is false, so is the whole expression; the right
+     * operand is only evaluated otherwise.
+     */
+    public void genJump(String trueLabel, String falseLabel) {
+        if (falseLabel == null) {
+            String endLabel = Codegen.nextLabel();
+            myExp1.genJump(null, endLabel);
+            myExp2.genJump(trueLabel, null);
+            Codegen.genLabel(endLabel);
+        } else {
+            myExp1.genJump(null, falseLabel);
+            myExp2.genJump(trueLabel, falseLabel);
+        }
+    }
+
+    public void genIRJump(IRBuilder b, Block t, Block f) {
+        Block right = b.newBlock();
+        myExp1.genIRJump(b, right, f);
+        b.seal(right);
+        b.setCurrent(right);
+        myExp2.genIRJump(b, t, f);
+    }
+
+    /**
+     * genIR
+     * The right operand is evaluated only if the left one is true; the
+     * result is a phi of false and the right operand's value.
+     */
+    public IRInst genIR(IRBuilder b) {
+        IRInst left = myExp1.genIR(b);
+        Block rightBlock = b.newBlock();
+        Block join = b.newBlock();
+        b.branch(left, rightBlock, join);
+        b.seal(rightBlock);
+
+        b.setCurrent(rightBlock);
+        IRInst right = myExp2.genIR(b);
+        b.jump(join);
+
+        b.seal(join);
+        b.setCurrent(join);
+        return b.phi(join, b.constant(0), right);
+    }
+
+    /**
+     * compile
+     */
+    public Engine.Exp compile(Engine e) {
+        Engine.Exp l = myExp1.compile(e);
+        Engine.Exp r = myExp2.compile(e);
+        return f -> l.eval(f) != 0 ? r.eval(f) : 0;
+    }
+
+    /**
+     * genJvm
+     */
+    public void genJvm(JvmCode c) {
+        genJvmBool(c);
+    }
+
+    /**
+     * genJvmJump
+     * Short-circuit: the second operand is only tested if the first is
+     * true.
+     */
+    public void genJvmJump(JvmCode c, JvmCode.Label t, JvmCode.Label f) {
+        JvmCode.Label falseLabel = f != null ? f : c.newLabel();
+        myExp1.genJvmJump(c, null, falseLabel);
+        myExp2.genJvmJump(c, t, f);
+        if (f == null) {
+            c.place(falseLabel);
+        }
+    }
+
+    /**
+     * genX86
+     */
+    public void genX86() {
+        genX86Bool();
+    }
 
-        Codegen.p.print(falseLabel + ":");
-        Codegen.genPush(Codegen.T0);
+    /**
+     * genX86Jump
+     * Short-circuit: the second operand is only tested if the first is
+     * true.
+     */
+    public void genX86Jump(String trueLabel, String falseLabel) {
+        String label = falseLabel != null ? falseLabel : X86Codegen.nextLabel();
+        myExp1.genX86Jump(null, label);
+        myExp2.genX86Jump(trueLabel, falseLabel);
+        if (falseLabel == null) {
+            X86Codegen.genLabel(label);
+        }
     }
 
     public void unparse(PrintWriter p, int indent) {
@@ -2830,16 +6082,143 @@ class OrNode extends LogicalExpNode {
 
     public void codeGen() {
         String trueLabel = Codegen.nextLabel();
+
+        // both paths must leave the expression stack in the same state, so
+        // nothing below the result may be spilled on just one of them
+        Codegen.spillTemps();
+        Reg result = Codegen.nextTemp();
+
         myExp1.codeGen();
-        Codegen.genPop(Codegen.T0);
+        Reg reg = Codegen.popTemp(Codegen.T0);
+        if (reg != result) {
+            Codegen.generate(Opcode.MOVE, result, reg);
+        }
 
-        Codegen.generate("beq", Codegen.T0, "1", trueLabel);
+        Codegen.generate(Opcode.BEQ, result, Codegen.TRUE, Codegen.label(trueLabel));
 
         myExp2.codeGen();
-        Codegen.genPop(Codegen.T0);
+        reg = Codegen.popTemp(Codegen.T0);
+        if (reg != result) {
+            Codegen.generate(Opcode.MOVE, result, reg);
+        }
+
+        Codegen.genLabel(trueLabel);
+        Codegen.newTemp();
+    }
+
+    /**
+     * simplify
+     * false || x and x || false are x, true || x is true, and so is
+     * x || true when x need not be evaluated
+     */
+    protected ExpNode simplify() {
+        if (isBoolLit(myExp1)) {
+            return boolVal(myExp1) ? myExp1 : myExp2;
+        }
+        if (isBoolLit(myExp2, false)) {
+            return myExp1;
+        }
+        if (isBoolLit(myExp2, true) && myExp1.isPure()) {
+            return myExp2;
+        }
+        return this;
+    }
+
+    /**
+     * genJump
+     * If the left operand is true, so is the whole expression; the right
+     * operand is only evaluated otherwise.
+     */
+    public void genJump(String trueLabel, String falseLabel) {
+        if (trueLabel == null) {
+            String endLabel = Codegen.nextLabel();
+            myExp1.genJump(endLabel, null);
+            myExp2.genJump(null, falseLabel);
+            Codegen.genLabel(endLabel);
+        } else {
+            myExp1.genJump(trueLabel, null);
+            myExp2.genJump(trueLabel, falseLabel);
+        }
+    }
+
+    public void genIRJump(IRBuilder b, Block t, Block f) {
+        Block right = b.newBlock();
+        myExp1.genIRJump(b, t, right);
+        b.seal(right);
+        b.setCurrent(right);
+        myExp2.genIRJump(b, t, f);
+    }
+
+    /**
+     * genIR
+     * The right operand is evaluated only if the left one is false; the
+     * result is a phi of true and the right operand's value.
+     */
+    public IRInst genIR(IRBuilder b) {
+        IRInst left = myExp1.genIR(b);
+        Block rightBlock = b.newBlock();
+        Block join = b.newBlock();
+        b.branch(left, join, rightBlock);
+        b.seal(rightBlock);
+
+        b.setCurrent(rightBlock);
+        IRInst right = myExp2.genIR(b);
+        b.jump(join);
+
+        b.seal(join);
+        b.setCurrent(join);
+        return b.phi(join, b.constant(1), right);
+    }
+
+    /**
+     * compile
+     */
+    public Engine.Exp compile(Engine e) {
+        Engine.Exp l = myExp1.compile(e);
+        Engine.Exp r = myExp2.compile(e);
+        return f -> l.eval(f) != 0 ? 1 : r.eval(f);
+    }
+
+    /**
+     * genJvm
+     */
+    public void genJvm(JvmCode c) {
+        genJvmBool(c);
+    }
+
+    /**
+     * genJvmJump
+     * Short-circuit: the second operand is only tested if the first is
+     * false.
+     */
+    public void genJvmJump(JvmCode c, JvmCode.Label t, JvmCode.Label f) {
+        JvmCode.Label trueLabel = t != null ? t : c.newLabel();
+        myExp1.genJvmJump(c, trueLabel, null);
+        myExp2.genJvmJump(c, t, f);
+        if (t == null) {
+            c.place(trueLabel);
+        }
+    }
+
+    /**
+     * genX86
+     */
+    public void genX86() {
+        genX86Bool();
+    }
 
-        Codegen.p.print(trueLabel + ":");
-        Codegen.genPush(Codegen.T0);
+    /**
+     * genX86Jump
+     * Short-circuit: the second operand is only tested if the first is
+     * false.
+     */
+    public void genX86Jump(String trueLabel, String falseLabel) {
+        String label = trueLabel != null ? trueLabel : X86Codegen.nextLabel();
+        myExp1.genX86Jump(label, null);
+        myExp2.genX86Jump(trueLabel, falseLabel);
+        if (trueLabel == null) {
+            X86Codegen.genLabel(label);
+        }
     }
 
     public void unparse(PrintWriter p, int indent) {
@@ -2857,25 +6236,55 @@ class EqualsNode extends EqualityExpNode {
     }
 
     public void codeGen() {
-        myExp1.codeGen();
-        myExp2.codeGen();
-        Codegen.genPop(Codegen.T1); // right side
-        Codegen.genPop(Codegen.T0); // left side
-
-        if (myExp1 instanceof StringLitNode) {
-            StringLitNode se1 = (StringLitNode)myExp1;
-            StringLitNode se2 = (StringLitNode)myExp2;
-            int size1 = se1.getStr().length();
-            int size2 = se2.getStr().length();
-            // string lit is an address, not a value
-            Codegen.generateIndexed("lw", Codegen.T0, Codegen.T0, 0, "load string");
-            Codegen.generateIndexed("lw", Codegen.T1, Codegen.T1, 0, "load string");
-            Codegen.generateWithComment("seq", "perform equality", Codegen.T0, Codegen.T0, Codegen.T1);
-            Codegen.genPush(Codegen.T0);
-        } else {
-            Codegen.generateWithComment("seq", "perform equality", Codegen.T0, Codegen.T0, Codegen.T1);
-            Codegen.genPush(Codegen.T0);
+        genBinary(Opcode.SEQ, "perform equality");
+    }
+
+    public EqualityExpNode negate() {
+        return new NotEqualsNode(myExp1, myExp2);
+    }
+
+    /**
+     * simplify
+     * Comparisons known at compile time are literals, x == true is x and
+     * x == false is !x
+     */
+    protected ExpNode simplify() {
+        Boolean eq = constEqual();
+        if (eq != null) {
+            return boolLit(eq);
+        }
+        if (comparedWith(true) != null) {
+            return comparedWith(true);
         }
+        if (comparedWith(false) != null) {
+            return new NotNode(comparedWith(false)).simplify();
+        }
+        return this;
+    }
+
+    protected Opcode branchOpcode() {
+        return Opcode.BEQ;
+    }
+
+    protected int jvmCompare() {
+        return JvmCode.IF_ICMPEQ;
+    }
+
+    protected String x86Jump() {
+        return "je";
+    }
+
+    public IRInst genIR(IRBuilder b) {
+        return genIRBinary(b, IROp.SEQ);
+    }
+
+    /**
+     * compile
+     */
+    public Engine.Exp compile(Engine e) {
+        Engine.Exp l = myExp1.compile(e);
+        Engine.Exp r = myExp2.compile(e);
+        return f -> l.eval(f) == r.eval(f) ? 1 : 0;
     }
 
     public void unparse(PrintWriter p, int indent) {
@@ -2893,25 +6302,55 @@ class NotEqualsNode extends EqualityExpNode {
     }
 
     public void codeGen() {
-        myExp1.codeGen();
-        myExp2.codeGen();
-        Codegen.genPop(Codegen.T1); // right side
-        Codegen.genPop(Codegen.T0); // left side
-
-        if (myExp1 instanceof StringLitNode) {
-            StringLitNode se1 = (StringLitNode)myExp1;
-            StringLitNode se2 = (StringLitNode)myExp2;
-            int size1 = se1.getStr().length();
-            int size2 = se2.getStr().length();
-            // string lit is an address, not a value
-            Codegen.generateIndexed("lw", Codegen.T0, Codegen.T0, 0, "load string");
-            Codegen.generateIndexed("lw", Codegen.T1, Codegen.T1, 0, "load string");
-            Codegen.generateWithComment("sne", "perform equality", Codegen.T0, Codegen.T0, Codegen.T1);
-            Codegen.genPush(Codegen.T0);
-        } else {
-            Codegen.generateWithComment("sne", "perform equality", Codegen.T0, Codegen.T0, Codegen.T1);
-            Codegen.genPush(Codegen.T0);
+        genBinary(Opcode.SNE, "perform equality");
+    }
+
+    public EqualityExpNode negate() {
+        return new EqualsNode(myExp1, myExp2);
+    }
+
+    /**
+     * simplify
+     * Comparisons known at compile time are literals, x != false is x and
+     * x != true is !x
+     */
+    protected ExpNode simplify() {
+        Boolean eq = constEqual();
+        if (eq != null) {
+            return boolLit(!eq);
+        }
+        if (comparedWith(false) != null) {
+            return comparedWith(false);
+        }
+        if (comparedWith(true) != null) {
+            return new NotNode(comparedWith(true)).simplify();
         }
+        return this;
+    }
+
+    protected Opcode branchOpcode() {
+        return Opcode.BNE;
+    }
+
+    protected int jvmCompare() {
+        return JvmCode.IF_ICMPNE;
+    }
+
+    protected String x86Jump() {
+        return "jne";
+    }
+
+    public IRInst genIR(IRBuilder b) {
+        return genIRBinary(b, IROp.SNE);
+    }
+
+    /**
+     * compile
+     */
+    public Engine.Exp compile(Engine e) {
+        Engine.Exp l = myExp1.compile(e);
+        Engine.Exp r = myExp2.compile(e);
+        return f -> l.eval(f) != r.eval(f) ? 1 : 0;
     }
 
     public void unparse(PrintWriter p, int indent) {
@@ -2929,14 +6368,40 @@ class LessNode extends RelationalExpNode {
     }
 
     public void codeGen() {
-        myExp1.codeGen();
-        myExp2.codeGen();
+        genBinary(Opcode.SLT, "perform equality");
+    }
+
+    protected boolean compare(int val1, int val2) {
+        return val1 < val2;
+    }
+
+    public RelationalExpNode negate() {
+        return new GreaterEqNode(myExp1, myExp2);
+    }
+
+    protected Opcode branchOpcode() {
+        return Opcode.BLT;
+    }
+
+    protected int jvmCompare() {
+        return JvmCode.IF_ICMPLT;
+    }
+
+    protected String x86Jump() {
+        return "jl";
+    }
 
-        Codegen.genPop(Codegen.T1); // right side
-        Codegen.genPop(Codegen.T0); // left side
+    public IRInst genIR(IRBuilder b) {
+        return genIRBinary(b, IROp.SLT);
+    }
 
-        Codegen.generateWithComment("slt", "perform equality", Codegen.T0, Codegen.T0, Codegen.T1);
-        Codegen.genPush(Codegen.T0);
+    /**
+     * compile
+     */
+    public Engine.Exp compile(Engine e) {
+        Engine.Exp l = myExp1.compile(e);
+        Engine.Exp r = myExp2.compile(e);
+        return f -> l.eval(f) < r.eval(f) ? 1 : 0;
     }
 
     public void unparse(PrintWriter p, int indent) {
@@ -2954,14 +6419,40 @@ class GreaterNode extends RelationalExpNode {
     }
 
     public void codeGen() {
-        myExp1.codeGen();
-        myExp2.codeGen();
+        genBinary(Opcode.SGT, "perform equality");
+    }
+
+    protected boolean compare(int val1, int val2) {
+        return val1 > val2;
+    }
+
+    public RelationalExpNode negate() {
+        return new LessEqNode(myExp1, myExp2);
+    }
+
+    protected Opcode branchOpcode() {
+        return Opcode.BGT;
+    }
+
+    protected int jvmCompare() {
+        return JvmCode.IF_ICMPGT;
+    }
+
+    protected String x86Jump() {
+        return "jg";
+    }
 
-        Codegen.genPop(Codegen.T1); // right side
-        Codegen.genPop(Codegen.T0); // left side
+    public IRInst genIR(IRBuilder b) {
+        return genIRBinary(b, IROp.SGT);
+    }
 
-        Codegen.generateWithComment("sgt", "perform equality", Codegen.T0, Codegen.T0, Codegen.T1);
-        Codegen.genPush(Codegen.T0);
+    /**
+     * compile
+     */
+    public Engine.Exp compile(Engine e) {
+        Engine.Exp l = myExp1.compile(e);
+        Engine.Exp r = myExp2.compile(e);
+        return f -> l.eval(f) > r.eval(f) ? 1 : 0;
     }
 
     public void unparse(PrintWriter p, int indent) {
@@ -2979,14 +6470,40 @@ class LessEqNode extends RelationalExpNode {
     }
 
     public void codeGen() {
-        myExp1.codeGen();
-        myExp2.codeGen();
+        genBinary(Opcode.SLE, "perform equality");
+    }
+
+    protected boolean compare(int val1, int val2) {
+        return val1 <= val2;
+    }
+
+    public RelationalExpNode negate() {
+        return new GreaterNode(myExp1, myExp2);
+    }
+
+    protected Opcode branchOpcode() {
+        return Opcode.BLE;
+    }
+
+    protected int jvmCompare() {
+        return JvmCode.IF_ICMPLE;
+    }
+
+    protected String x86Jump() {
+        return "jle";
+    }
 
-        Codegen.genPop(Codegen.T1); // right side
-        Codegen.genPop(Codegen.T0); // left side
+    public IRInst genIR(IRBuilder b) {
+        return genIRBinary(b, IROp.SLE);
+    }
 
-        Codegen.generateWithComment("sle", "perform equality", Codegen.T0, Codegen.T0, Codegen.T1);
-        Codegen.genPush(Codegen.T0);
+    /**
+     * compile
+     */
+    public Engine.Exp compile(Engine e) {
+        Engine.Exp l = myExp1.compile(e);
+        Engine.Exp r = myExp2.compile(e);
+        return f -> l.eval(f) <= r.eval(f) ? 1 : 0;
     }
 
     public void unparse(PrintWriter p, int indent) {
@@ -3004,14 +6521,40 @@ class GreaterEqNode extends RelationalExpNode {
     }
 
     public void codeGen() {
-        myExp1.codeGen();
-        myExp2.codeGen();
+        genBinary(Opcode.SGE, "perform equality");
+    }
+
+    protected boolean compare(int val1, int val2) {
+        return val1 >= val2;
+    }
+
+    public RelationalExpNode negate() {
+        return new LessNode(myExp1, myExp2);
+    }
+
+    protected Opcode branchOpcode() {
+        return Opcode.BGE;
+    }
+
+    protected int jvmCompare() {
+        return JvmCode.IF_ICMPGE;
+    }
+
+    protected String x86Jump() {
+        return "jge";
+    }
 
-        Codegen.genPop(Codegen.T1); // right side
-        Codegen.genPop(Codegen.T0); // left side
+    public IRInst genIR(IRBuilder b) {
+        return genIRBinary(b, IROp.SGE);
+    }
 
-        Codegen.generateWithComment("sge", "perform equality", Codegen.T0, Codegen.T0, Codegen.T1);
-        Codegen.genPush(Codegen.T0);
+    /**
+     * compile
+     */
+    public Engine.Exp compile(Engine e) {
+        Engine.Exp l = myExp1.compile(e);
+        Engine.Exp r = myExp2.compile(e);
+        return f -> l.eval(f) >= r.eval(f) ? 1 : 0;
     }
 
     public void unparse(PrintWriter p, int indent) {